@@ -1,5 +1,5 @@
 /*
- * Copyright 2012 Hannes Janetzek
+ * Copyright 2013 Hannes Janetzek
  *
  * This program is free software: you can redistribute it and/or modify it under the
  * terms of the GNU Lesser General Public License as published by the Free Software
@@ -14,6 +14,718 @@
  */
 package org.oscim.cache;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.oscim.core.Tile;
+
+/**
+ * Persistent cache of raw tile data in a single pack file.
+ *
+ * The file is split into segments which are memory-mapped. Tiles are
+ * appended to the current head segment and found through an in-memory
+ * hash index which is rebuilt from the record headers on startup. When
+ * free segments run low a background thread compacts the oldest segment:
+ * tiles that were read since they were written are moved to the head, all
+ * others are dropped (second chance LRU). The file never grows beyond
+ * maxSize. Compaction holds the lock only for a few records at a time,
+ * so that put() is not blocked for a whole segment.
+ *
+ * Pinned tiles, e.g. of a region downloaded for offline use, are always
+ * kept on compaction. They may fill the cache only up to a budget that
+ * leaves room for compaction to make progress.
+ *
+ * get() and contains() do not lock, so all loader threads can look up
+ * tiles concurrently. Records are verified by checksum when read, a
+ * segment being reused meanwhile just gives a cache miss.
+ *
+ * Record: magic, length | pinned flag, key, crc32, data (8 byte aligned)
+ *
+ * Does not depend on Android, so that OfflineDownloader can fill it on a
+ * plain JVM.
+ */
 public class CacheManager {
+	private static final Logger LOG = Logger.getLogger(CacheManager.class.getName());
+
+	final static int SEGMENT_SIZE = 1 << 22;
+	private final static int MIN_SEGMENTS = 4;
+	// start compaction when less segments are free
+	private final static int MIN_FREE = 2;
+	// bytes of a segment compacted per lock hold
+	private final static int COMPACT_STEP = 1 << 16;
+
+	private final static int SEGMENT_MAGIC = 0x4f504b31;
+	private final static int RECORD_MAGIC = 0x54494c45;
+
+	// magic, sequence number
+	private final static int SEGMENT_HEADER = 16;
+	// magic, length, key, crc
+	private final static int RECORD_HEADER = 20;
+	// flag in record length
+	private final static int PINNED = 1 << 30;
+	private final static int LENGTH_MASK = PINNED - 1;
+
+	private final static HashMap<String, CacheManager> sInstances =
+			new HashMap<String, CacheManager>();
+
+	/**
+	 * @param file
+	 *            pack file, created when missing
+	 * @param maxSize
+	 *            max size of the file in bytes
+	 * @return the shared cache for 'file' or null when it cannot be
+	 *         opened. Must be given back by close().
+	 */
+	public static CacheManager getInstance(File file, long maxSize) {
+		synchronized (sInstances) {
+			String path = file.getAbsolutePath();
+			CacheManager cache = sInstances.get(path);
+			if (cache == null) {
+				try {
+					cache = new CacheManager(file, maxSize);
+				} catch (IOException e) {
+					LOG.warning("cannot open " + file + ": " + e.getMessage());
+					return null;
+				}
+				sInstances.put(path, cache);
+			}
+			cache.mRefs++;
+			return cache;
+		}
+	}
+
+	private final File mPath;
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private final int mNumSegments;
+
+	// mapped segments, null when not yet used
+	private final AtomicReferenceArray<MappedByteBuffer> mSegments;
+
+	private volatile Index mIndex;
+
+	// users of the shared instance, only modified with sInstances lock
+	private int mRefs;
+
+	// --- only accessed with lock on 'this' ---
+
+	// segments in order of writing, the last is the head
+	private final ArrayDeque<Integer> mUsed = new ArrayDeque<Integer>();
+	private final int[] mFree;
+	private int mFreeCnt;
+
+	private int mHead = -1;
+	private int mHeadPos;
+	private long mSequence;
+
+	// bytes of pinned records and their limit
+	private long mPinnedSize;
+	private final long mMaxPinnedSize;
+
+	// segment being compacted, -1 when none
+	private int mCompactSeg = -1;
+	private int mCompactPos;
+	private int mMoved, mRemoved;
+
+	private final CRC32 mCrc = new CRC32();
+	private byte[] mTmp = new byte[1 << 16];
+
+	private boolean mClosed;
+
+	// statistics
+	private final AtomicInteger mHits = new AtomicInteger();
+	private final AtomicInteger mMisses = new AtomicInteger();
+
+	private CacheManager(File file, long maxSize) throws IOException {
+		mPath = file;
+		mNumSegments = (int) Math.max(MIN_SEGMENTS, maxSize / SEGMENT_SIZE);
+		mSegments = new AtomicReferenceArray<MappedByteBuffer>(mNumSegments);
+		mFree = new int[mNumSegments];
+		// keep a free segment for compaction, plus one for records that
+		// do not fit at segment ends
+		mMaxPinnedSize = (long) (mNumSegments - MIN_FREE - 1) * SEGMENT_SIZE;
+
+		// guess 8kb per tile
+		mIndex = new Index(tableSize((int) (maxSize >> 13)));
+
+		mFile = new RandomAccessFile(file, "rw");
+		mChannel = mFile.getChannel();
+
+		try {
+			load();
+		} catch (IOException e) {
+			mFile.close();
+			throw e;
+		}
+
+		Thread t = new Thread(mCompactor, "CacheManager");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	/** read index from segments of existing file */
+	private void load() throws IOException {
+		long max = (long) mNumSegments * SEGMENT_SIZE;
+		if (mFile.length() > max)
+			mFile.setLength(max);
+
+		int existing = (int) (mFile.length() / SEGMENT_SIZE);
+
+		// sort valid segments by sequence number
+		long[] order = new long[existing];
+		int cnt = 0;
+		for (int i = 0; i < existing; i++) {
+			MappedByteBuffer map = map(i);
+			if (map.getInt(0) == SEGMENT_MAGIC)
+				order[cnt++] = (map.getLong(8) << 16) | i;
+		}
+		Arrays.sort(order, 0, cnt);
+
+		boolean[] used = new boolean[mNumSegments];
+		for (int i = 0; i < cnt; i++) {
+			int seg = (int) (order[i] & 0xffff);
+			used[seg] = true;
+			mUsed.add(Integer.valueOf(seg));
+
+			mHead = seg;
+			mHeadPos = scan(seg);
+			mSequence = (order[i] >> 16) + 1;
+		}
+
+		for (int i = mNumSegments - 1; i >= 0; i--)
+			if (!used[i])
+				mFree[mFreeCnt++] = i;
+
+		LOG.fine(mPath.getName() + ": " + mIndex.count + " tiles, "
+				+ cnt + "/" + mNumSegments + " segments");
+	}
+
+	/** add valid records of segment to index, @return end position */
+	private int scan(int seg) {
+		ByteBuffer map = mSegments.get(seg);
+		int pos = SEGMENT_HEADER;
+
+		while (pos + RECORD_HEADER <= SEGMENT_SIZE) {
+			if (map.getInt(pos) != RECORD_MAGIC)
+				break;
+
+			int flags = map.getInt(pos + 4);
+			int len = flags & LENGTH_MASK;
+			long key = map.getLong(pos + 8);
+			int size = recordSize(len);
+
+			if (flags < 0 || pos + size > SEGMENT_SIZE)
+				break;
+
+			// drop records torn by a crash
+			if (checksum(map, pos + RECORD_HEADER, len) != map.getInt(pos + 16))
+				break;
+
+			if ((flags & PINNED) != 0)
+				mPinnedSize += size;
+
+			putIndex(key, location(seg, pos, len));
+			pos += size;
+		}
+		return pos;
+	}
+
+	private MappedByteBuffer map(int seg) throws IOException {
+		MappedByteBuffer map = mSegments.get(seg);
+		if (map == null) {
+			map = mChannel.map(FileChannel.MapMode.READ_WRITE,
+					(long) seg * SEGMENT_SIZE, SEGMENT_SIZE);
+			mSegments.set(seg, map);
+		}
+		return map;
+	}
+
+	public static long getKey(Tile tile) {
+		return ((long) tile.zoomLevel << 56)
+				| ((long) tile.tileX << 28)
+				| tile.tileY;
+	}
+
+	/**
+	 * @return copy of tile data or null when not cached.
+	 */
+	public ByteBuffer get(Tile tile) {
+		long key = getKey(tile);
+		Index index = mIndex;
+
+		int slot = index.find(key);
+		long loc = slot < 0 ? 0 : index.values.get(slot);
+		if (loc == 0) {
+			mMisses.incrementAndGet();
+			return null;
+		}
+
+		// give it a second chance on compaction
+		if ((loc & REFERENCED) == 0)
+			index.values.compareAndSet(slot, loc, loc | REFERENCED);
+
+		int seg = segment(loc);
+		int pos = position(loc);
+		int len = length(loc);
+
+		ByteBuffer map = mSegments.get(seg);
+		if (map == null || map.getInt(pos) != RECORD_MAGIC
+				|| (map.getInt(pos + 4) & LENGTH_MASK) != len
+				|| map.getLong(pos + 8) != key) {
+			mMisses.incrementAndGet();
+			return null;
+		}
+		int crc = map.getInt(pos + 16);
+
+		byte[] data = new byte[len];
+		ByteBuffer src = map.duplicate();
+		src.position(pos + RECORD_HEADER);
+		src.get(data, 0, len);
+
+		// the segment might have been reused meanwhile
+		CRC32 c = new CRC32();
+		c.update(data, 0, len);
+		if ((int) c.getValue() != crc) {
+			mMisses.incrementAndGet();
+			return null;
+		}
+
+		mHits.incrementAndGet();
+		return ByteBuffer.wrap(data);
+	}
+
+	/**
+	 * @return true if tile is probably in cache. get() might still fail.
+	 */
+	public boolean contains(Tile tile) {
+		Index index = mIndex;
+		int slot = index.find(getKey(tile));
+		return slot >= 0 && index.values.get(slot) != 0;
+	}
+
+	/**
+	 * Store tile data, replacing an existing entry.
+	 *
+	 * @param data
+	 *            remaining bytes of data are written
+	 * @return false when data was dropped, e.g. while compaction did not
+	 *         catch up.
+	 */
+	public boolean put(Tile tile, ByteBuffer data) {
+		return put(tile, data, false);
+	}
+
+	/**
+	 * Store tile data, replacing an existing entry.
+	 *
+	 * @param pin
+	 *            keep the tile on compaction
+	 * @return false when data was dropped: no segment is free or pinned
+	 *         tiles would exceed their budget.
+	 */
+	public boolean put(Tile tile, ByteBuffer data, boolean pin) {
+		int len = data.remaining();
+		int size = recordSize(len);
+		if (size > SEGMENT_SIZE - SEGMENT_HEADER - 4)
+			return false;
+
+		synchronized (this) {
+			if (mClosed)
+				return false;
+
+			if (pin && mPinnedSize + size > mMaxPinnedSize)
+				return false;
+
+			if (mHead < 0 || mHeadPos + size + 4 > SEGMENT_SIZE) {
+				if (!nextHead()) {
+					notifyAll();
+					return false;
+				}
+			}
+
+			ByteBuffer map = mSegments.get(mHead);
+			int pos = mHeadPos;
+
+			ByteBuffer dst = map.duplicate();
+			dst.position(pos + RECORD_HEADER);
+			dst.put(data.duplicate());
+
+			// end marker for load()
+			map.putInt(pos + size, 0);
+
+			// write header last, readers check it first
+			map.putInt(pos + 4, pin ? len | PINNED : len);
+			map.putLong(pos + 8, getKey(tile));
+			map.putInt(pos + 16, checksum(map, pos + RECORD_HEADER, len));
+			map.putInt(pos, RECORD_MAGIC);
+
+			mHeadPos += size;
+			if (pin)
+				mPinnedSize += size;
+
+			putIndex(getKey(tile), location(mHead, pos, len));
+
+			if (mFreeCnt < MIN_FREE)
+				notifyAll();
+		}
+		return true;
+	}
+
+	/** start writing to the next free segment */
+	private boolean nextHead() {
+		if (mFreeCnt == 0)
+			return false;
+
+		int seg = mFree[--mFreeCnt];
+		MappedByteBuffer map;
+		try {
+			map = map(seg);
+		} catch (IOException e) {
+			LOG.warning("cannot map segment: " + e.getMessage());
+			mFree[mFreeCnt++] = seg;
+			return false;
+		}
+
+		map.putInt(SEGMENT_HEADER, 0);
+		map.putLong(8, mSequence++);
+		map.putInt(0, SEGMENT_MAGIC);
+
+		mUsed.add(Integer.valueOf(seg));
+		mHead = seg;
+		mHeadPos = SEGMENT_HEADER;
+		return true;
+	}
+
+	/**
+	 * Continue freeing the oldest segment: move referenced and pinned
+	 * records to head and remove the others from index. Scans at most
+	 * COMPACT_STEP bytes.
+	 */
+	private void compact() {
+		if (mCompactSeg < 0) {
+			mCompactSeg = mUsed.poll().intValue();
+			mCompactPos = SEGMENT_HEADER;
+			mMoved = mRemoved = 0;
+		}
+		int seg = mCompactSeg;
+		ByteBuffer map = mSegments.get(seg);
+
+		int pos = mCompactPos;
+		int end = pos + COMPACT_STEP;
+
+		while (pos + RECORD_HEADER <= SEGMENT_SIZE
+				&& map.getInt(pos) == RECORD_MAGIC) {
+
+			if (pos >= end) {
+				mCompactPos = pos;
+				return;
+			}
+
+			int flags = map.getInt(pos + 4);
+			int len = flags & LENGTH_MASK;
+			long key = map.getLong(pos + 8);
+			int size = recordSize(len);
+			boolean pinned = (flags & PINNED) != 0;
+
+			Index index = mIndex;
+			int slot = index.find(key);
+			long loc = slot < 0 ? 0 : index.values.get(slot);
+
+			boolean keep = false;
+
+			// skip records replaced by later put()
+			if ((loc & ~REFERENCED) == location(seg, pos, len)) {
+				if ((pinned || (loc & REFERENCED) != 0)
+						&& move(map, pos, size, len, index, slot)) {
+					keep = true;
+					mMoved++;
+				} else {
+					index.remove(slot);
+					mRemoved++;
+				}
+			}
+			if (pinned && !keep)
+				mPinnedSize -= size;
+
+			pos += size;
+		}
+
+		// not valid on load() anymore
+		map.putInt(0, 0);
+		mFree[mFreeCnt++] = seg;
+		mCompactSeg = -1;
+
+		LOG.fine("compact: moved " + mMoved + " removed " + mRemoved);
+	}
+
+	private boolean move(ByteBuffer map, int pos, int size, int len,
+			Index index, int slot) {
+
+		if (mHeadPos + size + 4 > SEGMENT_SIZE && !nextHead())
+			return false;
+
+		ByteBuffer head = mSegments.get(mHead);
+		int dst = mHeadPos;
+
+		ByteBuffer src = map.duplicate();
+		src.position(pos + 4);
+		src.limit(pos + size);
+		ByteBuffer out = head.duplicate();
+		out.position(dst + 4);
+		out.put(src);
+
+		head.putInt(dst + size, 0);
+		head.putInt(dst, RECORD_MAGIC);
+		mHeadPos += size;
+
+		// clear REFERENCED
+		index.values.set(slot, location(mHead, dst, len));
+		return true;
+	}
+
+	private final Runnable mCompactor = new Runnable() {
+		@Override
+		public void run() {
+			while (true) {
+				synchronized (CacheManager.this) {
+					// never compact the head
+					while (!mClosed && mCompactSeg < 0
+							&& (mFreeCnt >= MIN_FREE || mUsed.size() <= 1)) {
+						try {
+							CacheManager.this.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (mClosed)
+						return;
+
+					compact();
+				}
+				// let put() in between steps
+				Thread.yield();
+			}
+		}
+	};
+
+	/**
+	 * Write mapped segments to disk.
+	 */
+	public synchronized void flush() {
+		if (mClosed)
+			return;
+
+		for (int i = 0; i < mNumSegments; i++) {
+			MappedByteBuffer map = mSegments.get(i);
+			if (map != null)
+				map.force();
+		}
+	}
+
+	/**
+	 * Give back the instance returned by getInstance(). When it is not
+	 * used anymore the mapped segments are written to disk and the file
+	 * is closed. Following get() and put() calls do nothing.
+	 */
+	public void close() {
+		synchronized (sInstances) {
+			if (--mRefs > 0)
+				return;
+
+			sInstances.remove(mPath.getAbsolutePath());
+		}
+		synchronized (this) {
+			if (mClosed)
+				return;
+
+			mClosed = true;
+			notifyAll();
+
+			mIndex = new Index(16);
+			for (int i = 0; i < mNumSegments; i++) {
+				MappedByteBuffer map = mSegments.get(i);
+				if (map != null)
+					map.force();
+				mSegments.set(i, null);
+			}
+			try {
+				mFile.close();
+			} catch (IOException e) {
+				LOG.warning(e.getMessage());
+			}
+		}
+	}
+
+	/** @return number of cached tiles */
+	public int getCount() {
+		return mIndex.count;
+	}
+
+	/** @return bytes used by segments */
+	public synchronized long getSize() {
+		int used = mUsed.size() + (mCompactSeg < 0 ? 0 : 1);
+		return (long) used * SEGMENT_SIZE;
+	}
+
+	public int getHitCount() {
+		return mHits.get();
+	}
+
+	public int getMissCount() {
+		return mMisses.get();
+	}
+
+	// ---------------- record location ----------------
+
+	// set by get(), cleared on compaction
+	private final static long REFERENCED = 1;
+
+	// 24 bits length, 24 bits position, 15 bits segment
+	private static long location(int seg, int pos, int len) {
+		return ((long) seg << 49) | ((long) pos << 25) | ((long) len << 1);
+	}
+
+	private static int segment(long loc) {
+		return (int) (loc >>> 49);
+	}
+
+	private static int position(long loc) {
+		return (int) (loc >>> 25) & 0xffffff;
+	}
+
+	private static int length(long loc) {
+		return (int) (loc >>> 1) & 0xffffff;
+	}
+
+	private static int recordSize(int len) {
+		return (RECORD_HEADER + len + 7) & ~7;
+	}
+
+	private int checksum(ByteBuffer map, int pos, int len) {
+		if (mTmp.length < len)
+			mTmp = new byte[len];
+
+		ByteBuffer src = map.duplicate();
+		src.position(pos);
+		src.get(mTmp, 0, len);
+
+		mCrc.reset();
+		mCrc.update(mTmp, 0, len);
+		return (int) mCrc.getValue();
+	}
+
+	// ---------------- index ----------------
+
+	private void putIndex(long key, long loc) {
+		Index index = mIndex;
+		if ((index.used + 1) * 2 > index.size) {
+			index = index.rehash(tableSize(index.count + 1));
+			mIndex = index;
+		}
+		index.put(key, loc);
+	}
+
+	private static int tableSize(int entries) {
+		int size = 16;
+		while (size < entries * 4)
+			size <<= 1;
+		return size;
+	}
+
+	/**
+	 * Open-addressing hash table: tile key -> record location. Modified
+	 * only with lock on CacheManager, readers see consistent slots since
+	 * the value is written before the key. A full table is replaced by a
+	 * new one.
+	 */
+	static final class Index {
+		private final static long EMPTY = -1;
+		private final static long REMOVED = -2;
+
+		final int size;
+		final AtomicLongArray keys;
+		final AtomicLongArray values;
+
+		// used and removed slots
+		int used;
+		volatile int count;
+
+		Index(int size) {
+			this.size = size;
+			keys = new AtomicLongArray(size);
+			values = new AtomicLongArray(size);
+			for (int i = 0; i < size; i++)
+				keys.set(i, EMPTY);
+		}
+
+		private static int hash(long key, int mask) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h >>> 32) & mask;
+		}
+
+		int find(long key) {
+			int mask = size - 1;
+			for (int i = hash(key, mask), n = 0; n < size; i = (i + 1) & mask, n++) {
+				long k = keys.get(i);
+				if (k == key)
+					return i;
+				if (k == EMPTY)
+					return -1;
+			}
+			return -1;
+		}
+
+		void put(long key, long loc) {
+			int mask = size - 1;
+			int free = -1;
+			int i = hash(key, mask);
+			for (;; i = (i + 1) & mask) {
+				long k = keys.get(i);
+				if (k == key) {
+					values.set(i, loc);
+					return;
+				}
+				if (k == REMOVED && free < 0)
+					free = i;
+				if (k == EMPTY)
+					break;
+			}
+			if (free < 0) {
+				free = i;
+				used++;
+			}
+			values.set(free, loc);
+			keys.set(free, key);
+			count++;
+		}
+
+		void remove(int slot) {
+			values.set(slot, 0);
+			keys.set(slot, REMOVED);
+			count--;
+		}
 
+		Index rehash(int newSize) {
+			Index index = new Index(newSize);
+			for (int i = 0; i < size; i++) {
+				long k = keys.get(i);
+				if (k >= 0 && values.get(i) != 0)
+					index.put(k, values.get(i));
+			}
+			return index;
+		}
+	}
 }
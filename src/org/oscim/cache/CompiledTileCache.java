@@ -0,0 +1,443 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.oscim.core.Tile;
+
+import android.util.Log;
+
+/**
+ * File-backed cache of compiled tile data, i.e. Layers and labels written by
+ * LayersCodec. Entries are stored as one file per tile in a directory per
+ * data source and theme:
+ * <cache-dir>/<source>-<theme>/<zoom>/<x>_<y>
+ *
+ * When a theme changes the directories of the previous theme for the same
+ * source are removed. The total size of all entries is kept below the given
+ * limit by removing least recently used files.
+ *
+ * Files are written and removed by a background thread, so that TileLoaders
+ * do not wait for disk I/O. Entries are dropped when too many are waiting
+ * to be written.
+ *
+ * Can be shared by all TileLoaders.
+ */
+public class CompiledTileCache {
+	private final static String TAG = CompiledTileCache.class.getName();
+
+	// remove entries down to this fraction of max size
+	private final static float TRIM_FACTOR = 0.9f;
+
+	// max entries waiting to be written
+	private final static int MAX_PENDING = 32;
+
+	private final File mCacheDir;
+	private final long mMaxSize;
+
+	// current directory for source and theme
+	private File mDir;
+
+	// sum of all entries in mCacheDir, -1 when not yet counted. only
+	// modified by the writer thread.
+	private volatile long mSize = -1;
+
+	// tasks for the writer thread, guarded by itself
+	private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+	private int mPendingWrites;
+	private boolean mWriterRunning;
+
+	// used by writer thread for temporary file names
+	private int mWriteCnt;
+
+	/**
+	 * @param cacheDir
+	 *            directory for cache files, created when missing
+	 * @param maxSize
+	 *            max bytes used by all entries in cacheDir
+	 */
+	public CompiledTileCache(File cacheDir, long maxSize) {
+		mCacheDir = cacheDir;
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Set the data source and theme of following get() and put() calls.
+	 * Entries for other themes of the same source are removed.
+	 *
+	 * @param source
+	 *            identifier for tile data source
+	 * @param themeHash
+	 *            IRenderTheme.getThemeHash()
+	 */
+	public synchronized void setKey(String source, int themeHash) {
+		// keep names file system safe
+		source = Integer.toHexString(source.hashCode());
+
+		String name = source + "-" + Integer.toHexString(themeHash);
+		final File dir = mDir = new File(mCacheDir, name);
+		final String prefix = source + "-";
+
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				File[] dirs = mCacheDir.listFiles();
+				if (dirs == null)
+					return;
+
+				for (File d : dirs) {
+					if (d.getName().startsWith(prefix) && !d.equals(dir)) {
+						Log.d(TAG, "remove outdated " + d.getName());
+						addSize(-delete(d));
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return tile data mapped into memory or null when not cached.
+	 */
+	public ByteBuffer get(Tile tile) {
+		File f;
+		synchronized (this) {
+			if (mDir == null)
+				return null;
+
+			f = getFile(tile);
+		}
+
+		if (!f.isFile())
+			return null;
+
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(f);
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+
+			// mark as recently used
+			f.setLastModified(System.currentTimeMillis());
+
+			return buf;
+		} catch (IOException e) {
+			Log.d(TAG, "get " + tile + " " + e.getMessage());
+			remove(f);
+		} finally {
+			close(in);
+		}
+		return null;
+	}
+
+	/**
+	 * Remove entry of tile, e.g. when its data turned out to be invalid.
+	 */
+	public void remove(Tile tile) {
+		File f;
+		synchronized (this) {
+			if (mDir == null)
+				return;
+
+			f = getFile(tile);
+		}
+		remove(f);
+	}
+
+	private void remove(File f) {
+		final long size = f.length();
+		if (!f.delete())
+			return;
+
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				addSize(-size);
+			}
+		});
+	}
+
+	/**
+	 * @return true if tile is probably in cache. get() might still fail.
+	 */
+	public boolean contains(Tile tile) {
+		File f;
+		synchronized (this) {
+			if (mDir == null)
+				return false;
+
+			f = getFile(tile);
+		}
+		return f.isFile();
+	}
+
+	/**
+	 * Store tile data, replacing an existing entry. The data is copied and
+	 * written later by the writer thread.
+	 *
+	 * @param data
+	 *            remaining bytes of data are written
+	 */
+	public void put(Tile tile, ByteBuffer data) {
+		final File f;
+		synchronized (this) {
+			if (mDir == null)
+				return;
+
+			f = getFile(tile);
+		}
+
+		synchronized (mTasks) {
+			if (mPendingWrites >= MAX_PENDING)
+				return;
+			mPendingWrites++;
+		}
+
+		final byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (mTasks) {
+					mPendingWrites--;
+				}
+				write(f, bytes);
+			}
+		});
+	}
+
+	/** executed by writer thread */
+	private void write(File f, byte[] data) {
+		File dir = f.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+			Log.d(TAG, "cannot create " + dir);
+			return;
+		}
+
+		File tmp = new File(f.getPath() + ".tmp" + (mWriteCnt++));
+		long oldSize = f.length();
+		FileOutputStream out = null;
+		boolean success = false;
+
+		try {
+			out = new FileOutputStream(tmp);
+			out.write(data);
+			out.close();
+			out = null;
+
+			// replace entry in one step so that readers dont see
+			// partially written files
+			success = tmp.renameTo(f);
+		} catch (IOException e) {
+			Log.d(TAG, "put " + f + " " + e.getMessage());
+		} finally {
+			close(out);
+			if (!success)
+				tmp.delete();
+		}
+
+		if (success) {
+			addSize(data.length - oldSize);
+
+			if (mSize > mMaxSize)
+				trim();
+		}
+	}
+
+	/**
+	 * Remove all entries of all sources and themes.
+	 */
+	public void clear() {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				delete(mCacheDir);
+				mSize = 0;
+			}
+		});
+	}
+
+	/**
+	 * @return bytes used by cache entries, -1 if not yet known.
+	 */
+	public long getSize() {
+		return mSize;
+	}
+
+	private File getFile(Tile tile) {
+		return new File(mDir, tile.zoomLevel + File.separator
+				+ tile.tileX + "_" + tile.tileY);
+	}
+
+	/**
+	 * Run 'task' on the writer thread, which is started when needed and
+	 * stops when there is nothing left to do.
+	 */
+	private void execute(Runnable task) {
+		synchronized (mTasks) {
+			mTasks.add(task);
+			if (mWriterRunning)
+				return;
+
+			mWriterRunning = true;
+		}
+
+		Thread t = new Thread(mWriter, "CompiledTileCache");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	private final Runnable mWriter = new Runnable() {
+		@Override
+		public void run() {
+			while (true) {
+				Runnable task;
+				synchronized (mTasks) {
+					task = mTasks.poll();
+					if (task == null) {
+						mWriterRunning = false;
+						return;
+					}
+				}
+				try {
+					task.run();
+				} catch (Exception e) {
+					Log.d(TAG, "writer: " + e.getMessage());
+				}
+			}
+		}
+	};
+
+	/** executed by writer thread, counts all entries once */
+	private void addSize(long size) {
+		if (mSize < 0)
+			mSize = count(mCacheDir);
+		else
+			mSize += size;
+	}
+
+	static class Entry {
+		final File file;
+		final long size;
+		final long modified;
+
+		Entry(File f) {
+			file = f;
+			size = f.length();
+			modified = f.lastModified();
+		}
+	}
+
+	private final static Comparator<Entry> lruComparator = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			return a.modified < b.modified ? -1 : (a.modified > b.modified ? 1 : 0);
+		}
+	};
+
+	/** remove least recently used entries, executed by writer thread */
+	private void trim() {
+		ArrayList<Entry> list = new ArrayList<Entry>();
+		collect(mCacheDir, list);
+
+		Entry[] entries = new Entry[list.size()];
+		list.toArray(entries);
+		Arrays.sort(entries, lruComparator);
+
+		long size = 0;
+		for (Entry e : entries)
+			size += e.size;
+
+		long target = (long) (mMaxSize * TRIM_FACTOR);
+		int removed = 0;
+
+		for (int i = 0; i < entries.length && size > target; i++) {
+			if (entries[i].file.delete()) {
+				size -= entries[i].size;
+				removed++;
+			}
+		}
+		Log.d(TAG, "trim: removed " + removed + " now " + (size >> 10) + "kb");
+
+		mSize = size;
+	}
+
+	private static void collect(File dir, ArrayList<Entry> entries) {
+		File[] list = dir.listFiles();
+		if (list == null)
+			return;
+
+		for (File f : list) {
+			if (f.isDirectory())
+				collect(f, entries);
+			else
+				entries.add(new Entry(f));
+		}
+	}
+
+	private static long count(File dir) {
+		File[] list = dir.listFiles();
+		if (list == null)
+			return 0;
+
+		long size = 0;
+		for (File f : list) {
+			if (f.isDirectory())
+				size += count(f);
+			else
+				size += f.length();
+		}
+		return size;
+	}
+
+	/** @return bytes removed */
+	private static long delete(File file) {
+		long size = 0;
+		File[] list = file.listFiles();
+		if (list != null) {
+			for (File f : list)
+				size += delete(f);
+		} else {
+			size = file.length();
+		}
+		file.delete();
+
+		return size;
+	}
+
+	private static void close(Closeable c) {
+		if (c == null)
+			return;
+		try {
+			c.close();
+		} catch (IOException e) {
+			Log.d(TAG, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,542 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.oscim.core.MercatorProjection;
+import org.oscim.core.Tile;
+
+/**
+ * Downloads all tiles of a region over a range of zoom levels into the
+ * CacheManager, e.g. to make the region available offline.
+ *
+ * download() blocks until all tiles are stored, it failed or cancel() was
+ * called. Tiles are pinned in the cache, so that browsing does not evict
+ * them. Tiles that are already cached are only pinned. Which tiles are
+ * done is written to a manifest file, so that an interrupted download
+ * continues where it stopped when download() is called again for the
+ * same region.
+ *
+ * Does not depend on android so that regions can be prepared on a plain
+ * JVM. Regions are given as E6 coordinates like in BoundingBox.
+ */
+public class OfflineDownloader {
+	private final static Logger LOG = Logger.getLogger(OfflineDownloader.class.getName());
+
+	private final static int MANIFEST_MAGIC = 0x6f736d64; // 'osmd'
+	private final static int MANIFEST_VERSION = 2;
+
+	// save manifest every n tiles
+	private final static int SAVE_INTERVAL = 256;
+	private final static int MAX_RETRY = 2;
+	// wait for cache compaction when put() failed
+	private final static int PUT_RETRY_DELAY = 100;
+
+	/**
+	 * Where tiles come from, must be thread-safe.
+	 */
+	public interface TileSource {
+		/**
+		 * @return tile data or null when the tile does not exist
+		 */
+		ByteBuffer fetch(Tile tile) throws IOException;
+	}
+
+	public interface Listener {
+		/**
+		 * Called from download threads.
+		 *
+		 * @param done
+		 *            tiles stored or skipped
+		 * @param total
+		 *            tiles in region
+		 * @param bytes
+		 *            bytes downloaded
+		 */
+		void onProgress(int done, int total, long bytes);
+
+		void onFinished(boolean complete);
+	}
+
+	/**
+	 * Fetches tiles from an oscimap tile server.
+	 */
+	public static class HttpTileSource implements TileSource {
+		private final static int TIMEOUT = 10000;
+
+		private final String mUrl;
+
+		/**
+		 * @param url
+		 *            base url, e.g. http://city.informatik.uni-bremen.de/osci/map-live/
+		 */
+		public HttpTileSource(String url) {
+			mUrl = url.endsWith("/") ? url : url + "/";
+		}
+
+		@Override
+		public ByteBuffer fetch(Tile tile) throws IOException {
+			URL url = new URL(mUrl + tile.zoomLevel + "/" + tile.tileX + "/"
+					+ tile.tileY + ".osmtile");
+
+			HttpURLConnection c = (HttpURLConnection) url.openConnection();
+			c.setConnectTimeout(TIMEOUT);
+			c.setReadTimeout(TIMEOUT);
+
+			try {
+				int code = c.getResponseCode();
+				if (code == HttpURLConnection.HTTP_NOT_FOUND)
+					return null;
+				if (code != HttpURLConnection.HTTP_OK)
+					throw new IOException("status " + code + " for " + tile);
+
+				DataInputStream is = new DataInputStream(
+						new BufferedInputStream(c.getInputStream()));
+				try {
+					// content is prefixed with its length
+					int len = is.readInt();
+					if (len < 0 || len > (1 << 24))
+						throw new IOException("invalid length " + len + " for " + tile);
+
+					byte[] data = new byte[len];
+					is.readFully(data);
+					return ByteBuffer.wrap(data);
+				} finally {
+					is.close();
+				}
+			} finally {
+				c.disconnect();
+			}
+		}
+	}
+
+	private final CacheManager mCache;
+	private final TileSource mSource;
+	private final File mManifest;
+
+	private int mThreads = 2;
+	private long mMaxBytesPerSecond;
+	private Listener mListener;
+
+	private volatile boolean mCancel;
+
+	// current download
+	private long[] mTiles;
+	private BitSet mDone;
+	private final AtomicInteger mNext = new AtomicInteger();
+	private final AtomicInteger mDoneCnt = new AtomicInteger();
+	private final AtomicLong mBytes = new AtomicLong();
+	private int mUnsaved;
+	private volatile boolean mFailed;
+
+	// time in ns until which the bandwidth is used up
+	private long mThrottleTime;
+
+	/**
+	 * @param cache
+	 *            cache to store tiles in
+	 * @param source
+	 *            where to fetch tiles
+	 * @param manifest
+	 *            file to keep progress, may be null
+	 */
+	public OfflineDownloader(CacheManager cache, TileSource source, File manifest) {
+		mCache = cache;
+		mSource = source;
+		mManifest = manifest;
+	}
+
+	/** number of parallel requests, default is 2 */
+	public void setThreads(int threads) {
+		mThreads = Math.max(1, threads);
+	}
+
+	/** limit bandwidth, 0 for no limit */
+	public void setMaxBytesPerSecond(long bytes) {
+		mMaxBytesPerSecond = bytes;
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Stop download(), progress is kept in the manifest.
+	 */
+	public void cancel() {
+		mCancel = true;
+	}
+
+	/**
+	 * Number of tiles in the region for zoom levels minZoom to maxZoom.
+	 */
+	public static int countTiles(int minLatitudeE6, int minLongitudeE6,
+			int maxLatitudeE6, int maxLongitudeE6, int minZoom, int maxZoom) {
+		int[] box = { minLatitudeE6, minLongitudeE6, maxLatitudeE6, maxLongitudeE6 };
+		return countTiles(box, minZoom, maxZoom);
+	}
+
+	private static int countTiles(int[] box, int minZoom, int maxZoom) {
+		int cnt = 0;
+		for (int z = minZoom; z <= maxZoom; z++) {
+			int[] r = getTileRange(box, z);
+			cnt += (r[2] - r[0] + 1) * (r[3] - r[1] + 1);
+		}
+		return cnt;
+	}
+
+	/**
+	 * @param box
+	 *            minLatitudeE6, minLongitudeE6, maxLatitudeE6,
+	 *            maxLongitudeE6
+	 * @return minX, minY, maxX, maxY of tiles covering box
+	 */
+	private static int[] getTileRange(int[] box, int zoom) {
+		double lat1 = MercatorProjection.limitLatitude(box[2] / 1E6);
+		double lat2 = MercatorProjection.limitLatitude(box[0] / 1E6);
+
+		int[] r = new int[4];
+		r[0] = clamp(MercatorProjection.longitudeToX(box[1] / 1E6), zoom);
+		r[1] = clamp(MercatorProjection.latitudeToY(lat1), zoom);
+		r[2] = clamp(MercatorProjection.longitudeToX(box[3] / 1E6), zoom);
+		r[3] = clamp(MercatorProjection.latitudeToY(lat2), zoom);
+
+		if (r[2] < r[0])
+			r[2] = r[0];
+		if (r[3] < r[1])
+			r[3] = r[1];
+
+		return r;
+	}
+
+	private static int clamp(double pos, int zoom) {
+		int max = (1 << zoom) - 1;
+		int v = (int) Math.floor(pos * (1 << zoom));
+		return v < 0 ? 0 : (v > max ? max : v);
+	}
+
+	/**
+	 * Download all tiles of the region for zoom levels minZoom to maxZoom.
+	 *
+	 * @return true when all tiles were stored
+	 */
+	public boolean download(int minLatitudeE6, int minLongitudeE6,
+			int maxLatitudeE6, int maxLongitudeE6, int minZoom, int maxZoom) {
+		int[] box = { minLatitudeE6, minLongitudeE6, maxLatitudeE6, maxLongitudeE6 };
+
+		mCancel = false;
+		mFailed = false;
+
+		int total = countTiles(box, minZoom, maxZoom);
+		mTiles = new long[total];
+
+		int n = 0;
+		for (int z = minZoom; z <= maxZoom; z++) {
+			int[] r = getTileRange(box, z);
+			for (int y = r[1]; y <= r[3]; y++)
+				for (int x = r[0]; x <= r[2]; x++)
+					mTiles[n++] = ((long) z << 56) | ((long) x << 28) | y;
+		}
+
+		mDone = loadManifest(box, minZoom, maxZoom, total);
+		if (mDone == null)
+			mDone = new BitSet(total);
+
+		mNext.set(0);
+		mDoneCnt.set(mDone.cardinality());
+		mBytes.set(0);
+		mUnsaved = 0;
+		mThrottleTime = 0;
+
+		LOG.fine("download " + total + " tiles, " + mDoneCnt.get() + " done");
+
+		Thread[] threads = new Thread[mThreads];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(mWorker, "OfflineDownloader-" + i);
+			threads[i].start();
+		}
+
+		boolean interrupted = false;
+		for (Thread t : threads) {
+			while (t.isAlive()) {
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					// stop workers but wait for them to save the manifest
+					interrupted = true;
+					mCancel = true;
+				}
+			}
+		}
+
+		boolean complete = mDoneCnt.get() == total;
+
+		synchronized (this) {
+			mCache.flush();
+			saveManifest(total);
+		}
+
+		if (mListener != null)
+			mListener.onFinished(complete);
+
+		LOG.fine("finished " + mDoneCnt.get() + "/" + total + " tiles, "
+				+ mBytes.get() + " bytes");
+
+		mTiles = null;
+		mDone = null;
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		return complete;
+	}
+
+	private final Runnable mWorker = new Runnable() {
+		@Override
+		public void run() {
+			long[] tiles = mTiles;
+
+			while (!mCancel && !mFailed) {
+				int i = mNext.getAndIncrement();
+				if (i >= tiles.length)
+					break;
+
+				synchronized (OfflineDownloader.this) {
+					if (mDone.get(i))
+						continue;
+				}
+
+				long key = tiles[i];
+				Tile tile = new Tile((int) (key >>> 28) & 0xfffffff,
+						(int) key & 0xfffffff, (byte) (key >>> 56));
+
+				// pin tiles that are cached already
+				ByteBuffer data = mCache.get(tile);
+				int len = 0;
+
+				if (data == null) {
+					data = fetch(tile);
+					if (data == null) {
+						if (!mCancel)
+							mFailed = true;
+						break;
+					}
+					len = data.remaining();
+				}
+
+				// tile is only done when it is stored
+				if (data.remaining() > 0 && !store(tile, data)) {
+					if (!mCancel && !mFailed) {
+						LOG.warning("cache is full, stored " + mDoneCnt.get()
+								+ " of " + tiles.length + " tiles");
+						mFailed = true;
+					}
+					break;
+				}
+
+				if (len > 0) {
+					mBytes.addAndGet(len);
+					throttle(len);
+				}
+
+				int done = mDoneCnt.incrementAndGet();
+
+				synchronized (OfflineDownloader.this) {
+					mDone.set(i);
+					if (++mUnsaved >= SAVE_INTERVAL) {
+						mCache.flush();
+						saveManifest(tiles.length);
+					}
+				}
+
+				if (mListener != null)
+					mListener.onProgress(done, tiles.length, mBytes.get());
+			}
+		}
+	};
+
+	/** @return false when the cache could not take the tile */
+	private boolean store(Tile tile, ByteBuffer data) {
+		for (int retry = 0; retry <= MAX_RETRY && !mCancel; retry++) {
+			if (mCache.put(tile, data, true))
+				return true;
+
+			// let compaction free a segment
+			try {
+				Thread.sleep(PUT_RETRY_DELAY);
+			} catch (InterruptedException e) {
+				mCancel = true;
+			}
+		}
+		return false;
+	}
+
+	/** @return tile data, empty when the tile does not exist or null on error */
+	ByteBuffer fetch(Tile tile) {
+		for (int retry = 0; retry <= MAX_RETRY && !mCancel; retry++) {
+			try {
+				ByteBuffer data = mSource.fetch(tile);
+				if (data == null)
+					return ByteBuffer.allocate(0);
+				return data;
+			} catch (IOException e) {
+				LOG.warning(tile + " " + e.getMessage());
+			}
+		}
+		return null;
+	}
+
+	private void throttle(int bytes) {
+		long rate = mMaxBytesPerSecond;
+		if (rate <= 0)
+			return;
+
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (mThrottleTime < now)
+				mThrottleTime = now;
+
+			mThrottleTime += bytes * 1000000000L / rate;
+			wait = mThrottleTime - now;
+		}
+
+		if (wait < 1000000)
+			return;
+
+		try {
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+		} catch (InterruptedException e) {
+			mCancel = true;
+		}
+	}
+
+	// region of current manifest
+	private int[] mHeader;
+
+	private BitSet loadManifest(int[] box, int minZoom, int maxZoom, int total) {
+		mHeader = new int[] {
+				box[0], box[1], box[2], box[3],
+				minZoom, maxZoom, total };
+
+		if (mManifest == null || !mManifest.exists())
+			return null;
+
+		DataInputStream is = null;
+		try {
+			is = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(mManifest)));
+
+			if (is.readInt() != MANIFEST_MAGIC || is.readInt() != MANIFEST_VERSION)
+				return null;
+
+			for (int i = 0; i < mHeader.length; i++)
+				if (is.readInt() != mHeader[i]) {
+					LOG.fine("manifest is for a different region");
+					return null;
+				}
+
+			int words = is.readInt();
+			BitSet done = new BitSet(total);
+			for (int w = 0; w < words; w++) {
+				long bits = is.readLong();
+				for (int b = 0; b < 64; b++)
+					if ((bits & (1L << b)) != 0)
+						done.set(w * 64 + b);
+			}
+			return done;
+
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "cannot read " + mManifest, e);
+			return null;
+		} finally {
+			close(is);
+		}
+	}
+
+	/** must hold lock */
+	private void saveManifest(int total) {
+		mUnsaved = 0;
+
+		if (mManifest == null)
+			return;
+
+		File tmp = new File(mManifest.getPath() + ".tmp");
+		DataOutputStream os = null;
+		try {
+			os = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+
+			os.writeInt(MANIFEST_MAGIC);
+			os.writeInt(MANIFEST_VERSION);
+			for (int h : mHeader)
+				os.writeInt(h);
+
+			int words = (total + 63) / 64;
+			os.writeInt(words);
+			for (int w = 0; w < words; w++) {
+				long bits = 0;
+				for (int b = 0; b < 64; b++)
+					if (mDone.get(w * 64 + b))
+						bits |= (1L << b);
+				os.writeLong(bits);
+			}
+			os.close();
+			os = null;
+
+			if (!tmp.renameTo(mManifest)) {
+				mManifest.delete();
+				if (!tmp.renameTo(mManifest))
+					LOG.warning("cannot write " + mManifest);
+			}
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "cannot write " + mManifest, e);
+		} finally {
+			close(os);
+		}
+	}
+
+	private static void close(Closeable c) {
+		if (c == null)
+			return;
+		try {
+			c.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	/** @return bytes downloaded by the current or last download() */
+	public long getBytes() {
+		return mBytes.get();
+	}
+}
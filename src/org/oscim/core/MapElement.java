@@ -29,6 +29,8 @@ public class MapElement extends GeometryBuffer {
 	public int layer;
 	// osm tags of the way.
 	public Tag[] tags;
+	// ids of tags, see TagIndex. Only the first tags.length are valid.
+	public int[] tagIds = new int[16];
 
 
 	// ---- random stuff, to be removed ----
@@ -48,6 +50,18 @@ public class MapElement extends GeometryBuffer {
 
 	public void set(Tag[] tags, int layer) {
 		this.layer = layer;
+		setTags(tags);
+	}
+
+	/**
+	 * Set tags and their ids.
+	 */
+	public void setTags(Tag[] tags) {
 		this.tags = tags;
+
+		if (tagIds.length < tags.length)
+			tagIds = new int[tags.length];
+
+		TagIndex.getIds(tags, tagIds);
 	}
 }
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.core;
+
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of canonical strings for tag keys and values, used instead of
+ * String.intern() which is slow and never forgets a string.
+ *
+ * Like String.intern() the pool returns the same instance for equal
+ * strings as long as that instance is referenced anywhere, so interned
+ * strings can be compared by identity. Strings that are no longer used
+ * are collected. Strings can also be looked up by their UTF-8 bytes
+ * without creating a String first.
+ *
+ * The pool is split into 16 independently locked stripes. Each stripe
+ * keeps recently used strings in a fixed size table, where a string can be
+ * in one of four slots kept in order of last use. Behind it a weak map
+ * holds the canonical instances of all live strings of the stripe.
+ */
+public final class StringPool {
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	private final static int STRIPES = 16;
+	private final static int WAYS = 4;
+	private final static int DEFAULT_SIZE = 1 << 14;
+
+	private static StringPool sInstance;
+
+	/**
+	 * @return the pool used by Tag
+	 */
+	public static synchronized StringPool getInstance() {
+		if (sInstance == null)
+			sInstance = new StringPool(DEFAULT_SIZE);
+		return sInstance;
+	}
+
+	static final class Stripe {
+		final String[] strings;
+		final int[] hashes;
+
+		// canonical instances of strings, also those not in strings[]
+		final WeakHashMap<String, WeakReference<String>> canonical =
+				new WeakHashMap<String, WeakReference<String>>();
+
+		int hits;
+		int misses;
+
+		Stripe(int size) {
+			strings = new String[size];
+			hashes = new int[size];
+		}
+	}
+
+	private final Stripe[] mStripes;
+	private final int mSetMask;
+
+	/**
+	 * @param size
+	 *            number of recently used strings kept
+	 */
+	public StringPool(int size) {
+		int sets = 1;
+		while (sets * WAYS * STRIPES < size)
+			sets <<= 1;
+
+		mSetMask = sets - 1;
+		mStripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			mStripes[i] = new Stripe(sets * WAYS);
+	}
+
+	private static int mix(int h) {
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+
+	/**
+	 * @return canonical instance of s
+	 */
+	public String intern(String s) {
+		if (s == null)
+			return null;
+
+		int h = s.hashCode();
+		int m = mix(h);
+		Stripe stripe = mStripes[m & (STRIPES - 1)];
+		int set = ((m >>> 4) & mSetMask) * WAYS;
+
+		synchronized (stripe) {
+			String[] strings = stripe.strings;
+			for (int i = set, end = set + WAYS; i < end; i++) {
+				String c = strings[i];
+				if (c == null)
+					break;
+
+				if (stripe.hashes[i] == h && (c == s || c.equals(s))) {
+					stripe.hits++;
+					toFront(stripe, set, i);
+					return c;
+				}
+			}
+			stripe.misses++;
+
+			String c = canonical(stripe, s);
+			insert(stripe, set, c, h);
+			return c;
+		}
+	}
+
+	/**
+	 * Intern the UTF-8 encoded string in buf at pos, len. Only creates
+	 * a String when it is not in the pool or not ASCII.
+	 *
+	 * @return canonical string
+	 */
+	public String intern(byte[] buf, int pos, int len) {
+		int end = pos + len;
+
+		// String.hashCode() for ASCII
+		int h = 0;
+		for (int i = pos; i < end; i++) {
+			if (buf[i] < 0)
+				return intern(new String(buf, pos, len, UTF8));
+
+			h = 31 * h + buf[i];
+		}
+
+		int m = mix(h);
+		Stripe stripe = mStripes[m & (STRIPES - 1)];
+		int set = ((m >>> 4) & mSetMask) * WAYS;
+
+		synchronized (stripe) {
+			String[] strings = stripe.strings;
+			for (int i = set, n = set + WAYS; i < n; i++) {
+				String c = strings[i];
+				if (c == null)
+					break;
+
+				if (stripe.hashes[i] == h && equals(c, buf, pos, len)) {
+					stripe.hits++;
+					toFront(stripe, set, i);
+					return c;
+				}
+			}
+			stripe.misses++;
+
+			String c = canonical(stripe, new String(buf, pos, len, UTF8));
+			insert(stripe, set, c, h);
+			return c;
+		}
+	}
+
+	/**
+	 * @return the live instance equal to s, or s when there is none
+	 */
+	private static String canonical(Stripe stripe, String s) {
+		WeakReference<String> ref = stripe.canonical.get(s);
+		if (ref != null) {
+			String c = ref.get();
+			if (c != null)
+				return c;
+		}
+		stripe.canonical.put(s, new WeakReference<String>(s));
+		return s;
+	}
+
+	private static boolean equals(String s, byte[] buf, int pos, int len) {
+		if (s.length() != len)
+			return false;
+
+		for (int i = 0; i < len; i++)
+			if (s.charAt(i) != buf[pos + i])
+				return false;
+
+		return true;
+	}
+
+	private static void toFront(Stripe stripe, int set, int i) {
+		if (i == set)
+			return;
+
+		String s = stripe.strings[i];
+		int h = stripe.hashes[i];
+		for (; i > set; i--) {
+			stripe.strings[i] = stripe.strings[i - 1];
+			stripe.hashes[i] = stripe.hashes[i - 1];
+		}
+		stripe.strings[set] = s;
+		stripe.hashes[set] = h;
+	}
+
+	/**
+	 * Put s into the first slot of its set, the string in the last slot
+	 * is dropped.
+	 */
+	private static void insert(Stripe stripe, int set, String s, int h) {
+		String[] strings = stripe.strings;
+
+		for (int i = set + WAYS - 1; i > set; i--) {
+			strings[i] = strings[i - 1];
+			stripe.hashes[i] = stripe.hashes[i - 1];
+		}
+		strings[set] = s;
+		stripe.hashes[set] = h;
+	}
+
+	public int getHitCount() {
+		int cnt = 0;
+		for (Stripe s : mStripes)
+			synchronized (s) {
+				cnt += s.hits;
+			}
+		return cnt;
+	}
+
+	public int getMissCount() {
+		int cnt = 0;
+		for (Stripe s : mStripes)
+			synchronized (s) {
+				cnt += s.misses;
+			}
+		return cnt;
+	}
+
+	/** @return number of recently used strings kept in pool */
+	public int getSize() {
+		int cnt = 0;
+		for (Stripe s : mStripes)
+			synchronized (s) {
+				for (String str : s.strings)
+					if (str != null)
+						cnt++;
+			}
+		return cnt;
+	}
+}
@@ -18,34 +18,36 @@ package org.oscim.core;
  * A tag represents an immutable key-value pair.
  */
 
-// TODO: use own stringshare method instead of internalized strings
-
 public class Tag {
 	private static final char KEY_VALUE_SEPARATOR = '=';
+
+	// keys and values of interned tags, also holds the constants below
+	private static final StringPool sPool = StringPool.getInstance();
+
 	/**
 	 * The key of the house number OpenStreetMap tag.
 	 */
-	public static final String TAG_KEY_HOUSE_NUMBER = "addr:housenumber".intern();
+	public static final String TAG_KEY_HOUSE_NUMBER = sPool.intern("addr:housenumber");
 
 	/**
 	 * The key of the name OpenStreetMap tag.
 	 */
-	public static final String TAG_KEY_NAME = "name".intern();
+	public static final String TAG_KEY_NAME = sPool.intern("name");
 
 	/**
 	 * The key of the reference OpenStreetMap tag.
 	 */
-	public static final String TAG_KEY_REF = "ref".intern();
+	public static final String TAG_KEY_REF = sPool.intern("ref");
 
 	/**
 	 * The key of the elevation OpenStreetMap tag.
 	 */
-	public static final String TAG_KEY_ELE = "ele".intern();
+	public static final String TAG_KEY_ELE = sPool.intern("ele");
 
 	/**
 	 * The key of the elevation OpenStreetMap tag.
 	 */
-	public static final String TAG_KEY_BUILDING = "building".intern();
+	public static final String TAG_KEY_BUILDING = sPool.intern("building");
 
 	/**
 	 * The key of this tag.
@@ -58,7 +60,10 @@ public class Tag {
 	public String value;
 
 	private int hashCodeValue = 0;
-	private final boolean intern;
+	final boolean intern;
+
+	// cached id, see TagIndex.getId()
+	int id;
 
 	/**
 	 * @param tag
@@ -70,8 +75,8 @@ public class Tag {
 		if (splitPosition < 0) {
 			System.out.println("TAG:" + tag);
 		}
-		this.key = tag.substring(0, splitPosition).intern();
-		this.value = tag.substring(splitPosition + 1).intern();
+		this.key = sPool.intern(tag.substring(0, splitPosition));
+		this.value = sPool.intern(tag.substring(splitPosition + 1));
 		this.intern = true;
 	}
 
@@ -82,8 +87,8 @@ public class Tag {
 	 *            the value of the tag.
 	 */
 	public Tag(String key, String value) {
-		this.key = (key == null ? null : key.intern());
-		this.value = (value == null ? null : value.intern());
+		this.key = sPool.intern(key);
+		this.value = sPool.intern(value);
 		this.intern = true;
 	}
 
@@ -97,8 +102,8 @@ public class Tag {
 	 */
 	public Tag(String key, String value, boolean intern) {
 		if (intern) {
-			this.key = (key == null ? null : key.intern());
-			this.value = (value == null ? null : value.intern());
+			this.key = sPool.intern(key);
+			this.value = sPool.intern(value);
 		}
 		else {
 			this.key = key;
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.core;
+
+import java.util.logging.Logger;
+
+/**
+ * Dense integer ids of tag keys and values, so that tags can be compared
+ * and hashed as ints.
+ *
+ * Keys and values are registered when a map database is opened (its tag
+ * tables) and when a theme is created (the strings its rules match).
+ * Ids of registered strings never change. A tag id holds key id and value
+ * id, 0 means a string that was not registered: such a tag can match a
+ * rule only by a key that is registered, which is the same as comparing
+ * interned strings by identity. Strings are registered and looked up as
+ * canonical instances of StringPool.
+ *
+ * Lookups do not lock: registering copies the tables and then replaces
+ * them, which is fine as it happens only rarely.
+ */
+public final class TagIndex {
+	private static final Logger LOG = Logger.getLogger(TagIndex.class.getName());
+
+	private static final int VALUE_BITS = 16;
+	private static final int VALUE_MASK = (1 << VALUE_BITS) - 1;
+	private static final int MAX_KEYS = 1 << 15;
+	private static final int MAX_VALUES = 1 << VALUE_BITS;
+
+	private static final StringPool sPool = StringPool.getInstance();
+
+	/**
+	 * Open addressing table of strings compared by identity.
+	 */
+	static final class Table {
+		final String[] strings;
+		final int[] ids;
+		// only changed before the table is published
+		int size;
+
+		Table(int capacity, int size) {
+			strings = new String[capacity];
+			ids = new int[capacity];
+			this.size = size;
+		}
+
+		int get(String s) {
+			int mask = strings.length - 1;
+			for (int i = System.identityHashCode(s) & mask;; i = (i + 1) & mask) {
+				String e = strings[i];
+				if (e == s)
+					return ids[i];
+				if (e == null)
+					return 0;
+			}
+		}
+
+		void put(String s, int id) {
+			int mask = strings.length - 1;
+			int i = System.identityHashCode(s) & mask;
+			while (strings[i] != null)
+				i = (i + 1) & mask;
+			strings[i] = s;
+			ids[i] = id;
+		}
+
+		/** @return copy with room for n more strings */
+		Table copy(int n) {
+			int capacity = strings.length;
+			while ((size + n) * 2 > capacity)
+				capacity *= 2;
+
+			Table t = new Table(capacity, size);
+			if (capacity == strings.length) {
+				System.arraycopy(strings, 0, t.strings, 0, capacity);
+				System.arraycopy(ids, 0, t.ids, 0, capacity);
+			} else {
+				for (int i = 0; i < strings.length; i++)
+					if (strings[i] != null)
+						t.put(strings[i], ids[i]);
+			}
+			return t;
+		}
+	}
+
+	private static volatile Table sKeys = new Table(256, 0);
+	private static volatile Table sValues = new Table(1024, 0);
+
+	private TagIndex() {
+	}
+
+	/**
+	 * @return key id of tag id
+	 */
+	public static int key(int id) {
+		return id >>> VALUE_BITS;
+	}
+
+	/**
+	 * @return value id of tag id
+	 */
+	public static int value(int id) {
+		return id & VALUE_MASK;
+	}
+
+	/**
+	 * @return tag id for key id and value id
+	 */
+	public static int id(int key, int value) {
+		return (key << VALUE_BITS) | value;
+	}
+
+	/**
+	 * @return id of key, 0 when it is not registered
+	 */
+	public static int getKeyId(String key) {
+		if (key == null)
+			return 0;
+		return sKeys.get(key);
+	}
+
+	/**
+	 * @return id of value, 0 when it is not registered
+	 */
+	public static int getValueId(String value) {
+		if (value == null)
+			return 0;
+		return sValues.get(value);
+	}
+
+	/**
+	 * @return id of tag. Ids of tags whose strings are registered are kept
+	 *         in the tag.
+	 */
+	public static int getId(Tag tag) {
+		int id = tag.id;
+		if (id != 0)
+			return id;
+
+		int k = getKeyId(tag.key);
+		int v = getValueId(tag.value);
+		id = id(k, v);
+
+		// strings registered later would change the id otherwise
+		if (k != 0 && (v != 0 || tag.value == null))
+			tag.id = id;
+
+		return id;
+	}
+
+	/**
+	 * Set ids of tags into ids.
+	 */
+	public static void getIds(Tag[] tags, int[] ids) {
+		for (int i = 0, n = tags.length; i < n; i++)
+			ids[i] = getId(tags[i]);
+	}
+
+	/**
+	 * Register a key. Use register(String[], String[]) for many strings,
+	 * each call copies the table when key is new.
+	 *
+	 * @return id of key, 0 when there are too many keys
+	 */
+	public static int registerKey(String key) {
+		if (key == null)
+			return 0;
+
+		key = sPool.intern(key);
+		int id = sKeys.get(key);
+		if (id != 0)
+			return id;
+
+		register(new String[] { key }, null);
+		return sKeys.get(key);
+	}
+
+	/**
+	 * Register a value. Use register(String[], String[]) for many strings,
+	 * each call copies the table when value is new.
+	 *
+	 * @return id of value, 0 when there are too many values
+	 */
+	public static int registerValue(String value) {
+		if (value == null)
+			return 0;
+
+		value = sPool.intern(value);
+		int id = sValues.get(value);
+		if (id != 0)
+			return id;
+
+		register(null, new String[] { value });
+		return sValues.get(value);
+	}
+
+	/**
+	 * Register keys and values, e.g. the strings of a theme rule. Tables are
+	 * copied once and only when a string is new. Arrays and entries may be
+	 * null.
+	 */
+	public static void register(String[] keys, String[] values) {
+		keys = intern(keys);
+		values = intern(values);
+
+		Table k = sKeys;
+		Table v = sValues;
+		if (contains(k, keys) && contains(v, values))
+			return;
+
+		synchronized (TagIndex.class) {
+			if (!contains(sKeys, keys)) {
+				k = sKeys.copy(keys.length);
+				for (String s : keys)
+					add(k, s, MAX_KEYS);
+				sKeys = k;
+			}
+			if (!contains(sValues, values)) {
+				v = sValues.copy(values.length);
+				for (String s : values)
+					add(v, s, MAX_VALUES);
+				sValues = v;
+			}
+		}
+	}
+
+	private static String[] intern(String[] strings) {
+		if (strings == null)
+			return null;
+
+		String[] pooled = new String[strings.length];
+		for (int i = 0; i < strings.length; i++)
+			pooled[i] = sPool.intern(strings[i]);
+
+		return pooled;
+	}
+
+	private static boolean contains(Table t, String[] strings) {
+		if (strings == null)
+			return true;
+
+		for (String s : strings)
+			if (s != null && t.get(s) == 0)
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Register keys and values of interned tags, e.g. the tag table of a
+	 * map file.
+	 */
+	public static void register(Tag[] tags) {
+		synchronized (TagIndex.class) {
+			Table keys = sKeys.copy(tags.length);
+			Table values = sValues.copy(tags.length);
+
+			for (Tag tag : tags) {
+				if (tag == null || !tag.intern)
+					continue;
+
+				add(keys, tag.key, MAX_KEYS);
+				add(values, tag.value, MAX_VALUES);
+			}
+			sKeys = keys;
+			sValues = values;
+		}
+
+		for (Tag tag : tags)
+			if (tag != null)
+				getId(tag);
+	}
+
+	/**
+	 * Add s to t when not present, t must have room.
+	 */
+	private static int add(Table t, String s, int max) {
+		if (s == null)
+			return 0;
+
+		int id = t.get(s);
+		if (id != 0)
+			return id;
+
+		// id 0 is for strings that are not registered
+		id = t.size + 1;
+		if (id >= max) {
+			LOG.warning("too many tag strings: " + s);
+			return 0;
+		}
+		t.put(s, id);
+		t.size++;
+		return id;
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.util.Log;
+
+/**
+ * Process-wide pool of keep-alive connections used by the http based
+ * map databases. Connections are borrowed for one request (or one batch
+ * of pipelined requests) and released afterwards, so that all loader
+ * threads share the same warm connections.
+ *
+ * Idle connections are checked before reuse and closed when they were
+ * idle for too long, served too many requests or have unread bytes left.
+ *
+ * The number of open connections is limited per host, so that layers
+ * loading from different servers do not wait for each other.
+ */
+public final class ConnectionPool {
+	private final static String TAG = ConnectionPool.class.getName();
+
+	private final static int MAX_CONNECTIONS_PER_HOST = 8;
+	// servers close idle keep-alive connections after some time
+	private final static int MAX_IDLE_TIME = 10000;
+	private final static int MAX_REQUESTS = 100;
+	private final static int CONNECT_TIMEOUT = 30000;
+
+	private static ConnectionPool sInstance;
+
+	public static synchronized ConnectionPool getInstance() {
+		if (sInstance == null)
+			sInstance = new ConnectionPool();
+		return sInstance;
+	}
+
+	// open (idle and borrowed) connections to one host
+	private static final class Host {
+		int open;
+	}
+
+	public static final class Connection {
+		final String host;
+		final int port;
+		final Host counter;
+
+		private final Socket mSocket;
+		private final InputStream mInputStream;
+		private final OutputStream mOutputStream;
+
+		// requests sent on this connection
+		int requests;
+		// time when released to pool
+		long lastUsed;
+
+		Connection(String host, int port, Host counter) throws IOException {
+			this.host = host;
+			this.port = port;
+			this.counter = counter;
+
+			mSocket = new Socket();
+			mSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			mSocket.setTcpNoDelay(true);
+
+			mInputStream = mSocket.getInputStream();
+			mOutputStream = mSocket.getOutputStream();
+		}
+
+		public InputStream getInputStream() {
+			return mInputStream;
+		}
+
+		public OutputStream getOutputStream() {
+			return mOutputStream;
+		}
+
+		/**
+		 * @return false when the connection cannot take 'cnt' more
+		 *         requests.
+		 */
+		public boolean addRequests(int cnt) {
+			if (requests > 0 && requests + cnt > MAX_REQUESTS)
+				return false;
+
+			requests += cnt;
+			return true;
+		}
+
+		void close() {
+			try {
+				mSocket.close();
+			} catch (IOException e) {
+				Log.d(TAG, "close: " + e.getMessage());
+			}
+		}
+
+		boolean isHealthy(long now) {
+			if (now - lastUsed > MAX_IDLE_TIME || requests >= MAX_REQUESTS)
+				return false;
+
+			if (mSocket.isClosed() || mSocket.isInputShutdown())
+				return false;
+
+			try {
+				// unread bytes from a previous response
+				return mInputStream.available() == 0;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+	}
+
+	private final ArrayList<Connection> mIdle = new ArrayList<Connection>();
+
+	private final HashMap<String, Host> mHosts = new HashMap<String, Host>();
+
+	private int mMaxConnections = MAX_CONNECTIONS_PER_HOST;
+
+	// idle and borrowed connections to all hosts
+	private int mOpen;
+
+	// statistics
+	private int mCreated;
+	private int mReused;
+
+	private ConnectionPool() {
+	}
+
+	/**
+	 * Borrow a connection to host:port. Waits while the maximum number of
+	 * connections to host:port is in use.
+	 *
+	 * @return an idle connection or a new one
+	 * @throws IOException
+	 *             when connecting failed
+	 */
+	public Connection borrow(String host, int port) throws IOException {
+		Host counter;
+		synchronized (this) {
+			String key = host + ':' + port;
+			counter = mHosts.get(key);
+			if (counter == null) {
+				counter = new Host();
+				mHosts.put(key, counter);
+			}
+
+			while (true) {
+				long now = System.nanoTime() / 1000000;
+
+				// take most recently used connection to host
+				for (int i = mIdle.size() - 1; i >= 0; i--) {
+					Connection c = mIdle.get(i);
+					if (c.port != port || !c.host.equals(host))
+						continue;
+
+					mIdle.remove(i);
+
+					if (c.isHealthy(now)) {
+						mReused++;
+						return c;
+					}
+					closeConnection(c);
+				}
+
+				if (counter.open < mMaxConnections)
+					break;
+
+				try {
+					wait(CONNECT_TIMEOUT);
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted");
+				}
+				if (System.nanoTime() / 1000000 - now >= CONNECT_TIMEOUT)
+					throw new IOException("no connection available");
+			}
+			// reserve slot while connecting
+			counter.open++;
+			mOpen++;
+		}
+
+		Connection c = null;
+		try {
+			c = new Connection(host, port, counter);
+		} finally {
+			synchronized (this) {
+				if (c == null) {
+					counter.open--;
+					mOpen--;
+					notifyAll();
+				} else {
+					mCreated++;
+				}
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Return a borrowed connection.
+	 *
+	 * @param reuse
+	 *            false when the connection is in an unknown state, e.g.
+	 *            after an error or when a response was not read completely.
+	 */
+	public void release(Connection c, boolean reuse) {
+		if (c == null)
+			return;
+
+		synchronized (this) {
+			if (reuse && c.requests < MAX_REQUESTS) {
+				c.lastUsed = System.nanoTime() / 1000000;
+				mIdle.add(c);
+			} else {
+				closeConnection(c);
+			}
+			// waiters may be for another host
+			notifyAll();
+		}
+	}
+
+	private void closeConnection(Connection c) {
+		c.close();
+		c.counter.open--;
+		mOpen--;
+	}
+
+	/**
+	 * Close all idle connections.
+	 */
+	public synchronized void clear() {
+		for (Connection c : mIdle)
+			closeConnection(c);
+
+		mIdle.clear();
+		notifyAll();
+	}
+
+	/**
+	 * @param max
+	 *            maximum number of open connections to one host
+	 */
+	public synchronized void setMaxConnections(int max) {
+		mMaxConnections = Math.max(1, max);
+		notifyAll();
+	}
+
+	public synchronized int getOpenCount() {
+		return mOpen;
+	}
+
+	public synchronized int getIdleCount() {
+		return mIdle.size();
+	}
+
+	/**
+	 * @return fraction of borrow() calls served by an existing connection
+	 */
+	public synchronized float getReuseRatio() {
+		int total = mCreated + mReused;
+		if (total == 0)
+			return 0;
+
+		return (float) mReused / total;
+	}
+
+	public synchronized int getCreatedCount() {
+		return mCreated;
+	}
+
+	public synchronized int getReusedCount() {
+		return mReused;
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database;
+
+import java.nio.ByteBuffer;
+
+import org.oscim.layers.tile.MapTile;
+
+/**
+ * An IStagedMapDatabase that can fetch tiles without blocking the calling
+ * thread. Many tiles can be in flight at once while the I/O is done by
+ * the database on its own thread(s).
+ */
+public interface IAsyncMapDatabase extends IStagedMapDatabase {
+
+	public interface FetchCallback {
+		/**
+		 * Called once for each tile passed to fetchAsync(), usually from
+		 * an I/O thread.
+		 *
+		 * @param data
+		 *            see IStagedMapDatabase.fetch(), null on failure.
+		 */
+		void onFetched(MapTile tile, ByteBuffer data);
+	}
+
+	/**
+	 * @return max number of tiles that should be in flight, 0 when
+	 *         fetchAsync() is not available.
+	 */
+	abstract int getMaxPending();
+
+	/**
+	 * Start fetching 'tile'. 'callback' will be called exactly once,
+	 * also when this database is closed meanwhile.
+	 */
+	abstract void fetchAsync(MapTile tile, FetchCallback callback);
+}
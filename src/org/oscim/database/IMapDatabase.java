@@ -66,7 +66,10 @@ public interface IMapDatabase {
 	abstract String getMapProjection();
 
 	/**
-	 * Cancel loading
+	 * Cancel loading of the current query. Called from another thread
+	 * when the tile passed to executeQuery was canceled (MapTile.canceled
+	 * is set). executeQuery should then return QueryResult.FAILED as soon
+	 * as possible.
 	 */
 	abstract void cancel();
 
@@ -15,6 +15,7 @@
 package org.oscim.database;
 
 import org.oscim.core.MapElement;
+import org.oscim.theme.TagFilter;
 
 
 /**
@@ -26,4 +27,11 @@ import org.oscim.core.MapElement;
 public interface IMapDatabaseCallback {
 
 	void renderElement(MapElement element);
+
+	/**
+	 * @return filter for elements of the current query, elements that it
+	 *         rejects do not need to be passed to renderElement(). null
+	 *         when all elements should be passed.
+	 */
+	TagFilter getTagFilter();
 }
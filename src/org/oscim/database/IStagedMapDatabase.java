@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database;
+
+import java.nio.ByteBuffer;
+
+import org.oscim.layers.tile.MapTile;
+
+/**
+ * A MapDatabase that can split loading a tile into fetching the raw tile
+ * data (network or disk I/O) and decoding it. Both steps are called on
+ * different threads and usually on different instances, so that slow I/O
+ * does not block decoding of other tiles.
+ */
+public interface IStagedMapDatabase extends IMapDatabase {
+
+	/**
+	 * Fetch the raw data of a tile. Can be aborted by cancel().
+	 *
+	 * @param tile
+	 *            the tile to read.
+	 * @return buffer containing the tile data in its remaining bytes, or
+	 *         null on failure.
+	 */
+	abstract ByteBuffer fetch(MapTile tile);
+
+	/**
+	 * @return max number of instances that should fetch concurrently,
+	 *         i.e. the number of connections the source allows.
+	 */
+	abstract int getParallelRequestsLimit();
+
+	/**
+	 * @return max number of tiles to pass to request() at once, 1 when
+	 *         requests cannot be pipelined.
+	 */
+	abstract int getPipelineDepth();
+
+	/**
+	 * Send requests for several tiles without waiting for responses. The
+	 * data must then be read by receive() for each tile in the same order.
+	 *
+	 * @return false when the requests could not be sent. receive() then
+	 *         fetches each tile on its own.
+	 */
+	abstract boolean request(MapTile[] tiles, int cnt);
+
+	/**
+	 * Read the raw data of the next requested tile. When reading fails the
+	 * remaining tiles are fetched one by one.
+	 *
+	 * @param tile
+	 *            the next tile passed to request()
+	 * @return see fetch()
+	 */
+	abstract ByteBuffer receive(MapTile tile);
+
+	/**
+	 * Decode data returned by fetch(). Must not do any I/O.
+	 *
+	 * @param tile
+	 *            the tile to decode.
+	 * @param data
+	 *            data from fetch() of any instance with same MapOptions.
+	 * @param mapDatabaseCallback
+	 *            the callback which handles the extracted map elements.
+	 * @return result of decoding
+	 */
+	abstract QueryResult decode(MapTile tile, ByteBuffer data,
+			IMapDatabaseCallback mapDatabaseCallback);
+}
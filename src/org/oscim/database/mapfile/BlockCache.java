@@ -0,0 +1,240 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.mapfile;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.oscim.core.Tag;
+
+/**
+ * LRU cache of decoded blocks, bounded by the estimated size of the blocks
+ * in bytes. Neighbouring tiles and parent/child tiles often query the same
+ * blocks of a sub-file; with the cache only the first query reads and
+ * decodes a block, the others only need to project its elements.
+ *
+ * Blocks are keyed by their file offset, which identifies sub-file and
+ * block number. Blocks are immutable once added and can be used by
+ * several threads.
+ */
+class BlockCache {
+
+	/**
+	 * All POIs and ways of a block, for all zoom levels of its sub-file.
+	 * Coordinates are in microdegrees, delta decoding is done and tags are
+	 * resolved.
+	 */
+	static final class Block {
+		// cumulated number of POIs and ways per zoom level
+		final int[][] zoomTable;
+
+		int numPois;
+		// latitude, longitude
+		int[] poiCoords = new int[16];
+		byte[] poiLayer = new byte[8];
+		Tag[][] poiTags = new Tag[8][];
+
+		int numWays;
+		// tile bitmask of the way
+		short[] wayBitmask = new short[8];
+		byte[] wayLayer = new byte[8];
+		Tag[][] wayTags = new Tag[8][];
+		// first element of way, wayElements[numWays] is the end
+		int[] wayElements = new int[9];
+
+		// one element per way data block
+		int numElements;
+		// first coordinate and index of element, with end at numElements
+		int[] elemCoords = new int[9];
+		int[] elemIndex = new int[9];
+		boolean[] elemClosed = new boolean[8];
+
+		// longitude, latitude of all elements
+		int[] coords = new int[256];
+		int numCoords;
+		// number of coordinates of the coordinate blocks of all elements
+		short[] index = new short[16];
+		int numIndex;
+
+		Block(int[][] zoomTable) {
+			this.zoomTable = zoomTable;
+		}
+
+		void addPoi(int latitude, int longitude, byte layer, Tag[] tags) {
+			if (numPois == poiLayer.length) {
+				int size = numPois * 2;
+				poiCoords = grow(poiCoords, size * 2);
+				poiLayer = grow(poiLayer, size);
+				poiTags = grow(poiTags, size);
+			}
+			poiCoords[numPois * 2] = latitude;
+			poiCoords[numPois * 2 + 1] = longitude;
+			poiLayer[numPois] = layer;
+			poiTags[numPois] = tags;
+			numPois++;
+		}
+
+		void addWay(int bitmask, byte layer, Tag[] tags) {
+			if (numWays == wayLayer.length) {
+				int size = numWays * 2;
+				wayBitmask = grow(wayBitmask, size);
+				wayLayer = grow(wayLayer, size);
+				wayTags = grow(wayTags, size);
+				wayElements = grow(wayElements, size + 1);
+			}
+			wayBitmask[numWays] = (short) bitmask;
+			wayLayer[numWays] = layer;
+			wayTags[numWays] = tags;
+			numWays++;
+			wayElements[numWays] = numElements;
+		}
+
+		/**
+		 * @return coords with space for size more coordinates at numCoords
+		 */
+		int[] ensureCoords(int size) {
+			if (numCoords + size > coords.length)
+				coords = grow(coords, Math.max(numCoords + size, coords.length * 2));
+			return coords;
+		}
+
+		/**
+		 * Add coordinate block of length coordinates, ending at numCoords.
+		 */
+		void addIndex(int length) {
+			if (numIndex == index.length)
+				index = grow(index, numIndex * 2);
+			index[numIndex++] = (short) length;
+		}
+
+		/**
+		 * Add element to the last way, consisting of the coordinate blocks
+		 * added since the previous element.
+		 */
+		void addElement(boolean closed) {
+			if (numElements == elemClosed.length) {
+				int size = numElements * 2;
+				elemCoords = grow(elemCoords, size + 1);
+				elemIndex = grow(elemIndex, size + 1);
+				elemClosed = grow(elemClosed, size);
+			}
+
+			elemClosed[numElements] = closed;
+			numElements++;
+			elemCoords[numElements] = numCoords;
+			elemIndex[numElements] = numIndex;
+			wayElements[numWays] = numElements;
+		}
+
+		/** @return estimated size in bytes */
+		int getSize() {
+			return 64 + poiCoords.length * 4 + poiLayer.length * 5
+					+ wayBitmask.length * 11 + wayElements.length * 4
+					+ elemCoords.length * 9 + coords.length * 4 + index.length * 2;
+		}
+	}
+	private final long mMaxBytes;
+
+	private final LinkedHashMap<Long, Block> mBlocks;
+	private long mBytes;
+
+	private int mHits;
+	private int mMisses;
+
+	/**
+	 * @param maxBytes
+	 *            maximum estimated size of all cached blocks
+	 */
+	BlockCache(long maxBytes) {
+		mMaxBytes = maxBytes;
+		mBlocks = new LinkedHashMap<Long, Block>(64, 0.75f, true);
+	}
+
+	synchronized Block get(long key) {
+		Block b = mBlocks.get(Long.valueOf(key));
+		if (b != null)
+			mHits++;
+		else
+			mMisses++;
+		return b;
+	}
+
+	synchronized void put(long key, Block block) {
+		int size = block.getSize();
+		if (size > mMaxBytes)
+			return;
+
+		Block prev = mBlocks.put(Long.valueOf(key), block);
+		if (prev != null)
+			mBytes -= prev.getSize();
+		mBytes += size;
+
+		// drop least recently used blocks
+		Iterator<Block> it = mBlocks.values().iterator();
+		while (mBytes > mMaxBytes && it.hasNext()) {
+			Block b = it.next();
+			mBytes -= b.getSize();
+			it.remove();
+		}
+	}
+
+	synchronized void clear() {
+		mBlocks.clear();
+		mBytes = 0;
+	}
+
+	synchronized int getHitCount() {
+		return mHits;
+	}
+
+	synchronized int getMissCount() {
+		return mMisses;
+	}
+
+	/** @return estimated size of cached blocks in bytes */
+	synchronized long getSize() {
+		return mBytes;
+	}
+
+	static int[] grow(int[] a, int size) {
+		int[] tmp = new int[size];
+		System.arraycopy(a, 0, tmp, 0, a.length);
+		return tmp;
+	}
+
+	static short[] grow(short[] a, int size) {
+		short[] tmp = new short[size];
+		System.arraycopy(a, 0, tmp, 0, a.length);
+		return tmp;
+	}
+
+	static byte[] grow(byte[] a, int size) {
+		byte[] tmp = new byte[size];
+		System.arraycopy(a, 0, tmp, 0, a.length);
+		return tmp;
+	}
+
+	static boolean[] grow(boolean[] a, int size) {
+		boolean[] tmp = new boolean[size];
+		System.arraycopy(a, 0, tmp, 0, a.length);
+		return tmp;
+	}
+
+	static Tag[][] grow(Tag[][] a, int size) {
+		Tag[][] tmp = new Tag[size][];
+		System.arraycopy(a, 0, tmp, 0, a.length);
+		return tmp;
+	}
+}
@@ -16,16 +16,20 @@ package org.oscim.database.mapfile;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Collections;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.oscim.database.mapfile.header.SubFileParameter;
-import org.oscim.utils.LRUCache;
 
 /**
  * A cache for database index blocks with a fixed size and LRU policy.
+ *
+ * The key of an index block is its position in the map file, so blocks of
+ * all sub-files share one cache. A block position selects one of several
+ * separately locked partitions and a bucket of {@link #WAYS} entries in
+ * it. Each bucket keeps its entries ordered by last access and replaces
+ * the oldest one, so concurrent readers rarely contend and a cache hit
+ * does not allocate.
  */
 class IndexCache {
 	/**
@@ -41,27 +45,105 @@ class IndexCache {
 	private static final int SIZE_OF_INDEX_BLOCK = INDEX_ENTRIES_PER_BLOCK
 			* SubFileParameter.BYTES_PER_INDEX_ENTRY;
 
-	private final Map<IndexCacheEntryKey, byte[]> map;
+	/**
+	 * Number of separately locked partitions.
+	 */
+	private static final int STRIPES = 8;
+
+	/**
+	 * Number of entries in one bucket.
+	 */
+	private static final int WAYS = 4;
+
+	/**
+	 * A partition of the cache, its buckets are consecutive ranges of
+	 * {@link #WAYS} entries.
+	 */
+	static final class Stripe {
+		final long[] keys;
+		final byte[][] blocks;
+
+		int hits;
+		int misses;
+
+		Stripe(int size) {
+			keys = new long[size];
+			blocks = new byte[size][];
+		}
+	}
+
+	private final Stripe[] stripes;
+	private final int setMask;
+
 	private final RandomAccessFile randomAccessFile;
+	private final MappedFile mappedFile;
 
 	/**
 	 * @param randomAccessFile
 	 *            the map file from which the index should be read and cached.
+	 *            Must not be used by anyone else as the cache seeks in it.
 	 * @param capacity
 	 *            the maximum number of entries in the cache.
 	 * @throws IllegalArgumentException
 	 *             if the capacity is negative.
 	 */
 	IndexCache(RandomAccessFile randomAccessFile, int capacity) {
+		this(randomAccessFile, null, capacity);
+	}
+
+	/**
+	 * @param mappedFile
+	 *            the mapped map file from which the index should be read.
+	 * @param capacity
+	 *            the maximum number of entries in the cache.
+	 * @throws IllegalArgumentException
+	 *             if the capacity is negative.
+	 */
+	IndexCache(MappedFile mappedFile, int capacity) {
+		this(null, mappedFile, capacity);
+	}
+
+	private IndexCache(RandomAccessFile randomAccessFile, MappedFile mappedFile, int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+
 		this.randomAccessFile = randomAccessFile;
-		this.map = Collections.synchronizedMap(new LRUCache<IndexCacheEntryKey, byte[]>(capacity));
+		this.mappedFile = mappedFile;
+
+		int sets = 1;
+		while (sets * WAYS * STRIPES < capacity)
+			sets <<= 1;
+
+		this.setMask = sets - 1;
+		this.stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			this.stripes[i] = new Stripe(sets * WAYS);
 	}
 
 	/**
-	 * Destroy the cache at the end of its lifetime.
+	 * Destroy the cache at the end of its lifetime, closes the file.
 	 */
 	void destroy() {
-		this.map.clear();
+		for (Stripe s : this.stripes) {
+			synchronized (s) {
+				for (int i = 0; i < s.blocks.length; i++)
+					s.blocks[i] = null;
+			}
+		}
+
+		if (this.randomAccessFile != null) {
+			try {
+				this.randomAccessFile.close();
+			} catch (IOException e) {
+				LOG.log(Level.SEVERE, null, e);
+			}
+		}
+	}
+
+	private static int mix(long key) {
+		int h = (int) (key ^ (key >>> 32));
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
 	}
 
 	/**
@@ -76,50 +158,149 @@ class IndexCache {
 	 *            the number of the block in the map file.
 	 * @return the index entry or -1 if the block number is invalid.
 	 */
-	synchronized long getIndexEntry(SubFileParameter subFileParameter, long blockNumber) {
-		try {
-			// check if the block number is out of bounds
-			if (blockNumber >= subFileParameter.numberOfBlocks) {
-				return -1;
-			}
+	long getIndexEntry(SubFileParameter subFileParameter, long blockNumber) {
+		// check if the block number is out of bounds
+		if (blockNumber >= subFileParameter.numberOfBlocks) {
+			return -1;
+		}
 
-			// calculate the index block number
-			long indexBlockNumber = blockNumber / INDEX_ENTRIES_PER_BLOCK;
+		// calculate the index block number
+		long indexBlockNumber = blockNumber / INDEX_ENTRIES_PER_BLOCK;
 
-			// create the cache entry key for this request
-			IndexCacheEntryKey indexCacheEntryKey = new IndexCacheEntryKey(subFileParameter,
-					indexBlockNumber);
+		// the position of the index block in the file is the cache key
+		long indexBlockPosition = subFileParameter.indexStartAddress + indexBlockNumber
+				* SIZE_OF_INDEX_BLOCK;
 
-			// check for cached index block
-			byte[] indexBlock = this.map.get(indexCacheEntryKey);
-			if (indexBlock == null) {
-				// cache miss, seek to the correct index block in the file and read it
-				long indexBlockPosition = subFileParameter.indexStartAddress + indexBlockNumber
-						* SIZE_OF_INDEX_BLOCK;
-
-				int remainingIndexSize = (int) (subFileParameter.indexEndAddress - indexBlockPosition);
-				int indexBlockSize = Math.min(SIZE_OF_INDEX_BLOCK, remainingIndexSize);
-				indexBlock = new byte[indexBlockSize];
-
-				this.randomAccessFile.seek(indexBlockPosition);
-				if (this.randomAccessFile.read(indexBlock, 0, indexBlockSize) != indexBlockSize) {
-					LOG.warning("reading the current index block has failed");
-					return -1;
+		int m = mix(indexBlockPosition);
+		Stripe stripe = this.stripes[m & (STRIPES - 1)];
+		int set = ((m >>> 3) & this.setMask) * WAYS;
+
+		// check for cached index block
+		byte[] indexBlock = null;
+		synchronized (stripe) {
+			for (int i = set, end = set + WAYS; i < end; i++) {
+				if (stripe.blocks[i] == null)
+					break;
+
+				if (stripe.keys[i] == indexBlockPosition) {
+					indexBlock = stripe.blocks[i];
+					toFront(stripe, set, i);
+					break;
 				}
+			}
+			if (indexBlock != null)
+				stripe.hits++;
+			else
+				stripe.misses++;
+		}
+
+		if (indexBlock == null) {
+			// cache miss, read the index block from the file
+			int remainingIndexSize = (int) (subFileParameter.indexEndAddress - indexBlockPosition);
+			int indexBlockSize = Math.min(SIZE_OF_INDEX_BLOCK, remainingIndexSize);
+
+			indexBlock = readIndexBlock(indexBlockPosition, indexBlockSize);
+			if (indexBlock == null) {
+				LOG.warning("reading the current index block has failed");
+				return -1;
+			}
 
-				// put the index block in the map
-				this.map.put(indexCacheEntryKey, indexBlock);
+			// put the index block in the cache
+			synchronized (stripe) {
+				insert(stripe, set, indexBlockPosition, indexBlock);
 			}
+		}
+
+		// calculate the address of the index entry inside the index block
+		long indexEntryInBlock = blockNumber % INDEX_ENTRIES_PER_BLOCK;
+		int addressInIndexBlock = (int) (indexEntryInBlock * SubFileParameter.BYTES_PER_INDEX_ENTRY);
+
+		// return the real index entry
+		return Deserializer.getFiveBytesLong(indexBlock, addressInIndexBlock);
+	}
+
+	private byte[] readIndexBlock(long position, int size) {
+		byte[] indexBlock = new byte[size];
 
-			// calculate the address of the index entry inside the index block
-			long indexEntryInBlock = blockNumber % INDEX_ENTRIES_PER_BLOCK;
-			int addressInIndexBlock = (int) (indexEntryInBlock * SubFileParameter.BYTES_PER_INDEX_ENTRY);
+		if (this.mappedFile != null) {
+			if (!this.mappedFile.read(position, indexBlock, size))
+				return null;
+			return indexBlock;
+		}
 
-			// return the real index entry
-			return Deserializer.getFiveBytesLong(indexBlock, addressInIndexBlock);
+		try {
+			// the file is shared by all loader threads
+			synchronized (this.randomAccessFile) {
+				this.randomAccessFile.seek(position);
+				if (this.randomAccessFile.read(indexBlock, 0, size) != size)
+					return null;
+			}
+			return indexBlock;
 		} catch (IOException e) {
 			LOG.log(Level.SEVERE, null, e);
-			return -1;
+			return null;
+		}
+	}
+
+	/**
+	 * Moves the entry at index i to the start of its bucket, the entries
+	 * before it move back by one.
+	 */
+	private static void toFront(Stripe stripe, int set, int i) {
+		if (i == set)
+			return;
+
+		long key = stripe.keys[i];
+		byte[] block = stripe.blocks[i];
+		System.arraycopy(stripe.keys, set, stripe.keys, set + 1, i - set);
+		System.arraycopy(stripe.blocks, set, stripe.blocks, set + 1, i - set);
+		stripe.keys[set] = key;
+		stripe.blocks[set] = block;
+	}
+
+	/**
+	 * Stores a block at the start of its bucket. The last entry of the
+	 * bucket is evicted unless another thread has read the same block in
+	 * the meantime.
+	 */
+	private static void insert(Stripe stripe, int set, long key, byte[] block) {
+		int last = set + WAYS - 1;
+		int i = set;
+		while (i < last && (stripe.blocks[i] == null || stripe.keys[i] != key))
+			i++;
+
+		if (stripe.blocks[i] == null || stripe.keys[i] != key) {
+			// evict the entry at 'last'
+			stripe.keys[last] = key;
+			stripe.blocks[last] = block;
 		}
+		toFront(stripe, set, i);
+	}
+
+	int getHitCount() {
+		int cnt = 0;
+		for (Stripe s : this.stripes)
+			synchronized (s) {
+				cnt += s.hits;
+			}
+		return cnt;
+	}
+
+	int getMissCount() {
+		int cnt = 0;
+		for (Stripe s : this.stripes)
+			synchronized (s) {
+				cnt += s.misses;
+			}
+		return cnt;
+	}
+
+	/**
+	 * @return ratio of lookups served from the cache
+	 */
+	float getHitRate() {
+		int hits = getHitCount();
+		int total = hits + getMissCount();
+		return total == 0 ? 0 : (float) hits / total;
 	}
 }
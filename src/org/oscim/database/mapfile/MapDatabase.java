@@ -21,6 +21,7 @@ import java.io.RandomAccessFile;
 import org.oscim.core.GeometryBuffer.GeometryType;
 import org.oscim.core.MapElement;
 import org.oscim.core.Tag;
+import org.oscim.core.TagIndex;
 import org.oscim.core.Tile;
 import org.oscim.database.IMapDatabase;
 import org.oscim.database.IMapDatabaseCallback;
@@ -29,6 +30,7 @@ import org.oscim.database.mapfile.header.MapFileHeader;
 import org.oscim.database.mapfile.header.MapFileInfo;
 import org.oscim.database.mapfile.header.SubFileParameter;
 import org.oscim.layers.tile.MapTile;
+import org.oscim.theme.TagFilter;
 
 import android.util.Log;
 
@@ -71,6 +73,12 @@ public class MapDatabase implements IMapDatabase {
 	 */
 	private static final int INDEX_CACHE_SIZE = 64;
 
+	/**
+	 * Default size in MB of decoded blocks to keep, can be set by
+	 * 'block-cache-size' MapOption. 0 disables the cache.
+	 */
+	private static final int BLOCK_CACHE_SIZE = 8;
+
 	/**
 	 * Error message for an invalid first way offset.
 	 */
@@ -183,6 +191,8 @@ public class MapDatabase implements IMapDatabase {
 
 	private static IndexCache sDatabaseIndexCache;
 	private static MapFileHeader sMapFileHeader;
+	private static MappedFile sMappedFile;
+	private static BlockCache sBlockCache;
 	private static int instances = 0;
 
 	private long mFileSize;
@@ -194,16 +204,25 @@ public class MapDatabase implements IMapDatabase {
 	private String mSignatureWay;
 	private int mTileLatitude;
 	private int mTileLongitude;
-	private int[] mIntBuffer;
+	private final TileProjection mProjection = new TileProjection();
+	// first and last node of the last decoded way are equal
+	private boolean mClosed;
 
 	//private final GeometryBuffer mElem = new GeometryBuffer(1 << 14, 1 << 8);
 	//private final WayData mWay = new WayData();
 	private final MapElement mElem = new MapElement();
+	// tags of cached blocks are passed in these, by number of tags
+	private final Tag[][] mTagCopies = new Tag[16][];
 
-	private int minLat, minLon;
-	private Tile mTile;
+	private MapTile mTile;
 	private static boolean sMapExperimental;
 
+	// elements the filter rejects are skipped before decoding their
+	// coordinates, null to pass all elements
+	private TagFilter mFilter;
+	private int mSkippedElements;
+	private long mSkippedBytes;
+
 	/*
 	 * (non-Javadoc)
 	 * @see org.oscim.map.reader.IMapDatabase#executeQuery(org.oscim.core.Tile,
@@ -215,11 +234,10 @@ public class MapDatabase implements IMapDatabase {
 		if (sMapFileHeader == null)
 			return QueryResult.FAILED;
 
-		if (mIntBuffer == null)
-			mIntBuffer = new int[MAXIMUM_WAY_NODES_SEQUENCE_LENGTH * 2];
-
 		try {
 			mTile = tile;
+			mProjection.setTile(tile);
+			mFilter = mapDatabaseCallback.getTagFilter();
 
 			QueryParameters queryParameters = new QueryParameters();
 			queryParameters.queryZoomLevel = sMapFileHeader
@@ -240,6 +258,10 @@ public class MapDatabase implements IMapDatabase {
 			Log.e(TAG, e.getMessage());
 			return QueryResult.FAILED;
 		}
+
+		if (tile.canceled)
+			return QueryResult.FAILED;
+
 		return QueryResult.SUCCESS;
 	}
 
@@ -301,13 +323,19 @@ public class MapDatabase implements IMapDatabase {
 			// open the file in read only mode
 			mInputFile = new RandomAccessFile(file, READ_ONLY_MODE);
 			mFileSize = mInputFile.length();
-			mReadBuffer = new ReadBuffer(mInputFile);
 
 			Log.d(TAG, "open instance " + instances + " " + file.getAbsolutePath());
 			if (instances++ > 0) {
+				mReadBuffer = new ReadBuffer(mInputFile, sMappedFile);
 				return OpenResult.SUCCESS;
 			}
 
+			// all instances decode blocks from one shared mapping
+			if (!"false".equals(options.get("mmap")))
+				sMappedFile = new MappedFile(file);
+
+			mReadBuffer = new ReadBuffer(mInputFile, sMappedFile);
+
 			sMapFileHeader = new MapFileHeader();
 			OpenResult openResult = sMapFileHeader.readHeader(mReadBuffer,
 					mFileSize);
@@ -316,7 +344,42 @@ public class MapDatabase implements IMapDatabase {
 				return openResult;
 			}
 
-			sDatabaseIndexCache = new IndexCache(mInputFile, INDEX_CACHE_SIZE);
+			// tag ids for theme matching
+			MapFileInfo mapFileInfo = sMapFileHeader.getMapFileInfo();
+			TagIndex.register(mapFileInfo.poiTags);
+			TagIndex.register(mapFileInfo.wayTags);
+			TagIndex.register(new String[] { Tag.TAG_KEY_NAME,
+					Tag.TAG_KEY_HOUSE_NUMBER, Tag.TAG_KEY_REF }, null);
+
+			int cacheSize = INDEX_CACHE_SIZE;
+			if (options.containsKey("index-cache-size")) {
+				try {
+					cacheSize = Integer.parseInt(options.get("index-cache-size"));
+				} catch (NumberFormatException e) {
+					close();
+					return new OpenResult("invalid index-cache-size: "
+							+ options.get("index-cache-size"));
+				}
+			}
+
+			int blockCacheSize = BLOCK_CACHE_SIZE;
+			if (options.containsKey("block-cache-size")) {
+				try {
+					blockCacheSize = Integer.parseInt(options.get("block-cache-size"));
+				} catch (NumberFormatException e) {
+					close();
+					return new OpenResult("invalid block-cache-size: "
+							+ options.get("block-cache-size"));
+				}
+			}
+			if (blockCacheSize > 0)
+				sBlockCache = new BlockCache((long) blockCacheSize << 20);
+
+			if (sMappedFile != null)
+				sDatabaseIndexCache = new IndexCache(sMappedFile, cacheSize);
+			else
+				sDatabaseIndexCache = new IndexCache(new RandomAccessFile(file,
+						READ_ONLY_MODE), cacheSize);
 			sMapExperimental = sMapFileHeader.getMapFileInfo().fileVersion == 4;
 
 			Log.d(TAG, "File version: " + sMapFileHeader.getMapFileInfo().fileVersion);
@@ -339,7 +402,8 @@ public class MapDatabase implements IMapDatabase {
 			return;
 
 		instances--;
-		Log.d(TAG, "close instance " + instances);
+		Log.d(TAG, "close instance " + instances + ", skipped elements: "
+				+ mSkippedElements + " bytes: " + mSkippedBytes);
 
 		if (instances > 0) {
 			mReadBuffer = null;
@@ -350,10 +414,23 @@ public class MapDatabase implements IMapDatabase {
 			sMapFileHeader = null;
 
 			if (sDatabaseIndexCache != null) {
+				Log.d(TAG, "index cache hit rate: " + sDatabaseIndexCache.getHitRate());
 				sDatabaseIndexCache.destroy();
 				sDatabaseIndexCache = null;
 			}
 
+			if (sMappedFile != null) {
+				sMappedFile.close();
+				sMappedFile = null;
+			}
+
+			if (sBlockCache != null) {
+				Log.d(TAG, "block cache hits: " + sBlockCache.getHitCount()
+						+ " misses: " + sBlockCache.getMissCount());
+				sBlockCache.clear();
+				sBlockCache = null;
+			}
+
 			if (mInputFile != null) {
 				mInputFile.close();
 				mInputFile = null;
@@ -444,23 +521,328 @@ public class MapDatabase implements IMapDatabase {
 
 
 
+	/**
+	 * Decodes all POIs and ways of the current block for all zoom levels of
+	 * the sub-file.
+	 *
+	 * @return the decoded block or null when the block is invalid.
+	 */
+	private BlockCache.Block decodeBlock(SubFileParameter subFileParameter) {
+		if (!processBlockSignature()) {
+			return null;
+		}
+
+		int[][] zoomTable = readZoomTable(subFileParameter);
+		if (zoomTable == null) {
+			return null;
+		}
+		int numPois = zoomTable[zoomTable.length - 1][0];
+		int numWays = zoomTable[zoomTable.length - 1][1];
+
+		// get the relative offset to the first stored way in the block
+		int firstWayOffset = mReadBuffer.readUnsignedInt();
+		if (firstWayOffset < 0) {
+			Log.w(TAG, INVALID_FIRST_WAY_OFFSET + firstWayOffset);
+			return null;
+		}
+
+		// add the current buffer position to the relative first way offset
+		firstWayOffset += mReadBuffer.getBufferPosition();
+		if (firstWayOffset > mReadBuffer.getBufferSize()) {
+			Log.w(TAG, INVALID_FIRST_WAY_OFFSET + firstWayOffset);
+			return null;
+		}
+
+		BlockCache.Block block = new BlockCache.Block(zoomTable);
+
+		// like processBlock() keep the elements decoded before an error
+		if (!decodePOIs(block, numPois))
+			return block;
+
+		// finished reading POIs, check if the current buffer position is valid
+		if (mReadBuffer.getBufferPosition() > firstWayOffset) {
+			Log.w(TAG, "invalid buffer position: " + mReadBuffer.getBufferPosition());
+			return block;
+		}
+
+		// move the pointer to the first way
+		mReadBuffer.setBufferPosition(firstWayOffset);
+		decodeWays(block, numWays);
+
+		return block;
+	}
+
+	private boolean decodePOIs(BlockCache.Block block, int numberOfPois) {
+		Tag[] poiTags = sMapFileHeader.getMapFileInfo().poiTags;
+		Tag[] tags = null;
+		Tag[] curTags;
+
+		for (int elementCounter = numberOfPois; elementCounter != 0; --elementCounter) {
+			if (mDebugFile) {
+				// get and check the POI signature
+				mSignaturePoi = mReadBuffer.readUTF8EncodedString(SIGNATURE_LENGTH_POI);
+				if (!mSignaturePoi.startsWith("***POIStart")) {
+					Log.w(TAG, "invalid POI signature: " + mSignaturePoi);
+					Log.w(TAG, DEBUG_SIGNATURE_BLOCK + mSignatureBlock);
+					return false;
+				}
+			}
+
+			// get the POI latitude and longitude offset (VBE-S)
+			int latitude = mTileLatitude + mReadBuffer.readSignedInt();
+			int longitude = mTileLongitude + mReadBuffer.readSignedInt();
+
+			// get the special byte which encodes multiple flags
+			byte specialByte = mReadBuffer.readByte();
+
+			// bit 1-4 represent the layer
+			byte layer = (byte) ((specialByte & POI_LAYER_BITMASK) >>> POI_LAYER_SHIFT);
+			// bit 5-8 represent the number of tag IDs
+			byte numberOfTags = (byte) (specialByte & POI_NUMBER_OF_TAGS_BITMASK);
+
+			if (numberOfTags != 0) {
+				tags = mReadBuffer.readTags(poiTags, numberOfTags);
+			}
+
+			if (tags == null)
+				return false;
+
+			curTags = tags;
+
+			// get the feature bitmask (1 byte)
+			byte featureByte = mReadBuffer.readByte();
+
+			if ((featureByte & POI_FEATURE_NAME) != 0) {
+				String str = mReadBuffer.readUTF8EncodedString();
+
+				curTags = new Tag[tags.length + 1];
+				System.arraycopy(tags, 0, curTags, 0, tags.length);
+				curTags[tags.length] = new Tag(Tag.TAG_KEY_NAME, str, false);
+			}
+
+			// skip house number
+			if ((featureByte & POI_FEATURE_HOUSE_NUMBER) != 0)
+				mReadBuffer.getPositionAndSkip();
+
+			// skip elevation
+			if ((featureByte & POI_FEATURE_ELEVATION) != 0)
+				mReadBuffer.readSignedInt();
+
+			block.addPoi(latitude, longitude, layer, curTags);
+		}
+
+		return true;
+	}
+
+	private boolean decodeWays(BlockCache.Block block, int numberOfWays) {
+		Tag[] tags = null;
+		Tag[] wayTags = sMapFileHeader.getMapFileInfo().wayTags;
+
+		// skip string block
+		if (sMapExperimental) {
+			int stringsSize = mReadBuffer.readUnsignedInt();
+			mReadBuffer.skipBytes(stringsSize);
+		}
+
+		for (int elementCounter = numberOfWays; elementCounter != 0; --elementCounter) {
+			if (mDebugFile) {
+				// get and check the way signature
+				mSignatureWay = mReadBuffer.readUTF8EncodedString(SIGNATURE_LENGTH_WAY);
+				if (!mSignatureWay.startsWith("---WayStart")) {
+					Log.w(TAG, "invalid way signature: " + mSignatureWay);
+					Log.w(TAG, DEBUG_SIGNATURE_BLOCK + mSignatureBlock);
+					return false;
+				}
+			}
+
+			int wayDataSize = mReadBuffer.readUnsignedInt();
+			if (wayDataSize < 0) {
+				Log.w(TAG, "invalid way data size: " + wayDataSize);
+				return false;
+			}
+
+			// the way tile bitmask (2 bytes)
+			int tileBitmask = mReadBuffer.readShort() & 0xffff;
+
+			// get the special byte which encodes multiple flags
+			byte specialByte = mReadBuffer.readByte();
+
+			// bit 1-4 represent the layer
+			byte layer = (byte) ((specialByte & WAY_LAYER_BITMASK) >>> WAY_LAYER_SHIFT);
+			// bit 5-8 represent the number of tag IDs
+			byte numberOfTags = (byte) (specialByte & WAY_NUMBER_OF_TAGS_BITMASK);
+
+			if (numberOfTags != 0)
+				tags = mReadBuffer.readTags(wayTags, numberOfTags);
+
+			if (tags == null)
+				return false;
+
+			// get the feature bitmask (1 byte)
+			byte featureByte = mReadBuffer.readByte();
+
+			// bit 1-6 enable optional features
+			boolean featureWayDoubleDeltaEncoding = (featureByte & WAY_FEATURE_DOUBLE_DELTA_ENCODING) != 0;
+
+			// name, house number and ref are not passed on by processWays()
+			int numStrings = ((featureByte & WAY_FEATURE_NAME) != 0 ? 1 : 0)
+					+ ((featureByte & WAY_FEATURE_HOUSE_NUMBER) != 0 ? 1 : 0)
+					+ ((featureByte & WAY_FEATURE_REF) != 0 ? 1 : 0);
+
+			for (int i = 0; i < numStrings; i++) {
+				if (sMapExperimental)
+					mReadBuffer.readUnsignedInt();
+				else
+					mReadBuffer.getPositionAndSkip();
+			}
+
+			if ((featureByte & WAY_FEATURE_LABEL_POSITION) != 0) {
+				mReadBuffer.readSignedInt();
+				mReadBuffer.readSignedInt();
+			}
+
+			int wayDataBlocks = 1;
+			if ((featureByte & WAY_FEATURE_DATA_BLOCKS_BYTE) != 0) {
+				wayDataBlocks = mReadBuffer.readUnsignedInt();
+
+				if (wayDataBlocks < 1) {
+					Log.w(TAG, "invalid number of way data blocks: " + wayDataBlocks);
+					return false;
+				}
+			}
+
+			block.addWay(tileBitmask, layer, tags);
+
+			for (int wayDataBlock = 0; wayDataBlock < wayDataBlocks; ++wayDataBlock) {
+				if (!decodeWayDataBlock(block, featureWayDoubleDeltaEncoding))
+					return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Executes the callback functions on the elements of a decoded block
+	 * that are visible at the query zoom level and in the query tile.
+	 */
+	private void processBlock(BlockCache.Block block, QueryParameters queryParameters,
+			SubFileParameter subFileParameter,
+			IMapDatabaseCallback mapDatabaseCallback) {
+
+		int zoomTableRow = queryParameters.queryZoomLevel - subFileParameter.zoomLevelMin;
+		int numPois = Math.min(block.zoomTable[zoomTableRow][0], block.numPois);
+		int numWays = Math.min(block.zoomTable[zoomTableRow][1], block.numWays);
+
+		long x = mTile.tileX * Tile.SIZE;
+		long y = mTile.tileY * Tile.SIZE + Tile.SIZE;
+		long z = Tile.SIZE << mTile.zoomLevel;
+
+		long dx = (x - (z >> 1));
+		long dy = (y - (z >> 1));
+
+		double divx = 180000000.0 / (z >> 1);
+		double divy = z / PIx4;
+
+		int[] poiCoords = block.poiCoords;
+		TagFilter filter = mFilter;
+
+		for (int i = 0; i < numPois; i++) {
+			if (filter != null && !filter.matchesNode(block.poiTags[i])) {
+				mSkippedElements++;
+				continue;
+			}
+
+			int latitude = poiCoords[i * 2];
+			int longitude = poiCoords[i * 2 + 1];
+
+			longitude = (int) (longitude / divx - dx);
+			double sinLat = Math.sin(latitude * PI180);
+			latitude = (int) (Math.log((1.0 + sinLat) / (1.0 - sinLat)) * divy + dy);
+
+			mElem.clear();
+
+			mElem.startPoints();
+			mElem.addPoint(longitude, latitude);
+			mElem.type = GeometryType.POINT;
+			mElem.set(copyTags(block.poiTags[i]), block.poiLayer[i]);
+			mapDatabaseCallback.renderElement(mElem);
+		}
+
+		int bitmask = queryParameters.useTileBitmask ? queryParameters.queryTileBitmask : 0;
+
+		for (int w = 0; w < numWays; w++) {
+			if (mTile.canceled)
+				return;
+
+			if (bitmask != 0 && (block.wayBitmask[w] & bitmask) == 0)
+				continue;
+
+			byte layer = block.wayLayer[w];
+			Tag[] tags = block.wayTags[w];
+
+			if (filter != null && !filter.matchesWay(tags)) {
+				mSkippedElements++;
+				continue;
+			}
+
+			for (int e = block.wayElements[w], end = block.wayElements[w + 1]; e < end; e++) {
+				projectElement(block, e);
+				mElem.layer = layer;
+
+				mElem.type = block.elemClosed[e] ? GeometryType.POLY : GeometryType.LINE;
+				mElem.set(copyTags(tags), layer);
+
+				mapDatabaseCallback.renderElement(mElem);
+			}
+		}
+	}
+
+	/**
+	 * @return copy of cached tags, the callback may modify the tags of
+	 *         an element while other threads use the same block.
+	 */
+	private Tag[] copyTags(Tag[] tags) {
+		int n = tags.length;
+		if (n >= mTagCopies.length)
+			return tags.clone();
+
+		Tag[] copy = mTagCopies[n];
+		if (copy == null)
+			copy = mTagCopies[n] = new Tag[n];
+
+		System.arraycopy(tags, 0, copy, 0, n);
+		return copy;
+	}
+
 	private void processBlocks(IMapDatabaseCallback mapDatabaseCallback,
 			QueryParameters queryParameters,
 			SubFileParameter subFileParameter) throws IOException {
 		boolean queryIsWater = true;
 		// boolean queryReadWaterInfo = false;
 
+		// index entry of the previous block's successor
+		long nextBlockNumber = -1;
+		long nextBlockIndexEntry = 0;
+
 		// read and process all blocks from top to bottom and from left to right
 		for (long row = queryParameters.fromBlockY; row <= queryParameters.toBlockY; ++row) {
 			for (long column = queryParameters.fromBlockX; column <= queryParameters.toBlockX; ++column) {
 
+				if (mTile.canceled)
+					return;
+
 				// calculate the actual block number of the needed block in the
 				// file
 				long blockNumber = row * subFileParameter.blocksWidth + column;
 
 				// get the current index entry
-				long currentBlockIndexEntry = sDatabaseIndexCache.getIndexEntry(
-						subFileParameter, blockNumber);
+				long currentBlockIndexEntry;
+				if (blockNumber == nextBlockNumber)
+					currentBlockIndexEntry = nextBlockIndexEntry;
+				else
+					currentBlockIndexEntry = sDatabaseIndexCache.getIndexEntry(
+							subFileParameter, blockNumber);
 
 				// check if the current query would still return a water tile
 				if (queryIsWater) {
@@ -486,9 +868,10 @@ public class MapDatabase implements IMapDatabase {
 					nextBlockPointer = subFileParameter.subFileSize;
 				} else {
 					// get and check the next block pointer
-					nextBlockPointer = sDatabaseIndexCache.getIndexEntry(
-							subFileParameter, blockNumber + 1)
-							& BITMASK_INDEX_OFFSET;
+					nextBlockNumber = blockNumber + 1;
+					nextBlockIndexEntry = sDatabaseIndexCache.getIndexEntry(
+							subFileParameter, nextBlockNumber);
+					nextBlockPointer = nextBlockIndexEntry & BITMASK_INDEX_OFFSET;
 					if (nextBlockPointer < 1
 							|| nextBlockPointer > subFileParameter.subFileSize) {
 						Log.w(TAG, "invalid next block pointer: " + nextBlockPointer);
@@ -517,16 +900,6 @@ public class MapDatabase implements IMapDatabase {
 					return;
 				}
 
-				// seek to the current block in the map file
-				mInputFile.seek(subFileParameter.startAddress + currentBlockPointer);
-
-				// read the current block into the buffer
-				if (!mReadBuffer.readFromFile(currentBlockSize)) {
-					// skip the current block
-					Log.w(TAG, "reading current block has failed: " + currentBlockSize);
-					return;
-				}
-
 				// calculate the top-left coordinates of the underlying tile
 				double tileLatitudeDeg = Projection.tileYToLatitude(
 						subFileParameter.boundaryTileTop + row,
@@ -537,6 +910,42 @@ public class MapDatabase implements IMapDatabase {
 				mTileLatitude = (int) (tileLatitudeDeg * 1000000);
 				mTileLongitude = (int) (tileLongitudeDeg * 1000000);
 
+				// ways are mostly within the latitudes of the block
+				double tileBottomDeg = Projection.tileYToLatitude(
+						subFileParameter.boundaryTileTop + row + 1,
+						subFileParameter.baseZoomLevel);
+				mProjection.setBlock((int) (tileBottomDeg * 1000000), mTileLatitude);
+
+				long blockPosition = subFileParameter.startAddress + currentBlockPointer;
+
+				BlockCache.Block block = null;
+				if (sBlockCache != null)
+					block = sBlockCache.get(blockPosition);
+
+				if (block != null) {
+					processBlock(block, queryParameters, subFileParameter,
+							mapDatabaseCallback);
+					continue;
+				}
+
+				// read the current block into the buffer
+				if (!mReadBuffer.readFromFile(blockPosition, currentBlockSize)) {
+					// skip the current block
+					Log.w(TAG, "reading current block has failed: " + currentBlockSize);
+					return;
+				}
+
+				if (sBlockCache != null) {
+					block = decodeBlock(subFileParameter);
+					if (block == null)
+						continue;
+
+					sBlockCache.put(blockPosition, block);
+					processBlock(block, queryParameters, subFileParameter,
+							mapDatabaseCallback);
+					continue;
+				}
+
 				//try {
 				processBlock(queryParameters, subFileParameter, mapDatabaseCallback);
 				//} catch (ArrayIndexOutOfBoundsException e) {
@@ -602,6 +1011,8 @@ public class MapDatabase implements IMapDatabase {
 		double divy = z / PIx4;
 
 		for (int elementCounter = numberOfPois; elementCounter != 0; --elementCounter) {
+			int start = mReadBuffer.getBufferPosition();
+
 			if (mDebugFile) {
 				// get and check the POI signature
 				mSignaturePoi = mReadBuffer.readUTF8EncodedString(SIGNATURE_LENGTH_POI);
@@ -663,6 +1074,12 @@ public class MapDatabase implements IMapDatabase {
 				// Integer.toString(mReadBuffer.readSignedInt())));
 			}
 
+			if (mFilter != null && !mFilter.matchesNode(curTags)) {
+				mSkippedElements++;
+				mSkippedBytes += mReadBuffer.getBufferPosition() - start;
+				continue;
+			}
+
 			longitude = (int) (longitude / divx - dx);
 			double sinLat = Math.sin(latitude * PI180);
 			latitude = (int) (Math.log((1.0 + sinLat) / (1.0 - sinLat)) * divy + dy);
@@ -711,107 +1128,193 @@ public class MapDatabase implements IMapDatabase {
 				return false;
 			}
 
-			// each way node consists of latitude and longitude
-			int len = numWayNodes * 2;
+			wayLengths[coordinateBlock] = (short) decodeWayNodes(numWayNodes,
+					doubleDeltaEncoding, coordinateBlock == 0);
+		}
 
-			if (doubleDeltaEncoding) {
-				len = decodeWayNodesDoubleDelta(len);
+		return true;
+	}
+
+	/**
+	 * Decodes way nodes and projects them to the tile in one pass. Nodes
+	 * that project to the same point as their predecessor are dropped, as
+	 * is the last node of a ring. Sets mClosed for the first coordinate
+	 * block.
+	 *
+	 * @return number of coordinates added to mElem
+	 */
+	private int decodeWayNodes(int numWayNodes, boolean doubleDelta, boolean first) {
+		ReadBuffer readBuffer = mReadBuffer;
+		TileProjection projection = mProjection;
+
+		int pointPos = mElem.pointPos;
+		float[] outBuffer = mElem.ensurePointSize(pointPos + numWayNodes * 2, true);
+		int start = pointPos;
+
+		// get the first way node latitude and longitude offset (VBE-S)
+		int latitude = mTileLatitude + readBuffer.readSignedInt();
+		int longitude = mTileLongitude + readBuffer.readSignedInt();
+		int firstLatitude = latitude;
+		int firstLongitude = longitude;
+
+		float prevX = outBuffer[pointPos++] = projection.projectLon(longitude);
+		float prevY = outBuffer[pointPos++] = projection.projectLat(latitude);
+
+		int deltaLatitude = 0;
+		int deltaLongitude = 0;
+
+		for (int i = 1; i < numWayNodes; i++) {
+			if (doubleDelta) {
+				deltaLatitude += readBuffer.readSignedInt();
+				deltaLongitude += readBuffer.readSignedInt();
 			} else {
-				len = decodeWayNodesSingleDelta(len);
+				deltaLatitude = readBuffer.readSignedInt();
+				deltaLongitude = readBuffer.readSignedInt();
 			}
-			wayLengths[coordinateBlock] = (short) len;
+			latitude += deltaLatitude;
+			longitude += deltaLongitude;
+
+			float x = projection.projectLon(longitude);
+			float y = projection.projectLat(latitude);
+
+			// drop small distance intermediate nodes
+			if (x == prevX && y == prevY)
+				continue;
+
+			outBuffer[pointPos++] = prevX = x;
+			outBuffer[pointPos++] = prevY = y;
 		}
 
-		return true;
-	}
+		if (first)
+			mClosed = latitude == firstLatitude && longitude == firstLongitude;
 
-	private int decodeWayNodesDoubleDelta(int length) {
-		int[] buffer = mIntBuffer;
+		// drop closing node
+		if (outBuffer[start] == outBuffer[pointPos - 2]
+				&& outBuffer[start + 1] == outBuffer[pointPos - 1])
+			pointPos -= 2;
 
-		mReadBuffer.readSignedInt(buffer, length);
+		mElem.pointPos = pointPos;
 
-		float[] outBuffer = mElem.ensurePointSize(mElem.pointPos + length, true);
-		int pointPos = mElem.pointPos;
+		return pointPos - start;
+	}
+
+	/**
+	 * Decodes a way data block to coordinates in microdegrees into block.
+	 */
+	private boolean decodeWayDataBlock(BlockCache.Block block, boolean doubleDelta) {
+		// get and check the number of way coordinate blocks (VBE-U)
+		int numBlocks = mReadBuffer.readUnsignedInt();
+		if (numBlocks < 1 || numBlocks > Short.MAX_VALUE) {
+			Log.w(TAG, "invalid number of way coordinate blocks: " + numBlocks);
+			return false;
+		}
 
-		// get the first way node latitude offset (VBE-S)
-		int wayNodeLatitude = mTileLatitude + buffer[0];
+		ReadBuffer readBuffer = mReadBuffer;
+		boolean closed = false;
 
-		// get the first way node longitude offset (VBE-S)
-		int wayNodeLongitude = mTileLongitude + buffer[1];
+		for (int coordinateBlock = 0; coordinateBlock < numBlocks; ++coordinateBlock) {
+			// get and check the number of way nodes (VBE-U)
+			int numWayNodes = readBuffer.readUnsignedInt();
+
+			if (numWayNodes < 2 || numWayNodes > MAXIMUM_WAY_NODES_SEQUENCE_LENGTH) {
+				Log.w(TAG, "invalid number of way nodes: " + numWayNodes);
+				return false;
+			}
 
-		// store the first way node
-		outBuffer[pointPos++] = wayNodeLongitude;
-		outBuffer[pointPos++] = wayNodeLatitude;
+			int[] coords = block.ensureCoords(numWayNodes * 2);
+			int pos = block.numCoords;
+			int start = pos;
 
-		int singleDeltaLatitude = 0;
-		int singleDeltaLongitude = 0;
+			int latitude = mTileLatitude + readBuffer.readSignedInt();
+			int longitude = mTileLongitude + readBuffer.readSignedInt();
+			coords[pos++] = longitude;
+			coords[pos++] = latitude;
 
-		int cnt = 2, nLon, nLat, dLat, dLon;
+			int firstLatitude = latitude;
+			int firstLongitude = longitude;
 
-		for (int pos = 2; pos < length; pos += 2) {
+			int deltaLatitude = 0;
+			int deltaLongitude = 0;
 
-			singleDeltaLatitude = buffer[pos] + singleDeltaLatitude;
-			nLat = wayNodeLatitude + singleDeltaLatitude;
-			dLat = nLat - wayNodeLatitude;
-			wayNodeLatitude = nLat;
+			for (int i = 1; i < numWayNodes; i++) {
+				if (doubleDelta) {
+					deltaLatitude += readBuffer.readSignedInt();
+					deltaLongitude += readBuffer.readSignedInt();
+				} else {
+					deltaLatitude = readBuffer.readSignedInt();
+					deltaLongitude = readBuffer.readSignedInt();
+				}
+				latitude += deltaLatitude;
+				longitude += deltaLongitude;
 
-			singleDeltaLongitude = buffer[pos + 1] + singleDeltaLongitude;
-			nLon = wayNodeLongitude + singleDeltaLongitude;
-			dLon = nLon - wayNodeLongitude;
-			wayNodeLongitude = nLon;
+				// drop duplicate nodes, keep the last
+				if (deltaLatitude == 0 && deltaLongitude == 0 && i < numWayNodes - 1)
+					continue;
 
-			if (dLon > minLon || dLon < -minLon || dLat > minLat || dLat < -minLat
-					|| (pos == length - 2)) {
-				outBuffer[pointPos++] = nLon;
-				outBuffer[pointPos++] = nLat;
-				cnt += 2;
+				coords[pos++] = longitude;
+				coords[pos++] = latitude;
 			}
+
+			if (coordinateBlock == 0)
+				closed = latitude == firstLatitude && longitude == firstLongitude;
+
+			block.numCoords = pos;
+			block.addIndex(pos - start);
 		}
 
-		mElem.pointPos = pointPos;
+		block.addElement(closed);
 
-		return cnt;
+		return true;
 	}
 
-	private int decodeWayNodesSingleDelta(int length) {
-		int[] buffer = mIntBuffer;
-		mReadBuffer.readSignedInt(buffer, length);
-
-		float[] outBuffer = mElem.ensurePointSize(mElem.pointPos + length, true);
-		int pointPos = mElem.pointPos;
+	/**
+	 * Projects the coordinate blocks of element e of block to the tile into
+	 * mElem, like decodeWayNodes().
+	 */
+	private void projectElement(BlockCache.Block block, int e) {
+		TileProjection projection = mProjection;
+		int[] coords = block.coords;
+		short[] indices = block.index;
 
-		// get the first way node latitude single-delta offset (VBE-S)
-		int wayNodeLatitude = mTileLatitude + buffer[0];
+		int pos = block.elemCoords[e];
+		int indexStart = block.elemIndex[e];
+		int numIndex = block.elemIndex[e + 1] - indexStart;
 
-		// get the first way node longitude single-delta offset (VBE-S)
-		int wayNodeLongitude = mTileLongitude + buffer[1];
+		float[] outBuffer = mElem.ensurePointSize(block.elemCoords[e + 1] - pos, false);
+		short[] index = mElem.ensureIndexSize(numIndex, false);
+		if (index.length > numIndex)
+			index[numIndex] = -1;
 
-		// store the first way node
-		outBuffer[pointPos++] = wayNodeLongitude;
-		outBuffer[pointPos++] = wayNodeLatitude;
+		int pointPos = 0;
 
-		int cnt = 2, nLon, nLat, dLat, dLon;
+		for (int i = 0; i < numIndex; i++) {
+			int start = pointPos;
+			int end = pos + indices[indexStart + i];
 
-		for (int pos = 2; pos < length; pos += 2) {
+			float prevX = outBuffer[pointPos++] = projection.projectLon(coords[pos]);
+			float prevY = outBuffer[pointPos++] = projection.projectLat(coords[pos + 1]);
 
-			nLat = wayNodeLatitude + buffer[pos];
-			dLat = nLat - wayNodeLatitude;
-			wayNodeLatitude = nLat;
+			for (pos += 2; pos < end; pos += 2) {
+				float x = projection.projectLon(coords[pos]);
+				float y = projection.projectLat(coords[pos + 1]);
 
-			nLon = wayNodeLongitude + buffer[pos + 1];
-			dLon = nLon - wayNodeLongitude;
-			wayNodeLongitude = nLon;
+				// drop small distance intermediate nodes
+				if (x == prevX && y == prevY)
+					continue;
 
-			if (dLon > minLon || dLon < -minLon || dLat > minLat || dLat < -minLat
-					|| (pos == length - 2)) {
-				outBuffer[pointPos++] = nLon;
-				outBuffer[pointPos++] = nLat;
-				cnt += 2;
+				outBuffer[pointPos++] = prevX = x;
+				outBuffer[pointPos++] = prevY = y;
 			}
+
+			// drop closing node
+			if (outBuffer[start] == outBuffer[pointPos - 2]
+					&& outBuffer[start + 1] == outBuffer[pointPos - 1])
+				pointPos -= 2;
+
+			index[i] = (short) (pointPos - start);
 		}
 
 		mElem.pointPos = pointPos;
-		return cnt;
 	}
 
 	private int stringOffset = -1;
@@ -848,7 +1351,13 @@ public class MapDatabase implements IMapDatabase {
 			mReadBuffer.skipBytes(stringsSize);
 		}
 
+		// start of the next way
+		int wayEnd;
+
 		for (int elementCounter = numberOfWays; elementCounter != 0; --elementCounter) {
+			if (mTile.canceled)
+				return false;
+
 			if (mDebugFile) {
 				// get and check the way signature
 				mSignatureWay = mReadBuffer.readUTF8EncodedString(SIGNATURE_LENGTH_WAY);
@@ -869,6 +1378,8 @@ public class MapDatabase implements IMapDatabase {
 				if (elementCounter < 0)
 					return false;
 
+				wayEnd = mReadBuffer.nextWayPosition;
+
 				if (sMapExperimental && mReadBuffer.lastTagPosition > 0) {
 					int pos = mReadBuffer.getBufferPosition();
 					mReadBuffer.setBufferPosition(mReadBuffer.lastTagPosition);
@@ -891,6 +1402,7 @@ public class MapDatabase implements IMapDatabase {
 					Log.e(TAG, "BUG way 2");
 					return false;
 				}
+				wayEnd = mReadBuffer.getBufferPosition() + wayDataSize;
 
 				// ignore the way tile bitmask (2 bytes)
 				mReadBuffer.skipBytes(2);
@@ -910,6 +1422,18 @@ public class MapDatabase implements IMapDatabase {
 			if (tags == null)
 				return false;
 
+			// only tags are passed on, test them before reading the rest
+			if (mFilter != null && !mFilter.matchesWay(tags)) {
+				if (wayEnd > mReadBuffer.getBufferSize()) {
+					Log.w(TAG, "invalid way data size: " + wayEnd);
+					return false;
+				}
+				mSkippedElements++;
+				mSkippedBytes += wayEnd - mReadBuffer.getBufferPosition();
+				mReadBuffer.setBufferPosition(wayEnd);
+				continue;
+			}
+
 			curTags = tags;
 
 			// get the feature bitmask (1 byte)
@@ -980,16 +1504,9 @@ public class MapDatabase implements IMapDatabase {
 				if (!processWayDataBlock(featureWayDoubleDeltaEncoding))
 					return false;
 
-				// wayDataContainer.textPos = textPos;
-				int l = mElem.index[0];
-
-				boolean closed = mElem.points[0] == mElem.points[l - 2]
-						&& mElem.points[1] == mElem.points[l - 1];
-
-				projectToTile(mElem.points, mElem.index);
 				mElem.layer = layer;
 
-				mElem.type = closed ? GeometryType.POLY : GeometryType.LINE;
+				mElem.type = mClosed ? GeometryType.POLY : GeometryType.LINE;
 				mElem.set(tags, layer);
 
 				mapDatabaseCallback.renderElement(mElem);
@@ -1059,63 +1576,10 @@ public class MapDatabase implements IMapDatabase {
 
 	@Override
 	public void cancel() {
-		// TODO Auto-generated method stub
-
+		// reading from file does not block, processBlocks
+		// and processWays check MapTile.canceled instead.
 	}
 
 	private static final double PI180 = (Math.PI / 180) / 1000000.0;
 	private static final double PIx4 = Math.PI * 4;
-
-	private boolean projectToTile(float[] coords, short[] indices) {
-
-		long x = mTile.tileX * Tile.SIZE;
-		long y = mTile.tileY * Tile.SIZE + Tile.SIZE;
-		long z = Tile.SIZE << mTile.zoomLevel;
-
-		double divx, divy = 0;
-		long dx = (x - (z >> 1));
-		long dy = (y - (z >> 1));
-
-		divx = 180000000.0 / (z >> 1);
-		divy = z / PIx4;
-
-		for (int pos = 0, outPos = 0, i = 0, m = indices.length; i < m; i++) {
-			int len = indices[i];
-			if (len == 0)
-				continue;
-			if (len < 0)
-				break;
-
-			int cnt = 0;
-			float lat, lon, prevLon = 0, prevLat = 0;
-			int first = outPos;
-
-			for (int end = pos + len; pos < end; pos += 2) {
-
-				lon = (float) ((coords[pos]) / divx - dx);
-				double sinLat = Math.sin(coords[pos + 1] * PI180);
-				lat = (float) (Tile.SIZE - (Math.log((1.0 + sinLat) / (1.0 - sinLat)) * divy + dy));
-
-				if (cnt != 0) {
-					// drop small distance intermediate nodes
-					if (lat == prevLat && lon == prevLon)
-						continue;
-				}
-				coords[outPos++] = prevLon = lon;
-				coords[outPos++] = prevLat = lat;
-
-				cnt += 2;
-			}
-			if (coords[first] == coords[outPos - 2] && coords[first + 1] == coords[outPos - 1]) {
-				//Log.d(TAG, "drop closed");
-				indices[i] = (short) (cnt - 2);
-				outPos -= 2;
-			}
-			else
-				indices[i] = (short) cnt;
-		}
-
-		return true;
-	}
-
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.mapfile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Read-only memory mapping of a map file, shared by all MapDatabase
+ * instances.
+ *
+ * The file is mapped in segments so that large files do not need one
+ * contiguous range of address space. Segments overlap by the maximum block
+ * size, so any block lies completely within the segment of its start
+ * address. Segments are mapped when first used.
+ *
+ * getBlock() returns a new view for each block, the views do not share
+ * position or limit so that loader threads can read concurrently without
+ * locking.
+ */
+class MappedFile {
+	private static final Logger LOG = Logger.getLogger(MappedFile.class.getName());
+
+	private static final int SEGMENT_SHIFT = 26;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final long SEGMENT_OVERLAP = ReadBuffer.MAXIMUM_BUFFER_SIZE;
+
+	private final FileInputStream mInputStream;
+	private final FileChannel mChannel;
+	private final long mFileSize;
+	private final AtomicReferenceArray<MappedByteBuffer> mSegments;
+
+	MappedFile(File file) throws IOException {
+		mInputStream = new FileInputStream(file);
+		mChannel = mInputStream.getChannel();
+		mFileSize = mChannel.size();
+
+		int segments = (int) ((mFileSize + SEGMENT_SIZE - 1) >> SEGMENT_SHIFT);
+		mSegments = new AtomicReferenceArray<MappedByteBuffer>(Math.max(1, segments));
+	}
+
+	long getFileSize() {
+		return mFileSize;
+	}
+
+	private MappedByteBuffer getSegment(int seg) throws IOException {
+		MappedByteBuffer map = mSegments.get(seg);
+		if (map != null)
+			return map;
+
+		synchronized (this) {
+			map = mSegments.get(seg);
+			if (map != null)
+				return map;
+
+			long start = (long) seg << SEGMENT_SHIFT;
+			long size = Math.min(mFileSize - start, SEGMENT_SIZE + SEGMENT_OVERLAP);
+
+			map = mChannel.map(FileChannel.MapMode.READ_ONLY, start, size);
+			mSegments.set(seg, map);
+		}
+		return map;
+	}
+
+	/**
+	 * @param position
+	 *            file offset of the block
+	 * @param length
+	 *            block length, at most ReadBuffer.MAXIMUM_BUFFER_SIZE
+	 * @return view of the block with position 0, or null on error
+	 */
+	ByteBuffer getBlock(long position, int length) {
+		if (position < 0 || length < 0 || length > SEGMENT_OVERLAP
+				|| position + length > mFileSize)
+			return null;
+
+		int seg = (int) (position >> SEGMENT_SHIFT);
+		try {
+			ByteBuffer view = getSegment(seg).duplicate();
+			int offset = (int) (position - ((long) seg << SEGMENT_SHIFT));
+			view.limit(offset + length);
+			view.position(offset);
+			return view.slice();
+		} catch (IOException e) {
+			LOG.log(Level.SEVERE, "cannot map segment " + seg, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Copy length bytes at position into dst.
+	 *
+	 * @return true on success
+	 */
+	boolean read(long position, byte[] dst, int length) {
+		ByteBuffer block = getBlock(position, length);
+		if (block == null)
+			return false;
+
+		block.get(dst, 0, length);
+		return true;
+	}
+
+	/**
+	 * Mappings are released once the buffers are garbage collected.
+	 */
+	void close() {
+		for (int i = 0; i < mSegments.length(); i++)
+			mSegments.set(i, null);
+		try {
+			mInputStream.close();
+		} catch (IOException e) {
+			LOG.log(Level.SEVERE, null, e);
+		}
+	}
+}
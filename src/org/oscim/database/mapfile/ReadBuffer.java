@@ -17,12 +17,17 @@ package org.oscim.database.mapfile;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.logging.Logger;
 
+import org.oscim.core.StringPool;
 import org.oscim.core.Tag;
 
 /**
  * Reads from a {@link RandomAccessFile} into a buffer and decodes the data.
+ * When a {@link MappedFile} is given blocks are decoded directly from the
+ * mapping. Each ReadBuffer has its own view and position, so one instance
+ * per thread can read the shared mapping concurrently.
  */
 public class ReadBuffer {
 	private static final String CHARSET_UTF8 = "UTF-8";
@@ -33,12 +38,24 @@ public class ReadBuffer {
 	 */
 	static final int MAXIMUM_BUFFER_SIZE = 8000000;
 
+	// current block, either wrapping mBufferData or a view of mMappedFile
+	private ByteBuffer mBuffer;
 	private byte[] mBufferData;
 	private int mBufferPosition;
 	private final RandomAccessFile mInputFile;
+	private final MappedFile mMappedFile;
+
+	// copy of strings when mBuffer has no array
+	private byte[] mStringData = new byte[256];
+	private int mStringOffset;
 
 	ReadBuffer(RandomAccessFile inputFile) {
+		this(inputFile, null);
+	}
+
+	ReadBuffer(RandomAccessFile inputFile, MappedFile mappedFile) {
 		mInputFile = inputFile;
+		mMappedFile = mappedFile;
 	}
 
 	/**
@@ -47,7 +64,7 @@ public class ReadBuffer {
 	 * @return the byte value.
 	 */
 	public byte readByte() {
-		return mBufferData[mBufferPosition++];
+		return mBuffer.get(mBufferPosition++);
 	}
 
 	/**
@@ -73,13 +90,64 @@ public class ReadBuffer {
 			mBufferData = new byte[length];
 		}
 
+		// reset the buffer position and read the data into the buffer
 		mBufferPosition = 0;
+		mBuffer = ByteBuffer.wrap(mBufferData, 0, length);
 
-		// reset the buffer position and read the data into the buffer
-		// bufferPosition = 0;
 		return mInputFile.read(mBufferData, 0, length) == length;
 	}
 
+	/**
+	 * Reads the given amount of bytes at position of the file into the read
+	 * buffer and resets the internal buffer position. With a mapped file the
+	 * buffer becomes a view of the mapping, without seek and copy.
+	 *
+	 * @param position
+	 *            the file offset.
+	 * @param length
+	 *            the amount of bytes to read from the file.
+	 * @return true if the whole data was read successfully, false otherwise.
+	 * @throws IOException
+	 *             if an error occurs while reading the file.
+	 */
+	boolean readFromFile(long position, int length) throws IOException {
+		if (mMappedFile == null) {
+			mInputFile.seek(position);
+			return readFromFile(length);
+		}
+
+		if (length > MAXIMUM_BUFFER_SIZE) {
+			LOG.warning("invalid read length: " + length);
+			return false;
+		}
+
+		mBufferPosition = 0;
+		mBuffer = mMappedFile.getBlock(position, length);
+
+		return mBuffer != null;
+	}
+
+	/**
+	 * Returns an array containing length bytes at pos of the buffer, starting
+	 * at mStringOffset.
+	 */
+	private byte[] getBytes(int pos, int length) {
+		ByteBuffer buf = mBuffer;
+		if (buf.hasArray()) {
+			mStringOffset = buf.arrayOffset() + pos;
+			return buf.array();
+		}
+
+		if (mStringData.length < length)
+			mStringData = new byte[length];
+
+		for (int i = 0; i < length; i++)
+			mStringData[i] = buf.get(pos + i);
+
+		mStringOffset = 0;
+		return mStringData;
+	}
+
 	/**
 	 * Converts four bytes from the read buffer to a signed int.
 	 * <p>
@@ -88,14 +156,8 @@ public class ReadBuffer {
 	 * @return the int value.
 	 */
 	public int readInt() {
-		int pos = mBufferPosition;
-		byte[] data = mBufferData;
 		mBufferPosition += 4;
-
-		return data[pos] << 24
-				| (data[pos + 1] & 0xff) << 16
-				| (data[pos + 2] & 0xff) << 8
-				| (data[pos + 3] & 0xff);
+		return mBuffer.getInt(mBufferPosition - 4);
 	}
 
 	/**
@@ -106,19 +168,8 @@ public class ReadBuffer {
 	 * @return the long value.
 	 */
 	public long readLong() {
-		int pos = mBufferPosition;
-		byte[] data = mBufferData;
 		mBufferPosition += 8;
-
-		return (data[pos] & 0xffL) << 56
-				| (data[pos + 1] & 0xffL) << 48
-				| (data[pos + 2] & 0xffL) << 40
-				| (data[pos + 3] & 0xffL) << 32
-				| (data[pos + 4] & 0xffL) << 24
-				| (data[pos + 5] & 0xffL) << 16
-				| (data[pos + 6] & 0xffL) << 8
-				| (data[pos + 7] & 0xffL);
-
+		return mBuffer.getLong(mBufferPosition - 8);
 	}
 
 	/**
@@ -130,7 +181,7 @@ public class ReadBuffer {
 	 */
 	public int readShort() {
 		mBufferPosition += 2;
-		return mBufferData[mBufferPosition - 2] << 8 | (mBufferData[mBufferPosition - 1] & 0xff);
+		return mBuffer.getShort(mBufferPosition - 2);
 	}
 
 	/**
@@ -144,53 +195,53 @@ public class ReadBuffer {
 	 */
 	public int readSignedInt() {
 		int pos = mBufferPosition;
-		byte[] data = mBufferData;
+		ByteBuffer data = mBuffer;
 		int flag;
 
-		if ((data[pos] & 0x80) == 0) {
+		if ((data.get(pos) & 0x80) == 0) {
 			mBufferPosition += 1;
-			flag = ((data[pos] & 0x40) >> 6);
+			flag = ((data.get(pos) & 0x40) >> 6);
 
-			return ((data[pos] & 0x3f) ^ -flag) + flag;
+			return ((data.get(pos) & 0x3f) ^ -flag) + flag;
 		}
 
-		if ((data[pos + 1] & 0x80) == 0) {
+		if ((data.get(pos + 1) & 0x80) == 0) {
 			mBufferPosition += 2;
-			flag = ((data[pos + 1] & 0x40) >> 6);
+			flag = ((data.get(pos + 1) & 0x40) >> 6);
 
-			return (((data[pos] & 0x7f)
-					| (data[pos + 1] & 0x3f) << 7) ^ -flag) + flag;
+			return (((data.get(pos) & 0x7f)
+					| (data.get(pos + 1) & 0x3f) << 7) ^ -flag) + flag;
 
 		}
 
-		if ((data[pos + 2] & 0x80) == 0) {
+		if ((data.get(pos + 2) & 0x80) == 0) {
 			mBufferPosition += 3;
-			flag = ((data[pos + 2] & 0x40) >> 6);
+			flag = ((data.get(pos + 2) & 0x40) >> 6);
 
-			return (((data[pos] & 0x7f)
-					| (data[pos + 1] & 0x7f) << 7
-					| (data[pos + 2] & 0x3f) << 14) ^ -flag) + flag;
+			return (((data.get(pos) & 0x7f)
+					| (data.get(pos + 1) & 0x7f) << 7
+					| (data.get(pos + 2) & 0x3f) << 14) ^ -flag) + flag;
 
 		}
 
-		if ((data[pos + 3] & 0x80) == 0) {
+		if ((data.get(pos + 3) & 0x80) == 0) {
 			mBufferPosition += 4;
-			flag = ((data[pos + 3] & 0x40) >> 6);
+			flag = ((data.get(pos + 3) & 0x40) >> 6);
 
-			return (((data[pos] & 0x7f)
-					| ((data[pos + 1] & 0x7f) << 7)
-					| ((data[pos + 2] & 0x7f) << 14)
-					| ((data[pos + 3] & 0x3f) << 21)) ^ -flag) + flag;
+			return (((data.get(pos) & 0x7f)
+					| ((data.get(pos + 1) & 0x7f) << 7)
+					| ((data.get(pos + 2) & 0x7f) << 14)
+					| ((data.get(pos + 3) & 0x3f) << 21)) ^ -flag) + flag;
 		}
 
 		mBufferPosition += 5;
-		flag = ((data[pos + 4] & 0x40) >> 6);
+		flag = ((data.get(pos + 4) & 0x40) >> 6);
 
-		return ((((data[pos] & 0x7f)
-				| (data[pos + 1] & 0x7f) << 7
-				| (data[pos + 2] & 0x7f) << 14
-				| (data[pos + 3] & 0x7f) << 21
-				| (data[pos + 4] & 0x3f) << 28)) ^ -flag) + flag;
+		return ((((data.get(pos) & 0x7f)
+				| (data.get(pos + 1) & 0x7f) << 7
+				| (data.get(pos + 2) & 0x7f) << 14
+				| (data.get(pos + 3) & 0x7f) << 21
+				| (data.get(pos + 4) & 0x3f) << 28)) ^ -flag) + flag;
 
 	}
 
@@ -209,53 +260,53 @@ public class ReadBuffer {
 	 */
 	public void readSignedInt(int[] values, int length) {
 		int pos = mBufferPosition;
-		byte[] data = mBufferData;
+		ByteBuffer data = mBuffer;
 		int flag;
 
 		for (int i = 0; i < length; i++) {
 
-			if ((data[pos] & 0x80) == 0) {
+			if ((data.get(pos) & 0x80) == 0) {
 
-				flag = ((data[pos] & 0x40) >> 6);
+				flag = ((data.get(pos) & 0x40) >> 6);
 
-				values[i] = ((data[pos] & 0x3f) ^ -flag) + flag;
+				values[i] = ((data.get(pos) & 0x3f) ^ -flag) + flag;
 				pos += 1;
 
-			} else if ((data[pos + 1] & 0x80) == 0) {
+			} else if ((data.get(pos + 1) & 0x80) == 0) {
 
-				flag = ((data[pos + 1] & 0x40) >> 6);
+				flag = ((data.get(pos + 1) & 0x40) >> 6);
 
-				values[i] = (((data[pos] & 0x7f)
-						| ((data[pos + 1] & 0x3f) << 7)) ^ -flag) + flag;
+				values[i] = (((data.get(pos) & 0x7f)
+						| ((data.get(pos + 1) & 0x3f) << 7)) ^ -flag) + flag;
 				pos += 2;
 
-			} else if ((data[pos + 2] & 0x80) == 0) {
+			} else if ((data.get(pos + 2) & 0x80) == 0) {
 
-				flag = ((data[pos + 2] & 0x40) >> 6);
+				flag = ((data.get(pos + 2) & 0x40) >> 6);
 
-				values[i] = (((data[pos] & 0x7f)
-						| ((data[pos + 1] & 0x7f) << 7)
-						| ((data[pos + 2] & 0x3f) << 14)) ^ -flag) + flag;
+				values[i] = (((data.get(pos) & 0x7f)
+						| ((data.get(pos + 1) & 0x7f) << 7)
+						| ((data.get(pos + 2) & 0x3f) << 14)) ^ -flag) + flag;
 				pos += 3;
 
-			} else if ((data[pos + 3] & 0x80) == 0) {
+			} else if ((data.get(pos + 3) & 0x80) == 0) {
 
-				flag = ((data[pos + 3] & 0x40) >> 6);
+				flag = ((data.get(pos + 3) & 0x40) >> 6);
 
-				values[i] = (((data[pos] & 0x7f)
-						| ((data[pos + 1] & 0x7f) << 7)
-						| ((data[pos + 2] & 0x7f) << 14)
-						| ((data[pos + 3] & 0x3f) << 21)) ^ -flag) + flag;
+				values[i] = (((data.get(pos) & 0x7f)
+						| ((data.get(pos + 1) & 0x7f) << 7)
+						| ((data.get(pos + 2) & 0x7f) << 14)
+						| ((data.get(pos + 3) & 0x3f) << 21)) ^ -flag) + flag;
 
 				pos += 4;
 			} else {
-				flag = ((data[pos + 4] & 0x40) >> 6);
+				flag = ((data.get(pos + 4) & 0x40) >> 6);
 
-				values[i] = ((((data[pos] & 0x7f)
-						| ((data[pos + 1] & 0x7f) << 7)
-						| ((data[pos + 2] & 0x7f) << 14)
-						| ((data[pos + 3] & 0x7f) << 21)
-						| ((data[pos + 4] & 0x3f) << 28))) ^ -flag) + flag;
+				values[i] = ((((data.get(pos) & 0x7f)
+						| ((data.get(pos + 1) & 0x7f) << 7)
+						| ((data.get(pos + 2) & 0x7f) << 14)
+						| ((data.get(pos + 3) & 0x7f) << 21)
+						| ((data.get(pos + 4) & 0x3f) << 28))) ^ -flag) + flag;
 
 				pos += 5;
 			}
@@ -275,40 +326,40 @@ public class ReadBuffer {
 	 */
 	public int readUnsignedInt() {
 		int pos = mBufferPosition;
-		byte[] data = mBufferData;
+		ByteBuffer data = mBuffer;
 
-		if ((data[pos] & 0x80) == 0) {
+		if ((data.get(pos) & 0x80) == 0) {
 			mBufferPosition += 1;
-			return (data[pos] & 0x7f);
+			return (data.get(pos) & 0x7f);
 		}
 
-		if ((data[pos + 1] & 0x80) == 0) {
+		if ((data.get(pos + 1) & 0x80) == 0) {
 			mBufferPosition += 2;
-			return (data[pos] & 0x7f)
-					| (data[pos + 1] & 0x7f) << 7;
+			return (data.get(pos) & 0x7f)
+					| (data.get(pos + 1) & 0x7f) << 7;
 		}
 
-		if ((data[pos + 2] & 0x80) == 0) {
+		if ((data.get(pos + 2) & 0x80) == 0) {
 			mBufferPosition += 3;
-			return (data[pos] & 0x7f)
-					| ((data[pos + 1] & 0x7f) << 7)
-					| ((data[pos + 2] & 0x7f) << 14);
+			return (data.get(pos) & 0x7f)
+					| ((data.get(pos + 1) & 0x7f) << 7)
+					| ((data.get(pos + 2) & 0x7f) << 14);
 		}
 
-		if ((data[pos + 3] & 0x80) == 0) {
+		if ((data.get(pos + 3) & 0x80) == 0) {
 			mBufferPosition += 4;
-			return (data[pos] & 0x7f)
-					| ((data[pos + 1] & 0x7f) << 7)
-					| ((data[pos + 2] & 0x7f) << 14)
-					| ((data[pos + 3] & 0x7f) << 21);
+			return (data.get(pos) & 0x7f)
+					| ((data.get(pos + 1) & 0x7f) << 7)
+					| ((data.get(pos + 2) & 0x7f) << 14)
+					| ((data.get(pos + 3) & 0x7f) << 21);
 		}
 
 		mBufferPosition += 5;
-		return (data[pos] & 0x7f)
-				| ((data[pos + 1] & 0x7f) << 7)
-				| ((data[pos + 2] & 0x7f) << 14)
-				| ((data[pos + 3] & 0x7f) << 21)
-				| ((data[pos + 4] & 0x7f) << 28);
+		return (data.get(pos) & 0x7f)
+				| ((data.get(pos + 1) & 0x7f) << 7)
+				| ((data.get(pos + 2) & 0x7f) << 14)
+				| ((data.get(pos + 3) & 0x7f) << 21)
+				| ((data.get(pos + 4) & 0x7f) << 28);
 	}
 
 	/**
@@ -338,11 +389,11 @@ public class ReadBuffer {
 	 * @return the UTF-8 decoded string (may be null).
 	 */
 	public String readUTF8EncodedString(int stringLength) {
-		if (stringLength > 0 && mBufferPosition + stringLength <= mBufferData.length) {
+		if (stringLength > 0 && mBufferPosition + stringLength <= mBuffer.limit()) {
+			byte[] data = getBytes(mBufferPosition, stringLength);
 			mBufferPosition += stringLength;
 			try {
-				return new String(mBufferData, mBufferPosition - stringLength, stringLength,
-						CHARSET_UTF8);
+				return new String(data, mStringOffset, stringLength, CHARSET_UTF8);
 			} catch (UnsupportedEncodingException e) {
 				throw new IllegalStateException(e);
 			}
@@ -351,6 +402,44 @@ public class ReadBuffer {
 		return null;
 	}
 
+	/**
+	 * Decodes a variable amount of bytes from the read buffer to a tag
+	 * of the form 'key=value'. Key and value are taken from StringPool
+	 * without creating a String when they are pooled.
+	 *
+	 * @return the tag (may be null).
+	 */
+	public Tag readTag() {
+		int length = readUnsignedInt();
+		int pos = mBufferPosition;
+		int end = pos + length;
+
+		if (length <= 0 || end > mBuffer.limit()) {
+			LOG.warning("invalid tag length: " + length);
+			return null;
+		}
+		mBufferPosition = end;
+
+		byte[] data = getBytes(pos, length);
+		int start = mStringOffset;
+		end = start + length;
+
+		int split = start;
+		while (split < end && data[split] != '=')
+			split++;
+
+		if (split == end) {
+			LOG.warning("invalid tag at " + pos);
+			return null;
+		}
+
+		StringPool pool = StringPool.getInstance();
+		String key = pool.intern(data, start, split - start);
+		String value = pool.intern(data, split + 1, end - split - 1);
+
+		return new Tag(key, value, true);
+	}
+
 	/**
 	 * Decodes a variable amount of bytes from the read buffer to a string.
 	 *
@@ -377,7 +466,7 @@ public class ReadBuffer {
 	 * @return the current size of the read buffer.
 	 */
 	int getBufferSize() {
-		return mBufferData.length;
+		return mBuffer.limit();
 	}
 
 	/**
@@ -418,10 +507,12 @@ public class ReadBuffer {
 
 	private static final int WAY_NUMBER_OF_TAGS_BITMASK = 0x0f;
 	int lastTagPosition;
+	// start of the way following the one found by skipWays()
+	int nextWayPosition;
 
 	int skipWays(int queryTileBitmask, int elements) {
 		int pos = mBufferPosition;
-		byte[] data = mBufferData;
+		ByteBuffer data = mBuffer;
 		int cnt = elements;
 		int skip;
 
@@ -429,30 +520,30 @@ public class ReadBuffer {
 
 		while (cnt > 0) {
 			// read way size (unsigned int)
-			if ((data[pos] & 0x80) == 0) {
-				skip = (data[pos] & 0x7f);
+			if ((data.get(pos) & 0x80) == 0) {
+				skip = (data.get(pos) & 0x7f);
 				pos += 1;
-			} else if ((data[pos + 1] & 0x80) == 0) {
-				skip = (data[pos] & 0x7f)
-						| (data[pos + 1] & 0x7f) << 7;
+			} else if ((data.get(pos + 1) & 0x80) == 0) {
+				skip = (data.get(pos) & 0x7f)
+						| (data.get(pos + 1) & 0x7f) << 7;
 				pos += 2;
-			} else if ((data[pos + 2] & 0x80) == 0) {
-				skip = (data[pos] & 0x7f)
-						| ((data[pos + 1] & 0x7f) << 7)
-						| ((data[pos + 2] & 0x7f) << 14);
+			} else if ((data.get(pos + 2) & 0x80) == 0) {
+				skip = (data.get(pos) & 0x7f)
+						| ((data.get(pos + 1) & 0x7f) << 7)
+						| ((data.get(pos + 2) & 0x7f) << 14);
 				pos += 3;
-			} else if ((data[pos + 3] & 0x80) == 0) {
-				skip = (data[pos] & 0x7f)
-						| ((data[pos + 1] & 0x7f) << 7)
-						| ((data[pos + 2] & 0x7f) << 14)
-						| ((data[pos + 3] & 0x7f) << 21);
+			} else if ((data.get(pos + 3) & 0x80) == 0) {
+				skip = (data.get(pos) & 0x7f)
+						| ((data.get(pos + 1) & 0x7f) << 7)
+						| ((data.get(pos + 2) & 0x7f) << 14)
+						| ((data.get(pos + 3) & 0x7f) << 21);
 				pos += 4;
 			} else {
-				skip = (data[pos] & 0x7f)
-						| ((data[pos + 1] & 0x7f) << 7)
-						| ((data[pos + 2] & 0x7f) << 14)
-						| ((data[pos + 3] & 0x7f) << 21)
-						| ((data[pos + 4] & 0x7f) << 28);
+				skip = (data.get(pos) & 0x7f)
+						| ((data.get(pos + 1) & 0x7f) << 7)
+						| ((data.get(pos + 2) & 0x7f) << 14)
+						| ((data.get(pos + 3) & 0x7f) << 21)
+						| ((data.get(pos + 4) & 0x7f) << 28);
 				pos += 5;
 			}
 			// invalid way size
@@ -462,15 +553,16 @@ public class ReadBuffer {
 			}
 
 			// check if way matches queryTileBitmask
-			if ((((data[pos] << 8) | (data[pos + 1] & 0xff)) & queryTileBitmask) == 0) {
+			if ((((data.get(pos) << 8) | (data.get(pos + 1) & 0xff)) & queryTileBitmask) == 0) {
 
 				// remember last tags position
-				if ((data[pos + 2] & WAY_NUMBER_OF_TAGS_BITMASK) != 0)
+				if ((data.get(pos + 2) & WAY_NUMBER_OF_TAGS_BITMASK) != 0)
 					lastTagPosition = pos + 2;
 
 				pos += skip;
 				cnt--;
 			} else {
+				nextWayPosition = pos + skip;
 				pos += 2;
 				break;
 			}
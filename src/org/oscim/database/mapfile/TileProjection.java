@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.mapfile;
+
+import org.oscim.core.Tile;
+
+/**
+ * Projects coordinates in microdegrees to pixel coordinates of the query
+ * tile.
+ *
+ * Instead of sin() and log() per latitude a table of projected latitudes
+ * over the range of the current block is interpolated. Table entries are
+ * calculated when first needed, so small blocks do not pay for the whole
+ * table. Within a block the error is far below a pixel at all zoom levels;
+ * latitudes outside of the block are projected exactly.
+ */
+final class TileProjection {
+	private static final double PI180 = (Math.PI / 180) / 1000000.0;
+	private static final double PIx4 = Math.PI * 4;
+
+	// number of table intervals
+	private static final int SIZE = 128;
+
+	private final double[] mTable = new double[SIZE + 1];
+
+	// microdegrees of first table entry and per interval
+	private int mLatMin;
+	private double mStep;
+	private double mScale;
+
+	private double mDivx, mDivy;
+	private long mDx, mDy;
+
+	/**
+	 * Set the tile to project to.
+	 */
+	void setTile(Tile tile) {
+		long x = tile.tileX * Tile.SIZE;
+		long y = tile.tileY * Tile.SIZE + Tile.SIZE;
+		long z = Tile.SIZE << tile.zoomLevel;
+
+		mDx = (x - (z >> 1));
+		mDy = (y - (z >> 1));
+
+		mDivx = 180000000.0 / (z >> 1);
+		mDivy = z / PIx4;
+
+		mStep = 0;
+	}
+
+	/**
+	 * Set the latitude range of the current block, in microdegrees.
+	 */
+	void setBlock(int latMin, int latMax) {
+		if (latMax <= latMin) {
+			mStep = 0;
+			return;
+		}
+
+		mLatMin = latMin;
+		mStep = (latMax - latMin) / (double) SIZE;
+		mScale = 1 / mStep;
+
+		double[] table = mTable;
+		for (int i = 0; i <= SIZE; i++)
+			table[i] = Double.NaN;
+	}
+
+	float projectLon(int longitude) {
+		return (float) (longitude / mDivx - mDx);
+	}
+
+	float projectLat(int latitude) {
+		if (mStep == 0)
+			return (float) project(latitude);
+
+		double pos = (latitude - mLatMin) * mScale;
+		if (pos < 0 || pos >= SIZE)
+			return (float) project(latitude);
+
+		int i = (int) pos;
+		double[] table = mTable;
+
+		double y0 = table[i];
+		if (y0 != y0)
+			y0 = table[i] = project(mLatMin + i * mStep);
+
+		double y1 = table[i + 1];
+		if (y1 != y1)
+			y1 = table[i + 1] = project(mLatMin + (i + 1) * mStep);
+
+		return (float) (y0 + (y1 - y0) * (pos - i));
+	}
+
+	private double project(double latitude) {
+		double sinLat = Math.sin(latitude * PI180);
+		return Tile.SIZE - (Math.log((1.0 + sinLat) / (1.0 - sinLat)) * mDivy + mDy);
+	}
+}
@@ -167,11 +167,11 @@ final class RequiredFields {
 		Tag[] poiTags = new Tag[numberOfPoiTags];
 		for (int currentTagId = 0; currentTagId < numberOfPoiTags; ++currentTagId) {
 			// get and check the POI tag
-			String tag = readBuffer.readUTF8EncodedString();
+			Tag tag = readBuffer.readTag();
 			if (tag == null) {
 				return new OpenResult("POI tag must not be null: " + currentTagId);
 			}
-			poiTags[currentTagId] = new Tag(tag);
+			poiTags[currentTagId] = tag;
 		}
 		mapFileInfoBuilder.poiTags = poiTags;
 		return OpenResult.SUCCESS;
@@ -223,11 +223,11 @@ final class RequiredFields {
 
 		for (int currentTagId = 0; currentTagId < numberOfWayTags; ++currentTagId) {
 			// get and check the way tag
-			String tag = readBuffer.readUTF8EncodedString();
+			Tag tag = readBuffer.readTag();
 			if (tag == null) {
 				return new OpenResult("way tag must not be null: " + currentTagId);
 			}
-			wayTags[currentTagId] = new Tag(tag);
+			wayTags[currentTagId] = tag;
 		}
 		mapFileInfoBuilder.wayTags = wayTags;
 		return OpenResult.SUCCESS;
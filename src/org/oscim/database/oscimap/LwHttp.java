@@ -14,22 +14,18 @@
  */
 package org.oscim.database.oscimap;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
-import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.URL;
+import java.nio.ByteBuffer;
 
 import org.oscim.core.Tile;
+import org.oscim.database.ConnectionPool;
+import org.oscim.database.ConnectionPool.Connection;
+import org.oscim.layers.tile.MapTile;
 
-import android.os.SystemClock;
 import android.util.Log;
 
 public class LwHttp {
@@ -42,32 +38,45 @@ public class LwHttp {
 
 	private final int BUFFER_SIZE = 65536;
 
-	byte[] buffer = new byte[BUFFER_SIZE];
+	private final byte[] mReadBuffer = new byte[BUFFER_SIZE];
+
+	// buffer holding the response header
+	private byte[] buffer = mReadBuffer;
 	// position in buffer
-	int bufferPos;
+	private int bufferPos;
 
 	// bytes available in buffer
-	int bufferFill;
+	private int bufferFill;
 
 	// overall bytes of content read
 	private int mReadPos;
 
-	private int mMaxReq = 0;
-	private Socket mSocket;
+	// start and length of the current response body in mReadBuffer
+	private int mBodyStart;
+	private int mBodyLength;
+
+	// bytes of following (pipelined) responses read into mReadBuffer
+	private int mNextPos;
+	private int mNextFill;
+
+	// connection borrowed from pool until release() or close()
+	private Connection mConnection;
 	private OutputStream mCommandStream;
 	private InputStream mResponseStream;
-	long mLastRequest = 0;
-	private SocketAddress mSockAddr;
 
 	private final static byte[] RESPONSE_HTTP_OK = "HTTP/1.1 200 OK".getBytes();
-	private final static int RESPONSE_EXPECTED_LIVES = 100;
-	private final static int RESPONSE_EXPECTED_TIMEOUT = 10000;
+	private final static byte[] HEADER_CONTENT_LENGTH = "content-length:".getBytes();
 
 	private byte[] REQUEST_GET_START;
 	private byte[] REQUEST_GET_END;
 
 	private byte[] mRequestBuffer;
 
+	// tile of the response read next, reading is aborted when the tile
+	// gets canceled. null while further pipelined responses follow on
+	// the connection, those must be read in order.
+	private MapTile mTile;
+
 	boolean setServer(String urlString) {
 		URL url;
 		try {
@@ -96,23 +105,44 @@ public class LwHttp {
 		mPort = port;
 
 		mRequestBuffer = new byte[1024];
-		System.arraycopy(REQUEST_GET_START, 0,
-				mRequestBuffer, 0, REQUEST_GET_START.length);
 		return true;
 	}
 
+	/**
+	 * Close the connection, e.g. when a response was not read completely.
+	 */
 	void close() {
-		if (mSocket != null) {
-			try {
-				mSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			} finally {
-				mSocket = null;
-			}
-		}
+		ConnectionPool.getInstance().release(mConnection, false);
+		mConnection = null;
 	}
 
+	/**
+	 * Return the connection to the pool after all responses were read.
+	 */
+	void release() {
+		// bytes of another response left in buffer should not happen
+		boolean clean = (mNextFill == mNextPos);
+
+		ConnectionPool.getInstance().release(mConnection, clean);
+		mConnection = null;
+	}
+
+	/**
+	 * Abort reading the response when its tile was canceled. The
+	 * connection needs to be closed afterwards.
+	 */
+	private void checkCanceled() throws IOException {
+		MapTile tile = mTile;
+		if (tile != null && tile.canceled)
+			throw new IOException("canceled");
+	}
+
+	/**
+	 * Read the header of the next response. Bytes of a pipelined
+	 * response read together with the previous one are used first.
+	 *
+	 * @return length of tile content or -1 on error.
+	 */
 	int readHeader() throws IOException {
 		InputStream is = mResponseStream;
 
@@ -122,44 +152,69 @@ public class LwHttp {
 		int pos = 0;
 		int end = 0;
 		int len = 0;
+		int httpLength = -1;
+
+		if (mNextFill > mNextPos) {
+			// move bytes of this response to the beginning
+			read = mNextFill - mNextPos;
+			System.arraycopy(buf, mNextPos, buf, 0, read);
+		}
+		mNextPos = mNextFill = 0;
 
 		// header cannot be larger than BUFFER_SIZE for this to work
-		for (; pos < read || (len = is.read(buf, read, BUFFER_SIZE - read)) >= 0; len = 0) {
-			read += len;
-			while (end < read && (buf[end] != '\n'))
+		while (true) {
+			while (end < read && buf[end] != '\n')
 				end++;
 
-			if (buf[end] == '\n') {
-				if (first) {
-					// check only for OK
-					first = false;
-					if (!compareBytes(buf, pos, end, RESPONSE_HTTP_OK, 15))
-						return -1;
+			if (end == read) {
+				// need more bytes for this line
+				checkCanceled();
+				if (read == BUFFER_SIZE)
+					return -1;
 
-				} else if (end - pos == 1) {
-					// check empty line (header end)
-					end += 1;
-					break;
-				}
+				if ((len = is.read(buf, read, BUFFER_SIZE - read)) < 0)
+					throw new IOException("connection closed");
+
+				read += len;
+				continue;
+			}
 
-				// String line = new String(buf, pos, end - pos - 1);
-				// Log.d(TAG, ">" + line + "< " + resp_len);
+			if (first) {
+				// check only for OK
+				first = false;
+				if (!compareBytes(buf, pos, end, RESPONSE_HTTP_OK, 15))
+					return -1;
 
-				pos += (end - pos) + 1;
-				end = pos;
+			} else if (end - pos <= 1) {
+				// check empty line (header end)
+				end += 1;
+				break;
+			} else if (compareBytesIgnoreCase(buf, pos, end, HEADER_CONTENT_LENGTH)) {
+				httpLength = parseInt(buf, pos + HEADER_CONTENT_LENGTH.length, end);
 			}
+
+			// String line = new String(buf, pos, end - pos - 1);
+			// Log.d(TAG, ">" + line + "< " + resp_len);
+
+			pos = end + 1;
+			end = pos;
 		}
 
 		// check 4 bytes available..
-		while ((read - end) < 4 && (len = is.read(buf, read, BUFFER_SIZE - read)) >= 0)
+		while ((read - end) < 4) {
+			checkCanceled();
+			if ((len = is.read(buf, read, BUFFER_SIZE - read)) < 0)
+				return -1;
 			read += len;
-
-		if (read - len < 4)
-			return -1;
+		}
 
 		int contentLength = decodeInt(buf, end);
 		mContentLenth = contentLength;
 
+		// body is the content prefixed by its length
+		mBodyStart = end;
+		mBodyLength = httpLength >= 0 ? httpLength : contentLength + 4;
+
 		// buffer fill
 		bufferFill = read;
 		// start of content
@@ -172,42 +227,147 @@ public class LwHttp {
 		return contentLength;
 	}
 
-	boolean sendRequest(Tile tile) throws IOException {
+	/**
+	 * Read the complete content of the response after readHeader().
+	 *
+	 * @return buffer holding the content in its remaining bytes
+	 */
+	ByteBuffer readContent() throws IOException {
+		return readContent(null);
+	}
+
+	/**
+	 * @param reuse
+	 *            array to read content into when it is large enough
+	 * @return buffer holding the content in its remaining bytes
+	 */
+	ByteBuffer readContent(byte[] reuse) throws IOException {
+		int len = (int) mContentLenth;
+		byte[] data = reuse;
+		if (data == null || data.length < len)
+			data = new byte[len];
+
+		// content already read with the header
+		int pos = Math.min(mReadPos, len);
+		System.arraycopy(buffer, bufferPos, data, 0, pos);
+
+		while (pos < len) {
+			checkCanceled();
+			int read = mInputStream.read(data, pos, len - pos);
+			if (read < 0)
+				throw new IOException("incomplete content " + pos + "/" + len);
+			pos += read;
+		}
 
+		int bodyEnd = mBodyStart + mBodyLength;
+		if (bodyEnd <= bufferFill) {
+			// keep bytes of following responses
+			mNextPos = bodyEnd;
+			mNextFill = bufferFill;
+		} else {
+			// skip rest of body not belonging to content
+			int skip = bodyEnd - Math.max(bufferFill, bufferPos + len);
+			while (skip > 0) {
+				checkCanceled();
+				int read = mInputStream.read(mReadBuffer, 0, Math.min(skip, BUFFER_SIZE));
+				if (read < 0)
+					throw new IOException("incomplete body");
+				skip -= read;
+			}
+		}
+
+		bufferPos = 0;
+		bufferFill = 0;
+		mReadPos = len;
+
+		return ByteBuffer.wrap(data, 0, len);
+	}
+
+	boolean sendRequest(MapTile tile) throws IOException {
+		prepareConnection(1);
+		mTile = tile;
+
+		byte[] request = mRequestBuffer;
+		int len = writeRequest(tile, request, 0);
+
+		// this does the same but with a few more allocations:
+		// byte[] request = String.format(REQUEST,
+		// Integer.valueOf(tile.zoomLevel),
+		// Integer.valueOf(tile.tileX), Integer.valueOf(tile.tileY)).getBytes();
+
+		write(request, len, 1);
+
+		return true;
+	}
+
+	/**
+	 * Send requests for 'cnt' tiles at once, without waiting for
+	 * responses. Responses are then read in the same order by
+	 * readHeader() and readContent().
+	 */
+	boolean sendRequests(Tile[] tiles, int cnt) throws IOException {
+		prepareConnection(cnt);
+
+		int max = REQUEST_GET_START.length + REQUEST_GET_END.length + 3 * 11;
+		if (mRequestBuffer.length < max * cnt)
+			mRequestBuffer = new byte[max * cnt];
+
+		byte[] request = mRequestBuffer;
+		int len = 0;
+		for (int i = 0; i < cnt; i++)
+			len = writeRequest(tiles[i], request, len);
+
+		write(request, len, cnt);
+
+		return true;
+	}
+
+	/**
+	 * Let cancelation of 'tile' abort reading the next pipelined response.
+	 * Only useful for the last one, earlier ones must be read to keep the
+	 * following responses in order.
+	 */
+	void setCancelable(MapTile tile) {
+		mTile = tile;
+	}
+
+	private void prepareConnection(int requests) throws IOException {
+		buffer = mReadBuffer;
 		bufferFill = 0;
 		bufferPos = 0;
 		mReadPos = 0;
-		mCacheFile = null;
+		mNextPos = 0;
+		mNextFill = 0;
+		mTile = null;
+
+		if (mConnection != null) {
+			// previous response was not finished
+			close();
+		}
 
-		if (mSocket != null && ((mMaxReq-- <= 0)
-				|| (SystemClock.elapsedRealtime() - mLastRequest
-				> RESPONSE_EXPECTED_TIMEOUT))) {
-			try {
-				mSocket.close();
-			} catch (IOException e) {
+		connect(requests);
+	}
 
-			}
+	private void connect(int requests) throws IOException {
+		ConnectionPool pool = ConnectionPool.getInstance();
 
-			// Log.d(TAG, "not alive  - recreate connection " + mMaxReq);
-			mSocket = null;
-		}
+		while (true) {
+			mConnection = pool.borrow(mHost, mPort);
+			if (mConnection.addRequests(requests))
+				break;
 
-		if (mSocket == null) {
-			lwHttpConnect();
-			// we know our server
-			mMaxReq = RESPONSE_EXPECTED_LIVES;
-			// Log.d(TAG, "create connection");
-		} else {
-			// should not be needed
-			int avail = mResponseStream.available();
-			if (avail > 0) {
-				Log.d(TAG, "Consume left-over bytes: " + avail);
-				mResponseStream.read(buffer, 0, avail);
-			}
+			// connection has served too many requests
+			pool.release(mConnection, false);
 		}
 
-		byte[] request = mRequestBuffer;
-		int pos = REQUEST_GET_START.length;
+		mCommandStream = mConnection.getOutputStream();
+		mResponseStream = mConnection.getInputStream();
+	}
+
+	private int writeRequest(Tile tile, byte[] request, int pos) {
+		System.arraycopy(REQUEST_GET_START, 0,
+				request, pos, REQUEST_GET_START.length);
+		pos += REQUEST_GET_START.length;
 
 		pos = writeInt(tile.zoomLevel, pos, request);
 		request[pos++] = '/';
@@ -217,41 +377,24 @@ public class LwHttp {
 
 		int len = REQUEST_GET_END.length;
 		System.arraycopy(REQUEST_GET_END, 0, request, pos, len);
-		len += pos;
 
-		// this does the same but with a few more allocations:
-		// byte[] request = String.format(REQUEST,
-		// Integer.valueOf(tile.zoomLevel),
-		// Integer.valueOf(tile.tileX), Integer.valueOf(tile.tileY)).getBytes();
+		return pos + len;
+	}
 
+	private void write(byte[] request, int len, int requests) throws IOException {
 		try {
 			mCommandStream.write(request, 0, len);
 			mCommandStream.flush();
-			return true;
+			return;
 		} catch (IOException e) {
 			Log.d(TAG, "recreate connection");
 		}
 
-		lwHttpConnect();
+		close();
+		connect(requests);
 
 		mCommandStream.write(request, 0, len);
 		mCommandStream.flush();
-
-		return true;
-	}
-
-	private boolean lwHttpConnect() throws IOException {
-		if (mSockAddr == null)
-			mSockAddr = new InetSocketAddress(mHost, mPort);
-
-		mSocket = new Socket();
-		mSocket.connect(mSockAddr, 30000);
-		mSocket.setTcpNoDelay(true);
-
-		mCommandStream = mSocket.getOutputStream(); //new BufferedOutputStream();
-		mResponseStream = mSocket.getInputStream();
-
-		return true;
 	}
 
 	// write (positive) integer as char sequence to buffer
@@ -288,144 +431,39 @@ public class LwHttp {
 		return true;
 	}
 
-	static int decodeInt(byte[] buffer, int offset) {
-		return buffer[offset] << 24 | (buffer[offset + 1] & 0xff) << 16
-				| (buffer[offset + 2] & 0xff) << 8
-				| (buffer[offset + 3] & 0xff);
-	}
-
-	void readBuffer(int size) throws IOException {
-
-		// check if buffer already contains the request bytes
-		if (bufferPos + size < bufferFill)
-			return;
-
-		// check if inputstream is read to the end
-		if (mReadPos == mContentLenth)
-			return;
-		int maxSize = buffer.length;
-
-		if (size > maxSize) {
-			Log.d(TAG, "increase read buffer to " + size + " bytes");
-			maxSize = size;
-			byte[] tmp = new byte[maxSize];
-
-			bufferFill -= bufferPos;
-			System.arraycopy(buffer, bufferPos, tmp, 0, bufferFill);
-			bufferPos = 0;
-			buffer = tmp;
-		}
-
-		if (bufferFill == bufferPos) {
-			bufferPos = 0;
-			bufferFill = 0;
-		} else if (bufferPos + size > maxSize) {
-			// copy bytes left to the beginning of buffer
-			bufferFill -= bufferPos;
-			System.arraycopy(buffer, bufferPos, buffer, 0, bufferFill);
-			bufferPos = 0;
-		}
-
-		int max = maxSize - bufferFill;
-
-		while ((bufferFill - bufferPos) < size && max > 0) {
+	private static boolean compareBytesIgnoreCase(byte[] buffer, int position,
+			int available, byte[] string) {
 
-			max = maxSize - bufferFill;
-			if (max > mContentLenth - mReadPos)
-				max = (int) (mContentLenth - mReadPos);
-
-			// read until requested size is available in buffer
-			int len = mInputStream.read(buffer, bufferFill, max);
-
-			if (len < 0) {
-				// finished reading, mark end
-				buffer[bufferFill] = 0;
-				break;
-			}
-
-			mReadPos += len;
-
-			//			if (mCacheFile != null)
-			//				mCacheFile.write(mReadBuffer, mBufferFill, len);
-
-			if (mReadPos == mContentLenth)
-				break;
+		int length = string.length;
+		if (available - position < length)
+			return false;
 
-			bufferFill += len;
+		for (int i = 0; i < length; i++) {
+			int c = buffer[position + i];
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			if (c != string[i])
+				return false;
 		}
+		return true;
 	}
 
-	private FileOutputStream mCacheFile;
-
-	boolean cacheRead(Tile tile, File f) {
-		if (f.exists() && f.length() > 0) {
-			FileInputStream in;
+	// parse decimal number, skipping leading whitespace
+	private static int parseInt(byte[] buf, int pos, int end) {
+		while (pos < end && buf[pos] == ' ')
+			pos++;
 
-			try {
-				in = new FileInputStream(f);
+		int val = 0;
+		int start = pos;
+		for (; pos < end && buf[pos] >= '0' && buf[pos] <= '9'; pos++)
+			val = val * 10 + (buf[pos] - '0');
 
-				mContentLenth = f.length();
-				Log.d(TAG, tile + " - using cache: " + mContentLenth);
-				mInputStream = in;
-
-				//decode();
-				in.close();
-
-				return true;
-
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			} catch (Exception ex) {
-				ex.printStackTrace();
-			}
-
-			f.delete();
-			return false;
-		}
-
-		return false;
-	}
-
-	boolean cacheBegin(Tile tile, File f) {
-		if (MapDatabase.USE_CACHE) {
-			try {
-				Log.d(TAG, tile + " - writing cache");
-				mCacheFile = new FileOutputStream(f);
-
-				if (mReadPos > 0) {
-					try {
-						mCacheFile.write(buffer, bufferPos,
-								bufferFill - bufferPos);
-
-					} catch (IOException e) {
-						e.printStackTrace();
-						mCacheFile = null;
-						return false;
-					}
-				}
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-				mCacheFile = null;
-				return false;
-			}
-		}
-		return true;
+		return pos > start ? val : -1;
 	}
 
-	void cacheFinish(Tile tile, File file, boolean success) {
-		if (MapDatabase.USE_CACHE) {
-			if (success) {
-				try {
-					mCacheFile.flush();
-					mCacheFile.close();
-					Log.d(TAG, tile + " - cache written " + file.length());
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			} else {
-				file.delete();
-			}
-		}
-		mCacheFile = null;
+	static int decodeInt(byte[] buffer, int offset) {
+		return buffer[offset] << 24 | (buffer[offset + 1] & 0xff) << 16
+				| (buffer[offset + 2] & 0xff) << 8
+				| (buffer[offset + 3] & 0xff);
 	}
 }
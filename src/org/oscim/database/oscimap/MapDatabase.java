@@ -19,46 +19,59 @@ import java.io.IOException;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import org.oscim.cache.CacheManager;
 import org.oscim.core.BoundingBox;
 import org.oscim.core.GeoPoint;
 import org.oscim.core.GeometryBuffer.GeometryType;
 import org.oscim.core.MapElement;
 import org.oscim.core.Tag;
+import org.oscim.core.TagIndex;
 import org.oscim.core.Tile;
+import org.oscim.database.IAsyncMapDatabase;
 import org.oscim.database.IMapDatabase;
 import org.oscim.database.IMapDatabaseCallback;
 import org.oscim.database.MapInfo;
 import org.oscim.database.MapOptions;
 import org.oscim.layers.tile.MapTile;
+import org.oscim.theme.TagFilter;
 
 import android.os.Environment;
-import android.os.SystemClock;
 import android.util.Log;
 
 /**
  *
  *
  */
-public class MapDatabase implements IMapDatabase {
+public class MapDatabase implements IAsyncMapDatabase {
 	private static final String TAG = MapDatabase.class.getName();
 
-	static final boolean USE_CACHE = false;
-
 	private static final MapInfo mMapInfo =
 			new MapInfo(new BoundingBox(-180, -90, 180, 90),
 					new Byte((byte) 4), new GeoPoint(53.11, 8.85),
 					null, 0, 0, 0, "de", "comment", "author", null);
 
 	private static final String CACHE_DIRECTORY = "/Android/data/org.oscim.app/cache/";
-	private static final String CACHE_FILE = "%d-%d-%d.tile";
+	// default max size of tile cache, can be set in MB by 'cache-size'
+	// MapOption
+	private static final long CACHE_SIZE = 64 << 20;
 
 	private final static float REF_TILE_SIZE = 4096.0f;
 
+	// max number of instances fetching from the server concurrently
+	private final static int MAX_PARALLEL_REQUESTS = 4;
+
+	// default number of requests sent at once by request(), can be set
+	// by 'pipeline' MapOption
+	private final static int PIPELINE_DEPTH = 4;
+
 	// 'open' state
 	private boolean mOpen = false;
-	private static File cacheDir;
+
+	// shared tile cache, enabled by 'cache' MapOption
+	private CacheManager mCache;
 
 	private final int MAX_TILE_TAGS = 100;
 	private Tag[] curTags = new Tag[MAX_TILE_TAGS];
@@ -66,44 +79,68 @@ public class MapDatabase implements IMapDatabase {
 
 	private IMapDatabaseCallback mMapGenerator;
 	private float mScaleFactor;
+
+	// elements the filter rejects are skipped before decoding their
+	// coordinates, null to pass all elements
+	private TagFilter mFilter;
+	private int mSkippedElements;
+	private long mSkippedBytes;
 	private MapTile mTile;
 
-	private long mContentLenth;
+	// content read by executeQuery()
+	private byte[] mContent;
 
 	private final boolean debug = false;
 	private LwHttp lwHttp;
 
+	private int mPipelineDepth = PIPELINE_DEPTH;
+	// responses of request() not yet read by receive()
+	private int mPending;
+	// tiles sent by request() in order of their responses, tiles found
+	// in cache are not requested.
+	private MapTile[] mRequested = new MapTile[PIPELINE_DEPTH];
+	private int mRequestedPos;
+
+	// shared non-blocking fetcher for fetchAsync(), null when disabled
+	// by 'nio' MapOption
+	private NioHttp mNio;
+
 	//private final WayData mWay = new WayData();
 	private final MapElement mElem = new MapElement();
 
 	@Override
 	public QueryResult executeQuery(MapTile tile, IMapDatabaseCallback mapDatabaseCallback) {
+		if (mCache != null) {
+			// read whole content to put it into cache
+			ByteBuffer data = fetch(tile);
+			if (data == null)
+				return QueryResult.FAILED;
+
+			return decode(tile, data, mapDatabaseCallback);
+		}
+
 		QueryResult result = QueryResult.SUCCESS;
 
 		mTile = tile;
 
 		mMapGenerator = mapDatabaseCallback;
+		mFilter = mapDatabaseCallback.getTagFilter();
 
 		// scale coordinates to tile size
 		mScaleFactor = REF_TILE_SIZE / Tile.SIZE;
 
-		File f = null;
-
-		if (USE_CACHE) {
-			f = new File(cacheDir, String.format(CACHE_FILE,
-					Integer.valueOf(tile.zoomLevel),
-					Integer.valueOf(tile.tileX),
-					Integer.valueOf(tile.tileY)));
-
-			if (lwHttp.cacheRead(tile, f))
-				return QueryResult.SUCCESS;
-		}
-
 		try {
 
-			if (lwHttp.sendRequest(tile) && (mContentLenth = lwHttp.readHeader()) >= 0) {
-				lwHttp.cacheBegin(tile, f);
+			if (lwHttp.sendRequest(tile) && lwHttp.readHeader() >= 0) {
+				ByteBuffer data = lwHttp.readContent(mContent);
+				mContent = data.array();
+				lwHttp.release();
+
+				setContent(data);
 				decode();
+
+				if (tile.canceled)
+					result = QueryResult.FAILED;
 			} else {
 				Log.d(TAG, tile + " Network Error");
 				result = QueryResult.FAILED;
@@ -118,20 +155,220 @@ public class MapDatabase implements IMapDatabase {
 			Log.d(TAG, tile + " no network");
 			result = QueryResult.FAILED;
 		} catch (Exception ex) {
-			ex.printStackTrace();
+			Log.d(TAG, tile + " " + ex.getMessage());
 			result = QueryResult.FAILED;
+		} finally {
+			// give back the connection also on unexpected errors
+			if (result != QueryResult.SUCCESS)
+				lwHttp.close();
+		}
+
+		return result;
+	}
+
+	@Override
+	public ByteBuffer fetch(MapTile tile) {
+		ByteBuffer data = null;
+
+		if (mCache != null && (data = mCache.get(tile)) != null)
+			return data;
+
+		try {
+			if (lwHttp.sendRequest(tile) && lwHttp.readHeader() >= 0)
+				data = lwHttp.readContent();
+			else
+				Log.d(TAG, tile + " Network Error");
+
+		} catch (SocketException ex) {
+			Log.d(TAG, tile + " Socket exception: " + ex.getMessage());
+		} catch (SocketTimeoutException ex) {
+			Log.d(TAG, tile + " Socket Timeout exception: " + ex.getMessage());
+		} catch (UnknownHostException ex) {
+			Log.d(TAG, tile + " no network");
+		} catch (Exception ex) {
+			Log.d(TAG, tile + " " + ex.getMessage());
+		} finally {
+			// give back the connection also on unexpected errors
+			if (data == null)
+				lwHttp.close();
 		}
 
-		lwHttp.mLastRequest = SystemClock.elapsedRealtime();
+		if (data == null)
+			return null;
 
-		if (result == QueryResult.SUCCESS) {
+		lwHttp.release();
 
-			lwHttp.cacheFinish(tile, f, true);
-		} else {
-			lwHttp.cacheFinish(tile, f, false);
+		if (mCache != null)
+			mCache.put(tile, data);
+
+		if (tile.canceled)
+			return null;
+
+		return data;
+	}
+
+	@Override
+	public int getParallelRequestsLimit() {
+		return MAX_PARALLEL_REQUESTS;
+	}
+
+	@Override
+	public int getPipelineDepth() {
+		return mPipelineDepth;
+	}
+
+	@Override
+	public boolean request(MapTile[] tiles, int cnt) {
+		mPending = 0;
+		mRequestedPos = 0;
+
+		if (mRequested.length < cnt)
+			mRequested = new MapTile[cnt];
+
+		int n = 0;
+		for (int i = 0; i < cnt; i++)
+			if (mCache == null || !mCache.contains(tiles[i]))
+				mRequested[n++] = tiles[i];
+
+		if (n == 0)
+			return true;
+
+		try {
+			if (lwHttp.sendRequests(mRequested, n)) {
+				mPending = n;
+				return true;
+			}
+		} catch (Exception ex) {
+			Log.d(TAG, "pipeline request failed: " + ex.getMessage());
+		}
+		lwHttp.close();
+		return false;
+	}
+
+	@Override
+	public ByteBuffer receive(MapTile tile) {
+		if (mPending == 0 || mRequested[mRequestedPos] != tile) {
+			// not requested, found in cache or pipeline was reset
+			if (tile.canceled)
+				return null;
+
+			ByteBuffer data;
+			if (mCache != null && (data = mCache.get(tile)) != null)
+				return data;
+
+			// connection is busy with pipelined responses
+			if (mPending > 0)
+				return null;
+
+			return fetch(tile);
+		}
+		mRequested[mRequestedPos++] = null;
+		mPending--;
+
+		// a canceled tile can abort the last response only
+		lwHttp.setCancelable(mPending == 0 ? tile : null);
+
+		ByteBuffer data = null;
+		boolean reset = false;
+		try {
+			if (lwHttp.readHeader() >= 0)
+				data = lwHttp.readContent();
+			else
+				Log.d(TAG, tile + " Network Error");
+		} catch (Exception ex) {
+			Log.d(TAG, tile + " pipeline: " + ex.getMessage());
+			reset = true;
+		}
+
+		if (data != null && mPending == 0)
+			lwHttp.release();
+
+		if (data != null && mCache != null)
+			mCache.put(tile, data);
+
+		if (data == null) {
+			// following responses are lost with the connection
 			lwHttp.close();
+
+			if (reset && mPending > 0 && mPipelineDepth > 1) {
+				// server might not like pipelining
+				mPipelineDepth >>= 1;
+				Log.d(TAG, "reduce pipeline depth " + mPipelineDepth);
+			}
+			mPending = 0;
+			Arrays.fill(mRequested, null);
+
+			// try once more on a new connection
+			if (reset && !tile.canceled)
+				data = fetch(tile);
 		}
-		return result;
+
+		if (tile.canceled)
+			return null;
+
+		return data;
+	}
+
+	@Override
+	public int getMaxPending() {
+		if (mNio == null)
+			return 0;
+
+		return NioHttp.MAX_CONNECTIONS * NioHttp.MAX_PIPELINE;
+	}
+
+	@Override
+	public void fetchAsync(MapTile tile, final FetchCallback callback) {
+		ByteBuffer data;
+		if (mCache != null && (data = mCache.get(tile)) != null) {
+			callback.onFetched(tile, data);
+			return;
+		}
+
+		if (mNio == null) {
+			callback.onFetched(tile, fetch(tile));
+			return;
+		}
+
+		if (mCache == null) {
+			mNio.submit(tile, callback);
+			return;
+		}
+
+		final CacheManager cache = mCache;
+		mNio.submit(tile, new FetchCallback() {
+			@Override
+			public void onFetched(MapTile t, ByteBuffer result) {
+				if (result != null)
+					cache.put(t, result);
+
+				callback.onFetched(t, result);
+			}
+		});
+	}
+
+	@Override
+	public QueryResult decode(MapTile tile, ByteBuffer data,
+			IMapDatabaseCallback mapDatabaseCallback) {
+
+		mTile = tile;
+		mMapGenerator = mapDatabaseCallback;
+		mFilter = mapDatabaseCallback.getTagFilter();
+		mScaleFactor = REF_TILE_SIZE / Tile.SIZE;
+
+		setContent(data);
+
+		try {
+			decode();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			return QueryResult.FAILED;
+		}
+
+		if (tile.canceled)
+			return QueryResult.FAILED;
+
+		return QueryResult.SUCCESS;
 	}
 
 	@Override
@@ -163,16 +400,42 @@ public class MapDatabase implements IMapDatabase {
 			return new OpenResult("invalid url: " + options.get("url"));
 		}
 
-		if (USE_CACHE) {
-			if (cacheDir == null) {
-				String externalStorageDirectory = Environment
-						.getExternalStorageDirectory()
-						.getAbsolutePath();
-				String cacheDirectoryPath = externalStorageDirectory + CACHE_DIRECTORY;
-				cacheDir = createDirectory(cacheDirectoryPath);
+		if (options.containsKey("pipeline")) {
+			try {
+				mPipelineDepth = Math.max(1, Integer.parseInt(options.get("pipeline")));
+			} catch (NumberFormatException e) {
+				return new OpenResult("invalid pipeline: " + options.get("pipeline"));
 			}
 		}
 
+		if (!"false".equals(options.get("nio")))
+			mNio = NioHttp.acquire(options.get("url"));
+
+		if ("true".equals(options.get("cache"))) {
+			long size = CACHE_SIZE;
+			if (options.containsKey("cache-size")) {
+				try {
+					size = Long.parseLong(options.get("cache-size")) << 20;
+				} catch (NumberFormatException e) {
+					return new OpenResult("invalid cache-size: " + options.get("cache-size"));
+				}
+			}
+			File dir = new File(Environment.getExternalStorageDirectory()
+					.getAbsolutePath() + CACHE_DIRECTORY);
+
+			// one pack file per server
+			String name = Integer.toHexString(options.get("url").hashCode()) + ".pack";
+
+			if (dir.isDirectory() || dir.mkdirs())
+				mCache = CacheManager.getInstance(new File(dir, name), size);
+			else
+				Log.d(TAG, "cannot create " + dir);
+		}
+
+		// tag ids for theme matching, keys for variable tags
+		TagIndex.register(Tags.tags);
+		TagIndex.register(Tags.keys, null);
+
 		mOpen = true;
 
 		initDecorder();
@@ -184,36 +447,41 @@ public class MapDatabase implements IMapDatabase {
 	public void close() {
 		mOpen = false;
 
+		Log.d(TAG, "skipped elements: " + mSkippedElements + " bytes: " + mSkippedBytes);
+
 		lwHttp.close();
 
-		if (USE_CACHE) {
-			cacheDir = null;
+		if (mNio != null) {
+			mNio.release();
+			mNio = null;
+		}
+
+		// shared with other instances, the file is closed when the
+		// last one is released
+		if (mCache != null) {
+			mCache.close();
+			mCache = null;
 		}
 	}
 
 	@Override
 	public void cancel() {
-	}
-
-	private static File createDirectory(String pathName) {
-		File file = new File(pathName);
-		if (!file.exists() && !file.mkdirs()) {
-			throw new IllegalArgumentException("could not create directory: " + file);
-		} else if (!file.isDirectory()) {
-			throw new IllegalArgumentException("not a directory: " + file);
-		} else if (!file.canRead()) {
-			throw new IllegalArgumentException("cannot read directory: " + file);
-		} else if (!file.canWrite()) {
-			throw new IllegalArgumentException("cannot write directory: " + file);
-		}
-		return file;
+		// LwHttp stops reading when MapTile.canceled is set, the
+		// connection is closed in executeQuery when the response
+		// could not be read completely.
 	}
 
 	// /////////////// hand sewed tile protocol buffers decoder ///////////////
 	//private final int MAX_WAY_COORDS = 1 << 14;
 
-	// overall bytes of content processed
-	private int mBytesProcessed;
+	// content decoded directly from buffer, which might be direct or
+	// memory-mapped. Current position and end.
+	private ByteBuffer mBuf;
+	private int mPos;
+	private int mEnd;
+
+	// variable tags shared by all instances
+	private final static TagTable sTagTable = new TagTable();
 
 	private static final int TAG_TILE_NUM_TAGS = 1;
 	private static final int TAG_TILE_TAG_KEYS = 2;
@@ -251,61 +519,71 @@ public class MapDatabase implements IMapDatabase {
 		mElementTags = tags;
 	}
 
+	private void setContent(ByteBuffer data) {
+		mBuf = data;
+		mPos = data.position();
+		mEnd = data.limit();
+	}
+
 	private boolean decode() throws IOException {
 
 		mCurTagCnt = 0;
 
 		if (debug)
-			Log.d(TAG, mTile + " Content length " + mContentLenth);
+			Log.d(TAG, mTile + " Content length " + (mEnd - mPos));
 
-		mBytesProcessed = 0;
 		int val;
 		int numTags = 0;
 
-		while (mBytesProcessed < mContentLenth && (val = decodeVarint32()) > 0) {
-			// read tag and wire type
-			int tag = (val >> 3);
-
-			switch (tag) {
-				case TAG_TILE_NUM_TAGS:
-					numTags = decodeVarint32();
-					if (numTags > curTags.length)
-						curTags = new Tag[numTags];
-					break;
-
-				case TAG_TILE_TAG_KEYS:
-					mTmpKeys = decodeShortArray(numTags, mTmpKeys);
-					break;
-
-				case TAG_TILE_TAG_VALUES:
-					// this wastes one byte, as there is no packed string...
-					decodeTileTags(mCurTagCnt++);
-					break;
-
-				case TAG_TILE_LINE:
-				case TAG_TILE_POLY:
-				case TAG_TILE_POINT:
-					decodeTileElement(tag);
-					break;
-
-				default:
-					Log.d(TAG, mTile + " invalid type for tile: " + tag);
+		try {
+			while (mPos < mEnd && (val = decodeVarint32()) > 0) {
+				if (mTile.canceled)
 					return false;
+
+				// read tag and wire type
+				int tag = (val >> 3);
+
+				switch (tag) {
+					case TAG_TILE_NUM_TAGS:
+						numTags = decodeVarint32();
+						if (numTags > curTags.length)
+							curTags = new Tag[numTags];
+						break;
+
+					case TAG_TILE_TAG_KEYS:
+						mTmpKeys = decodeShortArray(numTags, mTmpKeys);
+						break;
+
+					case TAG_TILE_TAG_VALUES:
+						// this wastes one byte, as there is no packed string...
+						decodeTileTags(mCurTagCnt++);
+						break;
+
+					case TAG_TILE_LINE:
+					case TAG_TILE_POLY:
+					case TAG_TILE_POINT:
+						decodeTileElement(tag);
+						break;
+
+					default:
+						Log.d(TAG, mTile + " invalid type for tile: " + tag);
+						return false;
+				}
 			}
+		} finally {
+			// dont keep content
+			mBuf = null;
 		}
 		return true;
 	}
 
 	private boolean decodeTileTags(int curTag) throws IOException {
-		String tagString = decodeString();
+		int size = decodeVarint32();
+		checkBytes(size);
 
-		String key = Tags.keys[mTmpKeys[curTag]];
-		Tag tag;
+		Tag tag = sTagTable.get(mTmpKeys[curTag], mBuf, mPos, size);
+		mPos += size;
 
-		if (key == Tag.TAG_KEY_NAME)
-			tag = new Tag(key, tagString, false);
-		else
-			tag = new Tag(key, tagString, true);
 		if (debug)
 			Log.d(TAG, mTile + " add tag: " + curTag + " " + tag);
 		curTags[curTag] = tag;
@@ -337,7 +615,7 @@ public class MapDatabase implements IMapDatabase {
 		Tag[] tags = null;
 		short[] index = null;
 
-		int end = mBytesProcessed + bytes;
+		int end = mPos + bytes;
 		int indexCnt = 1;
 		//int layer = 5;
 
@@ -355,7 +633,7 @@ public class MapDatabase implements IMapDatabase {
 		mElem.height = 0;
 		mElem.minHeight = 0;
 
-		while (mBytesProcessed < end) {
+		while (mPos < end) {
 			// read tag and wire type
 			int val = decodeVarint32();
 			if (val == 0)
@@ -366,6 +644,16 @@ public class MapDatabase implements IMapDatabase {
 			switch (tag) {
 				case TAG_ELEM_TAGS:
 					tags = decodeWayTags();
+
+					// skip coordinates of elements that will not be drawn
+					if (mFilter != null && !(type == TAG_TILE_POINT
+							? mFilter.matchesNode(tags)
+							: mFilter.matchesWay(tags))) {
+						mSkippedElements++;
+						mSkippedBytes += end - mPos;
+						mPos = end;
+						return true;
+					}
 					break;
 
 				case TAG_ELEM_NUM_INDICES:
@@ -418,7 +706,7 @@ public class MapDatabase implements IMapDatabase {
 			return false;
 		}
 
-		mElem.tags = tags;
+		mElem.setTags(tags);
 		switch (type) {
 			case TAG_TILE_LINE:
 				mElem.type= GeometryType.LINE;
@@ -442,10 +730,10 @@ public class MapDatabase implements IMapDatabase {
 		Tag[] tmp = mTmpTags;
 
 		int cnt = 0;
-		int end = mBytesProcessed + bytes;
+		int end = mPos + bytes;
 		int max = mCurTagCnt;
 
-		while (mBytesProcessed < end) {
+		while (mPos < end) {
 			int tagNum = decodeVarint32();
 
 			if (tagNum < 0) {
@@ -483,19 +771,15 @@ public class MapDatabase implements IMapDatabase {
 
 	private int decodeWayCoordinates(boolean skip, int nodes) throws IOException {
 		int bytes = decodeVarint32();
-
-		lwHttp.readBuffer(bytes);
+		checkBytes(bytes);
 
 		if (skip) {
-			lwHttp.bufferPos += bytes;
+			mPos += bytes;
 			return nodes;
 		}
 
-		int pos = lwHttp.bufferPos;
-		int end = pos + bytes;
-		byte[] buf = lwHttp.buffer;
+		int end = mPos + bytes;
 		int cnt = 0;
-		int result;
 
 		int lastX = 0;
 		int lastY = 0;
@@ -505,48 +789,19 @@ public class MapDatabase implements IMapDatabase {
 
 		float[] coords = mElem.ensurePointSize(nodes, false);
 
-		//		if (nodes * 2 > coords.length) {
-		//			Log.d(TAG, mTile + " increase way coord buffer to " + (nodes * 2));
-		//			float[] tmp = new float[nodes * 2];
-		//			mTmpCoords = coords = tmp;
-		//		}
-
 		// read repeated sint32
-		while (pos < end) {
-			if (buf[pos] >= 0) {
-				result = buf[pos++];
-			} else if (buf[pos + 1] >= 0) {
-				result = (buf[pos++] & 0x7f)
-						| buf[pos++] << 7;
-			} else if (buf[pos + 2] >= 0) {
-				result = (buf[pos++] & 0x7f)
-						| (buf[pos++] & 0x7f) << 7
-						| (buf[pos++]) << 14;
-			} else if (buf[pos + 3] >= 0) {
-				result = (buf[pos++] & 0x7f)
-						| (buf[pos++] & 0x7f) << 7
-						| (buf[pos++] & 0x7f) << 14
-						| (buf[pos++]) << 21;
-			} else {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2] & 0x7f) << 14
-						| (buf[pos + 3] & 0x7f) << 21
-						| (buf[pos + 4]) << 28;
-				pos += 4;
-				int i = 0;
-
-				while (buf[pos++] < 0 && i < 10)
-					i++;
-
-				if (i == 10)
-					throw new IOException("X malformed VarInt32 in " + mTile);
-
-			}
+		while (mPos < end) {
+			int result = decodeVarint32();
 
 			// zigzag decoding
 			int s = ((result >>> 1) ^ -(result & 1));
 
+			if (cnt == coords.length) {
+				// more coordinates than announced
+				mPos = end;
+				return -1;
+			}
+
 			if (even) {
 				lastX = lastX + s;
 				coords[cnt++] = lastX / scale;
@@ -558,146 +813,61 @@ public class MapDatabase implements IMapDatabase {
 			}
 		}
 
-		lwHttp.bufferPos = pos;
-		mBytesProcessed += bytes;
-
 		return cnt;
 	}
 
 	private short[] decodeShortArray(int num, short[] array) throws IOException {
 		int bytes = decodeVarint32();
+		checkBytes(bytes);
 
 		if (array.length < num)
 			array = new short[num];
 
-		lwHttp.readBuffer(bytes);
-
+		int end = mPos + bytes;
 		int cnt = 0;
 
-		int pos = lwHttp.bufferPos;
-		int end = pos + bytes;
-		byte[] buf = lwHttp.buffer;
-		int result;
-
-		while (pos < end) {
-
-			if (buf[pos] >= 0) {
-				result = buf[pos++];
-			} else if (buf[pos + 1] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| buf[pos + 1] << 7;
-				pos += 2;
-			} else if (buf[pos + 2] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2]) << 14;
-				pos += 3;
-			} else if (buf[pos + 3] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2] & 0x7f) << 14
-						| (buf[pos + 3]) << 21;
-				pos += 4;
-			} else {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2] & 0x7f) << 14
-						| (buf[pos + 3] & 0x7f) << 21
-						| (buf[pos + 4]) << 28;
-
-				pos += 4;
-				int i = 0;
-
-				while (buf[pos++] < 0 && i < 10)
-					i++;
+		while (mPos < end && cnt < num)
+			array[cnt++] = (short) decodeVarint32();
 
-				if (i == 10)
-					throw new IOException("X malformed VarInt32 in " + mTile);
-
-			}
-
-			array[cnt++] = (short) result;
-		}
-
-		lwHttp.bufferPos = pos;
-		mBytesProcessed += bytes;
+		mPos = end;
 
 		return array;
 	}
 
-	private int decodeVarint32() throws IOException {
-		int pos = lwHttp.bufferPos;
-
-		if (pos + 10 > lwHttp.bufferFill) {
-			lwHttp.readBuffer(4096);
-			pos = lwHttp.bufferPos;
-		}
+	private void checkBytes(int bytes) throws IOException {
+		if (bytes < 0 || bytes > mEnd - mPos)
+			throw new IOException("invalid length " + bytes + " in " + mTile);
+	}
 
-		byte[] buf = lwHttp.buffer;
-
-		if (buf[pos] >= 0) {
-			lwHttp.bufferPos += 1;
-			mBytesProcessed += 1;
-			return buf[pos];
-		} else if (buf[pos + 1] >= 0) {
-			lwHttp.bufferPos += 2;
-			mBytesProcessed += 2;
-			return (buf[pos] & 0x7f)
-					| (buf[pos + 1]) << 7;
-
-		} else if (buf[pos + 2] >= 0) {
-			lwHttp.bufferPos += 3;
-			mBytesProcessed += 3;
-			return (buf[pos] & 0x7f)
-					| (buf[pos + 1] & 0x7f) << 7
-					| (buf[pos + 2]) << 14;
-		} else if (buf[pos + 3] >= 0) {
-			lwHttp.bufferPos += 4;
-			mBytesProcessed += 4;
-			return (buf[pos] & 0x7f)
-					| (buf[pos + 1] & 0x7f) << 7
-					| (buf[pos + 2] & 0x7f) << 14
-					| (buf[pos + 3]) << 21;
+	private int decodeVarint32() throws IOException {
+		ByteBuffer buf = mBuf;
+		int pos = mPos;
+
+		if (pos < mEnd) {
+			byte b = buf.get(pos);
+			if (b >= 0) {
+				mPos = pos + 1;
+				return b;
+			}
 		}
 
-		int result = (buf[pos] & 0x7f)
-				| (buf[pos + 1] & 0x7f) << 7
-				| (buf[pos + 2] & 0x7f) << 14
-				| (buf[pos + 3] & 0x7f) << 21
-				| (buf[pos + 4]) << 28;
-
-		int read = 5;
-		pos += 4;
-
-		// 'Discard upper 32 bits' - the original comment.
-		// havent found this in any document but the code provided by google.
-		while (buf[pos++] < 0 && read < 10)
-			read++;
+		int result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (pos >= mEnd)
+				throw new IOException("truncated VarInt32 in " + mTile);
 
-		if (read == 10)
-			throw new IOException("X malformed VarInt32 in " + mTile);
+			byte b = buf.get(pos++);
 
-		lwHttp.bufferPos += read;
-		mBytesProcessed += read;
+			// 'Discard upper 32 bits' - the original comment.
+			// havent found this in any document but the code provided by google.
+			if (shift < 32)
+				result |= (b & 0x7f) << shift;
 
-		return result;
-	}
-
-	private String decodeString() throws IOException {
-		final int size = decodeVarint32();
-		lwHttp.readBuffer(size);
-		final String result = new String(lwHttp.buffer, lwHttp.bufferPos, size, "UTF-8");
-
-		lwHttp.bufferPos += size;
-		mBytesProcessed += size;
-		return result;
-
-	}
-
-	static int decodeInt(byte[] buffer, int offset) {
-		return buffer[offset] << 24 | (buffer[offset + 1] & 0xff) << 16
-				| (buffer[offset + 2] & 0xff) << 8
-				| (buffer[offset + 3] & 0xff);
+			if (b >= 0) {
+				mPos = pos;
+				return result;
+			}
+		}
+		throw new IOException("X malformed VarInt32 in " + mTile);
 	}
-
 }
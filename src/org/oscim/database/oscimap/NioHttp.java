@@ -0,0 +1,661 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.oscimap;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.oscim.database.IAsyncMapDatabase.FetchCallback;
+import org.oscim.layers.tile.MapTile;
+
+import android.util.Log;
+
+/**
+ * Non-blocking tile fetcher: a single I/O thread multiplexes requests of
+ * all MapDatabase instances for one server over a few keep-alive
+ * connections using a Selector. Requests are pipelined on each connection
+ * and the responses are read into direct ByteBuffers which are passed to
+ * the FetchCallback.
+ *
+ * Instances are shared per server url, see acquire() and release().
+ */
+final class NioHttp implements Runnable {
+	private final static String TAG = NioHttp.class.getName();
+
+	// log errors of the I/O thread
+	private final static boolean debug = false;
+
+	final static int MAX_CONNECTIONS = 4;
+	// max requests in flight on one connection
+	final static int MAX_PIPELINE = 4;
+
+	// servers close keep-alive connections after some requests
+	private final static int MAX_REQUESTS = 100;
+	private final static int IDLE_TIMEOUT = 10000;
+	private final static int READ_TIMEOUT = 30000;
+	private final static int MAX_RETRY = 1;
+
+	private final static int READ_BUFFER_SIZE = 1 << 15;
+
+	private final static byte[] RESPONSE_HTTP = "HTTP/1.".getBytes();
+	private final static byte[] RESPONSE_HTTP_OK = "HTTP/1.1 200".getBytes();
+	private final static byte[] HEADER_CONTENT_LENGTH = "content-length:".getBytes();
+
+	private final static HashMap<String, NioHttp> sInstances =
+			new HashMap<String, NioHttp>();
+
+	/**
+	 * @param url
+	 *            server url, like for LwHttp.setServer()
+	 * @return shared instance for 'url' or null if url is invalid
+	 */
+	static NioHttp acquire(String url) {
+		synchronized (sInstances) {
+			NioHttp nio = sInstances.get(url);
+			if (nio == null) {
+				try {
+					nio = new NioHttp(url);
+				} catch (IOException e) {
+					Log.d(TAG, "cannot create: " + e.getMessage());
+					return null;
+				}
+				sInstances.put(url, nio);
+				nio.start();
+			}
+			nio.mRefs++;
+			return nio;
+		}
+	}
+
+	/**
+	 * Stop I/O thread when not used by any MapDatabase. Pending
+	 * requests fail.
+	 */
+	void release() {
+		synchronized (sInstances) {
+			if (--mRefs > 0)
+				return;
+
+			sInstances.remove(mUrl);
+		}
+		mRunning = false;
+		mSelector.wakeup();
+	}
+
+	static final class Request {
+		final MapTile tile;
+		final FetchCallback callback;
+		int retries;
+
+		Request(MapTile tile, FetchCallback callback) {
+			this.tile = tile;
+			this.callback = callback;
+		}
+	}
+
+	final class Connection {
+		final SocketChannel channel;
+		SelectionKey key;
+
+		// requests written or waiting to be written, in order of
+		// their responses
+		final ArrayDeque<Request> inFlight = new ArrayDeque<Request>();
+
+		ByteBuffer out = ByteBuffer.allocate(1024);
+		final ByteBuffer in = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+		// body of the current response, null while reading header
+		ByteBuffer body;
+		// length of tile data in body, -1 for an error response whose
+		// body is only skipped
+		int contentLength;
+
+		int requests;
+		long lastActive;
+		boolean connected;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		boolean isUsable() {
+			return requests < MAX_REQUESTS && inFlight.size() < MAX_PIPELINE;
+		}
+	}
+
+	private final String mUrl;
+	private final String mHost;
+	private final int mPort;
+	private final byte[] mRequestStart;
+	private final byte[] mRequestEnd;
+
+	private final Selector mSelector;
+	private InetSocketAddress mAddress;
+
+	// only modified with sInstances lock
+	private int mRefs;
+
+	private volatile boolean mRunning = true;
+
+	// requests not yet assigned to a connection
+	private final ArrayDeque<Request> mPending = new ArrayDeque<Request>();
+
+	// only used by I/O thread
+	private final ArrayList<Connection> mConnections = new ArrayList<Connection>();
+
+	NioHttp(String url) throws IOException {
+		URL u;
+		try {
+			u = new URL(url);
+		} catch (MalformedURLException e) {
+			throw new IOException("invalid url: " + url);
+		}
+
+		mUrl = url;
+		mHost = u.getHost();
+		mPort = u.getPort() < 0 ? 80 : u.getPort();
+
+		mRequestStart = ("GET " + u.getPath()).getBytes();
+		mRequestEnd = (".osmtile HTTP/1.1\n" +
+				"Host: " + mHost + "\n" +
+				"Connection: Keep-Alive\n\n").getBytes();
+
+		mSelector = Selector.open();
+	}
+
+	void start() {
+		Thread t = new Thread(this, "NioHttp " + mHost);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Queue a request. 'callback' is called from the I/O thread.
+	 */
+	void submit(MapTile tile, FetchCallback callback) {
+		Request r = new Request(tile, callback);
+
+		synchronized (mPending) {
+			if (mRunning) {
+				mPending.add(r);
+				r = null;
+			}
+		}
+		if (r != null)
+			callback.onFetched(tile, null);
+		else
+			mSelector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (mRunning) {
+			try {
+				dispatch();
+
+				mSelector.select(1000);
+
+				Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+
+					Connection c = (Connection) key.attachment();
+					try {
+						if (key.isValid() && key.isConnectable())
+							finishConnect(c);
+						if (key.isValid() && key.isWritable())
+							write(c);
+						if (key.isValid() && key.isReadable())
+							read(c);
+					} catch (IOException e) {
+						if (debug)
+							Log.d(TAG, "connection failed: " + e.getMessage());
+						fail(c);
+					}
+				}
+				checkTimeouts(System.nanoTime() / 1000000);
+
+			} catch (IOException e) {
+				if (debug)
+					Log.d(TAG, "select failed: " + e.getMessage());
+			}
+		}
+
+		// release() was called: fail all requests
+		for (int i = mConnections.size() - 1; i >= 0; i--) {
+			Connection c = mConnections.get(i);
+			close(c);
+			while (!c.inFlight.isEmpty())
+				finish(c.inFlight.poll(), null);
+		}
+		while (true) {
+			Request r;
+			synchronized (mPending) {
+				r = mPending.poll();
+			}
+			if (r == null)
+				break;
+			finish(r, null);
+		}
+
+		try {
+			mSelector.close();
+		} catch (IOException e) {
+			if (debug)
+				Log.d(TAG, e.getMessage());
+		}
+	}
+
+	/** assign pending requests to connections */
+	private void dispatch() {
+		while (true) {
+			Request r;
+			synchronized (mPending) {
+				r = mPending.peek();
+			}
+			if (r == null)
+				return;
+
+			if (r.tile.canceled) {
+				removePending(r);
+				finish(r, null);
+				continue;
+			}
+
+			Connection c = getConnection();
+			if (c == null) {
+				if (mConnections.size() > 0)
+					return;
+
+				// could not connect
+				removePending(r);
+				finish(r, null);
+				continue;
+			}
+
+			removePending(r);
+			sendRequest(c, r);
+		}
+	}
+
+	private void removePending(Request r) {
+		synchronized (mPending) {
+			mPending.remove(r);
+		}
+	}
+
+	/**
+	 * @return connection with least requests in flight. Opens a new one
+	 *         when all are busy.
+	 */
+	private Connection getConnection() {
+		Connection best = null;
+		for (int i = 0, n = mConnections.size(); i < n; i++) {
+			Connection c = mConnections.get(i);
+			if (!c.isUsable())
+				continue;
+			if (best == null || c.inFlight.size() < best.inFlight.size())
+				best = c;
+		}
+
+		if ((best == null || best.inFlight.size() > 0)
+				&& mConnections.size() < MAX_CONNECTIONS) {
+			try {
+				return connect();
+			} catch (IOException e) {
+				if (debug)
+					Log.d(TAG, "connect failed: " + e.getMessage());
+			}
+		}
+		return best;
+	}
+
+	private Connection connect() throws IOException {
+		if (mAddress == null || mAddress.isUnresolved())
+			mAddress = new InetSocketAddress(mHost, mPort);
+
+		SocketChannel channel = SocketChannel.open();
+		Connection c = new Connection(channel);
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			c.connected = channel.connect(mAddress);
+			c.key = channel.register(mSelector, c.connected ?
+					SelectionKey.OP_READ : SelectionKey.OP_CONNECT, c);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		c.lastActive = System.nanoTime() / 1000000;
+		mConnections.add(c);
+		return c;
+	}
+
+	private void finishConnect(Connection c) throws IOException {
+		if (!c.channel.finishConnect())
+			return;
+
+		c.connected = true;
+		c.lastActive = System.nanoTime() / 1000000;
+		updateInterest(c);
+	}
+
+	private void sendRequest(Connection c, Request r) {
+		MapTile tile = r.tile;
+		int max = mRequestStart.length + mRequestEnd.length + 32;
+
+		if (c.out.remaining() < max) {
+			ByteBuffer out = ByteBuffer.allocate(c.out.capacity() + max * MAX_PIPELINE);
+			c.out.flip();
+			out.put(c.out);
+			c.out = out;
+		}
+
+		ByteBuffer out = c.out;
+		out.put(mRequestStart);
+		putInt(out, tile.zoomLevel);
+		out.put((byte) '/');
+		putInt(out, tile.tileX);
+		out.put((byte) '/');
+		putInt(out, tile.tileY);
+		out.put(mRequestEnd);
+
+		c.inFlight.add(r);
+		c.requests++;
+
+		if (c.connected)
+			updateInterest(c);
+	}
+
+	private static void updateInterest(Connection c) {
+		int ops = SelectionKey.OP_READ;
+		if (c.out.position() > 0)
+			ops |= SelectionKey.OP_WRITE;
+
+		c.key.interestOps(ops);
+	}
+
+	private void write(Connection c) throws IOException {
+		c.out.flip();
+		c.channel.write(c.out);
+		c.out.compact();
+
+		c.lastActive = System.nanoTime() / 1000000;
+		updateInterest(c);
+	}
+
+	private void read(Connection c) throws IOException {
+		while (true) {
+			int n;
+			if (c.body != null && c.in.position() == 0) {
+				// read directly into body
+				n = c.channel.read(c.body);
+				if (n > 0 && !c.body.hasRemaining())
+					finishResponse(c);
+			} else {
+				if (!c.in.hasRemaining())
+					throw new IOException("header too large");
+
+				n = c.channel.read(c.in);
+				if (n > 0)
+					parse(c);
+			}
+
+			if (n == 0)
+				return;
+
+			if (n < 0) {
+				if (c.inFlight.isEmpty()) {
+					// server closed idle connection
+					close(c);
+					return;
+				}
+				throw new IOException("connection closed");
+			}
+			c.lastActive = System.nanoTime() / 1000000;
+		}
+	}
+
+	/** parse responses in c.in */
+	private void parse(Connection c) throws IOException {
+		ByteBuffer in = c.in;
+		in.flip();
+
+		while (in.hasRemaining()) {
+			if (c.body == null && !parseHeader(c))
+				break;
+
+			// copy available bytes of body
+			int n = Math.min(in.remaining(), c.body.remaining());
+			ByteBuffer src = in.duplicate();
+			src.limit(in.position() + n);
+			c.body.put(src);
+			in.position(in.position() + n);
+
+			if (c.body.hasRemaining())
+				break;
+
+			finishResponse(c);
+		}
+		in.compact();
+	}
+
+	/**
+	 * Parse header and the content length prefix of the next response,
+	 * then allocate the body buffer. The body of an error response is
+	 * read as well, so that the connection can be used for the following
+	 * responses.
+	 *
+	 * @return false when more bytes are needed.
+	 */
+	private boolean parseHeader(Connection c) throws IOException {
+		ByteBuffer in = c.in;
+		int start = in.position();
+		int limit = in.limit();
+
+		if (c.inFlight.isEmpty())
+			throw new IOException("unexpected response");
+
+		// find empty line
+		int end = -1;
+		int lineStart = start;
+		int httpLength = -1;
+		boolean ok = false;
+
+		for (int i = start; i < limit; i++) {
+			if (in.get(i) != '\n')
+				continue;
+
+			if (lineStart == start) {
+				if (!startsWith(in, start, i, RESPONSE_HTTP))
+					throw new IOException("bad response " + c.inFlight.peek().tile);
+				ok = startsWith(in, start, i, RESPONSE_HTTP_OK);
+			} else if (i - lineStart <= 1) {
+				end = i + 1;
+				break;
+			} else if (startsWith(in, lineStart, i, HEADER_CONTENT_LENGTH)) {
+				httpLength = parseInt(in, lineStart + HEADER_CONTENT_LENGTH.length, i);
+			}
+			lineStart = i + 1;
+		}
+
+		if (end < 0)
+			return false;
+
+		if (!ok) {
+			// fail only this request
+			if (httpLength < 0)
+				throw new IOException("error response without length "
+						+ c.inFlight.peek().tile);
+
+			if (debug)
+				Log.d(TAG, c.inFlight.peek().tile + " "
+						+ readLine(in, start));
+
+			c.contentLength = -1;
+			c.body = ByteBuffer.allocate(httpLength);
+			in.position(end);
+			return true;
+		}
+
+		// need length of content
+		if (limit - end < 4)
+			return false;
+
+		int contentLength = in.getInt(end);
+		int bodyLength = httpLength >= 0 ? httpLength : contentLength + 4;
+
+		if (contentLength < 0 || contentLength + 4 > bodyLength)
+			throw new IOException("invalid content length " + contentLength);
+
+		c.contentLength = contentLength;
+		c.body = ByteBuffer.allocateDirect(bodyLength);
+
+		in.position(end);
+		return true;
+	}
+
+	private void finishResponse(Connection c) {
+		ByteBuffer data = c.body;
+		c.body = null;
+
+		if (c.contentLength < 0) {
+			data = null;
+		} else {
+			data.position(4);
+			data.limit(4 + c.contentLength);
+		}
+
+		Request r = c.inFlight.poll();
+
+		if (c.inFlight.isEmpty() && c.requests >= MAX_REQUESTS)
+			close(c);
+
+		finish(r, data);
+	}
+
+	/** close connection and retry its requests on another */
+	private void fail(Connection c) {
+		close(c);
+
+		ArrayList<Request> retry = new ArrayList<Request>(c.inFlight.size());
+		while (!c.inFlight.isEmpty()) {
+			Request r = c.inFlight.poll();
+			if (r.retries++ < MAX_RETRY && !r.tile.canceled)
+				retry.add(r);
+			else
+				finish(r, null);
+		}
+
+		synchronized (mPending) {
+			for (int i = retry.size() - 1; i >= 0; i--)
+				mPending.addFirst(retry.get(i));
+		}
+	}
+
+	private void close(Connection c) {
+		mConnections.remove(c);
+		if (c.key != null)
+			c.key.cancel();
+		try {
+			c.channel.close();
+		} catch (IOException e) {
+			if (debug)
+				Log.d(TAG, e.getMessage());
+		}
+	}
+
+	private void checkTimeouts(long now) {
+		for (int i = mConnections.size() - 1; i >= 0; i--) {
+			Connection c = mConnections.get(i);
+			long idle = now - c.lastActive;
+
+			if (c.inFlight.isEmpty()) {
+				if (idle > IDLE_TIMEOUT || c.requests >= MAX_REQUESTS)
+					close(c);
+			} else if (idle > READ_TIMEOUT) {
+				if (debug)
+					Log.d(TAG, "timeout");
+				fail(c);
+			}
+		}
+	}
+
+	private static void finish(Request r, ByteBuffer data) {
+		try {
+			r.callback.onFetched(r.tile, data);
+		} catch (Exception e) {
+			if (debug)
+				Log.d(TAG, r.tile + " callback failed: " + e);
+		}
+	}
+
+	// write (positive) integer as char sequence
+	private static void putInt(ByteBuffer out, int val) {
+		if (val >= 10)
+			putInt(out, val / 10);
+
+		out.put((byte) ('0' + val % 10));
+	}
+
+	private static boolean startsWith(ByteBuffer buf, int pos, int end, byte[] string) {
+		if (end - pos < string.length)
+			return false;
+
+		for (int i = 0; i < string.length; i++) {
+			int c = buf.get(pos + i);
+			if (c >= 'A' && c <= 'Z' && string[i] >= 'a')
+				c += 'a' - 'A';
+			if (c != string[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static String readLine(ByteBuffer buf, int pos) {
+		StringBuilder sb = new StringBuilder();
+		for (int c; pos < buf.limit() && (c = buf.get(pos)) != '\r' && c != '\n'; pos++)
+			sb.append((char) c);
+
+		return sb.toString();
+	}
+
+	private static int parseInt(ByteBuffer buf, int pos, int end) {
+		while (pos < end && buf.get(pos) == ' ')
+			pos++;
+
+		int val = 0;
+		int start = pos;
+		for (; pos < end; pos++) {
+			int c = buf.get(pos);
+			if (c < '0' || c > '9')
+				break;
+			val = val * 10 + (c - '0');
+		}
+		return pos > start ? val : -1;
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.oscimap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.oscim.core.StringPool;
+import org.oscim.core.Tag;
+
+/**
+ * Variable tags of all tiles, looked up by key and the UTF-8 bytes of the
+ * value so that no String needs to be created when a tag was seen before.
+ * Street names and the like of neighbouring tiles then share one Tag.
+ *
+ * The table is 2-way associative with a fixed size: a new entry replaces
+ * the older one of its set. Lookups do not lock, entries are immutable so
+ * a racing reader sees either the old or the new entry.
+ */
+final class TagTable {
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	// number of sets
+	private final static int SIZE = 1 << 12;
+	// longer values are not worth caching
+	private final static int MAX_LENGTH = 128;
+
+	static final class Entry {
+		final int key;
+		final int hash;
+		final byte[] value;
+		final Tag tag;
+
+		Entry(int key, int hash, byte[] value, Tag tag) {
+			this.key = key;
+			this.hash = hash;
+			this.value = value;
+			this.tag = tag;
+		}
+	}
+
+	private final Entry[] mEntries = new Entry[SIZE * 2];
+
+	/**
+	 * @param key
+	 *            index in Tags.keys
+	 * @param buf
+	 *            buffer with UTF-8 value at pos, len
+	 * @return shared tag
+	 */
+	Tag get(int key, ByteBuffer buf, int pos, int len) {
+		if (len > MAX_LENGTH)
+			return createTag(key, copy(buf, pos, len));
+
+		int h = key;
+		for (int i = 0; i < len; i++)
+			h = 31 * h + buf.get(pos + i);
+		h ^= (h >>> 16);
+
+		int set = (h & (SIZE - 1)) << 1;
+		Entry[] entries = mEntries;
+
+		Entry e = entries[set];
+		if (e != null && matches(e, key, h, buf, pos, len))
+			return e.tag;
+
+		Entry e2 = entries[set + 1];
+		if (e2 != null && matches(e2, key, h, buf, pos, len)) {
+			// move to front
+			entries[set + 1] = e;
+			entries[set] = e2;
+			return e2.tag;
+		}
+
+		byte[] value = copy(buf, pos, len);
+		e2 = new Entry(key, h, value, createTag(key, value));
+
+		entries[set + 1] = e;
+		entries[set] = e2;
+
+		return e2.tag;
+	}
+
+	private static boolean matches(Entry e, int key, int hash,
+			ByteBuffer buf, int pos, int len) {
+
+		if (e.hash != hash || e.key != key || e.value.length != len)
+			return false;
+
+		byte[] value = e.value;
+		for (int i = 0; i < len; i++)
+			if (value[i] != buf.get(pos + i))
+				return false;
+
+		return true;
+	}
+
+	private static byte[] copy(ByteBuffer buf, int pos, int len) {
+		byte[] value = new byte[len];
+		for (int i = 0; i < len; i++)
+			value[i] = buf.get(pos + i);
+		return value;
+	}
+
+	private static Tag createTag(int key, byte[] value) {
+		String k = Tags.keys[key];
+
+		// names are rarely equal, dont intern them. Tag interns the other
+		// keys, Tags.keys are not StringPool instances.
+		if (Tag.TAG_KEY_NAME.equals(k))
+			return new Tag(Tag.TAG_KEY_NAME, new String(value, UTF8), false);
+
+		String v = StringPool.getInstance().intern(value, 0, value.length);
+		return new Tag(k, v, true);
+	}
+}
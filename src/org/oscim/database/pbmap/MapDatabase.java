@@ -14,7 +14,6 @@
  */
 package org.oscim.database.pbmap;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -22,10 +21,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
-import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
@@ -40,6 +36,8 @@ import org.oscim.core.GeometryBuffer.GeometryType;
 import org.oscim.core.MapElement;
 import org.oscim.core.Tag;
 import org.oscim.core.Tile;
+import org.oscim.database.ConnectionPool;
+import org.oscim.database.ConnectionPool.Connection;
 import org.oscim.database.IMapDatabase;
 import org.oscim.database.IMapDatabaseCallback;
 import org.oscim.database.MapInfo;
@@ -47,7 +45,6 @@ import org.oscim.database.MapOptions;
 import org.oscim.layers.tile.MapTile;
 
 import android.os.Environment;
-import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -150,6 +147,9 @@ public class MapDatabase implements IMapDatabase {
 			if (lwHttpSendRequest(tile) && lwHttpReadHeader() > 0) {
 				cacheBegin(tile, f);
 				decode();
+
+				if (tile.canceled)
+					result = QueryResult.FAILED;
 			} else {
 				result = QueryResult.FAILED;
 			}
@@ -167,10 +167,11 @@ public class MapDatabase implements IMapDatabase {
 			result = QueryResult.FAILED;
 		}
 
-		mLastRequest = SystemClock.elapsedRealtime();
-
 		cacheFinish(tile, f, result == QueryResult.SUCCESS);
 
+		// response might not be read completely when failed or canceled
+		releaseConnection(result == QueryResult.SUCCESS && !tile.canceled);
+
 		return result;
 	}
 
@@ -249,22 +250,23 @@ public class MapDatabase implements IMapDatabase {
 	@Override
 	public void close() {
 		mOpenFile = false;
-		mSockAddr = null;
 
-		if (mSocket != null) {
-			try {
-				mSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			mSocket = null;
-		}
+		releaseConnection(false);
 
 		if (USE_CACHE) {
 			cacheDir = null;
 		}
 	}
 
+	/**
+	 * @param reuse
+	 *            false when the connection must be closed
+	 */
+	private void releaseConnection(boolean reuse) {
+		ConnectionPool.getInstance().release(mConnection, reuse);
+		mConnection = null;
+	}
+
 	private static File createDirectory(String pathName) {
 		File file = new File(pathName);
 		if (!file.exists() && !file.mkdirs()) {
@@ -315,6 +317,9 @@ public class MapDatabase implements IMapDatabase {
 		int val;
 
 		while (mBytesProcessed < mContentLenth && (val = decodeVarint32()) > 0) {
+			if (mTile.canceled)
+				return false;
+
 			// read tag and wire type
 			int tag = (val >> 3);
 
@@ -761,6 +766,9 @@ public class MapDatabase implements IMapDatabase {
 			if (max > mContentLenth - mReadPos)
 				max = (int) (mContentLenth - mReadPos);
 
+			if (mTile.canceled)
+				throw new IOException("canceled");
+
 			// read until requested size is available in buffer
 			int len = mInputStream.read(mReadBuffer, mBufferSize, max);
 
@@ -789,10 +797,9 @@ public class MapDatabase implements IMapDatabase {
 
 	@Override
 	public void cancel() {
-		//		if (mRequest != null) {
-		//			mRequest.abort();
-		//			mRequest = null;
-		//		}
+		// MapTile.canceled is set before, which is checked before each
+		// read. A flag of its own would need to be reset for the next
+		// tile and could then lose a cancel that came before the request.
 	}
 
 	private int decodeVarint32() throws IOException {
@@ -856,17 +863,13 @@ public class MapDatabase implements IMapDatabase {
 	// ///////////////////////// Lightweight HttpClient //////////////////////
 	// would have written simple tcp server/client for this...
 
-	private int mMaxReq = 0;
-	private Socket mSocket;
+	// connection borrowed from ConnectionPool for the current request
+	private Connection mConnection;
 	private OutputStream mCommandStream;
 	private InputStream mResponseStream;
-	private long mLastRequest = 0;
-	private SocketAddress mSockAddr;
 
 	private final static byte[] RESPONSE_HTTP_OK = "HTTP/1.1 200 OK".getBytes();
 	private final static byte[] RESPONSE_CONTENT_LEN = "Content-Length: ".getBytes();
-	private final static int RESPONSE_EXPECTED_LIVES = 100;
-	private final static int RESPONSE_EXPECTED_TIMEOUT = 10000;
 
 	private byte[] REQUEST_GET_START;// = "GET /osmstache/test/".getBytes();
 	private byte[] REQUEST_GET_END;
@@ -948,37 +951,12 @@ public class MapDatabase implements IMapDatabase {
 	}
 
 	private boolean lwHttpSendRequest(Tile tile) throws IOException {
-		if (mSockAddr == null) {
-			mSockAddr = new InetSocketAddress(mHost, mPort);
-		}
-
-		if (mSocket != null && ((mMaxReq-- <= 0)
-				|| (SystemClock.elapsedRealtime() - mLastRequest
-				> RESPONSE_EXPECTED_TIMEOUT))) {
-
-			try {
-				mSocket.close();
-			} catch (IOException e) {
-
-			}
-
-			// Log.d(TAG, "not alive  - recreate connection " + mMaxReq);
-			mSocket = null;
+		if (mConnection != null) {
+			// previous response was not finished
+			releaseConnection(false);
 		}
 
-		if (mSocket == null) {
-			lwHttpConnect();
-			// we know our server
-			mMaxReq = RESPONSE_EXPECTED_LIVES;
-			// Log.d(TAG, "create connection");
-		} else {
-			// should not be needed
-			int avail = mResponseStream.available();
-			if (avail > 0) {
-				Log.d(TAG, "Consume left-over bytes: " + avail);
-				mResponseStream.read(mReadBuffer, 0, avail);
-			}
-		}
+		lwHttpConnect();
 
 		byte[] request = mRequestBuffer;
 		int pos = REQUEST_GET_START.length;
@@ -1006,6 +984,7 @@ public class MapDatabase implements IMapDatabase {
 			Log.d(TAG, "retry - recreate connection");
 		}
 
+		releaseConnection(false);
 		lwHttpConnect();
 
 		mCommandStream.write(request, 0, len);
@@ -1015,19 +994,19 @@ public class MapDatabase implements IMapDatabase {
 	}
 
 	private boolean lwHttpConnect() throws IOException {
-		//		if (mRequestBuffer == null) {
-		//			mRequestBuffer = new byte[1024];
-		//			System.arraycopy(REQUEST_GET_START,
-		//					0, mRequestBuffer, 0,
-		//					REQUEST_GET_START.length);
-		//		}
-
-		mSocket = new Socket();
-		mSocket.connect(mSockAddr, 30000);
-		mSocket.setTcpNoDelay(true);
-		// mCmdBuffer = new PrintStream(mSocket.getOutputStream());
-		mCommandStream = new BufferedOutputStream(mSocket.getOutputStream());
-		mResponseStream = mSocket.getInputStream();
+		ConnectionPool pool = ConnectionPool.getInstance();
+
+		while (true) {
+			mConnection = pool.borrow(mHost, mPort);
+			if (mConnection.addRequests(1))
+				break;
+
+			// connection has served too many requests
+			pool.release(mConnection, false);
+		}
+
+		mCommandStream = mConnection.getOutputStream();
+		mResponseStream = mConnection.getInputStream();
 		return true;
 	}
 
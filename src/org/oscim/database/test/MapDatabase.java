@@ -192,6 +192,7 @@ public class MapDatabase implements IMapDatabase {
 
 	@Override
 	public void cancel() {
+		// nothing to cancel, tiles are created immediately
 	}
 
 }
@@ -35,7 +35,9 @@ public class BitmapTileLayer extends TileLayer<TileLoader> {
 	final TileSource mTileSource;
 
 	public BitmapTileLayer(MapView mapView, TileSource tileSource) {
-		super(mapView, tileSource.getZoomLevelMax());
+		// do not send more concurrent requests than the source allows
+		super(mapView, tileSource.getZoomLevelMax(),
+				tileSource.getParallelRequestsLimit());
 		mTileSource = tileSource;
 	}
 
@@ -46,6 +48,10 @@ public class BitmapTileLayer extends TileLayer<TileLoader> {
 			@Override
 			protected boolean executeJob(MapTile tile) {
 				URL url;
+
+				if (tile.canceled)
+					return false;
+
 				try {
 					url = mTileSource.getTileUrl(tile);
 					URLConnection urlConnection = getURLConnection(url);
@@ -62,7 +68,7 @@ public class BitmapTileLayer extends TileLayer<TileLoader> {
 					e.printStackTrace();
 					return false;
 				}
-				return false;
+				return true;
 			}
 
 			@Override
@@ -20,69 +20,267 @@ import static org.oscim.layers.tile.MapTile.STATE_NONE;
 
 /**
  * A JobQueue keeps the list of pending jobs for a MapView and prioritizes them.
+ * Jobs are kept in a binary min-heap on MapTile.distance. Each queued tile
+ * knows its position in the heap (MapTile.queueIndex) so that it can be
+ * updated or removed in O(log n).
  */
 public class JobQueue {
 
-	private int mCurrentJob = 0;
-	private MapTile[] mJobs;
+	private MapTile[] mHeap = new MapTile[64];
+	private int mSize;
+
+	// marks tiles passed in the current setJobs() call
+	private int mSerial;
 
 	/**
+	 * Replace the set of pending jobs by 'tiles'. Tiles that are already
+	 * queued keep their place and are re-sorted by their new distance,
+	 * queued tiles not contained in 'tiles' are removed and reset to
+	 * STATE_NONE. Tiles currently processed by a TileLoader are skipped.
+	 *
 	 * @param tiles
-	 *            the jobs to be added to this queue.
+	 *            the jobs to be added to this queue, may contain duplicates.
+	 * @param cnt
+	 *            number of jobs in 'tiles'
+	 * @return number of added jobs
+	 */
+	public synchronized int setJobs(MapTile[] tiles, int cnt) {
+		int serial = ++mSerial;
+		int added = 0;
+		long now = System.nanoTime();
+
+		ensureCapacity(mSize + cnt);
+
+		MapTile[] heap = mHeap;
+		int size = mSize;
+
+		for (int i = 0; i < cnt; i++) {
+			MapTile t = tiles[i];
+
+			if (t.queueIndex < 0) {
+				// dont add tiles that are loaded or being loaded
+				if (t.state != STATE_NONE)
+					continue;
+
+				t.state = STATE_LOADING;
+				t.timeQueued = now;
+				t.queueIndex = size;
+				heap[size++] = t;
+				added++;
+			}
+			t.queueMark = serial;
+		}
+
+		// remove jobs that are not needed anymore
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			MapTile t = heap[i];
+			if (t.queueMark == serial) {
+				t.queueIndex = n;
+				heap[n++] = t;
+			} else {
+				t.queueIndex = -1;
+				t.state = STATE_NONE;
+			}
+		}
+		for (int i = n; i < size; i++)
+			heap[i] = null;
+
+		mSize = n;
+
+		// all distances might have changed: rebuild the heap
+		for (int i = (n >> 1) - 1; i >= 0; i--)
+			siftDown(i);
+
+		return added;
+	}
+
+	/**
+	 * Add a single job or update its position when already queued.
+	 *
+	 * @param t
+	 *            the tile to be loaded
+	 * @return false if the tile is already loaded or being loaded.
 	 */
-	public synchronized void setJobs(MapTile[] tiles) {
-		for (MapTile t : tiles)
-			t.state = STATE_LOADING;
+	public synchronized boolean add(MapTile t) {
+		if (t.queueIndex >= 0) {
+			update(t);
+			return true;
+		}
+		if (t.state != STATE_NONE)
+			return false;
+
+		ensureCapacity(mSize + 1);
+
+		t.state = STATE_LOADING;
+		t.timeQueued = System.nanoTime();
+		t.queueIndex = mSize;
+		mHeap[mSize++] = t;
+		siftUp(t.queueIndex);
+
+		return true;
+	}
+
+	/**
+	 * Put a tile taken by poll() back into the queue, e.g. when a
+	 * TileLoader needs the tile to be fetched again.
+	 *
+	 * @return false if the tile is no longer loading or was canceled.
+	 */
+	public synchronized boolean requeue(MapTile t) {
+		if (t.state != STATE_LOADING || t.canceled || t.queueIndex >= 0)
+			return false;
+
+		ensureCapacity(mSize + 1);
+
+		t.queueIndex = mSize;
+		mHeap[mSize++] = t;
+		siftUp(t.queueIndex);
+
+		return true;
+	}
+
+	/**
+	 * Restore heap order after MapTile.distance of a queued tile changed.
+	 */
+	public synchronized void update(MapTile t) {
+		int i = t.queueIndex;
+		if (i < 0)
+			return;
 
-		mJobs = tiles;
-		mCurrentJob = 0;
+		siftUp(i);
+		siftDown(t.queueIndex);
+	}
+
+	/**
+	 * Remove a pending job and reset the tile to STATE_NONE.
+	 *
+	 * @return true if the tile was queued, false if it is not
+	 *         pending (e.g. currently processed by a TileLoader).
+	 */
+	public synchronized boolean remove(MapTile t) {
+		int i = t.queueIndex;
+		if (i < 0)
+			return false;
+
+		removeAt(i);
+		t.state = STATE_NONE;
+
+		return true;
 	}
 
 	/**
 	 * Removes all jobs from this queue.
 	 */
 	public synchronized void clear() {
-		if (mJobs == null) {
-			mCurrentJob = 0;
-			return;
-		}
-		MapTile[] tiles = mJobs;
+		MapTile[] heap = mHeap;
 
-		for (int i = mCurrentJob, n = mJobs.length; i < n; i++) {
-			tiles[i].state = STATE_NONE;
-			tiles[i] = null;
+		for (int i = 0; i < mSize; i++) {
+			heap[i].state = STATE_NONE;
+			heap[i].queueIndex = -1;
+			heap[i] = null;
 		}
-		mCurrentJob = 0;
-		mJobs = null;
+		mSize = 0;
 	}
 
 	/**
 	 * @return true if this queue contains no jobs, false otherwise.
 	 */
 	public synchronized boolean isEmpty() {
-		return (mJobs == null);
+		return mSize == 0;
+	}
+
+	/**
+	 * @return number of pending jobs.
+	 */
+	public synchronized int size() {
+		return mSize;
 	}
 
 	/**
 	 * @return the most important job from this queue or null, if empty.
 	 */
 	public synchronized MapTile poll() {
-		if (mJobs == null)
+		if (mSize == 0)
 			return null;
 
-		if (mCurrentJob == 0) {
-			int len = mJobs.length;
-			if (len > 1)
-				TileDistanceSort.sort(mJobs, 0, len);
+		MapTile t = mHeap[0];
+		removeAt(0);
+
+		return t;
+	}
+
+	private void removeAt(int i) {
+		MapTile[] heap = mHeap;
+		MapTile t = heap[i];
+		t.queueIndex = -1;
+
+		int last = --mSize;
+		if (i != last) {
+			MapTile m = heap[last];
+			heap[i] = m;
+			m.queueIndex = i;
+			heap[last] = null;
+
+			siftDown(i);
+			if (heap[i] == m)
+				siftUp(i);
+		} else {
+			heap[last] = null;
 		}
+	}
 
-		MapTile t = mJobs[mCurrentJob];
-		mJobs[mCurrentJob] = null;
+	private void siftUp(int i) {
+		MapTile[] heap = mHeap;
+		MapTile t = heap[i];
+		float d = t.distance;
 
-		if (++mCurrentJob == mJobs.length)
-			mJobs = null;
+		while (i > 0) {
+			int parent = (i - 1) >> 1;
+			MapTile p = heap[parent];
+			if (p.distance <= d)
+				break;
 
-		return t;
+			heap[i] = p;
+			p.queueIndex = i;
+			i = parent;
+		}
+		heap[i] = t;
+		t.queueIndex = i;
+	}
+
+	private void siftDown(int i) {
+		MapTile[] heap = mHeap;
+		int size = mSize;
+		MapTile t = heap[i];
+		float d = t.distance;
+		int half = size >> 1;
+
+		while (i < half) {
+			int child = (i << 1) + 1;
+			MapTile c = heap[child];
+			int right = child + 1;
+
+			if (right < size && heap[right].distance < c.distance)
+				c = heap[child = right];
+
+			if (d <= c.distance)
+				break;
+
+			heap[i] = c;
+			c.queueIndex = i;
+			i = child;
+		}
+		heap[i] = t;
+		t.queueIndex = i;
+	}
+
+	private void ensureCapacity(int size) {
+		if (size <= mHeap.length)
+			return;
 
+		MapTile[] tmp = new MapTile[Math.max(size, mHeap.length * 2)];
+		System.arraycopy(mHeap, 0, tmp, 0, mSize);
+		mHeap = tmp;
 	}
 }
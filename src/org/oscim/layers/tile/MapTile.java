@@ -17,7 +17,6 @@ package org.oscim.layers.tile;
 import org.oscim.core.Tile;
 import org.oscim.renderer.layer.Layers;
 import org.oscim.renderer.layer.TextItem;
-import org.oscim.utils.quadtree.QuadTree;
 
 /**
  * Extends Tile class to hold state and data for concurrent use in
@@ -51,6 +50,13 @@ public final class MapTile extends Tile {
 	 */
 	public final static int STATE_ERROR = 1 << 3;
 
+	/**
+	 * STATE_CANCEL: loading was canceled while the tile belongs to
+	 * TileLoader thread. TileManager resets the tile to STATE_NONE
+	 * when TileLoader passes it back.
+	 */
+	public final static int STATE_CANCEL = 1 << 4;
+
 	/**
 	 * absolute tile coordinates: tileX,Y / Math.pow(2, zoomLevel)
 	 */
@@ -65,21 +71,58 @@ public final class MapTile extends Tile {
 	 */
 	public float distance;
 
+	/**
+	 * Cancellation token, set by TileManager. TileLoader and IMapDatabase
+	 * should check it while loading and stop as soon as possible.
+	 */
+	public volatile boolean canceled;
+
+	/**
+	 * Position in JobQueue heap, -1 when not queued.
+	 * Only modified while holding the JobQueue lock.
+	 */
+	int queueIndex = -1;
+
+	/** used by JobQueue to find jobs that were not passed again */
+	int queueMark;
+
+	/** used by TileManager to add a visible tile only once per update */
+	int scanMark;
+
+	/**
+	 * System.nanoTime() when the tile was added to JobQueue (reset
+	 * when first drawn) and when it got STATE_NEW_DATA. Used for
+	 * TileStats.
+	 */
+	long timeQueued;
+	long timeLoaded;
+	// when passed to IAsyncMapDatabase.fetchAsync()
+	long timeFetch;
+
 	/**
 	 * Tile data set by TileLoader.
 	 */
 	public TextItem labels;
 	public Layers layers;
 
+	/**
+	 * Estimated bytes of tile data held in heap and in GL buffers,
+	 * updated by updateMemSize(). Used by TileManager to limit cache
+	 * memory.
+	 */
+	public int heapSize;
+	public int bufferSize;
+
 	/**
 	 * Tile is in view region. Set by GLRenderer.
 	 */
 	public boolean isVisible;
 
 	/**
-	 * Pointer to access relatives in QuadTree
+	 * Node in TileIndex to access relatives, -1 when not indexed.
 	 */
-	public QuadTree<MapTile> rel;
+	int node = -1;
+	TileIndex index;
 
 	/** to avoid drawing a tile twice per frame
 	 * FIXME what if multiple layers use the same tile? */
@@ -124,20 +167,20 @@ public final class MapTile extends Tile {
 			return;
 
 		// lock all tiles that could serve as proxy
-		MapTile p = rel.parent.item;
+		MapTile p = getParent();
 		if (p != null && (p.state != 0)) {
 			proxies |= PROXY_PARENT;
 			p.refs++;
 		}
 
-		p = rel.parent.parent.item;
+		p = getGrandParent();
 		if (p != null && (p.state != 0)) {
 			proxies |= PROXY_GRAMPA;
 			p.refs++;
 		}
 
 		for (int j = 0; j < 4; j++) {
-			if ((p = rel.get(j)) == null || p.state == 0)
+			if ((p = getChild(j)) == null || p.state == 0)
 				continue;
 
 			proxies |= (1 << j);
@@ -150,23 +193,76 @@ public final class MapTile extends Tile {
 			return;
 
 		if ((proxies & PROXY_PARENT) != 0)
-			rel.parent.item.refs--;
+			getParent().refs--;
 
 		if ((proxies & PROXY_GRAMPA) != 0)
-			rel.parent.parent.item.refs--;
+			getGrandParent().refs--;
 
 		for (int i = 0; i < 4; i++) {
 			if ((proxies & (1 << i)) != 0)
-				rel.get(i).refs--;
+				getChild(i).refs--;
 		}
 		proxies = 0;
 	}
 
+	/**
+	 * @return parent tile or null when not in index
+	 */
+	public MapTile getParent() {
+		return index.getParent(node);
+	}
+
+	public MapTile getGrandParent() {
+		return index.getGrandParent(node);
+	}
+
+	/**
+	 * @param i
+	 *            child id: (x & 1) | (y & 1) << 1
+	 * @return child tile or null when not in index
+	 */
+	public MapTile getChild(int i) {
+		return index.getChild(node, i);
+	}
+
 	public void addLabel(TextItem t) {
 		t.next = labels;
 		labels = t;
 	}
 
+	// rough size of a TextItem and its String
+	private final static int TEXT_ITEM_BYTES = 64;
+
+	/**
+	 * Measure memory used by layers and labels. Called by
+	 * TileManager.updateMemSize() which keeps the total of all tiles.
+	 */
+	void updateMemSize() {
+		int heap = 0;
+		int buffer = 0;
+
+		if (layers != null) {
+			heap = layers.getHeapSize();
+			buffer = layers.getBufferSize();
+		}
+
+		for (TextItem t = labels; t != null; t = t.next) {
+			heap += TEXT_ITEM_BYTES;
+			if (t.string != null)
+				heap += t.string.length() * 2;
+		}
+
+		heapSize = heap;
+		bufferSize = buffer;
+	}
+
+	/**
+	 * @return estimated bytes used by this tile in heap and GL buffers
+	 */
+	public int getMemSize() {
+		return heapSize + bufferSize;
+	}
+
 	public void clearState() {
 		state = STATE_NONE;
 	}
@@ -18,13 +18,16 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Map;
+import java.util.TreeMap;
 
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.oscim.cache.CompiledTileCache;
 import org.oscim.core.GeoPoint;
 import org.oscim.core.MapPosition;
 import org.oscim.database.IMapDatabase;
 import org.oscim.database.IMapDatabase.OpenResult;
+import org.oscim.database.IStagedMapDatabase;
 import org.oscim.database.MapDatabaseFactory;
 import org.oscim.database.MapDatabases;
 import org.oscim.database.MapInfo;
@@ -47,6 +50,10 @@ public class MapTileLayer extends TileLayer<MapTileLoader> {
 		super(mapView);
 	}
 
+	public MapTileLayer(MapView mapView, int numLoaders) {
+		super(mapView, MAX_ZOOMLEVEL, numLoaders);
+	}
+
 	@Override
 	protected MapTileLoader createLoader(JobQueue q, TileManager tm) {
 		return new MapTileLoader(q, tm);
@@ -55,6 +62,40 @@ public class MapTileLayer extends TileLayer<MapTileLoader> {
 	private MapOptions mMapOptions;
 	private IMapDatabase mMapDatabase;
 	private String mRenderTheme;
+	private int mRenderThemeHash;
+
+	private CompiledTileCache mTileCache;
+
+	/**
+	 * Set a cache for compiled tiles. Tiles found in the cache are
+	 * loaded without querying the MapDatabase and RenderTheme.
+	 *
+	 * @param cache
+	 *            the cache or null to disable it.
+	 */
+	public void setTileCache(CompiledTileCache cache) {
+		pauseLoaders(true);
+
+		mTileCache = cache;
+		updateTileCacheKey();
+
+		for (MapTileLoader g : mTileLoader)
+			g.setTileCache(cache);
+
+		for (TileFetcher f : mTileFetcher)
+			f.setTileCache(cache);
+
+		resumeLoaders();
+	}
+
+	// entries are specific for data source and theme
+	private void updateTileCacheKey() {
+		if (mTileCache == null || mMapOptions == null || mRenderTheme == null)
+			return;
+
+		String source = mMapOptions.db.name() + new TreeMap<String, String>(mMapOptions);
+		mTileCache.setKey(source, mRenderThemeHash);
+	}
 
 	/**
 	 * Sets the MapDatabase for this MapView.
@@ -72,6 +113,7 @@ public class MapTileLayer extends TileLayer<MapTileLoader> {
 		pauseLoaders(true);
 
 		mJobQueue.clear();
+		mDataQueue.clear();
 		mMapOptions = options;
 
 		mMapDatabase = null;
@@ -93,6 +135,44 @@ public class MapTileLayer extends TileLayer<MapTileLoader> {
 				mMapDatabase = mapDatabase;
 		}
 
+		// separate network I/O from decoding when supported
+		boolean staged = (mMapDatabase instanceof IStagedMapDatabase);
+
+		// do not send more concurrent requests than the source allows
+		int maxFetcher = 0;
+		if (staged) {
+			maxFetcher = Math.min(mNumTileLoader, Math.max(1,
+					((IStagedMapDatabase) mMapDatabase).getParallelRequestsLimit()));
+
+			int num = mTileFetcher.size();
+			if (num < maxFetcher) {
+				startFetchers(maxFetcher - num);
+				for (int i = num; i < maxFetcher; i++)
+					mTileFetcher.get(i).setTileCache(mTileCache);
+			}
+		}
+
+		int numFetcher = 0;
+		for (TileFetcher f : mTileFetcher) {
+			IStagedMapDatabase db = null;
+			// one async fetcher keeps enough tiles in flight
+			if (numFetcher < maxFetcher
+					&& !(numFetcher > 0 && mTileFetcher.get(0).isAsync())) {
+				IMapDatabase mapDatabase = MapDatabaseFactory
+						.createMapDatabase(options.db);
+
+				OpenResult result = mapDatabase.open(options);
+				if (result == OpenResult.SUCCESS) {
+					db = (IStagedMapDatabase) mapDatabase;
+					numFetcher++;
+				} else {
+					Log.d(TAG, "failed open db: " + result.getErrorMessage());
+				}
+			}
+			f.setMapDatabase(db);
+		}
+		setStaged(numFetcher > 0);
+
 		if (options.db == MapDatabases.OSCIMAP_READER ||
 				options.db == MapDatabases.MAP_READER ||
 				options.db == MapDatabases.TEST_READER)
@@ -100,6 +180,8 @@ public class MapTileLayer extends TileLayer<MapTileLoader> {
 		else
 			MapView.enableClosePolygons = false;
 
+		updateTileCacheKey();
+
 		clearMap();
 
 		resumeLoaders();
@@ -162,6 +244,7 @@ public class MapTileLayer extends TileLayer<MapTileLoader> {
 		boolean ret = setRenderTheme((Theme) internalRenderTheme);
 		if (ret) {
 			mRenderTheme = internalRenderTheme.name();
+			updateTileCacheKey();
 		}
 
 		clearMap();
@@ -188,6 +271,7 @@ public class MapTileLayer extends TileLayer<MapTileLoader> {
 		boolean ret = setRenderTheme(new ExternalRenderTheme(renderThemePath));
 		if (ret) {
 			mRenderTheme = renderThemePath;
+			updateTileCacheKey();
 		}
 
 		clearMap();
@@ -202,6 +286,7 @@ public class MapTileLayer extends TileLayer<MapTileLoader> {
 			inputStream = theme.getRenderThemeAsStream();
 			IRenderTheme t = RenderThemeHandler.getRenderTheme(inputStream);
 			t.scaleTextSize(1 + (MapView.dpi / 240 - 1) * 0.5f);
+			mRenderThemeHash = t.getThemeHash();
 
 			// FIXME !!!
 			GLRenderer.setRenderTheme(t);
@@ -14,26 +14,31 @@
  */
 package org.oscim.layers.tile;
 
-import static org.oscim.layers.tile.MapTile.STATE_NONE;
-
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import org.oscim.cache.CompiledTileCache;
 import org.oscim.core.GeometryBuffer.GeometryType;
 import org.oscim.core.MapElement;
 import org.oscim.core.MercatorProjection;
 import org.oscim.core.Tag;
+import org.oscim.core.TagIndex;
 import org.oscim.core.Tile;
 import org.oscim.database.IMapDatabase;
 import org.oscim.database.IMapDatabase.QueryResult;
 import org.oscim.database.IMapDatabaseCallback;
+import org.oscim.database.IStagedMapDatabase;
 import org.oscim.renderer.layer.ExtrusionLayer;
 import org.oscim.renderer.layer.Layers;
+import org.oscim.renderer.layer.LayersCodec;
 import org.oscim.renderer.layer.LineLayer;
 import org.oscim.renderer.layer.LineTexLayer;
 import org.oscim.renderer.layer.PolygonLayer;
 import org.oscim.renderer.layer.TextItem;
 import org.oscim.theme.IRenderCallback;
 import org.oscim.theme.IRenderTheme;
+import org.oscim.theme.TagFilter;
 import org.oscim.theme.renderinstruction.Area;
 import org.oscim.theme.renderinstruction.Circle;
 import org.oscim.theme.renderinstruction.Line;
@@ -104,11 +109,27 @@ public class MapTileLoader extends TileLoader implements IRenderCallback, IMapDa
 
 	private final LineClipper mClipper;
 
+	// second level cache for compiled tiles
+	private CompiledTileCache mTileCache;
+	private LayersCodec mCodec;
+
+	// time spent in theme matching and building layers for current tile
+	private final TileStats mStats;
+	private boolean mTiming;
+	private long mThemeTime;
+	private long mTessTime;
+
 	public void setRenderTheme(IRenderTheme theme) {
 		renderTheme = theme;
 		renderLevels = theme.getLevels();
 	}
 
+	public void setTileCache(CompiledTileCache cache) {
+		mTileCache = cache;
+		if (cache != null && mCodec == null)
+			mCodec = new LayersCodec();
+	}
+
 	public static void setDebugSettings(DebugSettings debugSettings) {
 		debug = debugSettings;
 	}
@@ -118,6 +139,7 @@ public class MapTileLoader extends TileLoader implements IRenderCallback, IMapDa
 	public MapTileLoader(JobQueue jobQueue,	TileManager tileManager) {
 		super(jobQueue, tileManager);
 
+		mStats = tileManager.getStats();
 		mClipper = new LineClipper(0, 0, Tile.SIZE, Tile.SIZE, true);
 
 		MapElement m = mDebugWay = new MapElement();
@@ -128,7 +150,7 @@ public class MapTileLoader extends TileLoader implements IRenderCallback, IMapDa
 		m.addPoint(s, s);
 		m.addPoint(s, 0);
 		m.addPoint(0, 0);
-		m.tags = new Tag[] { new Tag("debug", "box") };
+		m.setTags(new Tag[] { new Tag("debug", "box") });
 		m.type = GeometryType.LINE;
 
 		m = mDebugPoint = new MapElement();
@@ -145,13 +167,68 @@ public class MapTileLoader extends TileLoader implements IRenderCallback, IMapDa
 		mMapDatabase.close();
 	}
 
+	/* (non-Javadoc)
+	 * @see org.oscim.layers.tile.TileLoader#cancel()
+	 */
+	@Override
+	protected void cancel() {
+		IMapDatabase db = mMapDatabase;
+		if (db != null)
+			db.cancel();
+	}
+
 	/* (non-Javadoc)
 	 * @see org.oscim.layers.tile.TileLoader#executeJob(org.oscim.layers.tile.MapTile)
 	 */
 	@Override
 	public boolean executeJob(MapTile mapTile) {
+		return loadTile(mapTile, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.oscim.layers.tile.TileLoader#executeJob(org.oscim.layers.tile.MapTile, java.nio.ByteBuffer)
+	 */
+	@Override
+	protected boolean executeJob(MapTile mapTile, ByteBuffer data) {
+		if (!(mMapDatabase instanceof IStagedMapDatabase))
+			return false;
+
+		return loadTile(mapTile, data);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.oscim.layers.tile.TileLoader#executeCached(org.oscim.layers.tile.MapTile)
+	 */
+	@Override
+	protected boolean executeCached(MapTile mapTile) {
+		if (mTileCache == null || mapTile.canceled || mapTile.layers != null)
+			return false;
+
+		mTile = mapTile;
+		mTile.layers = new Layers();
+
+		long start = System.nanoTime();
+		boolean success = loadCached();
+		if (success) {
+			mStats.addSince(TileStats.STAGE_DECODE, mTile, start);
+		} else {
+			// tile might be fetched again
+			mTile.layers.clear();
+			mTile.layers = null;
+		}
+
+		mTile = null;
+		return success;
+	}
+
+	/**
+	 * @param data
+	 *            when not null decode fetched 'data' instead of querying
+	 *            the database.
+	 */
+	private boolean loadTile(MapTile mapTile, ByteBuffer data) {
 
-		if (mMapDatabase == null)
+		if (mMapDatabase == null || mapTile.canceled)
 			return false;
 
 		mTile = mapTile;
@@ -176,21 +253,48 @@ public class MapTileLoader extends TileLoader implements IRenderCallback, IMapDa
 
 		mTile.layers = new Layers();
 
+		long start = System.nanoTime();
+
+		if (data == null && mTileCache != null && loadCached()) {
+			mStats.addSince(TileStats.STAGE_DECODE, mTile, start);
+			mTile = null;
+			return true;
+		}
+
+		mTiming = mStats.isEnabled();
+		mThemeTime = 0;
+		mTessTime = 0;
+
 		// query database, which calls renderWay and renderPOI
 		// callbacks while processing map tile data.
-		if (mMapDatabase.executeQuery(mTile, this) != QueryResult.SUCCESS) {
+		QueryResult result;
+		if (data != null)
+			result = ((IStagedMapDatabase) mMapDatabase).decode(mTile, data, this);
+		else
+			result = mMapDatabase.executeQuery(mTile, this);
+
+		if (result != QueryResult.SUCCESS || mTile.canceled) {
 
 			//Log.d(TAG, "Failed loading: " + tile);
-			mTile.layers.clear();
-			mTile.layers = null;
-			TextItem.pool.releaseAll(mTile.labels);
-			mTile.labels = null;
-			// FIXME add STATE_FAILED?
-			mTile.state = STATE_NONE;
+			// TileManager clears the tile data
 			mTile = null;
 			return false;
 		}
 
+		if (mTiming) {
+			int z = mTile.zoomLevel;
+			long total = System.nanoTime() - start;
+			mStats.add(TileStats.STAGE_DECODE, z, total - mThemeTime - mTessTime);
+			mStats.add(TileStats.STAGE_THEME, z, mThemeTime);
+			mStats.add(TileStats.STAGE_TESSELLATE, z, mTessTime);
+		}
+
+		if (mTileCache != null) {
+			ByteBuffer buf = mCodec.encode(mTile.layers, mTile.labels, renderTheme);
+			if (buf != null)
+				mTileCache.put(mTile, buf);
+		}
+
 //		if (debug.drawTileFrames) {
 //			// draw tile coordinate
 //			mTagName = new Tag("name", mTile.toString(), false);
@@ -210,6 +314,36 @@ public class MapTileLoader extends TileLoader implements IRenderCallback, IMapDa
 		return true;
 	}
 
+	/**
+	 * Load layers and labels from CompiledTileCache, skipping database and
+	 * theme matching.
+	 *
+	 * @return true when tile was loaded from cache.
+	 */
+	private boolean loadCached() {
+		ByteBuffer buf = mTileCache.get(mTile);
+		if (buf == null)
+			return false;
+
+		boolean success;
+		try {
+			success = mCodec.decode(buf, renderTheme, mTile.layers);
+		} catch (BufferUnderflowException e) {
+			success = false;
+		}
+
+		if (success) {
+			mTile.labels = mCodec.getLabels();
+			return true;
+		}
+
+		Log.d(TAG, "invalid cache entry " + mTile);
+		mTileCache.remove(mTile);
+		mTile.layers.clear();
+		mTile.layers = new Layers();
+		return false;
+	}
+
 	Tag[] mFilterTags = new Tag[1];
 
 	private static int getValidLayer(int layer) {
@@ -248,25 +382,29 @@ public class MapTileLoader extends TileLoader implements IRenderCallback, IMapDa
 
 	private boolean mRenderBuildingModel;
 
-	// Replace tags that should only be matched by key in RenderTheme
-	// to avoid caching RenderInstructions for each way of the same type
-	// only with different name.
+	// Replace ids of tags that should only be matched by key in
+	// RenderTheme to avoid caching RenderInstructions for each way of
+	// the same type only with different name. The tags themselves are
+	// not changed, they might be shared with other elements.
 	// Maybe this should be done within RenderTheme, also allowing
 	// to set these replacement rules in theme file.
-	private boolean filterTags(Tag[] tags) {
+	private boolean filterTags(MapElement element) {
 		mRenderBuildingModel = false;
 
+		Tag[] tags = element.tags;
+		int[] tagIds = element.tagIds;
+
 		for (int i = 0; i < tags.length; i++) {
 			String key = tags[i].key;
 			if (tags[i].key == Tag.TAG_KEY_NAME) {
 				if (tags[i].value != null) {
 					mTagName = tags[i];
-					tags[i] = mTagEmptyName;
+					tagIds[i] = TagIndex.getId(mTagEmptyName);
 				}
 			} else if (tags[i].key == Tag.TAG_KEY_HOUSE_NUMBER) {
 				if (tags[i].value != null) {
 					mTagHouseNr = tags[i];
-					tags[i] = mTagEmptyHouseNr;
+					tagIds[i] = TagIndex.getId(mTagEmptyHouseNr);
 				}
 			} else if (mTile.zoomLevel >= 17 &&
 					// FIXME, allow overlays to intercept
@@ -287,33 +425,51 @@ public class MapTileLoader extends TileLoader implements IRenderCallback, IMapDa
 
 		if (element.type == GeometryType.POINT) {
 			// remove tags that should not be cached in Rendertheme
-			filterTags(element.tags);
+			filterTags(element);
+
+			long t0 = mTiming ? System.nanoTime() : 0;
 
 			// get render instructions
 			//RenderInstruction[] ri = renderTheme.matchNode(element.tags, mTile.zoomLevel);
 			RenderInstruction[] ri = renderTheme.matchElement(element, mTile.zoomLevel);
 
+			long t1 = mTiming ? System.nanoTime() : 0;
+
 			if (ri != null)
 				renderNode(ri);
+
+			if (mTiming) {
+				mThemeTime += t1 - t0;
+				mTessTime += System.nanoTime() - t1;
+			}
 		}
 		else {
 
 			// replace tags that should not be cached in Rendertheme (e.g. name)
-			if (!filterTags(element.tags))
+			if (!filterTags(element))
 				return;
 
 			boolean closed = element.type == GeometryType.POLY;
 
 			mDrawingLayer = getValidLayer(element.layer) * renderLevels;
 
+			long t0 = mTiming ? System.nanoTime() : 0;
+
 			// get render instructions
 //			RenderInstruction[] ri = renderTheme.matchWay(element.tags,
 //					(byte) (mTile.zoomLevel + 0), closed);
 
 			RenderInstruction[] ri = renderTheme.matchElement(element, mTile.zoomLevel);
 
+			long t1 = mTiming ? System.nanoTime() : 0;
+
 			renderWay(ri);
 
+			if (mTiming) {
+				mThemeTime += t1 - t0;
+				mTessTime += System.nanoTime() - t1;
+			}
+
 			if (debug.debugTheme && ri == null)
 				debugUnmatched(closed, element.tags);
 
@@ -323,6 +479,15 @@ public class MapTileLoader extends TileLoader implements IRenderCallback, IMapDa
 		mElement = null;
 	}
 
+	@Override
+	public TagFilter getTagFilter() {
+		// pass unmatched elements for debugUnmatched()
+		if (debug.debugTheme)
+			return null;
+
+		return renderTheme.getTagFilter(mTile.zoomLevel);
+	}
+
 	private void debugUnmatched(boolean closed, Tag[] tags) {
 		Log.d(TAG, "DBG way not matched: " + closed + " "
 				+ Arrays.deepToString(tags));
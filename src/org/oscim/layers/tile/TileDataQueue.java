@@ -0,0 +1,191 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.layers.tile;
+
+import static org.oscim.layers.tile.MapTile.STATE_NONE;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.oscim.utils.PausableThread;
+
+/**
+ * Bounded FIFO to pass fetched tile data from TileFetcher to TileLoader
+ * threads. Producers wait while the queue is full, consumers are woken up
+ * when data was added. The bound is soft: a producer that started fetching
+ * while the queue was not full can always add its tile.
+ */
+public class TileDataQueue {
+
+	private final int mCapacity;
+
+	private MapTile[] mTiles;
+	private ByteBuffer[] mData;
+
+	private int mHead;
+	private int mSize;
+
+	// threads to wake up when data was added / removed
+	private final ArrayList<? extends PausableThread> mConsumers;
+	private final ArrayList<? extends PausableThread> mProducers;
+
+	TileDataQueue(int capacity,
+			ArrayList<? extends PausableThread> producers,
+			ArrayList<? extends PausableThread> consumers) {
+		mCapacity = capacity;
+		mTiles = new MapTile[capacity];
+		mData = new ByteBuffer[capacity];
+		mProducers = producers;
+		mConsumers = consumers;
+	}
+
+	/**
+	 * Add tile data. Should only be called when isFull() returned false
+	 * before fetching.
+	 */
+	void offer(MapTile tile, ByteBuffer data) {
+		synchronized (this) {
+			if (mSize == mTiles.length)
+				grow();
+
+			int i = (mHead + mSize++) % mTiles.length;
+			mTiles[i] = tile;
+			mData[i] = data;
+		}
+		// NB: dont hold the queue lock while waking up threads, they
+		// check hasWork() while holding their own lock.
+		wakeUp(mConsumers);
+	}
+
+	private void grow() {
+		int n = mTiles.length;
+		MapTile[] tiles = new MapTile[n * 2];
+		ByteBuffer[] data = new ByteBuffer[n * 2];
+		for (int i = 0; i < mSize; i++) {
+			tiles[i] = mTiles[(mHead + i) % n];
+			data[i] = mData[(mHead + i) % n];
+		}
+		mTiles = tiles;
+		mData = data;
+		mHead = 0;
+	}
+
+	/**
+	 * Take the next tile, its data can be retrieved by 'data'.
+	 *
+	 * @param data
+	 *            receives the tile data in data[0]
+	 * @return the next tile or null if empty.
+	 */
+	MapTile poll(ByteBuffer[] data) {
+		MapTile tile;
+		boolean wasFull;
+
+		synchronized (this) {
+			if (mSize == 0)
+				return null;
+
+			wasFull = (mSize >= mCapacity);
+
+			tile = mTiles[mHead];
+			data[0] = mData[mHead];
+			mTiles[mHead] = null;
+			mData[mHead] = null;
+			mHead = (mHead + 1) % mTiles.length;
+			mSize--;
+		}
+		if (wasFull)
+			wakeUp(mProducers);
+
+		return tile;
+	}
+
+	/**
+	 * Remove a tile from queue.
+	 *
+	 * @return true if the tile was queued
+	 */
+	synchronized boolean remove(MapTile tile) {
+		int n = mTiles.length;
+		for (int i = 0; i < mSize; i++) {
+			int pos = (mHead + i) % n;
+			if (mTiles[pos] != tile)
+				continue;
+
+			// move following items one forward
+			for (int j = i + 1; j < mSize; j++) {
+				int next = (mHead + j) % n;
+				mTiles[pos] = mTiles[next];
+				mData[pos] = mData[next];
+				pos = next;
+			}
+			mTiles[pos] = null;
+			mData[pos] = null;
+			mSize--;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Remove all items and reset tiles to STATE_NONE.
+	 */
+	void clear() {
+		synchronized (this) {
+			for (int i = 0; i < mSize; i++) {
+				int pos = (mHead + i) % mTiles.length;
+				mTiles[pos].state = STATE_NONE;
+				mTiles[pos].canceled = false;
+				mTiles[pos] = null;
+				mData[pos] = null;
+			}
+			mHead = 0;
+			mSize = 0;
+		}
+		wakeUp(mProducers);
+	}
+
+	/**
+	 * Wake up a producer, e.g. after a job was added to JobQueue again.
+	 */
+	void wakeUpProducer() {
+		wakeUp(mProducers);
+	}
+
+	public synchronized boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	public synchronized boolean isFull() {
+		return mSize >= mCapacity;
+	}
+
+	/**
+	 * @return number of tiles waiting to be decoded.
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	public int capacity() {
+		return mCapacity;
+	}
+
+	private static void wakeUp(ArrayList<? extends PausableThread> threads) {
+		for (int i = 0, n = threads.size(); i < n; i++)
+			if (threads.get(i).wakeUp())
+				break;
+	}
+}
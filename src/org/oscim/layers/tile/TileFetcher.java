@@ -0,0 +1,295 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.layers.tile;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.oscim.cache.CompiledTileCache;
+import org.oscim.database.IAsyncMapDatabase;
+import org.oscim.database.IAsyncMapDatabase.FetchCallback;
+import org.oscim.database.IStagedMapDatabase;
+import org.oscim.utils.PausableThread;
+
+import android.util.Log;
+
+/**
+ * First stage of loading tiles from an IStagedMapDatabase: takes jobs from
+ * JobQueue, fetches the raw tile data and passes it to TileLoader threads
+ * via TileDataQueue. Waits while the TileDataQueue is full.
+ *
+ * When the database supports pipelining several jobs are requested at
+ * once and passed on one by one as their responses arrive.
+ *
+ * With an IAsyncMapDatabase jobs are only submitted here, the responses
+ * are passed on from the database I/O thread. One fetcher can then keep
+ * getMaxPending() tiles in flight.
+ */
+public class TileFetcher extends PausableThread {
+	private final static String TAG = TileFetcher.class.getName();
+	private static int id;
+
+	private final String THREAD_NAME;
+	private final JobQueue mJobQueue;
+	private final TileDataQueue mDataQueue;
+	private final TileManager mTileManager;
+
+	private IStagedMapDatabase mMapDatabase;
+	private CompiledTileCache mTileCache;
+
+	// tile currently fetched
+	private MapTile mTile;
+	private final Object mCancelLock = new Object();
+
+	// jobs requested at once when pipelining
+	private MapTile[] mBatch = new MapTile[1];
+
+	// async mode: max and current number of tiles in flight
+	private int mMaxPending;
+	private final AtomicInteger mPending = new AtomicInteger();
+	// replaced when the database changes to ignore late results
+	private volatile AsyncCallback mCallback;
+
+	TileFetcher(JobQueue jobQueue, TileDataQueue dataQueue, TileManager tileManager) {
+		mJobQueue = jobQueue;
+		mDataQueue = dataQueue;
+		mTileManager = tileManager;
+		THREAD_NAME = "TileFetcher" + (id++);
+	}
+
+	/**
+	 * @param mapDatabase
+	 *            database used for fetching, null disables this fetcher.
+	 *            Must only be set while paused.
+	 */
+	void setMapDatabase(IStagedMapDatabase mapDatabase) {
+		if (mMapDatabase != null)
+			mMapDatabase.close();
+
+		mMapDatabase = mapDatabase;
+
+		mMaxPending = 0;
+		mCallback = null;
+		mPending.set(0);
+
+		if (mapDatabase instanceof IAsyncMapDatabase) {
+			mMaxPending = ((IAsyncMapDatabase) mapDatabase).getMaxPending();
+			if (mMaxPending > 0)
+				mCallback = new AsyncCallback();
+		}
+	}
+
+	/**
+	 * @return true when this fetcher uses IAsyncMapDatabase.fetchAsync()
+	 */
+	boolean isAsync() {
+		return mMaxPending > 0;
+	}
+
+	/**
+	 * Tiles found in 'cache' are passed to TileLoader without data.
+	 */
+	void setTileCache(CompiledTileCache cache) {
+		mTileCache = cache;
+	}
+
+	void cleanup() {
+		if (mMapDatabase != null)
+			mMapDatabase.close();
+	}
+
+	void cancelJob(MapTile tile) {
+		synchronized (mCancelLock) {
+			if (mTile == tile && mMapDatabase != null)
+				mMapDatabase.cancel();
+		}
+	}
+
+	@Override
+	protected void doWork() {
+		if (mDataQueue.isFull())
+			return;
+
+		if (mMaxPending > 0) {
+			submitJobs();
+			return;
+		}
+
+		// dont request more than TileLoaders can take
+		int depth = Math.min(mMapDatabase.getPipelineDepth(),
+				mDataQueue.capacity() - mDataQueue.size());
+
+		if (depth > 1) {
+			fetchBatch(depth);
+			return;
+		}
+
+		MapTile tile = pollJob();
+		if (tile == null)
+			return;
+
+		synchronized (mCancelLock) {
+			mTile = tile;
+		}
+
+		TileStats stats = mTileManager.getStats();
+		ByteBuffer data = null;
+		long start = System.nanoTime();
+		try {
+			if (!tile.canceled)
+				data = mMapDatabase.fetch(tile);
+		} catch (Exception e) {
+			Log.d(TAG, tile + " fetch failed: " + e.getMessage());
+		}
+		if (data != null)
+			stats.addSince(TileStats.STAGE_FETCH, tile, start);
+
+		synchronized (mCancelLock) {
+			mTile = null;
+		}
+
+		// when interrupted the tile is passed back as failed
+		pass(tile, isInterrupted() ? null : data);
+	}
+
+	/**
+	 * @return next job that needs to be fetched. Jobs found in
+	 *         CompiledTileCache are passed on directly.
+	 */
+	private MapTile pollJob() {
+		MapTile tile;
+		while ((tile = mJobQueue.poll()) != null) {
+			mTileManager.getStats().addSince(TileStats.STAGE_QUEUE,
+					tile, tile.timeQueued);
+
+			if (mTileCache == null || !mTileCache.contains(tile))
+				return tile;
+
+			// TileLoader can load it without fetching
+			mDataQueue.offer(tile, null);
+		}
+		return null;
+	}
+
+	private void fetchBatch(int depth) {
+		if (mBatch.length < depth)
+			mBatch = new MapTile[depth];
+
+		MapTile[] batch = mBatch;
+		int cnt = 0;
+		while (cnt < depth && (batch[cnt] = pollJob()) != null)
+			cnt++;
+
+		if (cnt == 0)
+			return;
+
+		TileStats stats = mTileManager.getStats();
+		long start = System.nanoTime();
+
+		mMapDatabase.request(batch, cnt);
+
+		for (int i = 0; i < cnt; i++) {
+			MapTile tile = batch[i];
+			batch[i] = null;
+
+			// when interrupted the remaining tiles are passed back as
+			// failed
+			if (isInterrupted()) {
+				pass(tile, null);
+				continue;
+			}
+
+			synchronized (mCancelLock) {
+				mTile = tile;
+			}
+
+			ByteBuffer data = null;
+			try {
+				data = mMapDatabase.receive(tile);
+			} catch (Exception e) {
+				Log.d(TAG, tile + " receive failed: " + e.getMessage());
+			}
+			if (data != null)
+				stats.addSince(TileStats.STAGE_FETCH, tile, start);
+
+			synchronized (mCancelLock) {
+				mTile = null;
+			}
+
+			pass(tile, data);
+		}
+	}
+
+	private void submitJobs() {
+		IAsyncMapDatabase db = (IAsyncMapDatabase) mMapDatabase;
+		AsyncCallback callback = mCallback;
+
+		while (mPending.get() < mMaxPending && !mDataQueue.isFull()) {
+			MapTile tile = pollJob();
+			if (tile == null)
+				return;
+
+			mPending.incrementAndGet();
+			tile.timeFetch = System.nanoTime();
+			db.fetchAsync(tile, callback);
+		}
+	}
+
+	private final class AsyncCallback implements FetchCallback {
+		@Override
+		public void onFetched(MapTile tile, ByteBuffer data) {
+			if (mCallback != this) {
+				// database was changed meanwhile
+				mTileManager.passTile(tile, false);
+				return;
+			}
+			mPending.decrementAndGet();
+
+			if (data != null)
+				mTileManager.getStats().addSince(TileStats.STAGE_FETCH,
+						tile, tile.timeFetch);
+
+			pass(tile, data);
+
+			// submit next job
+			wakeUp();
+		}
+	}
+
+	private void pass(MapTile tile, ByteBuffer data) {
+		if (data == null || tile.canceled)
+			mTileManager.passTile(tile, false);
+		else
+			mDataQueue.offer(tile, data);
+	}
+
+	@Override
+	protected String getThreadName() {
+		return THREAD_NAME;
+	}
+
+	@Override
+	protected int getThreadPriority() {
+		return (Thread.NORM_PRIORITY + Thread.MIN_PRIORITY) / 2;
+	}
+
+	@Override
+	protected boolean hasWork() {
+		if (mMapDatabase == null || mDataQueue.isFull() || mJobQueue.isEmpty())
+			return false;
+
+		return mMaxPending == 0 || mPending.get() < mMaxPending;
+	}
+}
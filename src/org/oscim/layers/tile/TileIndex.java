@@ -0,0 +1,356 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.layers.tile;
+
+import java.util.Arrays;
+
+/**
+ * Quadtree of MapTiles used by TileManager to find tiles and their
+ * relatives (parent and children used as proxies).
+ *
+ * Nodes are indices into parallel arrays and are reused through a free
+ * list, so adding and removing tiles does not allocate once the arrays
+ * have grown large enough. Nodes are also kept in an open-addressing hash
+ * table with (x, y, z) packed into a long key for lookup without walking
+ * the tree.
+ *
+ * The root node is above zoom-level 0 and holds no tile, tile (0,0,0) is
+ * its only child.
+ *
+ * Modified only by TileManager (main thread). The GL thread may navigate
+ * between relatives of tiles it got from TileManager.getActiveTiles():
+ * the node arrays are replaced together when they grow, so it always sees
+ * arrays of the same size.
+ */
+final class TileIndex {
+	private final static int ROOT = 0;
+	private final static int NONE = -1;
+
+	private final static long EMPTY = -1;
+
+	// key of root node, keys of tiles are offset by one zoom-level
+	private final static long ROOT_KEY = 0;
+
+	static final class Nodes {
+		final int[] parent;
+		final int[] child;
+		final MapTile[] items;
+		final long[] keys;
+		// number of items in the node and its descendants
+		final int[] refs;
+
+		Nodes(int size) {
+			parent = new int[size];
+			child = new int[size * 4];
+			items = new MapTile[size];
+			keys = new long[size];
+			refs = new int[size];
+		}
+
+		Nodes(Nodes n, int size) {
+			parent = Arrays.copyOf(n.parent, size);
+			child = Arrays.copyOf(n.child, size * 4);
+			items = Arrays.copyOf(n.items, size);
+			keys = Arrays.copyOf(n.keys, size);
+			refs = Arrays.copyOf(n.refs, size);
+		}
+	}
+
+	private volatile Nodes mN;
+
+	// first node in free list, linked by Nodes.parent
+	private int mFree = NONE;
+	// number of nodes ever used
+	private int mNodes;
+
+	// hash table: key -> node
+	private long[] mHashKeys;
+	private int[] mHashNodes;
+	private int mHashCnt;
+
+	TileIndex() {
+		int size = 256;
+		mN = new Nodes(size);
+
+		mHashKeys = new long[size * 2];
+		mHashNodes = new int[size * 2];
+		Arrays.fill(mHashKeys, EMPTY);
+
+		// root points to itself as parent
+		int root = allocNode(ROOT, 0, ROOT_KEY);
+		mN.parent[root] = ROOT;
+	}
+
+	private static long key(int x, int y, int z) {
+		return ((long) (z + 1) << 56) | ((long) x << 28) | y;
+	}
+
+	private static boolean checkIndex(int x, int y, int z) {
+		return z >= 0 && z < 28
+				&& x >= 0 && x < 1 << z
+				&& y >= 0 && y < 1 << z;
+	}
+
+	/**
+	 * Create a tile and add it to the index.
+	 *
+	 * @return the new tile or null for invalid coordinates.
+	 */
+	MapTile create(int x, int y, int z) {
+		int node = add(x, y, z);
+		if (node == NONE)
+			return null;
+
+		MapTile t = new MapTile(x, y, (byte) z);
+		t.index = this;
+		t.node = node;
+		mN.items[node] = t;
+		return t;
+	}
+
+	/**
+	 * Remove tile from index.
+	 *
+	 * @return false if the tile was not in the index.
+	 */
+	boolean remove(MapTile t) {
+		int node = t.node;
+		if (node == NONE || t.index != this)
+			return false;
+
+		Nodes n = mN;
+		n.items[node] = null;
+		t.node = NONE;
+
+		for (int cur = node; cur != ROOT;) {
+			int next = n.parent[cur];
+
+			if (--n.refs[cur] == 0) {
+				// unhook from parent and add to free list
+				long key = n.keys[cur];
+				int id = (int) ((key >> 28) & 1) | (int) ((key & 1) << 1);
+				n.child[(next << 2) + id] = NONE;
+
+				hashRemove(key);
+
+				n.parent[cur] = mFree;
+				mFree = cur;
+			}
+			cur = next;
+		}
+		n.refs[ROOT]--;
+
+		return true;
+	}
+
+	/**
+	 * @return the tile at x, y, z or null
+	 */
+	MapTile getTile(int x, int y, int z) {
+		if (!checkIndex(x, y, z))
+			return null;
+
+		int node = hashGet(key(x, y, z));
+		if (node == NONE)
+			return null;
+
+		return mN.items[node];
+	}
+
+	MapTile getParent(int node) {
+		Nodes n = mN;
+		return n.items[n.parent[node]];
+	}
+
+	MapTile getGrandParent(int node) {
+		Nodes n = mN;
+		return n.items[n.parent[n.parent[node]]];
+	}
+
+	/**
+	 * @param i
+	 *            child id: (x & 1) | (y & 1) << 1
+	 */
+	MapTile getChild(int node, int i) {
+		Nodes n = mN;
+		int c = n.child[(node << 2) + i];
+		if (c == NONE)
+			return null;
+
+		return n.items[c];
+	}
+
+	/** add node and its ancestors, increasing their refs */
+	private int add(int x, int y, int z) {
+		if (!checkIndex(x, y, z))
+			return NONE;
+
+		int leaf = hashGet(key(x, y, z));
+		if (leaf != NONE) {
+			Nodes n = mN;
+			for (int cur = leaf; cur != ROOT; cur = n.parent[cur])
+				n.refs[cur]++;
+
+			n.refs[ROOT]++;
+			return leaf;
+		}
+
+		// from root to tile (0,0,0) at level z, id is then 0
+		leaf = ROOT;
+		for (int level = z; level >= 0; level--) {
+			int id = ((x >> level) & 1) | ((y >> level) & 1) << 1;
+
+			mN.refs[leaf]++;
+
+			int cur = mN.child[(leaf << 2) + id];
+			if (cur == NONE) {
+				int zz = z - level;
+				cur = allocNode(leaf, id, key(x >> level, y >> level, zz));
+			}
+			leaf = cur;
+		}
+		mN.refs[leaf]++;
+
+		return leaf;
+	}
+
+	private int allocNode(int parent, int id, long key) {
+		Nodes n = mN;
+		int node;
+		if (mFree != NONE) {
+			node = mFree;
+			mFree = n.parent[node];
+		} else {
+			if (mNodes == n.parent.length) {
+				// publish grown arrays at once
+				n = new Nodes(n, n.parent.length * 2);
+				mN = n;
+			}
+			node = mNodes++;
+		}
+
+		n.parent[node] = parent;
+		n.items[node] = null;
+		n.keys[node] = key;
+		n.refs[node] = 0;
+
+		int c = node << 2;
+		n.child[c++] = NONE;
+		n.child[c++] = NONE;
+		n.child[c++] = NONE;
+		n.child[c] = NONE;
+
+		if (node != ROOT) {
+			n.child[(parent << 2) + id] = node;
+			hashPut(key, node);
+		}
+
+		return node;
+	}
+
+	// ---------------- hash table, linear probing ----------------
+
+	private static int hash(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & mask;
+	}
+
+	private int hashGet(long key) {
+		long[] keys = mHashKeys;
+		int mask = keys.length - 1;
+
+		for (int i = hash(key, mask);; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				return mHashNodes[i];
+			if (keys[i] == EMPTY)
+				return NONE;
+		}
+	}
+
+	private void hashPut(long key, int node) {
+		// keep load factor below 0.5
+		if ((mHashCnt + 1) * 2 > mHashKeys.length)
+			rehash(mHashKeys.length * 2);
+
+		long[] keys = mHashKeys;
+		int mask = keys.length - 1;
+
+		int i = hash(key, mask);
+		while (keys[i] != EMPTY && keys[i] != key)
+			i = (i + 1) & mask;
+
+		if (keys[i] == EMPTY)
+			mHashCnt++;
+
+		keys[i] = key;
+		mHashNodes[i] = node;
+	}
+
+	private void hashRemove(long key) {
+		long[] keys = mHashKeys;
+		int[] nodes = mHashNodes;
+		int mask = keys.length - 1;
+
+		int i = hash(key, mask);
+		while (keys[i] != key) {
+			if (keys[i] == EMPTY)
+				return;
+			i = (i + 1) & mask;
+		}
+		mHashCnt--;
+
+		// shift following entries back, no tombstones needed
+		for (int j = i;;) {
+			j = (j + 1) & mask;
+			if (keys[j] == EMPTY)
+				break;
+
+			int k = hash(keys[j], mask);
+
+			// entry at j stays if its slot k lies cyclically in (i, j]
+			if (i <= j ? (i < k && k <= j) : (i < k || k <= j))
+				continue;
+
+			keys[i] = keys[j];
+			nodes[i] = nodes[j];
+			i = j;
+		}
+		keys[i] = EMPTY;
+	}
+
+	private void rehash(int size) {
+		long[] oldKeys = mHashKeys;
+		int[] oldNodes = mHashNodes;
+
+		long[] keys = new long[size];
+		int[] nodes = new int[size];
+		Arrays.fill(keys, EMPTY);
+		int mask = size - 1;
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == EMPTY)
+				continue;
+
+			int j = hash(oldKeys[i], mask);
+			while (keys[j] != EMPTY)
+				j = (j + 1) & mask;
+
+			keys[j] = oldKeys[i];
+			nodes[j] = oldNodes[i];
+		}
+		mHashKeys = keys;
+		mHashNodes = nodes;
+	}
+}
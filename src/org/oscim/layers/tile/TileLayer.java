@@ -22,7 +22,11 @@ import org.oscim.view.MapView;
 
 public abstract class TileLayer<T extends TileLoader> extends Layer {
 	//private final static String TAG = TileLayer.class.getName();
-	private final static int MAX_ZOOMLEVEL = 17;
+	protected final static int MAX_ZOOMLEVEL = 17;
+
+	// limits for the default number of TileLoader threads
+	private final static int MIN_TILE_LOADER = 2;
+	private final static int MAX_TILE_LOADER = 8;
 
 	private boolean mClearMap = true;
 
@@ -30,16 +34,37 @@ public abstract class TileLayer<T extends TileLoader> extends Layer {
 
 	protected final JobQueue mJobQueue;
 
-	protected final int mNumTileLoader = 4;
+	protected final int mNumTileLoader;
 	protected final ArrayList<T> mTileLoader;
 
+	// optional fetch stage: TileFetchers take jobs from JobQueue and
+	// pass the raw tile data to TileLoaders through mDataQueue.
+	protected final ArrayList<TileFetcher> mTileFetcher;
+	protected final TileDataQueue mDataQueue;
+	private boolean mStaged;
+
 	public TileLayer(MapView mapView) {
 		this(mapView, MAX_ZOOMLEVEL);
 	}
 
 	public TileLayer(MapView mapView, int maxZoom) {
+		this(mapView, maxZoom, getDefaultNumLoaders());
+	}
+
+	/**
+	 * @param mapView
+	 *            the MapView
+	 * @param maxZoom
+	 *            maximum zoom-level of tiles
+	 * @param numLoaders
+	 *            number of TileLoader threads, i.e. the maximum
+	 *            number of tiles loaded concurrently.
+	 */
+	public TileLayer(MapView mapView, int maxZoom, int numLoaders) {
 		super(mapView);
 
+		mNumTileLoader = Math.max(1, numLoaders);
+
 		// TileManager responsible for adding visible tiles
 		// to load queue and managing in-memory tile cache.
 		mTileManager = new TileManager(mapView, this, maxZoom);
@@ -54,6 +79,11 @@ public abstract class TileLayer<T extends TileLoader> extends Layer {
 			tileGenerator.start();
 		}
 
+		mTileFetcher = new ArrayList<TileFetcher>();
+
+		// keep loaders busy while fetchers wait for I/O
+		mDataQueue = new TileDataQueue(mNumTileLoader * 2, mTileFetcher, mTileLoader);
+
 		// RenderLayer is working in GL Thread and actually
 		// drawing loaded tiles to screen.
 		mLayer = new TileRenderLayer(mapView, mTileManager);
@@ -61,10 +91,77 @@ public abstract class TileLayer<T extends TileLoader> extends Layer {
 
 	abstract protected T createLoader(JobQueue q, TileManager tm);
 
+	/**
+	 * Start TileFetcher threads for the fetch stage, e.g. when the first
+	 * data source that supports it is set. Fetchers are only used after
+	 * setStaged(true). They start paused, resumeLoaders() lets them
+	 * work.
+	 *
+	 * @param num
+	 *            number of fetchers, i.e. the maximum number of
+	 *            concurrent I/O requests.
+	 */
+	protected void startFetchers(int num) {
+		for (int i = 0; i < num; i++) {
+			TileFetcher f = new TileFetcher(mJobQueue, mDataQueue, mTileManager);
+			mTileFetcher.add(f);
+			f.pause();
+			f.start();
+		}
+	}
+
+	/**
+	 * Use fetch stage: TileFetchers load the raw data, TileLoaders only
+	 * decode and build tiles. Must be called while loaders are paused.
+	 */
+	protected void setStaged(boolean staged) {
+		mStaged = staged && mTileFetcher.size() > 0;
+
+		for (T loader : mTileLoader)
+			loader.setDataQueue(mStaged ? mDataQueue : null);
+
+		if (!mStaged)
+			mDataQueue.clear();
+	}
+
+	/**
+	 * @return number of tiles waiting to be loaded (or fetched).
+	 */
+	public int getJobQueueSize() {
+		return mJobQueue.size();
+	}
+
+	/**
+	 * @return number of fetched tiles waiting to be decoded.
+	 */
+	public int getDataQueueSize() {
+		return mDataQueue.size();
+	}
+
+	/**
+	 * @return number of TileLoader threads used for local
+	 *         (CPU-bound) sources: one per available processor.
+	 */
+	public static int getDefaultNumLoaders() {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		return Math.max(MIN_TILE_LOADER, Math.min(cpus, MAX_TILE_LOADER));
+	}
+
 	public TileRenderLayer getTileLayer() {
 		return (TileRenderLayer) mLayer;
 	}
 
+	public TileManager getTileManager() {
+		return mTileManager;
+	}
+
+	/**
+	 * @return timings of tile loading stages for this layer
+	 */
+	public TileStats getStats() {
+		return mTileManager.getStats();
+	}
+
 	@Override
 	public void onUpdate(MapPosition mapPosition, boolean changed) {
 
@@ -82,6 +179,18 @@ public abstract class TileLayer<T extends TileLoader> extends Layer {
 
 		mTileManager.destroy();
 
+		for (TileFetcher fetcher : mTileFetcher) {
+			fetcher.pause();
+			fetcher.interrupt();
+			fetcher.cleanup();
+			try {
+				fetcher.join(10000);
+			} catch (InterruptedException e) {
+				// restore the interrupted status
+				Thread.currentThread().interrupt();
+			}
+		}
+
 		for (T tileWorker : mTileLoader) {
 			tileWorker.pause();
 			tileWorker.interrupt();
@@ -108,29 +217,76 @@ public abstract class TileLayer<T extends TileLoader> extends Layer {
 	 * add jobs and remember TileGenerators that stuff needs to be done
 	 *
 	 * @param jobs
-	 *            tile jobs
+	 *            tile jobs, null to clear all pending jobs
+	 * @param cnt
+	 *            number of jobs
 	 */
-	public void setJobs(MapTile[] jobs) {
+	public void setJobs(MapTile[] jobs, int cnt) {
 		if (jobs == null) {
 			mJobQueue.clear();
+			mDataQueue.clear();
 			return;
 		}
-		mJobQueue.setJobs(jobs);
 
-		for (int i = 0; i < mNumTileLoader; i++) {
-			T m = mTileLoader.get(i);
-			synchronized (m) {
-				m.notify();
+		int added = mJobQueue.setJobs(jobs, cnt);
+
+		// only wake up as many idle loaders as there are new jobs,
+		// busy loaders continue with the next job anyway.
+		if (mStaged) {
+			for (int i = 0, n = mTileFetcher.size(); i < n && added > 0; i++) {
+				if (mTileFetcher.get(i).wakeUp())
+					added--;
 			}
+		} else {
+			for (int i = 0; i < mNumTileLoader && added > 0; i++) {
+				if (mTileLoader.get(i).wakeUp())
+					added--;
+			}
+		}
+	}
+
+	/**
+	 * remove a pending job from queue.
+	 *
+	 * @return false if the tile is not queued, i.e. when it is
+	 *         currently processed by a TileLoader.
+	 */
+	public boolean removeJob(MapTile tile) {
+		return mJobQueue.remove(tile);
+	}
+
+	/**
+	 * cancel loading of a tile that is currently processed by a
+	 * TileLoader. The tile must be set to STATE_CANCEL before.
+	 */
+	public void cancelJob(MapTile tile) {
+		// not yet passed to TileLoader
+		if (mDataQueue.remove(tile)) {
+			mTileManager.passTile(tile, false);
+			return;
 		}
+
+		for (int i = 0, n = mTileFetcher.size(); i < n; i++)
+			mTileFetcher.get(i).cancelJob(tile);
+
+		for (int i = 0; i < mNumTileLoader; i++)
+			mTileLoader.get(i).cancelJob(tile);
 	}
 
 	protected void pauseLoaders(boolean wait) {
+		for (TileFetcher fetcher : mTileFetcher) {
+			if (!fetcher.isPausing())
+				fetcher.pause();
+		}
 		for (T loader : mTileLoader) {
 			if (!loader.isPausing())
 				loader.pause();
 		}
 		if (wait) {
+			for (TileFetcher fetcher : mTileFetcher) {
+				if (!fetcher.isPausing())
+					fetcher.awaitPausing();
+			}
 			for (T loader : mTileLoader) {
 				if (!loader.isPausing())
 					loader.awaitPausing();
@@ -139,6 +295,8 @@ public abstract class TileLayer<T extends TileLoader> extends Layer {
 	}
 
 	protected void resumeLoaders() {
+		for (TileFetcher fetcher : mTileFetcher)
+			fetcher.proceed();
 		for (T loader : mTileLoader)
 			loader.proceed();
 	}
@@ -14,6 +14,8 @@
  */
 package org.oscim.layers.tile;
 
+import java.nio.ByteBuffer;
+
 import org.oscim.utils.PausableThread;
 
 public abstract class TileLoader extends PausableThread {
@@ -24,6 +26,15 @@ public abstract class TileLoader extends PausableThread {
 	private final JobQueue mJobQueue;
 	private final TileManager mTileManager;
 
+	// tile currently processed by executeJob()
+	private MapTile mTile;
+	private final Object mCancelLock = new Object();
+
+	// when set, jobs are taken from TileFetcher results instead of
+	// mJobQueue. only modified while paused.
+	private TileDataQueue mDataQueue;
+	private final ByteBuffer[] mData = new ByteBuffer[1];
+
 	public TileLoader(JobQueue jobQueue, TileManager tileManager) {
 		super();
 		mJobQueue = jobQueue;
@@ -40,25 +51,106 @@ public abstract class TileLoader extends PausableThread {
 
 	protected abstract boolean executeJob(MapTile tile);
 
+	/**
+	 * Build tile from data fetched by a TileFetcher. Only called when
+	 * the TileLayer uses a fetch stage.
+	 */
+	protected boolean executeJob(MapTile tile, ByteBuffer data) {
+		return false;
+	}
+
+	/**
+	 * Build tile from a local cache without I/O of the data source. Only
+	 * called when the TileLayer uses a fetch stage and a TileFetcher
+	 * found the tile in cache.
+	 *
+	 * @return false when the tile could not be loaded from cache, it is
+	 *         then passed back to the fetch stage.
+	 */
+	protected boolean executeCached(MapTile tile) {
+		return false;
+	}
+
+	/**
+	 * @param queue
+	 *            take jobs with fetched data from 'queue', or from
+	 *            JobQueue when null.
+	 */
+	void setDataQueue(TileDataQueue queue) {
+		mDataQueue = queue;
+	}
+
+	/**
+	 * Abort loading of the current job. Called from TileManager thread
+	 * while executeJob() is running for a canceled tile. The default
+	 * implementation does nothing, executeJob should check
+	 * MapTile.canceled instead.
+	 */
+	protected void cancel() {
+	}
+
+	/**
+	 * Cancel loading of 'tile' if it is currently processed by this
+	 * TileLoader.
+	 */
+	void cancelJob(MapTile tile) {
+		synchronized (mCancelLock) {
+			if (mTile == tile)
+				cancel();
+		}
+	}
 
 	@Override
 	protected void doWork() {
-		MapTile tile = mJobQueue.poll();
+		MapTile tile;
+		ByteBuffer data = null;
+
+		if (mDataQueue != null) {
+			// data is null for tiles that can be loaded from cache
+			tile = mDataQueue.poll(mData);
+			data = mData[0];
+			mData[0] = null;
+		} else {
+			tile = mJobQueue.poll();
+			if (tile != null)
+				mTileManager.getStats().addSince(TileStats.STAGE_QUEUE,
+						tile, tile.timeQueued);
+		}
 
 		if (tile == null)
 			return;
 
+		synchronized (mCancelLock) {
+			mTile = tile;
+		}
+
+		boolean success = false;
+		boolean cached = (mDataQueue != null && data == null);
 		try {
-			executeJob(tile);
+			if (data != null)
+				success = executeJob(tile, data);
+			else if (cached)
+				success = executeCached(tile);
+			else
+				success = executeJob(tile);
 		} catch (Exception e) {
 			e.printStackTrace();
-			return;
 		}
 
-		if (!isInterrupted()) {
-			// pass tile to main thread
-			mTileManager.passTile(tile);
+		synchronized (mCancelLock) {
+			mTile = null;
+		}
+
+		if (cached && !success && !isInterrupted()
+				&& mJobQueue.requeue(tile)) {
+			// cache entry is gone, dont do network I/O on this thread
+			mDataQueue.wakeUpProducer();
+			return;
 		}
+
+		// pass tile to main thread. when interrupted the tile data may
+		// be incomplete, it is cleared and the tile can be loaded again.
+		mTileManager.passTile(tile, success && !isInterrupted());
 	}
 
 
@@ -74,6 +166,9 @@ public abstract class TileLoader extends PausableThread {
 
 	@Override
 	protected boolean hasWork() {
+		if (mDataQueue != null)
+			return !mDataQueue.isEmpty();
+
 		return !mJobQueue.isEmpty();
 	}
 }
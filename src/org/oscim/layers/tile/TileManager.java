@@ -15,12 +15,15 @@
 
 package org.oscim.layers.tile;
 
+import static org.oscim.layers.tile.MapTile.STATE_CANCEL;
 import static org.oscim.layers.tile.MapTile.STATE_LOADING;
 import static org.oscim.layers.tile.MapTile.STATE_NEW_DATA;
 import static org.oscim.layers.tile.MapTile.STATE_NONE;
+import static org.oscim.layers.tile.MapTile.STATE_READY;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.oscim.core.MapPosition;
 import org.oscim.core.Tile;
@@ -29,8 +32,6 @@ import org.oscim.renderer.GLRenderer;
 import org.oscim.renderer.layer.TextItem;
 import org.oscim.utils.FastMath;
 import org.oscim.utils.ScanBox;
-import org.oscim.utils.quadtree.QuadTree;
-import org.oscim.utils.quadtree.QuadTreeIndex;
 import org.oscim.view.MapView;
 import org.oscim.view.MapViewPosition;
 
@@ -56,6 +57,19 @@ public class TileManager {
 	// cache limit threshold
 	private static final int CACHE_THRESHOLD = 30;
 
+	// default limit for memory used by cached tiles in heap and GL
+	// buffers. the GL buffers of tiles are also limited by
+	// GLRenderer.LIMIT_BUFFERS.
+	private static final int CACHE_LIMIT = 2 * GLRenderer.LIMIT_BUFFERS;
+
+	// number of positions sampled along the path of an animation
+	private static final int PREFETCH_STEPS = 3;
+	// max number of tiles added for prefetching per update
+	private static final int PREFETCH_TILES_MAX = 48;
+	// added to distance of prefetched tiles to load them after
+	// the currently visible tiles
+	private static final float PREFETCH_DISTANCE = 1 << 16;
+
 	private final MapView mMapView;
 	private final MapViewPosition mMapViewPosition;
 
@@ -73,8 +87,19 @@ public class TileManager {
 	// counter for tiles with new data not uploaded to GL
 	private volatile int mTilesForUpload;
 
+	// memory limit and estimated memory used by cached tiles in bytes,
+	// updated by updateMemSize() and when tile data is cleared.
+	private int mCacheLimit = CACHE_LIMIT;
+	private final AtomicInteger mCacheSize = new AtomicInteger();
+	// part of mCacheSize in GL buffers
+	private final AtomicInteger mBufferSize = new AtomicInteger();
+
+	// timings of tile loading stages
+	private final TileStats mStats = new TileStats();
+
 	// new tile jobs for MapWorkers
-	private final ArrayList<MapTile> mJobs;
+	private MapTile[] mJobs;
+	private int mJobCnt;
 
 	// counter to check whether current TileSet has changed
 	private  int mUpdateSerial;
@@ -89,41 +114,27 @@ public class TileManager {
 	/* package */TileSet mNewTiles;
 
 
-	private final QuadTreeIndex<MapTile> mIndex = new QuadTreeIndex<MapTile>(){
+	private final TileIndex mIndex = new TileIndex();
 
-		@Override
-		public MapTile create(int x, int y, int z) {
-			QuadTree<MapTile> t = super.add(x, y, z);
-			t.item = new MapTile(x, y, (byte)z);
-			t.item.rel = t;
-
-			return t.item;
-		}
-
-		@Override
-		public void remove(MapTile t) {
-			if (t.rel == null) {
-				Log.d(TAG, "BUG already removed " + t);
-				return;
-			}
-
-			super.remove(t.rel);
-
-			t.rel.item = null;
-			t.rel = null;
-		}
-	};
+	// marks tiles added to mNewTiles in current update
+	private int mScanSerial;
 
 	private final float[] mBoxCoords = new float[8];
 	private final TileLayer<?> mTileLayer;
 
+	// position where the current animation will end
+	private final MapPosition mAnimEnd = new MapPosition();
+	private final MapPosition mPrefetchPos = new MapPosition();
+	private final float[] mPrefetchBox = new float[8];
+	private int mPrefetchCnt;
+
 
 	public TileManager(MapView mapView, TileLayer<?> tileLayer, int maxZoom) {
 		mMapView = mapView;
 		mTileLayer = tileLayer;
 		mMaxZoom = maxZoom;
 		mMapViewPosition = mapView.getMapViewPosition();
-		mJobs = new ArrayList<MapTile>();
+		mJobs = new MapTile[64];
 		mTiles = new MapTile[CACHE_TILES_MAX];
 
 		mTilesSize = 0;
@@ -146,6 +157,9 @@ public class TileManager {
 		// ... and labeling thread?
 		GLRenderer.drawlock.lock();
 
+		// remove pending jobs, the tiles are cleared below
+		mTileLayer.setJobs(null, 0);
+
 		if (mInitialized) {
 			// pass VBOs and VertexItems back to pools
 			for (int i = 0; i < mTilesSize; i++)
@@ -164,6 +178,8 @@ public class TileManager {
 		Arrays.fill(mTiles, null);
 		mTilesSize = 0;
 		mTilesCount = 0;
+		mCacheSize.set(0);
+		mBufferSize.set(0);
 
 		// clear all references to previous tiles
 		for (TileSet td : mTileSets) {
@@ -193,14 +209,6 @@ public class TileManager {
 	 *            current MapPosition
 	 */
 	public synchronized void update(MapPosition pos) {
-		// clear JobQueue and set tiles to state == NONE.
-		// one could also append new tiles and sort in JobQueue
-		// but this has the nice side-effect that MapWorkers dont
-		// start with old jobs while new jobs are calculated, which
-		// should increase the chance that they are free when new
-		// jobs come in.
-		mTileLayer.setJobs(null);
-
 		// load some tiles more than currently visible (* 0.75)
 		double scale = pos.scale * 0.9f;
 
@@ -211,6 +219,7 @@ public class TileManager {
 		// scan visible tiles. callback function calls 'addTile'
 		// which updates mNewTiles
 		mNewTiles.cnt = 0;
+		mScanSerial++;
 		mScanBox.scan(pos.x, pos.y, scale, tileZoom, mBoxCoords);
 
 		MapTile[] newTiles = mNewTiles.tiles;
@@ -253,27 +262,109 @@ public class TileManager {
 			mMapView.render();
 		}
 
-		/* Add tile jobs to queue */
-		if (mJobs.isEmpty())
-			return;
+		/* Add tiles along the path of a running animation */
+		int visibleJobs = mJobCnt;
+
+		if (mMapViewPosition.getAnimationEnd(mAnimEnd))
+			prefetch(pos, mAnimEnd);
+
+		/* Update tile jobs in queue */
+		int jobCnt = mJobCnt;
+		mJobCnt = 0;
+
+		if (jobCnt > visibleJobs) {
+			// prefetched tiles are loaded after visible tiles. a tile
+			// can be added twice: the distance of visible tiles is
+			// updated afterwards and replaces the prefetch distance.
+			updateTileDistances(mJobs, visibleJobs, jobCnt, pos);
+			for (int i = visibleJobs; i < jobCnt; i++)
+				mJobs[i].distance += PREFETCH_DISTANCE;
+		}
+		updateTileDistances(mJobs, 0, visibleJobs, pos);
+
+		// sets new tiles to state == LOADING and removes
+		// pending jobs that are not required anymore
+		mTileLayer.setJobs(mJobs, jobCnt);
+		Arrays.fill(mJobs, 0, jobCnt, null);
 
-		MapTile[] jobs = new MapTile[mJobs.size()];
-		jobs = mJobs.toArray(jobs);
-		updateTileDistances(jobs, jobs.length, pos);
+		boolean overBudget = getFreeBytes() > 0;
 
-		// sets tiles to state == LOADING
-		mTileLayer.setJobs(jobs);
-		mJobs.clear();
+		if (jobCnt == 0 && !overBudget)
+			return;
 
 		/* limit cache items */
 		int remove = mTilesCount - CACHE_TILES_MAX;
 
 		if (remove > CACHE_THRESHOLD ||
-				mTilesForUpload > MAX_TILES_IN_QUEUE)
+				mTilesForUpload > MAX_TILES_IN_QUEUE ||
+				overBudget)
 
 			limitCache(pos, remove);
 	}
 
+	/**
+	 * Set the limit for memory used by cached tiles. Tiles farthest
+	 * from the current position and using most memory are removed
+	 * first when the limit is exceeded.
+	 *
+	 * @param bytes
+	 *            heap and GL buffer memory for tile data
+	 */
+	public synchronized void setCacheLimit(int bytes) {
+		mCacheLimit = bytes;
+	}
+
+	public int getCacheLimit() {
+		return mCacheLimit;
+	}
+
+	/**
+	 * @return estimated bytes used by cached tiles in heap and GL buffers
+	 */
+	public int getCacheSize() {
+		return mCacheSize.get();
+	}
+
+	/**
+	 * Measure memory used by the data of 'tile' and update the cache
+	 * size. Must be called by the thread owning the tile data, i.e.
+	 * TileLoader or GL Thread.
+	 */
+	public void updateMemSize(MapTile tile) {
+		int heap = tile.heapSize;
+		int buffer = tile.bufferSize;
+
+		tile.updateMemSize();
+
+		buffer = tile.bufferSize - buffer;
+		mBufferSize.addAndGet(buffer);
+		mCacheSize.addAndGet(tile.heapSize - heap + buffer);
+	}
+
+	/**
+	 * @return bytes to free to get below 80% of the cache limit and of
+	 *         the GL buffer limit, 0 when none is exceeded.
+	 */
+	private int getFreeBytes() {
+		int freeBytes = 0;
+
+		int cacheSize = mCacheSize.get();
+		if (cacheSize > mCacheLimit)
+			freeBytes = cacheSize - (mCacheLimit - mCacheLimit / 5);
+
+		int bufferSize = mBufferSize.get();
+		int bufferLimit = GLRenderer.LIMIT_BUFFERS;
+		if (bufferSize > bufferLimit)
+			freeBytes = Math.max(freeBytes,
+					bufferSize - (bufferLimit - bufferLimit / 5));
+
+		return freeBytes;
+	}
+
+	public TileStats getStats() {
+		return mStats;
+	}
+
 
 	/**
 	 * Retrive a TileSet of current tiles.
@@ -335,51 +426,98 @@ public class TileManager {
 
 		if (tile == null) {
 			tile = mIndex.create(x, y, zoomLevel);
-			mJobs.add(tile);
 			addToCache(tile);
-		} else if (!tile.isActive()) {
-			mJobs.add(tile);
 		}
+		addJob(tile);
 
 		if (zoomLevel > 2) {
-			boolean add = false;
-
 			// prefetch parent
-			MapTile p = tile.rel.parent.item;
+			MapTile p = tile.getParent();
 
 			if (p == null) {
 				p = mIndex.create(x >> 1, y >> 1, zoomLevel - 1);
-
 				addToCache(p);
-				add = true;
-			}
-
-			if (add || !p.isActive()) {
-				// hack to not add tile twice
-				p.state = STATE_LOADING;
-				mJobs.add(p);
 			}
+			addJob(p);
 
 			if (zoomLevel > 3) {
 				// prefetch grand  parent
-				p = tile.rel.parent.parent.item;
-				add = false;
+				p = tile.getGrandParent();
 				if (p == null) {
 					p = mIndex.create(x >> 2, y >> 2, zoomLevel - 2);
 					addToCache(p);
-					add = true;
-				}
-
-				if (add || !p.isActive()) {
-					p.state = STATE_LOADING;
-					mJobs.add(p);
 				}
+				addJob(p);
 			}
 		}
 
 		return tile;
 	}
 
+	/**
+	 * Add tiles to jobs that will become visible while the map
+	 * animates from 'pos' to 'end'. Pending jobs for these tiles are
+	 * removed by the next update when the animation was canceled.
+	 */
+	private void prefetch(MapPosition pos, MapPosition end) {
+		MapPosition p = mPrefetchPos;
+
+		double dx = end.x - pos.x;
+		// take the shorter way around the date line
+		if (dx > 0.5)
+			dx -= 1;
+		else if (dx < -0.5)
+			dx += 1;
+
+		double dy = end.y - pos.y;
+		double ds = end.scale - pos.scale;
+
+		mPrefetchCnt = 0;
+
+		// start with the end position
+		for (int i = PREFETCH_STEPS; i > 0; i--) {
+			double f = (double) i / PREFETCH_STEPS;
+
+			p.x = pos.x + dx * f;
+			p.y = pos.y + dy * f;
+			p.scale = pos.scale + ds * f;
+
+			if (p.x < 0)
+				p.x += 1;
+			else if (p.x > 1)
+				p.x -= 1;
+
+			int zoom = FastMath.log2((int) p.scale);
+			zoom = FastMath.clamp(zoom, MIN_ZOOMLEVEL, mMaxZoom);
+
+			// box coordinates are modified by scan
+			mMapViewPosition.getMapViewProjection(mPrefetchBox);
+
+			// same margin as for visible tiles in update()
+			mPrefetchScanBox.scan(p.x, p.y, p.scale * 0.9f, zoom, mPrefetchBox);
+
+			if (mPrefetchCnt >= PREFETCH_TILES_MAX)
+				break;
+		}
+	}
+
+	/**
+	 * Add tile to jobs of the current update. Tiles that are already
+	 * queued are passed again to keep them in JobQueue, duplicates
+	 * are ignored by JobQueue.
+	 */
+	private void addJob(MapTile tile) {
+		if (tile.state != STATE_NONE && tile.state != STATE_LOADING)
+			return;
+
+		if (mJobCnt == mJobs.length) {
+			MapTile[] tmp = new MapTile[mJobCnt * 2];
+			System.arraycopy(mJobs, 0, tmp, 0, mJobCnt);
+			mJobs = tmp;
+		}
+		mJobs[mJobCnt++] = tile;
+	}
+
 	private void addToCache(MapTile tile) {
 
 		if (mTilesSize == mTiles.length) {
@@ -405,6 +543,17 @@ public class TileManager {
 		if (t == null)
 			return;
 
+		clearTileData(t);
+
+		if (!mIndex.remove(t))
+			Log.d(TAG, "BUG already removed " + t);
+
+		t.state = STATE_NONE;
+
+		mTilesCount--;
+	}
+
+	private void clearTileData(MapTile t) {
 		if (t.layers != null) {
 			// TODO move this to layers clear
 			if (t.layers.vbo != null) {
@@ -417,16 +566,20 @@ public class TileManager {
 		}
 
 		TextItem.pool.releaseAll(t.labels);
+		t.labels = null;
 
-		mIndex.remove(t);
-
-		//QuadTree.remove(t);
-		t.state = STATE_NONE;
-
-		mTilesCount--;
+		mBufferSize.addAndGet(-t.bufferSize);
+		mCacheSize.addAndGet(-t.getMemSize());
+		t.heapSize = 0;
+		t.bufferSize = 0;
 	}
 
 	private static void updateTileDistances(Object[] tiles, int size, MapPosition mapPosition) {
+		updateTileDistances(tiles, 0, size, mapPosition);
+	}
+
+	private static void updateTileDistances(Object[] tiles, int start, int end,
+			MapPosition mapPosition) {
 		// TODO there is probably  a better quad-tree distance function
 
 		int zoom = mapPosition.zoomLevel;
@@ -438,7 +591,7 @@ public class TileManager {
 
 		//long center = (long)(h * (1 << zoom));
 
-		for (int i = 0; i < size; i++) {
+		for (int i = start; i < end; i++) {
 			MapTile t = (MapTile) tiles[i];
 			if (t == null)
 				continue;
@@ -509,16 +662,32 @@ public class TileManager {
 			remove--;
 		}
 
-		if (remove > 10 || newTileCnt > MAX_TILES_IN_QUEUE) {
+		// when over budget free memory down to 80% of the limit
+		int freeBytes = getFreeBytes();
+
+		if (remove > 10 || newTileCnt > MAX_TILES_IN_QUEUE || freeBytes > 0) {
 			updateTileDistances(tiles, size, mapPosition);
 
+			if (freeBytes > 0) {
+				// weight distance by memory used, so that large tiles
+				// are removed before small tiles at the same distance.
+				// only loaded tiles have data, tiles being loaded keep
+				// their distance as the JobQueue is sorted by it.
+				float avgBytes = Math.max(1, mCacheSize.get() / Math.max(1, mTilesCount));
+				for (int i = 0; i < size; i++) {
+					MapTile t = tiles[i];
+					if (t != null && (t.state == STATE_NEW_DATA || t.state == STATE_READY))
+						t.distance *= 1 + t.getMemSize() / avgBytes;
+				}
+			}
+
 			TileDistanceSort.sort(tiles, 0, size);
 
 			// sorting also repacks the 'sparse' filled array
 			// so end of mTiles is at mTilesCount now
 			size = mTilesSize = mTilesCount;
 
-			for (int i = size - 1; i >= 0 && remove > 0; i--) {
+			for (int i = size - 1; i >= 0 && (remove > 0 || freeBytes > 0); i--) {
 				MapTile t = tiles[i];
 				if (t.isLocked()) {
 					// dont remove tile used by GLRenderer, or somewhere else
@@ -527,15 +696,27 @@ public class TileManager {
 					//locked = true;
 					//break;
 				} else if (t.state == STATE_LOADING) {
-					// NOTE:  when set loading to false the tile could be
-					// added to load queue again while still processed in
-					// MapTileLoader => need tile.cancel flag.
-					// t.isLoading = false;
-					Log.d(TAG, "limitCache: cancel loading " + t + " " + t.distance);
+					if (mTileLayer.removeJob(t)) {
+						// tile was not yet passed to TileLoader
+						remove--;
+						clearTile(t);
+						tiles[i] = null;
+					} else {
+						// tile belongs to TileLoader, it will be passed back
+						// in STATE_CANCEL and can be removed afterwards.
+						//Log.d(TAG, "limitCache: cancel loading " + t + " " + t.distance);
+						t.state = STATE_CANCEL;
+						t.canceled = true;
+						mTileLayer.cancelJob(t);
+					}
+				} else if (t.state == STATE_CANCEL) {
+					// still owned by TileLoader
 				} else {
 					if (t.state == STATE_NEW_DATA)
 						newTileCnt--;
 
+					freeBytes -= t.getMemSize();
+
 					remove--;
 					clearTile(t);
 					tiles[i] = null;
@@ -566,19 +747,28 @@ public class TileManager {
 	 *
 	 * @param tile
 	 *            Tile ready for upload to GL
+	 * @param success
+	 *            false when loading failed or was aborted
 	 * @return ... caller does not care
 	 */
-	public synchronized boolean passTile(MapTile tile) {
-
-		if (tile.state != STATE_LOADING) {
-			// - should rather be STATE_FAILED
-			// no one should be able to use this tile now, MapTileLoader passed
-			// it, GL-Thread does nothing until newdata is set.
-			//Log.d(TAG, "passTile: failed loading " + tile);
-			return true;
+	public synchronized boolean passTile(MapTile tile, boolean success) {
+
+		if (tile.state != STATE_LOADING || !success) {
+			// loading failed, was canceled or the tile was removed
+			// from cache meanwhile: tile data must not be passed to GL.
+			// the tile can be loaded again or removed from cache.
+			// FIXME add STATE_FAILED?
+			clearTileData(tile);
+			tile.canceled = false;
+			tile.state = STATE_NONE;
+			return false;
 		}
 
+		// measure while the tile still belongs to TileLoader
+		updateMemSize(tile);
+
 		tile.state = STATE_NEW_DATA;
+		tile.timeLoaded = System.nanoTime();
 		mTilesForUpload++;
 
 		// locked means the tile is visible or referenced by
@@ -600,7 +790,7 @@ public class TileManager {
 			int xmax = 1 << mZoom;
 
 			for (int x = x1; x < x2; x++) {
-				MapTile tile = null;
+				MapTile tile;
 
 				if (cnt == maxTiles) {
 					Log.d(TAG, "reached maximum tiles " + maxTiles);
@@ -620,18 +810,53 @@ public class TileManager {
 				}
 
 				// check if tile is already added
-				for (int i = 0; i < cnt; i++)
-					if (tiles[i].tileX == xx && tiles[i].tileY == y) {
-						tile = tiles[i];
-						break;
-					}
+				tile = mIndex.getTile(xx, y, mZoom);
+				if (tile != null && tile.scanMark == mScanSerial)
+					continue;
+
+				tile = addTile(xx, y, mZoom);
+				tile.scanMark = mScanSerial;
+				tiles[cnt++] = tile;
+			}
+			mNewTiles.cnt = cnt;
+		}
+	};
+
+	// scanline fill class used to add tiles for prefetching
+	private final ScanBox mPrefetchScanBox = new ScanBox() {
+
+		@Override
+		protected void setVisible(int y, int x1, int x2) {
+			int xmax = 1 << mZoom;
+
+			for (int x = x1; x < x2; x++) {
+				if (mPrefetchCnt >= PREFETCH_TILES_MAX)
+					return;
+
+				int xx = x;
+
+				if (x < 0 || x >= xmax) {
+					// flip-around date line
+					if (x < 0)
+						xx = xmax + x;
+					else
+						xx = x - xmax;
+
+					if (xx < 0 || xx >= xmax)
+						continue;
+				}
+
+				MapTile tile = mIndex.getTile(xx, y, mZoom);
 
 				if (tile == null) {
-					tile = addTile(xx, y, mZoom);
-					tiles[cnt++] = tile;
+					tile = mIndex.create(xx, y, mZoom);
+					addToCache(tile);
 				}
+
+				// also pass already queued tiles to keep them in JobQueue
+				addJob(tile);
+				mPrefetchCnt++;
 			}
-			mNewTiles.cnt = cnt;
 		}
 	};
 }
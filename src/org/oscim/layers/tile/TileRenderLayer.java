@@ -87,7 +87,8 @@ public class TileRenderLayer extends RenderOverlay {
 
 		tilesChanged |= (uploadCnt > 0);
 
-		TileRenderer.draw(tiles, tileCnt, curPos, matrices, mFaded);
+		TileRenderer.draw(tiles, tileCnt, curPos, matrices, mFaded,
+				mTileManager.getStats());
 	}
 
 	@Override
@@ -101,65 +102,137 @@ public class TileRenderLayer extends RenderOverlay {
 
 	}
 
-	/** compile tile layer data and upload to VBOs */
-	private static int compileTileLayers(MapTile[] tiles, int tileCnt) {
-		int uploadCnt = 0;
+	// default budget for uploading tile data per frame
+	private final static int UPLOAD_TIME_MAX = 8;
+	private final static int UPLOAD_BYTES_MAX = 1 << 20;
+
+	private long mUploadTime = UPLOAD_TIME_MAX * 1000000L;
+	private int mUploadBytes = UPLOAD_BYTES_MAX;
+
+	// budget left in current frame
+	private long mUploadEnd;
+	private int mUploadBytesLeft;
+	private int mUploadCnt;
+
+	/**
+	 * Limit time and bytes spent per frame for uploading tile data
+	 * to GL. At least one tile is uploaded per frame, remaining tiles
+	 * are uploaded in the following frames.
+	 *
+	 * @param millis
+	 *            max time for uploads per frame
+	 * @param bytes
+	 *            max bytes to upload per frame
+	 */
+	public void setUploadBudget(int millis, int bytes) {
+		mUploadTime = millis * 1000000L;
+		mUploadBytes = bytes;
+	}
+
+	/**
+	 * compile tile layer data and upload to VBOs. Visible tiles are
+	 * uploaded first, then proxy parents and then proxy children.
+	 */
+	private int compileTileLayers(MapTile[] tiles, int tileCnt) {
+		mUploadCnt = 0;
+		mUploadBytesLeft = mUploadBytes;
+		mUploadEnd = System.nanoTime() + mUploadTime;
 
+		boolean pending = false;
+
+		// 1. visible tiles and tiles referenced by holders
 		for (int i = 0; i < tileCnt; i++) {
 			MapTile tile = tiles[i];
 
-			if (!tile.isVisible)
-				continue;
-
-			if (tile.state == STATE_READY)
+			if (!tile.isVisible || tile.state == STATE_READY)
 				continue;
 
 			if (tile.state == STATE_NEW_DATA) {
-				uploadTileData(tile);
+				pending |= !upload(tile);
 				continue;
 			}
 
 			if (tile.holder != null) {
 				// load tile that is referenced by this holder
 				if (tile.holder.state == STATE_NEW_DATA)
-					uploadTileData(tile.holder);
+					pending |= !upload(tile.holder);
 
 				tile.state = tile.holder.state;
-				continue;
 			}
+		}
+
+		// 2. proxy parents of visible tiles not yet ready
+		for (int i = 0; i < tileCnt; i++) {
+			MapTile tile = tiles[i];
+
+			if (!tile.isVisible || tile.state == STATE_READY || tile.holder != null)
+				continue;
 
-			// check near relatives than can serve as proxy
 			if ((tile.proxies & MapTile.PROXY_PARENT) != 0) {
-				MapTile rel = tile.rel.parent.item;
+				MapTile rel = tile.getParent();
 				if (rel.state == STATE_NEW_DATA)
-					uploadTileData(rel);
+					pending |= !upload(rel);
+			}
+		}
+
+		// 3. proxy children, when parent can not be used
+		for (int i = 0; i < tileCnt; i++) {
+			MapTile tile = tiles[i];
 
-				// dont load child proxies
+			if (!tile.isVisible || tile.state == STATE_READY || tile.holder != null)
+				continue;
+
+			if ((tile.proxies & MapTile.PROXY_PARENT) != 0)
 				continue;
-			}
 
 			for (int c = 0; c < 4; c++) {
 				if ((tile.proxies & 1 << c) == 0)
 					continue;
 
-				MapTile rel = tile.rel.get(i);
+				MapTile rel = tile.getChild(c);
 				if (rel != null && rel.state == STATE_NEW_DATA)
-					uploadTileData(rel);
+					pending |= !upload(rel);
 			}
 		}
 
-		if (uploadCnt > 0)
+		if (pending)
+			// continue with next frame
+			mMapView.render();
+
+		if (mUploadCnt > 0)
 			GLRenderer.checkBufferUsage(false);
 
-		return uploadCnt;
+		return mUploadCnt;
 	}
 
-	private static void uploadTileData(MapTile tile) {
+	/**
+	 * Upload tile data when there is budget left in this frame.
+	 *
+	 * @return false when the tile was deferred to the next frame.
+	 */
+	private boolean upload(MapTile tile) {
+		if (mUploadCnt > 0 && (mUploadBytesLeft <= 0 || System.nanoTime() > mUploadEnd))
+			return false;
+
+		if (tile.layers != null)
+			mUploadBytesLeft -= tile.layers.getSize() * 2;
+
+		uploadTileData(tile);
+		mUploadCnt++;
+
+		return true;
+	}
+
+	private void uploadTileData(MapTile tile) {
 		tile.state = STATE_READY;
 
 		if (tile.layers == null)
 			return;
 
+		TileStats stats = mTileManager.getStats();
+		stats.addSince(TileStats.STAGE_UPLOAD_WAIT, tile, tile.timeLoaded);
+		long start = System.nanoTime();
+
 		int newSize = tile.layers.getSize();
 		if (newSize > 0) {
 
@@ -175,6 +248,10 @@ public class TileRenderLayer extends RenderOverlay {
 				tile.layers = null;
 			}
 		}
+		// vertex data moved to vbo
+		mTileManager.updateMemSize(tile);
+
+		stats.addSince(TileStats.STAGE_UPLOAD, tile, start);
 	}
 
 	private final Object tilelock = new Object();
@@ -200,6 +277,10 @@ public class TileRenderLayer extends RenderOverlay {
 		}
 	}
 
+	public TileManager getTileManager() {
+		return mTileManager;
+	}
+
 	// get a TileSet of currently visible tiles
 	public TileSet getVisibleTiles(TileSet td) {
 		if (mDrawTiles == null)
@@ -29,7 +29,6 @@ import org.oscim.renderer.layer.LineTexRenderer;
 import org.oscim.renderer.layer.PolygonRenderer;
 import org.oscim.utils.FastMath;
 import org.oscim.utils.Matrix4;
-import org.oscim.utils.quadtree.QuadTree;
 
 import android.opengl.GLES20;
 
@@ -52,13 +51,16 @@ public class TileRenderer {
 
 	private static Matrices mMatrices;
 	private static boolean mFaded;
+	private static TileStats mStats;
 
 	private static final Matrix4 mProjMatrix = new Matrix4();
 
-	static void draw(MapTile[] tiles, int tileCnt, MapPosition pos, Matrices m, boolean fade) {
+	static void draw(MapTile[] tiles, int tileCnt, MapPosition pos, Matrices m,
+			boolean fade, TileStats stats) {
 		mDrawCnt = 0;
 		mMatrices = m;
 		mFaded = fade;
+		mStats = stats;
 
 		mProjMatrix.copy(m.viewproj);
 		// discard z projection from tilt
@@ -109,6 +111,7 @@ public class TileRenderer {
 
 		// dont keep the ref...
 		mMatrices = null;
+		mStats = null;
 	}
 
 	private static void drawTile(MapTile tile, MapPosition pos) {
@@ -127,6 +130,12 @@ public class TileRenderer {
 			return;
 		}
 
+		if (t.timeQueued != 0) {
+			// time to first paint
+			mStats.addSince(TileStats.STAGE_FIRST_DRAW, t, t.timeQueued);
+			t.timeQueued = 0;
+		}
+
 		GLES20.glBindBuffer(GL_ARRAY_BUFFER, t.layers.vbo.id);
 
 		// place tile relative to map position
@@ -210,7 +219,7 @@ public class TileRenderer {
 			if ((tile.proxies & 1 << i) == 0)
 				continue;
 
-			MapTile c = tile.rel.get(i);
+			MapTile c = tile.getChild(i);
 
 			if (c.state == STATE_READY) {
 				drawTile(c, pos);
@@ -224,7 +233,6 @@ public class TileRenderer {
 	private static void drawProxyTile(MapTile tile, MapPosition pos, boolean parent,
 			boolean preferParent) {
 
-		QuadTree<MapTile> r = tile.rel;
 		MapTile proxy;
 
 		if (!preferParent) {
@@ -235,7 +243,7 @@ public class TileRenderer {
 			if (parent) {
 				// draw parent proxy
 				if ((tile.proxies & MapTile.PROXY_PARENT) != 0) {
-					proxy = r.parent.item;
+					proxy = tile.getParent();
 					if (proxy.state == STATE_READY) {
 						//Log.d(TAG, "1. draw parent " + proxy);
 						drawTile(proxy, pos);
@@ -244,12 +252,12 @@ public class TileRenderer {
 			} else if ((tile.proxies & MapTile.PROXY_GRAMPA) != 0) {
 				// check if parent was already drawn
 				if ((tile.proxies & MapTile.PROXY_PARENT) != 0) {
-					proxy = r.parent.item;
+					proxy = tile.getParent();
 					if (proxy.state == STATE_READY)
 						return;
 				}
 
-				proxy = r.parent.parent.item;
+				proxy = tile.getGrandParent();
 				if (proxy.state == STATE_READY)
 					drawTile(proxy, pos);
 			}
@@ -257,7 +265,7 @@ public class TileRenderer {
 			// prefer drawing parent
 			if (parent) {
 				if ((tile.proxies & MapTile.PROXY_PARENT) != 0) {
-					proxy = r.parent.item;
+					proxy = tile.getParent();
 					if (proxy != null && proxy.state == STATE_READY) {
 						//Log.d(TAG, "2. draw parent " + proxy);
 						drawTile(proxy, pos);
@@ -270,7 +278,7 @@ public class TileRenderer {
 			} else if ((tile.proxies & MapTile.PROXY_GRAMPA) != 0) {
 				// check if parent was already drawn
 				if ((tile.proxies & MapTile.PROXY_PARENT) != 0) {
-					proxy = r.parent.item;
+					proxy = tile.getParent();
 					if (proxy.state == STATE_READY)
 						return;
 				}
@@ -278,7 +286,7 @@ public class TileRenderer {
 				if (drawProxyChild(tile, pos) > 0)
 					return;
 
-				proxy = r.parent.parent.item;
+				proxy = tile.getGrandParent();
 				if (proxy.state == STATE_READY)
 					drawTile(proxy, pos);
 			}
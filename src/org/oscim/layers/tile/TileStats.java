@@ -0,0 +1,241 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.layers.tile;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.oscim.view.MapViewPosition;
+
+/**
+ * Histograms of the time tiles spend in each loading stage, per zoom level.
+ * One instance per TileLayer, see TileLayer.getStats().
+ *
+ * Durations are counted in log2 buckets of microseconds. Adding a sample
+ * is lock-free and can be done from any thread. Reading while samples are
+ * added gives slightly inconsistent, but usable, results.
+ */
+public class TileStats {
+
+	/** from adding to JobQueue until a TileFetcher or TileLoader takes it */
+	public final static int STAGE_QUEUE = 0;
+	/** IStagedMapDatabase.fetch(), only for staged loading */
+	public final static int STAGE_FETCH = 1;
+	/** reading tile data without theme and tessellation (includes I/O when
+	 * not staged) */
+	public final static int STAGE_DECODE = 2;
+	/** RenderTheme matching */
+	public final static int STAGE_THEME = 3;
+	/** building layers from matched elements */
+	public final static int STAGE_TESSELLATE = 4;
+	/** from STATE_NEW_DATA until upload started */
+	public final static int STAGE_UPLOAD_WAIT = 5;
+	/** uploading layers to GL */
+	public final static int STAGE_UPLOAD = 6;
+	/** from adding to JobQueue until first drawn: time to first paint */
+	public final static int STAGE_FIRST_DRAW = 7;
+
+	public final static int STAGES = 8;
+
+	private final static String[] STAGE_NAMES = {
+			"queue", "fetch", "decode", "theme",
+			"tessellate", "upload-wait", "upload", "first-draw" };
+
+	public final static int ZOOM_LEVELS = MapViewPosition.MAX_ZOOMLEVEL + 1;
+
+	/** bucket 0: < 1us, bucket n: [2^(n-1), 2^n) us */
+	public final static int BUCKETS = 32;
+
+	private final AtomicIntegerArray mCounts =
+			new AtomicIntegerArray(STAGES * ZOOM_LEVELS * BUCKETS);
+
+	// sum of microseconds per stage and zoom, for mean
+	private final AtomicLongArray mSums =
+			new AtomicLongArray(STAGES * ZOOM_LEVELS);
+
+	private volatile boolean mEnabled = true;
+
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * Add a sample.
+	 *
+	 * @param stage
+	 *            STAGE_*
+	 * @param zoom
+	 *            zoom level of tile
+	 * @param nanos
+	 *            duration in nanoseconds
+	 */
+	public void add(int stage, int zoom, long nanos) {
+		if (!mEnabled)
+			return;
+
+		if (zoom < 0)
+			zoom = 0;
+		else if (zoom >= ZOOM_LEVELS)
+			zoom = ZOOM_LEVELS - 1;
+
+		long us = nanos / 1000;
+		if (us < 0)
+			us = 0;
+
+		int bucket = 64 - Long.numberOfLeadingZeros(us);
+		if (bucket >= BUCKETS)
+			bucket = BUCKETS - 1;
+
+		int pos = stage * ZOOM_LEVELS + zoom;
+		mCounts.incrementAndGet(pos * BUCKETS + bucket);
+		mSums.addAndGet(pos, us);
+	}
+
+	/**
+	 * Add the time passed since 'start' (System.nanoTime()) for 'tile'.
+	 * Does nothing when start is 0.
+	 */
+	void addSince(int stage, MapTile tile, long start) {
+		if (start == 0 || !mEnabled)
+			return;
+
+		add(stage, tile.zoomLevel, System.nanoTime() - start);
+	}
+
+	/**
+	 * @param zoom
+	 *            zoom level or -1 for all
+	 * @param hist
+	 *            receives counts per bucket, may be null
+	 * @return the histogram of a stage
+	 */
+	public int[] getHistogram(int stage, int zoom, int[] hist) {
+		if (hist == null || hist.length < BUCKETS)
+			hist = new int[BUCKETS];
+		else
+			for (int i = 0; i < BUCKETS; i++)
+				hist[i] = 0;
+
+		int z0 = zoom < 0 ? 0 : zoom;
+		int z1 = zoom < 0 ? ZOOM_LEVELS : zoom + 1;
+
+		for (int z = z0; z < z1; z++) {
+			int off = (stage * ZOOM_LEVELS + z) * BUCKETS;
+			for (int i = 0; i < BUCKETS; i++)
+				hist[i] += mCounts.get(off + i);
+		}
+		return hist;
+	}
+
+	/**
+	 * @param zoom
+	 *            zoom level or -1 for all
+	 * @return number of samples
+	 */
+	public int getCount(int stage, int zoom) {
+		int[] hist = getHistogram(stage, zoom, null);
+		int cnt = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			cnt += hist[i];
+		return cnt;
+	}
+
+	/**
+	 * @param zoom
+	 *            zoom level or -1 for all
+	 * @return mean duration in microseconds
+	 */
+	public long getMean(int stage, int zoom) {
+		int cnt = getCount(stage, zoom);
+		if (cnt == 0)
+			return 0;
+
+		int z0 = zoom < 0 ? 0 : zoom;
+		int z1 = zoom < 0 ? ZOOM_LEVELS : zoom + 1;
+		long sum = 0;
+		for (int z = z0; z < z1; z++)
+			sum += mSums.get(stage * ZOOM_LEVELS + z);
+
+		return sum / cnt;
+	}
+
+	/**
+	 * Estimate a percentile by linear interpolation within the bucket.
+	 *
+	 * @param zoom
+	 *            zoom level or -1 for all
+	 * @param p
+	 *            percentile between 0 and 1, e.g. 0.99
+	 * @return duration in microseconds
+	 */
+	public long getPercentile(int stage, int zoom, float p) {
+		int[] hist = getHistogram(stage, zoom, null);
+		long cnt = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			cnt += hist[i];
+
+		if (cnt == 0)
+			return 0;
+
+		double rank = p * cnt;
+		long sum = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			if (hist[i] == 0 || sum + hist[i] < rank) {
+				sum += hist[i];
+				continue;
+			}
+			if (i == 0)
+				return 0;
+
+			long lo = 1L << (i - 1);
+			long hi = 1L << i;
+			return lo + (long) ((hi - lo) * (rank - sum) / hist[i]);
+		}
+		return 1L << (BUCKETS - 1);
+	}
+
+	public void reset() {
+		for (int i = 0, n = mCounts.length(); i < n; i++)
+			mCounts.set(i, 0);
+		for (int i = 0, n = mSums.length(); i < n; i++)
+			mSums.set(i, 0);
+	}
+
+	public static String getStageName(int stage) {
+		return STAGE_NAMES[stage];
+	}
+
+	/** @return p50/p99 in milliseconds of all stages for all zoom levels */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int s = 0; s < STAGES; s++) {
+			int cnt = getCount(s, -1);
+			if (cnt == 0)
+				continue;
+
+			sb.append(STAGE_NAMES[s])
+					.append(" n:").append(cnt)
+					.append(" p50:").append(getPercentile(s, -1, 0.5f) / 1000f)
+					.append(" p99:").append(getPercentile(s, -1, 0.99f) / 1000f)
+					.append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -53,7 +53,9 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 	private static final int MB = 1024 * 1024;
 	private static final int SHORT_BYTES = 2;
 	private static final int CACHE_TILES_MAX = 250;
-	private static final int LIMIT_BUFFERS = 16 * MB;
+	// limit for memory of GL buffers, TileManager limits the buffers
+	// of cached tiles by it
+	public static final int LIMIT_BUFFERS = 16 * MB;
 
 	public static final float COORD_SCALE = 8.0f;
 
@@ -24,6 +24,7 @@ import org.oscim.core.Tile;
 import org.oscim.renderer.BufferObject;
 import org.oscim.renderer.GLRenderer;
 import org.oscim.utils.LineClipper;
+import org.oscim.utils.pool.Inlist;
 import org.oscim.view.MapView;
 
 import android.opengl.GLES20;
@@ -37,9 +38,9 @@ import android.util.Log;
 public class ExtrusionLayer extends Layer {
 	private final static String TAG = ExtrusionLayer.class.getName();
 	private static final float S = GLRenderer.COORD_SCALE;
-	private final VertexItem mVertices;
-	private VertexItem mCurVertices;
-	private final VertexItem mIndices[], mCurIndices[];
+	final VertexItem mVertices;
+	VertexItem mCurVertices;
+	final VertexItem mIndices[], mCurIndices[];
 	private LineClipper mClipper;
 
 	// indices for:
@@ -59,7 +60,7 @@ public class ExtrusionLayer extends Layer {
 	private final static int IND_OUTLINE = 3;
 
 	public boolean compiled = false;
-	private final float mGroundResolution;
+	final float mGroundResolution;
 
 	public ExtrusionLayer(int level, float groundResolution) {
 		this.type = Layer.EXTRUSION;
@@ -433,6 +434,26 @@ public class ExtrusionLayer extends Layer {
 		compiled = true;
 	}
 
+	@Override
+	protected int getHeapSize() {
+		if (compiled)
+			return 0;
+
+		int cnt = Inlist.size(mVertices);
+		for (VertexItem i : mIndices)
+			cnt += Inlist.size(i);
+
+		return cnt * VertexItem.SIZE * 2;
+	}
+
+	@Override
+	protected int getBufferSize() {
+		if (!compiled || mVertexBO == null)
+			return 0;
+
+		return mIndiceBO.size + mVertexBO.size;
+	}
+
 	@Override
 	protected void clear() {
 		if (compiled) {
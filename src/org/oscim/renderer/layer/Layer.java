@@ -49,4 +49,20 @@ public abstract class Layer extends Inlist<Layer>{
 
 	abstract protected void compile(ShortBuffer sbuf);
 	abstract protected void clear();
+
+	/**
+	 * @return bytes held in heap by this layer, i.e. VertexItems that
+	 *         are not yet compiled.
+	 */
+	protected int getHeapSize() {
+		return Inlist.size(vertexItems) * VertexItem.SIZE * 2;
+	}
+
+	/**
+	 * @return bytes of GL buffers and textures owned by this layer,
+	 *         not counting the shared Layers.vbo.
+	 */
+	protected int getBufferSize() {
+		return 0;
+	}
 }
@@ -157,6 +157,42 @@ public class Layers {
 		return size;
 	}
 
+	/**
+	 * @return estimated bytes held in heap by all layers
+	 */
+	public int getHeapSize() {
+		int size = 0;
+
+		for (Layer l = baseLayers; l != null; l = l.next)
+			size += l.getHeapSize();
+
+		for (Layer l = textureLayers; l != null; l = l.next)
+			size += l.getHeapSize();
+
+		for (Layer l = extrusionLayers; l != null; l = l.next)
+			size += l.getHeapSize();
+
+		return size;
+	}
+
+	/**
+	 * @return bytes of GL buffers and textures used by all layers
+	 */
+	public int getBufferSize() {
+		int size = 0;
+
+		if (vbo != null)
+			size += vbo.size;
+
+		for (Layer l = textureLayers; l != null; l = l.next)
+			size += l.getBufferSize();
+
+		for (Layer l = extrusionLayers; l != null; l = l.next)
+			size += l.getBufferSize();
+
+		return size;
+	}
+
 	public void compile(ShortBuffer sbuf, boolean addFill) {
 		// offset from fill coordinates
 		int pos = 0;
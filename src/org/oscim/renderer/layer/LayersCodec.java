@@ -0,0 +1,458 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.renderer.layer;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.IdentityHashMap;
+
+import org.oscim.theme.IRenderTheme;
+import org.oscim.theme.renderinstruction.Area;
+import org.oscim.theme.renderinstruction.Line;
+import org.oscim.theme.renderinstruction.RenderInstruction;
+import org.oscim.theme.renderinstruction.Text;
+
+/**
+ * Writes Layers and labels of a tile into a ByteBuffer and reads them back.
+ * Styles are stored by their RenderInstruction id, so the data can only be
+ * read with the same theme it was created with.
+ *
+ * Layout (native byte order):
+ * - header: magic, theme hash, number of base layers
+ * - base layers: type, level, style, width, vertices
+ * - line outlines: level of next outline layer for each LineLayer
+ * - extrusion layer: vertices and four index lists
+ * - labels
+ *
+ * Not thread-safe, use one instance per TileLoader.
+ */
+public class LayersCodec {
+	//private final static String TAG = LayersCodec.class.getName();
+
+	private final static int MAGIC = 0x4f4c4331; // OLC1
+
+	private ByteBuffer mBuffer;
+
+	private final IdentityHashMap<TextItem, Integer> mLabelIds =
+			new IdentityHashMap<TextItem, Integer>();
+
+	private TextItem[] mLabels = new TextItem[64];
+
+	// labels read by last decode()
+	private TextItem mDecodedLabels;
+
+	public LayersCodec() {
+		mBuffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * @return buffer ready to be read, valid until next call to encode(), or
+	 *         null when layers contain data that cannot be stored.
+	 */
+	public ByteBuffer encode(Layers layers, TextItem labels, IRenderTheme theme) {
+		// bitmaps and symbols are not supported
+		if (layers.textureLayers != null)
+			return null;
+
+		mBuffer.clear();
+
+		int cnt = 0;
+		for (Layer l = layers.baseLayers; l != null; l = l.next)
+			cnt++;
+
+		ensure(12);
+		mBuffer.putInt(MAGIC);
+		mBuffer.putInt(theme.getThemeHash());
+		mBuffer.putInt(cnt);
+
+		for (Layer l = layers.baseLayers; l != null; l = l.next) {
+			RenderInstruction style;
+			float width = 0;
+			boolean roundCap = false;
+
+			if (l.type == Layer.LINE) {
+				LineLayer ll = (LineLayer) l;
+				style = ll.line;
+				width = ll.width;
+				roundCap = ll.roundCap;
+			} else if (l.type == Layer.TEXLINE) {
+				LineTexLayer ll = (LineTexLayer) l;
+				style = ll.line;
+				width = ll.width;
+				roundCap = ll.roundCap;
+			} else if (l.type == Layer.POLYGON) {
+				style = ((PolygonLayer) l).area;
+			} else {
+				return null;
+			}
+
+			int id = theme.getRenderInstructionId(style);
+			if (id < 0)
+				return null;
+
+			ensure(26);
+			mBuffer.put(l.type);
+			mBuffer.putInt(l.level);
+			mBuffer.putInt(id);
+			mBuffer.putFloat(width);
+			mBuffer.put((byte) (roundCap ? 1 : 0));
+			mBuffer.putInt(l.verticesCnt);
+
+			if (l.type == Layer.TEXLINE) {
+				LineTexLayer ll = (LineTexLayer) l;
+				ensure(8);
+				mBuffer.putInt(ll.evenQuads);
+				mBuffer.putInt(ll.oddQuads);
+			}
+
+			writeItems(l.vertexItems, true);
+		}
+
+		// LineLayer.outlines links layers by their level
+		for (Layer l = layers.baseLayers; l != null; l = l.next) {
+			if (l.type != Layer.LINE)
+				continue;
+
+			LineLayer o = ((LineLayer) l).outlines;
+			ensure(4);
+			mBuffer.putInt(o == null ? -1 : o.level);
+		}
+
+		ExtrusionLayer el = (ExtrusionLayer) layers.extrusionLayers;
+		if (el != null && el.compiled)
+			return null;
+
+		ensure(1);
+		mBuffer.put((byte) (el == null ? 0 : 1));
+		if (el != null) {
+			ensure(12);
+			mBuffer.putInt(el.level);
+			mBuffer.putFloat(el.mGroundResolution);
+			mBuffer.putInt(el.mNumVertices);
+			writeItems(el.mVertices, false);
+			for (int i = 0; i < 4; i++)
+				writeItems(el.mIndices[i], false);
+		}
+
+		if (!writeLabels(labels, theme))
+			return null;
+
+		mBuffer.flip();
+		return mBuffer;
+	}
+
+	private boolean writeLabels(TextItem labels, IRenderTheme theme) {
+		int cnt = 0;
+		mLabelIds.clear();
+		for (TextItem ti = labels; ti != null; ti = ti.next)
+			mLabelIds.put(ti, Integer.valueOf(cnt++));
+
+		ensure(4);
+		mBuffer.putInt(cnt);
+
+		for (TextItem ti = labels; ti != null; ti = ti.next) {
+			int id = theme.getRenderInstructionId(ti.text);
+			if (id < 0 || ti.string == null)
+				return false;
+
+			int len = ti.string.length();
+			ensure(47 + len * 2);
+			mBuffer.putInt(id);
+			mBuffer.putFloat(ti.x);
+			mBuffer.putFloat(ti.y);
+			mBuffer.putFloat(ti.x1);
+			mBuffer.putFloat(ti.y1);
+			mBuffer.putFloat(ti.x2);
+			mBuffer.putFloat(ti.y2);
+			mBuffer.putFloat(ti.width);
+			mBuffer.putShort(ti.length);
+			mBuffer.put(ti.edges);
+			mBuffer.putInt(labelId(ti.n1));
+			mBuffer.putInt(labelId(ti.n2));
+			mBuffer.putInt(len);
+			for (int i = 0; i < len; i++)
+				mBuffer.putChar(ti.string.charAt(i));
+		}
+		mLabelIds.clear();
+		return true;
+	}
+
+	private int labelId(TextItem ti) {
+		if (ti == null)
+			return -1;
+
+		Integer id = mLabelIds.get(ti);
+		return id == null ? -1 : id.intValue();
+	}
+
+	/**
+	 * Add layers and labels from 'buf' to empty 'layers'. Labels can be
+	 * retrieved with getLabels(). On failure the caller must clear
+	 * 'layers'.
+	 *
+	 * @return false when data is invalid or was not created with 'theme'
+	 */
+	public boolean decode(ByteBuffer buf, IRenderTheme theme, Layers layers) {
+		mDecodedLabels = null;
+
+		buf.order(ByteOrder.nativeOrder());
+
+		if (buf.remaining() < 12 || buf.getInt() != MAGIC)
+			return false;
+
+		if (buf.getInt() != theme.getThemeHash())
+			return false;
+
+		int cnt = buf.getInt();
+		for (int i = 0; i < cnt; i++) {
+			byte type = buf.get();
+			int level = buf.getInt();
+			RenderInstruction style = theme.getRenderInstruction(buf.getInt());
+			float width = buf.getFloat();
+			boolean roundCap = buf.get() != 0;
+			int verticesCnt = buf.getInt();
+
+			Layer l;
+			if (type == Layer.LINE) {
+				if (!(style instanceof Line))
+					return false;
+
+				LineLayer ll = layers.getLineLayer(level);
+				ll.line = (Line) style;
+				ll.width = width;
+				ll.roundCap = roundCap;
+				l = ll;
+			} else if (type == Layer.TEXLINE) {
+				if (!(style instanceof Line))
+					return false;
+
+				LineTexLayer ll = layers.getLineTexLayer(level);
+				ll.line = (Line) style;
+				ll.width = width;
+				ll.roundCap = roundCap;
+				ll.evenQuads = buf.getInt();
+				ll.oddQuads = buf.getInt();
+				l = ll;
+			} else if (type == Layer.POLYGON) {
+				if (!(style instanceof Area))
+					return false;
+
+				PolygonLayer pl = layers.getPolygonLayer(level);
+				pl.area = (Area) style;
+				l = pl;
+			} else {
+				return false;
+			}
+
+			if (l == null)
+				return false;
+
+			l.verticesCnt = verticesCnt;
+
+			if (l.vertexItems == null)
+				l.vertexItems = VertexItem.pool.get();
+
+			l.curItem = readItems(buf, l.vertexItems);
+		}
+
+		for (Layer l = layers.baseLayers; l != null; l = l.next) {
+			if (l.type != Layer.LINE)
+				continue;
+
+			int level = buf.getInt();
+			if (level < 0)
+				continue;
+
+			Layer o = layers.baseLayers;
+			while (o != null && o.level != level)
+				o = o.next;
+
+			if (o == null || o.type != Layer.LINE)
+				return false;
+
+			((LineLayer) l).outlines = (LineLayer) o;
+		}
+
+		if (buf.get() != 0) {
+			int level = buf.getInt();
+			ExtrusionLayer el = new ExtrusionLayer(level, buf.getFloat());
+			layers.extrusionLayers = el;
+
+			el.mNumVertices = buf.getInt();
+			el.mCurVertices = readItems(buf, el.mVertices);
+			for (int i = 0; i < 4; i++)
+				el.mCurIndices[i] = readItems(buf, el.mIndices[i]);
+		}
+
+		return readLabels(buf, theme);
+	}
+
+	private boolean readLabels(ByteBuffer buf, IRenderTheme theme) {
+		int cnt = buf.getInt();
+
+		// each label has at least 47 bytes
+		if (cnt < 0 || cnt > buf.remaining() / 47)
+			return false;
+
+		if (mLabels.length < cnt)
+			mLabels = new TextItem[cnt];
+
+		TextItem[] labels = mLabels;
+		int[] links = new int[cnt * 2];
+		boolean ok = true;
+
+		int i = 0;
+		try {
+			for (; i < cnt; i++) {
+				TextItem ti = labels[i] = TextItem.pool.get();
+				if (!readLabel(buf, theme, ti, links, i))
+					ok = false;
+			}
+		} finally {
+			if (i < cnt) {
+				// truncated data, labels read so far go back to pool
+				for (int j = 0; j <= i; j++) {
+					TextItem.pool.release(labels[j]);
+					labels[j] = null;
+				}
+			}
+		}
+
+		// restore list order and links between labels of a way
+		TextItem list = null;
+		for (i = cnt - 1; i >= 0; i--) {
+			TextItem ti = labels[i];
+			int n1 = links[i * 2];
+			int n2 = links[i * 2 + 1];
+			ti.n1 = (n1 >= 0 && n1 < cnt) ? labels[n1] : null;
+			ti.n2 = (n2 >= 0 && n2 < cnt) ? labels[n2] : null;
+			ti.next = list;
+			list = ti;
+			labels[i] = null;
+		}
+
+		if (!ok) {
+			TextItem.pool.releaseAll(list);
+			return false;
+		}
+
+		mDecodedLabels = list;
+		return true;
+	}
+
+	/**
+	 * Read label 'i' into 'ti' and the indices of its linked labels into
+	 * 'links'.
+	 *
+	 * @return false when the style of the label is not a Text
+	 */
+	private static boolean readLabel(ByteBuffer buf, IRenderTheme theme,
+			TextItem ti, int[] links, int i) {
+		boolean ok = true;
+
+		RenderInstruction style = theme.getRenderInstruction(buf.getInt());
+		if (style instanceof Text)
+			ti.text = (Text) style;
+		else
+			ok = false;
+
+		ti.x = buf.getFloat();
+		ti.y = buf.getFloat();
+		ti.x1 = buf.getFloat();
+		ti.y1 = buf.getFloat();
+		ti.x2 = buf.getFloat();
+		ti.y2 = buf.getFloat();
+		ti.width = buf.getFloat();
+		ti.length = buf.getShort();
+		ti.edges = buf.get();
+		links[i * 2] = buf.getInt();
+		links[i * 2 + 1] = buf.getInt();
+
+		int len = buf.getInt();
+		if (len < 0 || len > buf.remaining() / 2)
+			throw new BufferUnderflowException();
+
+		char[] chars = new char[len];
+		for (int j = 0; j < len; j++)
+			chars[j] = buf.getChar();
+		ti.string = new String(chars);
+
+		return ok;
+	}
+
+	/**
+	 * @return labels read by last successful decode(), the caller owns them.
+	 */
+	public TextItem getLabels() {
+		TextItem labels = mDecodedLabels;
+		mDecodedLabels = null;
+		return labels;
+	}
+
+	/**
+	 * Write items as they are copied by Layers.compile(): when 'full',
+	 * all but the last item are complete.
+	 */
+	private void writeItems(VertexItem items, boolean full) {
+		int cnt = 0;
+		for (VertexItem it = items; it != null; it = it.next)
+			cnt += (full && it.next != null) ? VertexItem.SIZE : it.used;
+
+		ensure(4 + cnt * 2);
+		mBuffer.putInt(cnt);
+
+		for (VertexItem it = items; it != null; it = it.next) {
+			int n = (full && it.next != null) ? VertexItem.SIZE : it.used;
+			mBuffer.asShortBuffer().put(it.vertices, 0, n);
+			mBuffer.position(mBuffer.position() + n * 2);
+		}
+	}
+
+	/**
+	 * Read vertices into 'items', the first item must be empty.
+	 *
+	 * @return last item
+	 */
+	private static VertexItem readItems(ByteBuffer buf, VertexItem items) {
+		int cnt = buf.getInt();
+		VertexItem it = items;
+
+		while (true) {
+			int n = Math.min(cnt, VertexItem.SIZE);
+			buf.asShortBuffer().get(it.vertices, 0, n);
+			buf.position(buf.position() + n * 2);
+			it.used = n;
+			cnt -= n;
+
+			if (cnt == 0)
+				break;
+
+			it = it.next = VertexItem.pool.get();
+		}
+		return it;
+	}
+
+	private void ensure(int size) {
+		if (mBuffer.remaining() >= size)
+			return;
+
+		int capacity = Math.max(mBuffer.capacity() * 2, mBuffer.position() + size);
+		ByteBuffer tmp = ByteBuffer.allocate(capacity).order(ByteOrder.nativeOrder());
+		mBuffer.flip();
+		tmp.put(mBuffer);
+		mBuffer = tmp;
+	}
+}
@@ -41,5 +41,25 @@ public abstract class TextureLayer extends Layer {
 		Layers.addPoolItems(this, sbuf);
 	}
 
+	@Override
+	protected int getHeapSize() {
+		int size = super.getHeapSize();
+		for (TextureItem to = textures; to != null; to = to.next)
+			if (to.bitmap != null && to.ownBitmap)
+				size += to.width * to.height * 4;
+
+		return size;
+	}
+
+	@Override
+	protected int getBufferSize() {
+		int size = 0;
+		for (TextureItem to = textures; to != null; to = to.next)
+			if (to.bitmap == null && to.ownBitmap)
+				size += to.width * to.height * 4;
+
+		return size;
+	}
+
 	abstract public boolean prepare();
 }
@@ -133,6 +133,7 @@ public class ExtrusionOverlay extends RenderOverlay {
 					}
 					el.compile(mShortBuffer);
 					GlUtils.checkGlError("...");
+					mTileLayer.getTileManager().updateMemSize(tiles[i]);
 				}
 
 				if (el.compiled)
@@ -147,7 +148,7 @@ public class ExtrusionOverlay extends RenderOverlay {
 
 				for (byte j = 0; j < 4; j++) {
 					if ((t.proxies & (1 << j)) != 0) {
-						MapTile c = t.rel.get(j);
+						MapTile c = t.getChild(j);
 						el = getLayer(c);
 
 						if (el == null || !el.compiled)
@@ -15,6 +15,7 @@
  */
 package org.oscim.theme;
 
+import org.oscim.core.GeometryBuffer.GeometryType;
 import org.oscim.core.MapElement;
 import org.oscim.theme.renderinstruction.RenderInstruction;
 
@@ -29,6 +30,18 @@ public interface IRenderTheme {
 	 */
 	public abstract RenderInstruction[] matchElement(MapElement element, int zoomLevel);
 
+	/**
+	 * @return number of matchElement() calls for elements of type that
+	 *         were answered from the matching cache.
+	 */
+	public abstract int getCacheHits(GeometryType type);
+
+	/**
+	 * @return number of matchElement() calls for elements of type that
+	 *         needed to match the rules.
+	 */
+	public abstract int getCacheMisses(GeometryType type);
+
 
 	/**
 	 * Must be called when this RenderTheme gets destroyed to clean up and free
@@ -47,6 +60,30 @@ public interface IRenderTheme {
 	 */
 	public abstract int getMapBackground();
 
+	/**
+	 * @return id of a RenderInstruction of this theme, -1 if it does not
+	 *         belong to this theme. Ids are stable for the same theme
+	 *         content and can be used to store styled tile data.
+	 */
+	public abstract int getRenderInstructionId(RenderInstruction ri);
+
+	/**
+	 * @return RenderInstruction for id or null.
+	 */
+	public abstract RenderInstruction getRenderInstruction(int id);
+
+	/**
+	 * @return filter for the tags of elements that can be drawn at
+	 *         zoomLevel, or null to pass all elements.
+	 */
+	public abstract TagFilter getTagFilter(int zoomLevel);
+
+	/**
+	 * @return hash of theme content and scale factors. Changes when
+	 *         the theme would produce different tile data.
+	 */
+	public abstract int getThemeHash();
+
 	/**
 	 * Scales the stroke width of this RenderTheme by the given factor.
 	 *
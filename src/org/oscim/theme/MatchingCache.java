@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.theme;
+
+import org.oscim.theme.renderinstruction.RenderInstruction;
+
+/**
+ * Render instructions of recently matched tag ids and zoom levels, for one
+ * geometry type, shared by all loader threads.
+ *
+ * The table is 2-way associative with a fixed size: a new entry replaces
+ * the older one of its set. Neither lookups nor inserts lock, entries are
+ * immutable so a racing reader sees either the old or the new entry. Two
+ * threads missing the same key at once both insert it, which only wastes
+ * a slot.
+ */
+final class MatchingCache {
+
+	static final class Entry {
+		final int hash;
+		final int zoomLevel;
+		final int[] tagIds;
+		// null when no rule matches
+		final RenderInstruction[] list;
+
+		Entry(int hash, int zoomLevel, int[] tagIds, int numTags,
+				RenderInstruction[] list) {
+			this.hash = hash;
+			this.zoomLevel = zoomLevel;
+			this.tagIds = new int[numTags];
+			System.arraycopy(tagIds, 0, this.tagIds, 0, numTags);
+			this.list = list;
+		}
+
+		boolean matches(int zoomLevel, int[] tagIds, int numTags) {
+			if (this.zoomLevel != zoomLevel || this.tagIds.length != numTags)
+				return false;
+
+			int[] ids = this.tagIds;
+			for (int i = 0; i < numTags; i++)
+				if (ids[i] != tagIds[i])
+					return false;
+
+			return true;
+		}
+	}
+
+	private final Entry[] mEntries;
+	private final int mSetMask;
+
+	/**
+	 * @param size
+	 *            max number of entries
+	 */
+	MatchingCache(int size) {
+		int sets = 1;
+		while (sets * 2 < size)
+			sets <<= 1;
+
+		mSetMask = sets - 1;
+		mEntries = new Entry[sets * 2];
+	}
+
+	static int hash(int zoomLevel, int[] tagIds, int numTags) {
+		int h = 7 + zoomLevel;
+		for (int i = 0; i < numTags; i++)
+			h = 31 * h + tagIds[i];
+
+		return h ^ (h >>> 16);
+	}
+
+	Entry get(int hash, int zoomLevel, int[] tagIds, int numTags) {
+		int set = (hash & mSetMask) << 1;
+		Entry[] entries = mEntries;
+
+		Entry e = entries[set];
+		if (e != null && e.hash == hash && e.matches(zoomLevel, tagIds, numTags))
+			return e;
+
+		e = entries[set + 1];
+		if (e != null && e.hash == hash && e.matches(zoomLevel, tagIds, numTags))
+			return e;
+
+		return null;
+	}
+
+	void put(Entry e) {
+		int set = (e.hash & mSetMask) << 1;
+		Entry[] entries = mEntries;
+
+		entries[set + 1] = entries[set];
+		entries[set] = e;
+	}
+
+	void clear() {
+		for (int i = 0; i < mEntries.length; i++)
+			mEntries[i] = null;
+	}
+}
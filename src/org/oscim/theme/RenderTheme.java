@@ -15,6 +15,7 @@
 package org.oscim.theme;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
 
 import org.oscim.core.GeometryBuffer.GeometryType;
@@ -22,7 +23,7 @@ import org.oscim.core.MapElement;
 import org.oscim.theme.renderinstruction.RenderInstruction;
 import org.oscim.theme.rule.Closed;
 import org.oscim.theme.rule.Rule;
-import org.oscim.utils.LRUCache;
+import org.oscim.theme.rule.RuleIndex;
 import org.xml.sax.Attributes;
 
 import android.graphics.Color;
@@ -34,9 +35,12 @@ import android.util.Log;
 public class RenderTheme implements IRenderTheme {
 	private final static String TAG = RenderTheme.class.getName();
 
-	private static final int MATCHING_CACHE_SIZE = 512;
+	private static final int MATCHING_CACHE_SIZE = 4096;
 	private static final int RENDER_THEME_VERSION = 1;
 
+	// zoom levels with a TagFilter
+	private static final int MAX_ZOOM_LEVEL = 31;
+
 	private static void validate(String elementName, Integer version,
 			float baseStrokeWidth, float baseTextSize) {
 		if (version == null) {
@@ -88,41 +92,62 @@ public class RenderTheme implements IRenderTheme {
 
 	private int mLevels;
 	private Rule[] mRules;
+	// candidate rules by tag keys, for cache misses
+	private RuleIndex mRuleIndex;
+
+	// tags that can match rules with instructions, per zoom level
+	private TagFilter[] mTagFilters;
+
+	// all instructions of this theme, index is the instruction id
+	private RenderInstruction[] mInstructions;
+	private final IdentityHashMap<RenderInstruction, Integer> mInstructionIds =
+			new IdentityHashMap<RenderInstruction, Integer>();
+
+	// checksum of theme source, set by RenderThemeHandler
+	private int mSourceHash;
+	private float mStrokeScale = 1;
+	private float mTextScale = 1;
+
+	/**
+	 * Matching state of one loader thread. The previous element is often
+	 * matched with the same tags again, which is checked here before
+	 * looking into the shared cache.
+	 */
+	static final class MatchState {
+		final MatchingCache.Entry[] prev = new MatchingCache.Entry[3];
 
-	class ElementCache {
-		final LRUCache<MatchingCacheKey, RenderInstructionItem> cache;
-		final MatchingCacheKey cacheKey;
-
-		/* temporary matching instructions list */
-		final ArrayList<RenderInstruction> instructionList;
-
-		RenderInstructionItem prevItem;
+		// temporary matching instructions list
+		final ArrayList<RenderInstruction> matches = new ArrayList<RenderInstruction>(4);
 
-		public ElementCache() {
-			cache = new LRUCache<MatchingCacheKey, RenderInstructionItem>(MATCHING_CACHE_SIZE);
-			instructionList = new ArrayList<RenderInstruction>(4);
-			cacheKey = new MatchingCacheKey();
-		}
+		final int[] hits = new int[3];
+		final int[] misses = new int[3];
 	}
 
-	class RenderInstructionItem {
-		RenderInstructionItem next;
-		int zoom;
-		RenderInstruction[] list;
-		MatchingCacheKey key;
-	}
+	// shared cache per geometry type
+	private final MatchingCache[] mMatchingCache;
+
+	// all MatchState of this theme, for statistics
+	private final ArrayList<MatchState> mMatchStates = new ArrayList<MatchState>();
 
-	private final ElementCache[] mElementCache;
+	private final ThreadLocal<MatchState> mMatchState = new ThreadLocal<MatchState>() {
+		@Override
+		protected MatchState initialValue() {
+			MatchState state = new MatchState();
+			synchronized (mMatchStates) {
+				mMatchStates.add(state);
+			}
+			return state;
+		}
+	};
 
 	RenderTheme(int mapBackground, float baseStrokeWidth, float baseTextSize) {
 		mMapBackground = mapBackground;
 		mBaseStrokeWidth = baseStrokeWidth;
 		mBaseTextSize = baseTextSize;
 
-		mElementCache = new ElementCache[3];
+		mMatchingCache = new MatchingCache[3];
 		for (int i = 0; i < 3; i++)
-			mElementCache[i] = new ElementCache();
-
+			mMatchingCache[i] = new MatchingCache(MATCHING_CACHE_SIZE);
 	}
 
 	/*
@@ -133,7 +158,18 @@ public class RenderTheme implements IRenderTheme {
 	public void destroy() {
 
 		for (int i = 0; i < 3; i++)
-			mElementCache[i].cache.clear();
+			mMatchingCache[i].clear();
+
+		// loader threads keep their MatchState, drop its references
+		// to the instructions of this theme
+		synchronized (mMatchStates) {
+			for (MatchState state : mMatchStates) {
+				for (int i = 0; i < 3; i++)
+					state.prev[i] = null;
+			}
+			mMatchStates.clear();
+		}
+		mMatchState.remove();
 
 		if (mRules != null) {
 			for (int i = 0, n = mRules.length; i < n; i++)
@@ -161,139 +197,88 @@ public class RenderTheme implements IRenderTheme {
 
 	/*
 	 * (non-Javadoc)
-	 * @see org.oscim.theme.IRenderTheme#matchWay(org.oscim.core.Tag[], byte,
-	 * boolean)
+	 * @see org.oscim.theme.IRenderTheme#matchElement(MapElement, int)
 	 */
 	@Override
 	public RenderInstruction[] matchElement(MapElement element, int zoomLevel) {
 
-		// list of renderinsctruction items in cache
-		RenderInstructionItem ris = null;
-
-		// the item matching tags and zoomlevel
-		RenderInstructionItem ri = null;
-
 		int type = element.type.nativeInt;
 		if (type < 1 || type > 3) {
 			Log.d(TAG, "invalid geometry type for RenderTheme " + element.type.name());
 			return null;
 		}
 
-		ElementCache cache = mElementCache[type - 1];
+		MatchState state = mMatchState.get();
 
-		// NOTE: maximum zoom level supported is 32
-		int zoomMask = 1 << zoomLevel;
+		int[] tagIds = element.tagIds;
+		int numTags = element.tags.length;
 
-		synchronized (cache) {
+		// compare if tags match previous instructions
+		MatchingCache.Entry e = state.prev[type - 1];
+		if (e != null && e.matches(zoomLevel, tagIds, numTags)) {
+			state.hits[type - 1]++;
+			return e.list;
+		}
 
-			if (cache.prevItem == null || (cache.prevItem.zoom & zoomMask) == 0) {
-				// previous instructions zoom does not match
-				cache.cacheKey.set(element.tags, null);
-			} else {
-				// compare if tags match previous instructions
-				if (cache.cacheKey.set(element.tags, cache.prevItem.key)) {
-					//Log.d(TAG, "same as previous " + Arrays.deepToString(tags));
-					ri = cache.prevItem;
-				}
-			}
+		MatchingCache cache = mMatchingCache[type - 1];
+		int hash = MatchingCache.hash(zoomLevel, tagIds, numTags);
 
-			if (ri == null) {
-				ris = cache.cache.get(cache.cacheKey);
+		e = cache.get(hash, zoomLevel, tagIds, numTags);
+		if (e != null) {
+			state.hits[type - 1]++;
+		} else {
+			// cache miss, rules are not modified by matching
+			state.misses[type - 1]++;
 
-				for (ri = ris; ri != null; ri = ri.next)
-					if ((ri.zoom & zoomMask) != 0)
-						// cache hit
-						break;
-			}
+			List<RenderInstruction> matches = state.matches;
 
-			if (ri == null) {
-				// cache miss
-				//Log.d(TAG, missCnt++ + " / " + hitCnt + " Cache Miss");
+			if (element.type == GeometryType.LINE) {
+				mRuleIndex.matchWay(tagIds, numTags,
+						(byte) zoomLevel, Closed.NO, matches);
+			} else if (element.type == GeometryType.POLY) {
+				mRuleIndex.matchWay(tagIds, numTags,
+						(byte) zoomLevel, Closed.YES, matches);
+			} else {
+				mRuleIndex.matchNode(tagIds, numTags,
+						(byte) zoomLevel, matches);
+			}
 
-				List<RenderInstruction> matches = cache.instructionList;
+			RenderInstruction[] list = null;
+			int size = matches.size();
+			if (size > 0) {
+				list = new RenderInstruction[size];
+				matches.toArray(list);
 				matches.clear();
-
-				if (element.type == GeometryType.LINE) {
-					for (int i = 0, n = mRules.length; i < n; i++)
-						mRules[i].matchWay(element.tags,
-								(byte) zoomLevel, Closed.NO, matches);
-				} else if (element.type == GeometryType.POLY) {
-					for (int i = 0, n = mRules.length; i < n; i++)
-						mRules[i].matchWay(element.tags,
-								(byte) zoomLevel, Closed.YES, matches);
-				} else {
-					for (int i = 0, n = mRules.length; i < n; i++)
-						mRules[i].matchNode(element.tags,
-								(byte) zoomLevel, matches);
-				}
-
-				int size = matches.size();
-				// check if same instructions are used in another level
-				for (ri = ris; ri != null; ri = ri.next) {
-					if (size == 0) {
-						if (ri.list != null)
-							continue;
-
-						// both matchinglists are empty
-						break;
-					}
-
-					if (ri.list == null)
-						continue;
-
-					if (ri.list.length != size)
-						continue;
-
-					int i = 0;
-					for (RenderInstruction r : ri.list) {
-						if (r != matches.get(i))
-							break;
-						i++;
-					}
-					if (i == size)
-						// both matching lists contain the same items
-						break;
-				}
-
-				if (ri != null) {
-					// we found a same matchting list on another zoomlevel add
-					// this zoom level to the existing RenderInstructionItem.
-					ri.zoom |= zoomMask;
-
-					//Log.d(TAG,
-					//		zoomLevel + " same instructions " + size + " "
-					//				+ Arrays.deepToString(tags));
-				} else {
-					//Log.d(TAG,
-					//		zoomLevel + " new instructions " + size + " "
-					//				+ Arrays.deepToString(tags));
-
-					ri = new RenderInstructionItem();
-					ri.zoom = zoomMask;
-
-					if (size > 0) {
-						ri.list = new RenderInstruction[size];
-						matches.toArray(ri.list);
-					}
-
-					// attach this list to the one found for MatchingKey
-					if (ris != null) {
-						ri.next = ris.next;
-						ri.key = ris.key;
-						ris.next = ri;
-					} else {
-						ri.key = new MatchingCacheKey(cache.cacheKey);
-						cache.cache.put(ri.key, ri);
-					}
-				}
 			}
 
-			cache.prevItem = ri;
+			e = new MatchingCache.Entry(hash, zoomLevel, tagIds, numTags, list);
+			cache.put(e);
 		}
 
-		return ri.list;
+		state.prev[type - 1] = e;
+
+		return e.list;
 	}
 
+	@Override
+	public int getCacheHits(GeometryType type) {
+		int sum = 0;
+		synchronized (mMatchStates) {
+			for (MatchState state : mMatchStates)
+				sum += state.hits[type.nativeInt - 1];
+		}
+		return sum;
+	}
+
+	@Override
+	public int getCacheMisses(GeometryType type) {
+		int sum = 0;
+		synchronized (mMatchStates) {
+			for (MatchState state : mMatchStates)
+				sum += state.misses[type.nativeInt - 1];
+		}
+		return sum;
+	}
 
 	void complete(List<Rule> rulesList, int levels) {
 		mLevels = levels;
@@ -304,6 +289,74 @@ public class RenderTheme implements IRenderTheme {
 		for (int i = 0, n = mRules.length; i < n; i++) {
 			mRules[i].onComplete();
 		}
+
+		mRuleIndex = new RuleIndex(mRules);
+
+		ArrayList<RenderInstruction> list = new ArrayList<RenderInstruction>();
+		for (int i = 0, n = mRules.length; i < n; i++)
+			mRules[i].getRenderInstructions(list);
+
+		// instructions can be shared by rules
+		mInstructionIds.clear();
+		int id = 0;
+		for (RenderInstruction ri : list)
+			if (!mInstructionIds.containsKey(ri))
+				mInstructionIds.put(ri, Integer.valueOf(id++));
+
+		mInstructions = new RenderInstruction[id];
+		for (RenderInstruction ri : mInstructionIds.keySet())
+			mInstructions[mInstructionIds.get(ri).intValue()] = ri;
+
+		mTagFilters = new TagFilter[MAX_ZOOM_LEVEL + 1];
+		for (int z = 0; z <= MAX_ZOOM_LEVEL; z++) {
+			TagFilter.TagSet nodes = new TagFilter.TagSet();
+			TagFilter.TagSet ways = new TagFilter.TagSet();
+
+			for (int i = 0, n = mRules.length; i < n; i++) {
+				mRules[i].addFilter(nodes, (byte) z, false);
+				mRules[i].addFilter(ways, (byte) z, true);
+			}
+			mTagFilters[z] = new TagFilter(nodes, ways);
+		}
+	}
+
+	@Override
+	public TagFilter getTagFilter(int zoomLevel) {
+		if (zoomLevel < 0 || zoomLevel > MAX_ZOOM_LEVEL)
+			return null;
+
+		return mTagFilters[zoomLevel];
+	}
+
+	void setSourceHash(int hash) {
+		mSourceHash = hash;
+	}
+
+	@Override
+	public int getRenderInstructionId(RenderInstruction ri) {
+		Integer id = mInstructionIds.get(ri);
+		if (id == null)
+			return -1;
+
+		return id.intValue();
+	}
+
+	@Override
+	public RenderInstruction getRenderInstruction(int id) {
+		if (id < 0 || id >= mInstructions.length)
+			return null;
+
+		return mInstructions[id];
+	}
+
+	@Override
+	public int getThemeHash() {
+		int hash = mSourceHash;
+		hash = 31 * hash + mLevels;
+		hash = 31 * hash + mInstructions.length;
+		hash = 31 * hash + Float.floatToIntBits(mStrokeScale);
+		hash = 31 * hash + Float.floatToIntBits(mTextScale);
+		return hash;
 	}
 
 	/*
@@ -312,6 +365,7 @@ public class RenderTheme implements IRenderTheme {
 	 */
 	@Override
 	public void scaleStrokeWidth(float scaleFactor) {
+		mStrokeScale = scaleFactor;
 
 		for (int i = 0, n = mRules.length; i < n; i++)
 			mRules[i].scaleStrokeWidth(scaleFactor * mBaseStrokeWidth);
@@ -323,6 +377,7 @@ public class RenderTheme implements IRenderTheme {
 	 */
 	@Override
 	public void scaleTextSize(float scaleFactor) {
+		mTextScale = scaleFactor;
 
 		for (int i = 0, n = mRules.length; i < n; i++)
 			mRules[i].scaleTextSize(scaleFactor * mBaseTextSize);
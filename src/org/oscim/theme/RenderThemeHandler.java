@@ -20,6 +20,8 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Stack;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
@@ -83,8 +85,14 @@ public class RenderThemeHandler extends DefaultHandler {
 		XMLReader xmlReader = SAXParserFactory.newInstance().newSAXParser()
 				.getXMLReader();
 		xmlReader.setContentHandler(renderThemeHandler);
-		xmlReader.parse(new InputSource(inputStream));
-		return renderThemeHandler.mRenderTheme;
+
+		// checksum of the theme to identify tile data styled with it
+		CheckedInputStream in = new CheckedInputStream(inputStream, new CRC32());
+		xmlReader.parse(new InputSource(in));
+
+		RenderTheme theme = renderThemeHandler.mRenderTheme;
+		theme.setSourceHash((int) in.getChecksum().getValue());
+		return theme;
 	}
 
 	/**
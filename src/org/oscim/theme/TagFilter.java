@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.theme;
+
+import org.oscim.core.Tag;
+
+/**
+ * Tag keys and values of elements that can match a rule with render
+ * instructions at one zoom level. Elements that have none of them will
+ * never be drawn, so map readers can skip them before decoding their
+ * geometry.
+ *
+ * The filter is conservative: it may accept elements that do not match
+ * any rule but never rejects one that does. Like the rule matchers it
+ * compares interned strings by identity.
+ */
+public final class TagFilter {
+
+	/**
+	 * Keys and values of one element type.
+	 */
+	public static final class TagSet {
+		private boolean mAll;
+		private String[] mKeys = new String[16];
+		private int mNumKeys;
+		private String[] mValues = new String[16];
+		private int mNumValues;
+
+		/**
+		 * Accept all elements, e.g. for a rule that matches without
+		 * conditions on the tags.
+		 */
+		public void addAll() {
+			mAll = true;
+		}
+
+		public void addKey(String key) {
+			if (key == null || contains(mKeys, key))
+				return;
+
+			if (++mNumKeys * 2 > mKeys.length)
+				mKeys = rehash(mKeys);
+
+			insert(mKeys, key);
+		}
+
+		public void addValue(String value) {
+			if (value == null || contains(mValues, value))
+				return;
+
+			if (++mNumValues * 2 > mValues.length)
+				mValues = rehash(mValues);
+
+			insert(mValues, value);
+		}
+
+		boolean matches(Tag tag) {
+			return mAll || contains(mKeys, tag.key) || contains(mValues, tag.value);
+		}
+
+		boolean matches(Tag[] tags) {
+			if (mAll)
+				return true;
+
+			for (int i = 0, n = tags.length; i < n; i++)
+				if (contains(mKeys, tags[i].key) || contains(mValues, tags[i].value))
+					return true;
+
+			return false;
+		}
+
+		private static boolean contains(String[] table, String s) {
+			if (s == null)
+				return false;
+
+			int mask = table.length - 1;
+			for (int i = System.identityHashCode(s) & mask;; i = (i + 1) & mask) {
+				String e = table[i];
+				if (e == s)
+					return true;
+				if (e == null)
+					return false;
+			}
+		}
+
+		private static void insert(String[] table, String s) {
+			int mask = table.length - 1;
+			int i = System.identityHashCode(s) & mask;
+			while (table[i] != null)
+				i = (i + 1) & mask;
+			table[i] = s;
+		}
+
+		private static String[] rehash(String[] table) {
+			String[] tmp = new String[table.length * 2];
+			for (String s : table)
+				if (s != null)
+					insert(tmp, s);
+			return tmp;
+		}
+	}
+
+	private final TagSet mNodes;
+	private final TagSet mWays;
+
+	TagFilter(TagSet nodes, TagSet ways) {
+		mNodes = nodes;
+		mWays = ways;
+	}
+
+	/**
+	 * @return true when a node with tags may be drawn
+	 */
+	public boolean matchesNode(Tag[] tags) {
+		return mNodes.matches(tags);
+	}
+
+	/**
+	 * @return true when a way with tags may be drawn
+	 */
+	public boolean matchesWay(Tag[] tags) {
+		return mWays.matches(tags);
+	}
+
+	/**
+	 * @return true when a node with this tag may be drawn, regardless of
+	 *         its other tags
+	 */
+	public boolean matchesNode(Tag tag) {
+		return mNodes.matches(tag);
+	}
+
+	/**
+	 * @return true when a way with this tag may be drawn, regardless of
+	 *         its other tags
+	 */
+	public boolean matchesWay(Tag tag) {
+		return mWays.matches(tag);
+	}
+}
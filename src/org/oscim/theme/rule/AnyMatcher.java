@@ -14,8 +14,6 @@
  */
 package org.oscim.theme.rule;
 
-import org.oscim.core.Tag;
-
 final class AnyMatcher implements AttributeMatcher {
 	private static final AnyMatcher INSTANCE = new AnyMatcher();
 
@@ -36,7 +34,7 @@ final class AnyMatcher implements AttributeMatcher {
 	}
 
 	@Override
-	public boolean matches(Tag[] tags) {
+	public boolean matches(int[] tagIds, int numTags) {
 		return true;
 	}
 }
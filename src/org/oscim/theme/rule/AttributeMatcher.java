@@ -14,10 +14,14 @@
  */
 package org.oscim.theme.rule;
 
-import org.oscim.core.Tag;
-
 interface AttributeMatcher {
 	boolean isCoveredBy(AttributeMatcher attributeMatcher);
 
-	boolean matches(Tag[] tags);
+	/**
+	 * @param tagIds
+	 *            ids of tags, see TagIndex
+	 * @param numTags
+	 *            number of valid ids
+	 */
+	boolean matches(int[] tagIds, int numTags);
 }
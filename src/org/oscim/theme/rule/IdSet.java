@@ -12,34 +12,28 @@
  * You should have received a copy of the GNU Lesser General Public License along with
  * this program. If not, see <http://www.gnu.org/licenses/>.
  */
-package org.oscim.utils.quadtree;
+package org.oscim.theme.rule;
 
-public class QuadTree<T> {
-	public QuadTree<T> parent;
-	public QuadTree<T> child00;
-	public QuadTree<T> child10;
-	public QuadTree<T> child01;
-	public QuadTree<T> child11;
-
-	public T item;
+/**
+ * Bitset of TagIndex ids for matching. Id 0, for strings that are not
+ * registered, is never contained.
+ */
+final class IdSet {
+	private final long[] mBits;
 
-	// id of this child relative to parent
-	byte id;
+	IdSet(int[] ids) {
+		int max = 0;
+		for (int id : ids)
+			max = Math.max(max, id);
 
-	// number of children and grandchildren
-	int refs = 0;
+		mBits = new long[(max >> 6) + 1];
+		for (int id : ids)
+			if (id > 0)
+				mBits[id >> 6] |= 1L << id;
+	}
 
-	public T get(int i){
-		switch (i) {
-			case 0:
-				return (child00 != null) ? child00.item : null;
-			case 1:
-				return (child01 != null) ? child01.item : null;
-			case 2:
-				return (child10 != null) ? child10.item : null;
-			case 3:
-				return (child11 != null) ? child11.item : null;
-		}
-		return null;
+	boolean contains(int id) {
+		int i = id >> 6;
+		return i < mBits.length && (mBits[i] & (1L << id)) != 0;
 	}
 }
@@ -16,16 +16,22 @@ package org.oscim.theme.rule;
 
 import java.util.List;
 
-import org.oscim.core.Tag;
+import org.oscim.core.StringPool;
+import org.oscim.core.TagIndex;
 
 class MultiKeyMatcher implements AttributeMatcher {
-	private final String[] mKeys;
+	final String[] mKeys;
+	final IdSet mKeyIds;
 
 	MultiKeyMatcher(List<String> keys) {
+		StringPool pool = StringPool.getInstance();
 		mKeys = new String[keys.size()];
+		int[] ids = new int[mKeys.length];
 		for (int i = 0, n = mKeys.length; i < n; ++i) {
-			mKeys[i] = keys.get(i).intern();
+			mKeys[i] = pool.intern(keys.get(i));
+			ids[i] = TagIndex.registerKey(mKeys[i]);
 		}
+		mKeyIds = new IdSet(ids);
 	}
 
 	@Override
@@ -34,20 +40,18 @@ class MultiKeyMatcher implements AttributeMatcher {
 			return true;
 		}
 
-		Tag[] tags = new Tag[mKeys.length];
-		int i = 0;
-		for (String key : mKeys) {
-			tags[i++] = new Tag(key, null);
-		}
-		return attributeMatcher.matches(tags);
+		int[] tagIds = new int[mKeys.length];
+		for (int i = 0; i < tagIds.length; i++)
+			tagIds[i] = TagIndex.id(TagIndex.getKeyId(mKeys[i]), 0);
+
+		return attributeMatcher.matches(tagIds, tagIds.length);
 	}
 
 	@Override
-	public boolean matches(Tag[] tags) {
-		for (Tag tag : tags)
-			for (String key : mKeys)
-				if (key == tag.key)
-					return true;
+	public boolean matches(int[] tagIds, int numTags) {
+		for (int i = 0; i < numTags; i++)
+			if (mKeyIds.contains(TagIndex.key(tagIds[i])))
+				return true;
 
 		return false;
 	}
@@ -16,16 +16,22 @@ package org.oscim.theme.rule;
 
 import java.util.List;
 
-import org.oscim.core.Tag;
+import org.oscim.core.StringPool;
+import org.oscim.core.TagIndex;
 
 class MultiValueMatcher implements AttributeMatcher {
-	private final String[] mValues;
+	final String[] mValues;
+	final IdSet mValueIds;
 
 	MultiValueMatcher(List<String> values) {
+		StringPool pool = StringPool.getInstance();
 		mValues = new String[values.size()];
+		int[] ids = new int[mValues.length];
 		for (int i = 0, n = mValues.length; i < n; ++i) {
-			mValues[i] = values.get(i).intern();
+			mValues[i] = pool.intern(values.get(i));
+			ids[i] = TagIndex.registerValue(mValues[i]);
 		}
+		mValueIds = new IdSet(ids);
 	}
 
 	@Override
@@ -33,21 +39,19 @@ class MultiValueMatcher implements AttributeMatcher {
 		if (attributeMatcher == this) {
 			return true;
 		}
-		Tag[] tags = new Tag[mValues.length];
 
-		int i = 0;
-		for (String val : mValues) {
-			tags[i++] = new Tag(null, val);
-		}
-		return attributeMatcher.matches(tags);
+		int[] tagIds = new int[mValues.length];
+		for (int i = 0; i < tagIds.length; i++)
+			tagIds[i] = TagIndex.id(0, TagIndex.getValueId(mValues[i]));
+
+		return attributeMatcher.matches(tagIds, tagIds.length);
 	}
 
 	@Override
-	public boolean matches(Tag[] tags) {
-		for (Tag tag : tags)
-			for (String val : mValues)
-				if (val == tag.value)
-					return true;
+	public boolean matches(int[] tagIds, int numTags) {
+		for (int i = 0; i < numTags; i++)
+			if (mValueIds.contains(TagIndex.value(tagIds[i])))
+				return true;
 
 		return false;
 	}
@@ -16,21 +16,26 @@ package org.oscim.theme.rule;
 
 import java.util.List;
 
-import org.oscim.core.Tag;
+import org.oscim.core.StringPool;
+import org.oscim.core.TagIndex;
 
 class NegativeMatcher implements AttributeMatcher {
-	private final String[] mKeyList;
-	private final String[] mValueList;
+	private final IdSet mKeyIds;
+	private final IdSet mValueIds;
 	private final boolean mExclusive;
 
 	NegativeMatcher(List<String> keyList, List<String> valueList, boolean exclusive) {
-		mKeyList = new String[keyList.size()];
-		for (int i = 0; i < mKeyList.length; i++)
-			mKeyList[i] = keyList.get(i).intern();
+		StringPool pool = StringPool.getInstance();
 
-		mValueList = new String[valueList.size()];
-		for (int i = 0; i < mValueList.length; i++)
-			mValueList[i] = valueList.get(i).intern();
+		int[] ids = new int[keyList.size()];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = TagIndex.registerKey(pool.intern(keyList.get(i)));
+		mKeyIds = new IdSet(ids);
+
+		ids = new int[valueList.size()];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = TagIndex.registerValue(pool.intern(valueList.get(i)));
+		mValueIds = new IdSet(ids);
 
 		mExclusive = exclusive;
 	}
@@ -41,26 +46,23 @@ class NegativeMatcher implements AttributeMatcher {
 	}
 
 	@Override
-	public boolean matches(Tag[] tags) {
-		if (keyListDoesNotContainKeys(tags)) {
+	public boolean matches(int[] tagIds, int numTags) {
+		if (keyListDoesNotContainKeys(tagIds, numTags)) {
 			return true;
 		}
 
-		for (Tag tag : tags) {
-			for (String value : mValueList)
-				if (value == tag.value)
-					return !mExclusive;
-		}
+		for (int i = 0; i < numTags; i++)
+			if (mValueIds.contains(TagIndex.value(tagIds[i])))
+				return !mExclusive;
+
 		return mExclusive;
 	}
 
-	private boolean keyListDoesNotContainKeys(Tag[] tags) {
-		for (Tag tag : tags) {
-			for (String key : mKeyList)
-				if (key == tag.key)
-					return false;
+	private boolean keyListDoesNotContainKeys(int[] tagIds, int numTags) {
+		for (int i = 0; i < numTags; i++)
+			if (mKeyIds.contains(TagIndex.key(tagIds[i])))
+				return false;
 
-		}
 		return true;
 	}
 }
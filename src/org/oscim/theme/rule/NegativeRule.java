@@ -14,7 +14,7 @@
  */
 package org.oscim.theme.rule;
 
-import org.oscim.core.Tag;
+import org.oscim.theme.TagFilter;
 
 class NegativeRule extends Rule {
 	final AttributeMatcher mAttributeMatcher;
@@ -27,12 +27,18 @@ class NegativeRule extends Rule {
 	}
 
 	@Override
-	boolean matchesNode(Tag[] tags) {
-		return mAttributeMatcher.matches(tags);
+	boolean matchesNode(int[] tagIds, int numTags) {
+		return mAttributeMatcher.matches(tagIds, numTags);
 	}
 
 	@Override
-	boolean matchesWay(Tag[] tags) {
-		return mAttributeMatcher.matches(tags);
+	boolean matchesWay(int[] tagIds, int numTags) {
+		return mAttributeMatcher.matches(tagIds, numTags);
+	}
+
+	@Override
+	boolean addCondition(TagFilter.TagSet set) {
+		// matches elements without the keys
+		return false;
 	}
 }
@@ -14,7 +14,8 @@
  */
 package org.oscim.theme.rule;
 
-import org.oscim.core.Tag;
+import org.oscim.core.TagIndex;
+import org.oscim.theme.TagFilter;
 
 class PositiveRule extends Rule {
 	final AttributeMatcher mKeyMatcher;
@@ -36,14 +37,52 @@ class PositiveRule extends Rule {
 	}
 
 	@Override
-	boolean matchesNode(Tag[] tags) {
-		return (mKeyMatcher == null || mKeyMatcher.matches(tags))
-				&& (mValueMatcher == null || mValueMatcher.matches(tags));
+	boolean matchesNode(int[] tagIds, int numTags) {
+		return (mKeyMatcher == null || mKeyMatcher.matches(tagIds, numTags))
+				&& (mValueMatcher == null || mValueMatcher.matches(tagIds, numTags));
 	}
 
 	@Override
-	boolean matchesWay(Tag[] tags) {
-		return (mKeyMatcher == null || mKeyMatcher.matches(tags)) &&
-				(mValueMatcher == null || mValueMatcher.matches(tags));
+	boolean matchesWay(int[] tagIds, int numTags) {
+		return (mKeyMatcher == null || mKeyMatcher.matches(tagIds, numTags)) &&
+				(mValueMatcher == null || mValueMatcher.matches(tagIds, numTags));
+	}
+
+	@Override
+	boolean addCondition(TagFilter.TagSet set) {
+		if (mKeyMatcher instanceof SingleKeyMatcher) {
+			set.addKey(((SingleKeyMatcher) mKeyMatcher).mKey);
+			return true;
+		}
+		if (mKeyMatcher instanceof MultiKeyMatcher) {
+			for (String key : ((MultiKeyMatcher) mKeyMatcher).mKeys)
+				set.addKey(key);
+			return true;
+		}
+		if (mValueMatcher instanceof SingleValueMatcher) {
+			set.addValue(((SingleValueMatcher) mValueMatcher).mValue);
+			return true;
+		}
+		if (mValueMatcher instanceof MultiValueMatcher) {
+			for (String value : ((MultiValueMatcher) mValueMatcher).mValues)
+				set.addValue(value);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	int[] getRequiredKeys() {
+		if (mKeyMatcher instanceof SingleKeyMatcher)
+			return new int[] { ((SingleKeyMatcher) mKeyMatcher).mKeyId };
+
+		if (mKeyMatcher instanceof MultiKeyMatcher) {
+			String[] keys = ((MultiKeyMatcher) mKeyMatcher).mKeys;
+			int[] ids = new int[keys.length];
+			for (int i = 0; i < keys.length; i++)
+				ids[i] = TagIndex.getKeyId(keys[i]);
+			return ids;
+		}
+		return null;
 	}
 }
@@ -23,8 +23,9 @@ import java.util.Map;
 import java.util.Stack;
 import java.util.regex.Pattern;
 
-import org.oscim.core.Tag;
+import org.oscim.core.TagIndex;
 import org.oscim.theme.RenderThemeHandler;
+import org.oscim.theme.TagFilter;
 import org.oscim.theme.renderinstruction.RenderInstruction;
 import org.xml.sax.Attributes;
 
@@ -40,10 +41,15 @@ public abstract class Rule {
 			String values, int closed,
 			byte zoomMin, byte zoomMax) {
 
-		List<String> keyList = new ArrayList<String>(Arrays.asList(SPLIT_PATTERN
-				.split(keys)));
-		List<String> valueList = new ArrayList<String>(Arrays.asList(SPLIT_PATTERN
-				.split(values)));
+		String[] keyArray = SPLIT_PATTERN.split(keys);
+		String[] valueArray = SPLIT_PATTERN.split(values);
+
+		// register strings of the rule at once for the matchers, which
+		// then only look up their ids
+		TagIndex.register(keyArray, valueArray);
+
+		List<String> keyList = new ArrayList<String>(Arrays.asList(keyArray));
+		List<String> valueList = new ArrayList<String>(Arrays.asList(valueArray));
 
 		if (valueList.remove(STRING_NEGATION)) {
 			AttributeMatcher attributeMatcher = new NegativeMatcher(keyList, valueList,
@@ -167,6 +173,7 @@ public abstract class Rule {
 	private ArrayList<Rule> mSubRules;
 
 	private Rule[] mSubRuleArray;
+	private RuleIndex mSubRuleIndex;
 	private RenderInstruction[] mRenderInstructionArray;
 
 	final byte mZoomMax;
@@ -193,47 +200,103 @@ public abstract class Rule {
 		mSubRules.add(rule);
 	}
 
-	abstract boolean matchesNode(Tag[] tags);
+	abstract boolean matchesNode(int[] tagIds, int numTags);
+
+	abstract boolean matchesWay(int[] tagIds, int numTags);
 
-	abstract boolean matchesWay(Tag[] tags);
+	/**
+	 * Add the keys or values of which an element matching this rule must
+	 * have at least one to 'set'.
+	 *
+	 * @return false when the rule does not require any
+	 */
+	abstract boolean addCondition(TagFilter.TagSet set);
 
-	public void matchNode(Tag[] tags, byte zoomLevel,
+	/**
+	 * @return ids of keys of which an element matching this rule must have
+	 *         at least one, null when the rule does not require any.
+	 */
+	int[] getRequiredKeys() {
+		return null;
+	}
+
+	/**
+	 * Add render instructions of this rule and its subrules matching a
+	 * node with tagIds, see TagIndex, to 'matchingList'.
+	 */
+	public void matchNode(int[] tagIds, int numTags, byte zoomLevel,
 			List<RenderInstruction> matchingList) {
 		if ((mElement != Element.WAY)
 				&& mZoomMin <= zoomLevel
 				&& mZoomMax >= zoomLevel
-				&& matchesNode(tags)) {
+				&& matchesNode(tagIds, numTags)) {
 
 			for (int i = 0, n = mRenderInstructionArray.length; i < n; i++)
 				matchingList.add(mRenderInstructionArray[i]);
 
-			for (int i = 0, n = mSubRuleArray.length; i < n; i++)
-				mSubRuleArray[i].matchNode(tags, zoomLevel, matchingList);
+			mSubRuleIndex.matchNode(tagIds, numTags, zoomLevel, matchingList);
 
 		}
 	}
 
-	public void matchWay(Tag[] tags, byte zoomLevel,
+	public void matchWay(int[] tagIds, int numTags, byte zoomLevel,
 			int closed, List<RenderInstruction> matchingList) {
 
 		if ((mElement != Element.NODE)
 				&& mZoomMin <= zoomLevel
 				&& mZoomMax >= zoomLevel
 				&& (mClosed == closed || mClosed == Closed.ANY)
-				&& (matchesWay(tags))) {
+				&& (matchesWay(tagIds, numTags))) {
 
 			// add instructions for this rule
 			for (int i = 0, n = mRenderInstructionArray.length; i < n; i++)
 				matchingList.add(mRenderInstructionArray[i]);
 
 			// check subrules
-			for (int i = 0, n = mSubRuleArray.length; i < n; i++)
-				mSubRuleArray[i].matchWay(tags, zoomLevel, closed,
-						matchingList);
+			mSubRuleIndex.matchWay(tagIds, numTags, zoomLevel, closed,
+					matchingList);
 
 		}
 	}
 
+	/**
+	 * Add the tags of which an element must have at least one to get
+	 * render instructions of this rule or its subrules at zoomLevel to
+	 * 'set'. Only valid after onComplete().
+	 */
+	public void addFilter(TagFilter.TagSet set, byte zoomLevel, boolean way) {
+		if (!isRenderable(zoomLevel, way))
+			return;
+
+		// the condition of this rule also holds for all subrules
+		if (addCondition(set))
+			return;
+
+		if (mRenderInstructionArray.length > 0) {
+			set.addAll();
+			return;
+		}
+
+		for (int i = 0, n = mSubRuleArray.length; i < n; i++)
+			mSubRuleArray[i].addFilter(set, zoomLevel, way);
+	}
+
+	private boolean isRenderable(byte zoomLevel, boolean way) {
+		if (mElement == (way ? Element.NODE : Element.WAY)
+				|| mZoomMin > zoomLevel
+				|| mZoomMax < zoomLevel)
+			return false;
+
+		if (mRenderInstructionArray.length > 0)
+			return true;
+
+		for (int i = 0, n = mSubRuleArray.length; i < n; i++)
+			if (mSubRuleArray[i].isRenderable(zoomLevel, way))
+				return true;
+
+		return false;
+	}
+
 	public void onComplete() {
 		MATCHERS_CACHE_KEY.clear();
 		MATCHERS_CACHE_VALUE.clear();
@@ -252,6 +315,20 @@ public abstract class Rule {
 		for (int i = 0, n = mSubRuleArray.length; i < n; i++)
 			mSubRuleArray[i].onComplete();
 
+		mSubRuleIndex = new RuleIndex(mSubRuleArray);
+
+	}
+
+	/**
+	 * Add render instructions of this rule and its subrules to 'list', in
+	 * the order of the theme. Only valid after onComplete().
+	 */
+	public void getRenderInstructions(List<RenderInstruction> list) {
+		for (int i = 0, n = mRenderInstructionArray.length; i < n; i++)
+			list.add(mRenderInstructionArray[i]);
+
+		for (int i = 0, n = mSubRuleArray.length; i < n; i++)
+			mSubRuleArray[i].getRenderInstructions(list);
 	}
 
 	public void onDestroy() {
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.theme.rule;
+
+import java.util.List;
+
+import org.oscim.core.TagIndex;
+import org.oscim.theme.renderinstruction.RenderInstruction;
+
+/**
+ * Dispatch table for the rules of one level of the rule tree, i.e. the
+ * top-level rules of a theme or the subrules of a rule.
+ *
+ * Rules are kept in bitsets, in theme order. A rule that requires one of
+ * some keys is only in the bitsets of those keys, all other rules are
+ * always candidates. Element type, closed and zoom level of the rules are
+ * encoded in one more bitset per combination. Matching then evaluates only
+ * the candidates for the keys of the element, in theme order, so that the
+ * result is the same as evaluating all rules.
+ */
+public final class RuleIndex {
+	// element types for mTypeZoom
+	private static final int NODE = 0;
+	private static final int LINE = 1;
+	private static final int POLY = 2;
+
+	// zoom levels with a bitset, rules are not filtered by zoom above
+	private static final int MAX_ZOOM = 31;
+
+	private final Rule[] mRules;
+	private final int mWords;
+
+	// rules per key id, null when no rule requires the key
+	private final long[][] mKeyRules;
+	// rules without required keys
+	private final long[] mAnyRules;
+	// rules matching type and zoom level, index is type * (MAX_ZOOM + 1) + zoom
+	private final long[][] mTypeZoom;
+
+	public RuleIndex(Rule[] rules) {
+		mRules = rules;
+		mWords = (rules.length + 63) >> 6;
+
+		int maxKey = 0;
+		for (Rule r : rules) {
+			int[] keys = r.getRequiredKeys();
+			if (keys != null)
+				for (int k : keys)
+					maxKey = Math.max(maxKey, k);
+		}
+
+		mKeyRules = new long[maxKey + 1][];
+		mAnyRules = new long[mWords];
+		mTypeZoom = new long[3 * (MAX_ZOOM + 1)][];
+
+		for (int i = 0; i < mTypeZoom.length; i++)
+			mTypeZoom[i] = new long[mWords];
+
+		for (int i = 0; i < rules.length; i++) {
+			Rule r = rules[i];
+			int word = i >> 6;
+			long bit = 1L << i;
+
+			int[] keys = r.getRequiredKeys();
+			if (keys == null) {
+				mAnyRules[word] |= bit;
+			} else {
+				for (int k : keys) {
+					// rule cannot match by a key that is not registered
+					if (k == 0)
+						continue;
+					if (mKeyRules[k] == null)
+						mKeyRules[k] = new long[mWords];
+					mKeyRules[k][word] |= bit;
+				}
+			}
+
+			for (int z = r.mZoomMin; z <= r.mZoomMax && z <= MAX_ZOOM; z++) {
+				if (r.mElement != Element.WAY)
+					mTypeZoom[NODE * (MAX_ZOOM + 1) + z][word] |= bit;
+
+				if (r.mElement != Element.NODE) {
+					if (r.mClosed != Closed.YES)
+						mTypeZoom[LINE * (MAX_ZOOM + 1) + z][word] |= bit;
+					if (r.mClosed != Closed.NO)
+						mTypeZoom[POLY * (MAX_ZOOM + 1) + z][word] |= bit;
+				}
+			}
+		}
+	}
+
+	public void matchNode(int[] tagIds, int numTags, byte zoomLevel,
+			List<RenderInstruction> matchingList) {
+		long[] typeZoom = getTypeZoom(NODE, zoomLevel);
+
+		for (int w = 0; w < mWords; w++) {
+			long bits = getCandidates(w, tagIds, numTags);
+			if (typeZoom != null)
+				bits &= typeZoom[w];
+
+			while (bits != 0) {
+				int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				mRules[i].matchNode(tagIds, numTags, zoomLevel, matchingList);
+			}
+		}
+	}
+
+	public void matchWay(int[] tagIds, int numTags, byte zoomLevel, int closed,
+			List<RenderInstruction> matchingList) {
+		long[] typeZoom = getTypeZoom(closed == Closed.YES ? POLY : LINE, zoomLevel);
+
+		for (int w = 0; w < mWords; w++) {
+			long bits = getCandidates(w, tagIds, numTags);
+			if (typeZoom != null)
+				bits &= typeZoom[w];
+
+			while (bits != 0) {
+				int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				mRules[i].matchWay(tagIds, numTags, zoomLevel, closed, matchingList);
+			}
+		}
+	}
+
+	private long[] getTypeZoom(int type, byte zoomLevel) {
+		if (zoomLevel < 0 || zoomLevel > MAX_ZOOM)
+			return null;
+
+		return mTypeZoom[type * (MAX_ZOOM + 1) + zoomLevel];
+	}
+
+	/**
+	 * @return rules of word w which can match an element with tagIds
+	 */
+	private long getCandidates(int w, int[] tagIds, int numTags) {
+		long[][] keyRules = mKeyRules;
+		long bits = mAnyRules[w];
+
+		for (int i = 0; i < numTags; i++) {
+			int k = TagIndex.key(tagIds[i]);
+			if (k < keyRules.length && keyRules[k] != null)
+				bits |= keyRules[k][w];
+		}
+		return bits;
+	}
+}
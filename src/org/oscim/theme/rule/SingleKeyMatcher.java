@@ -14,26 +14,33 @@
  */
 package org.oscim.theme.rule;
 
-import org.oscim.core.Tag;
+import org.oscim.core.StringPool;
+import org.oscim.core.TagIndex;
 
 class SingleKeyMatcher implements AttributeMatcher {
-	private final String mKey;
+	final String mKey;
+	final int mKeyId;
 
 	SingleKeyMatcher(String key) {
-		mKey = key.intern();
+		mKey = StringPool.getInstance().intern(key);
+		mKeyId = TagIndex.registerKey(mKey);
 	}
 
 	@Override
 	public boolean isCoveredBy(AttributeMatcher attributeMatcher) {
-		Tag[] tags = { new Tag(mKey, null) };
+		int[] tagIds = { TagIndex.id(mKeyId, 0) };
 
-		return attributeMatcher == this || attributeMatcher.matches(tags);
+		return attributeMatcher == this || attributeMatcher.matches(tagIds, 1);
 	}
 
 	@Override
-	public boolean matches(Tag[] tags) {
-		for (Tag tag : tags)
-			if (mKey == tag.key)
+	public boolean matches(int[] tagIds, int numTags) {
+		// id 0 is of strings that are not registered
+		if (mKeyId == 0)
+			return false;
+
+		for (int i = 0; i < numTags; i++)
+			if (TagIndex.key(tagIds[i]) == mKeyId)
 				return true;
 
 		return false;
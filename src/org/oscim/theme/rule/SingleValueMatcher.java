@@ -14,26 +14,33 @@
  */
 package org.oscim.theme.rule;
 
-import org.oscim.core.Tag;
+import org.oscim.core.StringPool;
+import org.oscim.core.TagIndex;
 
 class SingleValueMatcher implements AttributeMatcher {
-	private final String mValue;
+	final String mValue;
+	final int mValueId;
 
 	SingleValueMatcher(String value) {
-		mValue = value.intern();
+		mValue = StringPool.getInstance().intern(value);
+		mValueId = TagIndex.registerValue(mValue);
 	}
 
 	@Override
 	public boolean isCoveredBy(AttributeMatcher attributeMatcher) {
-		Tag[] tags = { new Tag(null, mValue) };
+		int[] tagIds = { TagIndex.id(0, mValueId) };
 
-		return attributeMatcher == this || attributeMatcher.matches(tags);
+		return attributeMatcher == this || attributeMatcher.matches(tagIds, 1);
 	}
 
 	@Override
-	public boolean matches(Tag[] tags) {
-		for (Tag tag : tags)
-			if (mValue == tag.value)
+	public boolean matches(int[] tagIds, int numTags) {
+		// id 0 is of strings that are not registered
+		if (mValueId == 0)
+			return false;
+
+		for (int i = 0; i < numTags; i++)
+			if (TagIndex.value(tagIds[i]) == mValueId)
 				return true;
 
 		return false;
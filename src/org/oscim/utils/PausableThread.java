@@ -20,6 +20,7 @@ package org.oscim.utils;
 public abstract class PausableThread extends Thread {
 	private boolean mPausing = true;
 	private boolean mShouldPause;
+	private boolean mWaiting;
 
 	/**
 	 * Causes the current thread to wait until this thread is pausing.
@@ -52,6 +53,21 @@ public abstract class PausableThread extends Thread {
 		return mPausing;
 	}
 
+	/**
+	 * Wake up the thread when it is waiting for work.
+	 *
+	 * @return true if the thread was waiting, false if it is busy or paused.
+	 */
+	public final synchronized boolean wakeUp() {
+		if (!mWaiting || mShouldPause)
+			return false;
+
+		mWaiting = false;
+		// awaitPausing() may wait on this monitor as well
+		notifyAll();
+		return true;
+	}
+
 	/**
 	 * The thread should stop its work temporarily.
 	 */
@@ -86,10 +102,13 @@ public abstract class PausableThread extends Thread {
 						if (mShouldPause) {
 							mPausing = true;
 						}
+						mWaiting = true;
 						wait();
 					} catch (InterruptedException e) {
 						// restore the interrupted status
 						interrupt();
+					} finally {
+						mWaiting = false;
 					}
 				}
 			}
@@ -22,7 +22,7 @@ public class Inlist<T extends Inlist<T>> {
 
 	public T next;
 
-	static <T extends Inlist<T>> int size(T list) {
+	public static <T extends Inlist<T>> int size(T list) {
 		int count = 0;
 		for (Inlist<T> l = list; l != null; l = l.next)
 			count++;
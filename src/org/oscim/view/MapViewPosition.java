@@ -433,7 +433,7 @@ public class MapViewPosition {
 	 */
 	public synchronized void moveMap(float mx, float my) {
 		// stop animation
-		mHandler.cancel();
+		cancelAnimation();
 
 		PointD p = applyRotation(mx, my);
 
@@ -499,7 +499,7 @@ public class MapViewPosition {
 	 */
 	public synchronized boolean scaleMap(float scale, float pivotX, float pivotY) {
 		// stop animation
-		mHandler.cancel();
+		cancelAnimation();
 
 		// just sanitize input
 		scale = FastMath.clamp(scale, 0.5f, 2);
@@ -615,6 +615,9 @@ public class MapViewPosition {
 	private boolean mAnimMove;
 	private boolean mAnimFling;
 	private boolean mAnimScale;
+
+	// true while an animation is running
+	private boolean mAnimActive;
 	private final AccelerateDecelerateInterpolator mDecInterpolator = new AccelerateDecelerateInterpolator();
 
 	public synchronized void animateTo(BoundingBox bbox) {
@@ -659,7 +662,7 @@ public class MapViewPosition {
 		mAnimFling = false;
 		mDuration = 500;
 
-		mHandler.start((int) mDuration);
+		startAnimation(mDuration);
 	}
 
 	public synchronized void animateTo(GeoPoint geoPoint) {
@@ -679,7 +682,7 @@ public class MapViewPosition {
 		mAnimFling = false;
 
 		mDuration = 300;
-		mHandler.start(mDuration);
+		startAnimation(mDuration);
 	}
 
 	synchronized boolean fling(float adv) {
@@ -690,7 +693,9 @@ public class MapViewPosition {
 		float dy = mVelocityY * adv;
 
 		if (dx != 0 || dy != 0) {
-			moveMap((float) (dx - mScrollX), (float) (dy - mScrollY));
+			// dont use moveMap, it would stop the animation
+			PointD p = applyRotation((float) (dx - mScrollX), (float) (dy - mScrollY));
+			move(p.x, p.y);
 
 			mMapView.redrawMap(true);
 			mScrollX = dx;
@@ -722,17 +727,84 @@ public class MapViewPosition {
 
 		//mMapView.mGLView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
 
-		mHandler.start(mDuration);
+		startAnimation(mDuration);
 	}
 
 	public synchronized void animateZoom(float scale) {
 		mStartScale = mAbsScale;
 		mEndScale = mAbsScale * scale - mAbsScale;
 
+		// flags of a previous animation would otherwise be used by
+		// onTick() and getAnimationEnd()
+		mAnimScale = true;
+		mAnimMove = false;
+		mAnimFling = false;
+
 		//mMapView.mGLView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
 
 		mDuration = 300;
-		mHandler.start(mDuration);
+		startAnimation(mDuration);
+	}
+
+	private void startAnimation(float duration) {
+		mAnimActive = true;
+		mHandler.start(duration);
+	}
+
+	private void cancelAnimation() {
+		mAnimActive = false;
+		mHandler.cancel();
+	}
+
+	/**
+	 * Get the position where the currently running animation will end,
+	 * e.g. to prefetch tiles for it.
+	 *
+	 * @param pos MapPosition object to be updated
+	 * @return false if no animation is running.
+	 */
+	public synchronized boolean getAnimationEnd(MapPosition pos) {
+		if (!mAnimActive)
+			return false;
+
+		double x = mAbsX;
+		double y = mAbsY;
+		double scale = mAbsScale;
+
+		if (mAnimFling) {
+			// remaining distance of fling in pixel
+			PointD p = applyRotation((float) (mVelocityX - mScrollX),
+					(float) (mVelocityY - mScrollY));
+
+			x = (mCurX - p.x) / mCurScale;
+			y = (mCurY - p.y) / mCurScale;
+		} else {
+			if (mAnimMove) {
+				double f = Tile.SIZE << ABS_ZOOMLEVEL;
+				x = (mStartX + mEndX) / f;
+				y = (mStartY + mEndY) / f;
+			}
+			if (mAnimScale)
+				scale = mStartScale + mEndScale;
+		}
+
+		// clamp latitude
+		y = FastMath.clamp(y, 0, 1);
+
+		// wrap longitude
+		while (x > 1)
+			x -= 1;
+		while (x < 0)
+			x += 1;
+
+		pos.x = x;
+		pos.y = y;
+		pos.scale = scale;
+		pos.zoomLevel = FastMath.log2((int) scale);
+		pos.angle = mRotation;
+		pos.tilt = mTilt;
+
+		return true;
 	}
 
 	public void updateAnimation() {
@@ -780,6 +852,7 @@ public class MapViewPosition {
 	}
 
 	void onFinish() {
+		mAnimActive = false;
 
 		if (mAnimMove) {
 			moveAbs(mStartX + mEndX, mStartY + mEndY);
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.cache;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.oscim.cache.OfflineDownloader.HttpTileSource;
+import org.oscim.core.Tile;
+
+/**
+ * OfflineDownloader with HttpTileSource against a local stub tile server,
+ * runs on a plain JVM.
+ */
+public class OfflineDownloaderTest extends TestCase {
+
+	// Bremen
+	private static final int MIN_LAT = 53000000;
+	private static final int MIN_LON = 8700000;
+	private static final int MAX_LAT = 53100000;
+	private static final int MAX_LON = 8900000;
+
+	private ServerSocket mServer;
+	private final AtomicInteger mRequests = new AtomicInteger();
+
+	// size of tile content, tiles with (x + y) % 5 == 0 do not exist
+	// when mMissing is set
+	private volatile int mTileSize = 1000;
+	private volatile boolean mMissing = true;
+
+	private File mDir;
+	private CacheManager mCache;
+
+	@Override
+	protected void setUp() throws Exception {
+		mDir = File.createTempFile("offline", "");
+		mDir.delete();
+		mDir.mkdirs();
+
+		mServer = new ServerSocket(0);
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (true)
+						serve(mServer.accept());
+				} catch (IOException e) {
+					// closed by tearDown
+				}
+			}
+		}.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.close();
+		if (mCache != null)
+			mCache.close();
+
+		for (File f : mDir.listFiles())
+			f.delete();
+		mDir.delete();
+	}
+
+	private void serve(final Socket s) {
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					BufferedReader in = new BufferedReader(
+							new InputStreamReader(s.getInputStream()));
+					// GET /tiles/z/x/y.osmtile HTTP/1.1
+					String request = in.readLine();
+					String line;
+					while ((line = in.readLine()) != null && line.length() > 0)
+						;
+					mRequests.incrementAndGet();
+
+					String path = request.split(" ")[1];
+					String[] zxy = path.substring(0, path.indexOf(".osmtile")).split("/");
+					int x = Integer.parseInt(zxy[zxy.length - 2]);
+					int y = Integer.parseInt(zxy[zxy.length - 1]);
+
+					DataOutputStream out = new DataOutputStream(s.getOutputStream());
+					if (mMissing && (x + y) % 5 == 0) {
+						out.writeBytes("HTTP/1.1 404 Not Found\r\n"
+								+ "Content-Length: 0\r\nConnection: close\r\n\r\n");
+					} else {
+						out.writeBytes("HTTP/1.1 200 OK\r\n"
+								+ "Content-Length: " + (mTileSize + 4) + "\r\n"
+								+ "Connection: close\r\n\r\n");
+						out.writeInt(mTileSize);
+						for (int i = 0; i < mTileSize; i++)
+							out.write(x + y + i);
+					}
+					out.flush();
+				} catch (IOException e) {
+					// client went away
+				} finally {
+					try {
+						s.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}.start();
+	}
+
+	private OfflineDownloader createDownloader() {
+		HttpTileSource source = new HttpTileSource("http://127.0.0.1:"
+				+ mServer.getLocalPort() + "/tiles");
+
+		OfflineDownloader d = new OfflineDownloader(mCache, source,
+				new File(mDir, "manifest"));
+		d.setThreads(3);
+		return d;
+	}
+
+	public void testDownloadAndResume() throws Exception {
+		mCache = CacheManager.getInstance(new File(mDir, "test.pack"), 16 << 20);
+
+		int total = OfflineDownloader.countTiles(MIN_LAT, MIN_LON, MAX_LAT, MAX_LON, 8, 12);
+		assertTrue(total > 10);
+
+		assertTrue(createDownloader().download(MIN_LAT, MIN_LON, MAX_LAT, MAX_LON, 8, 12));
+		assertEquals(total, mRequests.get());
+
+		int stored = mCache.getCount();
+		assertTrue(stored > 0 && stored < total);
+
+		// stored content matches
+		ArrayList<Tile> found = new ArrayList<Tile>();
+		for (int z = 8; z <= 12; z++) {
+			for (int x = 0; x < 1 << z; x++) {
+				for (int y = 0; y < 1 << z; y++) {
+					Tile tile = new Tile(x, y, (byte) z);
+					if (!mCache.contains(tile))
+						continue;
+
+					found.add(tile);
+					assertTrue((x + y) % 5 != 0);
+					ByteBuffer data = mCache.get(tile);
+					assertEquals(mTileSize, data.remaining());
+					assertEquals((byte) (x + y + 7), data.get(7));
+				}
+			}
+		}
+		assertEquals(stored, found.size());
+
+		// browsing through four times the cache size keeps pinned tiles
+		ByteBuffer other = ByteBuffer.allocate(100000);
+		for (int i = 0; i < 640; i++) {
+			Tile tile = new Tile(i, 0, (byte) 18);
+			while (!mCache.put(tile, other.duplicate()))
+				Thread.sleep(1);
+		}
+		for (Tile tile : found)
+			assertNotNull(mCache.get(tile));
+
+		// all done according to manifest
+		mRequests.set(0);
+		assertTrue(createDownloader().download(MIN_LAT, MIN_LON, MAX_LAT, MAX_LON, 8, 12));
+		assertEquals(0, mRequests.get());
+	}
+
+	public void testCacheFull() throws Exception {
+		// four segments, pinned tiles may use one
+		mCache = CacheManager.getInstance(new File(mDir, "small.pack"), 16 << 20);
+		mTileSize = 200000;
+		mMissing = false;
+
+		final int[] done = new int[1];
+		OfflineDownloader d = createDownloader();
+		d.setListener(new OfflineDownloader.Listener() {
+			@Override
+			public synchronized void onProgress(int cnt, int total, long bytes) {
+				done[0] = Math.max(done[0], cnt);
+			}
+
+			@Override
+			public void onFinished(boolean complete) {
+			}
+		});
+
+		// 50 tiles of 200kb
+		assertFalse(d.download(MIN_LAT, MIN_LON, MAX_LAT, MAX_LON, 8, 13));
+
+		// only tiles that were stored count as done
+		assertTrue(done[0] > 0);
+		assertEquals(done[0], mCache.getCount());
+	}
+}
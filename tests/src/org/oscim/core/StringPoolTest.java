@@ -0,0 +1,57 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.core;
+
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+public class StringPoolTest extends TestCase {
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	public void testIdentityAfterEviction() {
+		StringPool pool = new StringPool(64);
+
+		String[] kept = new String[100];
+		for (int i = 0; i < kept.length; i++)
+			kept[i] = pool.intern(new String("key" + i));
+
+		// push all of them out of the recently used table
+		for (int i = 0; i < 10000; i++)
+			pool.intern("other" + i);
+
+		assertTrue(pool.getSize() <= 64);
+
+		for (int i = 0; i < kept.length; i++) {
+			assertSame(kept[i], pool.intern(new String("key" + i)));
+
+			byte[] bytes = ("key" + i).getBytes(UTF8);
+			assertSame(kept[i], pool.intern(bytes, 0, bytes.length));
+		}
+	}
+
+	public void testBytes() {
+		StringPool pool = new StringPool(64);
+
+		byte[] bytes = "x=straße".getBytes(UTF8);
+		String s = pool.intern(bytes, 2, bytes.length - 2);
+		assertEquals("straße", s);
+		assertSame(s, pool.intern(new String("straße")));
+
+		String a = pool.intern(bytes, 0, 1);
+		assertSame(a, pool.intern("x"));
+		assertTrue(pool.getHitCount() > 0);
+	}
+}
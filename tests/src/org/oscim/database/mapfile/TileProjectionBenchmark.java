@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.mapfile;
+
+import java.util.Random;
+
+import org.oscim.core.MercatorProjection;
+import org.oscim.core.Tile;
+
+/**
+ * Times projection of way nodes of one block: the former projectToTile()
+ * on float microdegrees against TileProjection. Also prints the max error
+ * of both against exact projection.
+ *
+ * Run with: java org.oscim.database.mapfile.TileProjectionBenchmark
+ */
+public class TileProjectionBenchmark {
+	private static final double PI180 = (Math.PI / 180) / 1000000.0;
+	private static final double PIx4 = Math.PI * 4;
+
+	private static final int BLOCK_X = 8592;
+	private static final int BLOCK_Y = 5382;
+	private static final int NODES = 200000;
+	private static final int ROUNDS = 50;
+
+	// same as former MapDatabase.projectToTile()
+	private static void projectToTile(Tile t, float[] coords, float[] out) {
+		long x = t.tileX * Tile.SIZE;
+		long y = t.tileY * Tile.SIZE + Tile.SIZE;
+		long z = Tile.SIZE << t.zoomLevel;
+
+		long dx = (x - (z >> 1));
+		long dy = (y - (z >> 1));
+
+		double divx = 180000000.0 / (z >> 1);
+		double divy = z / PIx4;
+
+		for (int pos = 0, n = coords.length; pos < n; pos += 2) {
+			out[pos] = (float) (coords[pos] / divx - dx);
+			double sinLat = Math.sin(coords[pos + 1] * PI180);
+			out[pos + 1] = (float) (Tile.SIZE - (Math.log((1.0 + sinLat)
+					/ (1.0 - sinLat)) * divy + dy));
+		}
+	}
+
+	private static void project(TileProjection p, int[] coords, float[] out) {
+		for (int pos = 0, n = coords.length; pos < n; pos += 2) {
+			out[pos] = p.projectLon(coords[pos]);
+			out[pos + 1] = p.projectLat(coords[pos + 1]);
+		}
+	}
+
+	private static double maxError(Tile t, int[] coords, float[] out) {
+		long z = Tile.SIZE << t.zoomLevel;
+		double max = 0;
+		for (int pos = 0, n = coords.length; pos < n; pos += 2) {
+			double x = MercatorProjection.longitudeToX(coords[pos] / 1E6) * z
+					- (double) t.tileX * Tile.SIZE;
+			double y = MercatorProjection.latitudeToY(coords[pos + 1] / 1E6) * z
+					- (double) t.tileY * Tile.SIZE;
+			max = Math.max(max, Math.abs(out[pos] - x));
+			max = Math.max(max, Math.abs(out[pos + 1] - y));
+		}
+		return max;
+	}
+
+	private static int toE6(double deg) {
+		return (int) (deg * 1000000);
+	}
+
+	public static void main(String[] args) {
+		int latMax = toE6(MercatorProjection.toLatitude((double) BLOCK_Y / (1 << 14)));
+		int latMin = toE6(MercatorProjection.toLatitude((double) (BLOCK_Y + 1) / (1 << 14)));
+		int lonMin = toE6(MercatorProjection.toLongitude((double) BLOCK_X / (1 << 14)));
+		int lonMax = toE6(MercatorProjection.toLongitude((double) (BLOCK_X + 1) / (1 << 14)));
+
+		// random walk of way nodes within the block
+		Random r = new Random(1);
+		int[] coords = new int[NODES * 2];
+		float[] fcoords = new float[NODES * 2];
+		int lon = (lonMin + lonMax) / 2;
+		int lat = (latMin + latMax) / 2;
+		for (int i = 0; i < coords.length; i += 2) {
+			lon = Math.min(Math.max(lon + r.nextInt(200) - 100, lonMin), lonMax - 1);
+			lat = Math.min(Math.max(lat + r.nextInt(200) - 100, latMin), latMax - 1);
+			coords[i] = lon;
+			coords[i + 1] = lat;
+			fcoords[i] = lon;
+			fcoords[i + 1] = lat;
+		}
+
+		float[] out = new float[NODES * 2];
+		TileProjection p = new TileProjection();
+
+		for (int zoom = 14; zoom <= 18; zoom++) {
+			int shift = zoom - 14;
+			Tile tile = new Tile(BLOCK_X << shift, BLOCK_Y << shift, (byte) zoom);
+
+			long tOld = Long.MAX_VALUE, tNew = Long.MAX_VALUE;
+			for (int i = 0; i < ROUNDS; i++) {
+				long t0 = System.nanoTime();
+				projectToTile(tile, fcoords, out);
+				long t1 = System.nanoTime();
+				p.setTile(tile);
+				p.setBlock(latMin, latMax);
+				project(p, coords, out);
+				long t2 = System.nanoTime();
+				tOld = Math.min(tOld, t1 - t0);
+				tNew = Math.min(tNew, t2 - t1);
+			}
+
+			projectToTile(tile, fcoords, out);
+			double errOld = maxError(tile, coords, out);
+			project(p, coords, out);
+			double errNew = maxError(tile, coords, out);
+
+			System.out.println(String.format(
+					"z%d projectToTile: %5.1fns/node err %.5fpx"
+							+ " | TileProjection: %5.1fns/node err %.5fpx",
+					zoom, (double) tOld / NODES, errOld,
+					(double) tNew / NODES, errNew));
+		}
+	}
+}
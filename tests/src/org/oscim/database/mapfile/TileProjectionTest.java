@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.mapfile;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.oscim.core.MercatorProjection;
+import org.oscim.core.Tile;
+
+/**
+ * Compares TileProjection with exact projection by MercatorProjection.
+ */
+public class TileProjectionTest extends TestCase {
+
+	// max error of table interpolation in pixel
+	private static final double MAX_ERROR = 0.001;
+
+	// max float rounding error of coordinates around the tile
+	private static final double MAX_ROUNDING = 0.0001;
+
+	// blocks at base zoom 14: Bremen, equator, far north
+	private static final int[][] BLOCKS = {
+			{ 8592, 5382 }, { 8192, 8191 }, { 9000, 1000 } };
+
+	private static double exactX(Tile tile, int longitude) {
+		long z = Tile.SIZE << tile.zoomLevel;
+		return MercatorProjection.longitudeToX(longitude / 1E6) * z
+				- (double) tile.tileX * Tile.SIZE;
+	}
+
+	private static double exactY(Tile tile, int latitude) {
+		long z = Tile.SIZE << tile.zoomLevel;
+		return MercatorProjection.latitudeToY(latitude / 1E6) * z
+				- (double) tile.tileY * Tile.SIZE;
+	}
+
+	private static int latitudeE6(long tileY, int zoom) {
+		double y = (double) tileY / (1 << zoom);
+		return (int) (MercatorProjection.toLatitude(y) * 1E6);
+	}
+
+	public void testBlockLatitudes() {
+		Random r = new Random(7);
+		TileProjection p = new TileProjection();
+
+		for (int[] block : BLOCKS) {
+			int latMax = latitudeE6(block[1], 14);
+			int latMin = latitudeE6(block[1] + 1, 14);
+
+			for (int zoom = 14; zoom <= 18; zoom++) {
+				int shift = zoom - 14;
+				Tile tile = new Tile(block[0] << shift, block[1] << shift, (byte) zoom);
+				p.setTile(tile);
+				p.setBlock(latMin, latMax);
+
+				double maxError = 0;
+				for (int i = 0; i < 10000; i++) {
+					int lat = latMin + r.nextInt(latMax - latMin);
+					maxError = Math.max(maxError,
+							Math.abs(p.projectLat(lat) - exactY(tile, lat)));
+				}
+				assertTrue("z" + zoom + " error " + maxError, maxError < MAX_ERROR);
+			}
+		}
+	}
+
+	public void testOutsideOfBlock() {
+		TileProjection p = new TileProjection();
+		int[] block = BLOCKS[0];
+		int latMax = latitudeE6(block[1], 14);
+		int latMin = latitudeE6(block[1] + 1, 14);
+		int span = latMax - latMin;
+
+		Tile tile = new Tile(block[0] << 2, block[1] << 2, (byte) 16);
+		p.setTile(tile);
+		p.setBlock(latMin, latMax);
+
+		// elements may extend over the block
+		for (int lat = latMin - span; lat < latMax + span; lat += span / 7) {
+			if (lat >= latMin && lat < latMax)
+				continue;
+			assertTrue(Math.abs(p.projectLat(lat) - exactY(tile, lat)) < MAX_ROUNDING);
+		}
+
+		// no block set
+		p.setTile(tile);
+		for (int lat = latMin; lat < latMax; lat += span / 7)
+			assertTrue(Math.abs(p.projectLat(lat) - exactY(tile, lat)) < MAX_ROUNDING);
+	}
+
+	public void testLongitudes() {
+		Random r = new Random(11);
+		TileProjection p = new TileProjection();
+
+		for (int zoom = 14; zoom <= 18; zoom++) {
+			Tile tile = new Tile(8592 << (zoom - 14), 5382 << (zoom - 14), (byte) zoom);
+			p.setTile(tile);
+
+			int lonMin = (int) (MercatorProjection.toLongitude((double) tile.tileX
+					/ (1 << zoom)) * 1E6);
+
+			for (int i = 0; i < 1000; i++) {
+				int lon = lonMin + r.nextInt(20000) - 10000;
+				assertTrue(Math.abs(p.projectLon(lon) - exactX(tile, lon)) < MAX_ROUNDING);
+			}
+		}
+	}
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.mapfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.oscim.core.MapElement;
+import org.oscim.core.MercatorProjection;
+import org.oscim.core.Tile;
+
+/**
+ * Compares way nodes decoded by MapDatabase, directly and through the
+ * block cache, with the former decodeWayNodesDoubleDelta() /
+ * decodeWayNodesSingleDelta() and projectToTile() on the same varint
+ * stream.
+ */
+public class WayDecodingTest extends TestCase {
+	private static final int BASE_ZOOM = 14;
+	private static final int WAYS = 1000;
+
+	private File mFile;
+	private RandomAccessFile mInput;
+
+	// offset and length of the way data blocks in mFile
+	private final int[] mOffset = new int[WAYS];
+	private final int[] mLength = new int[WAYS];
+	private final boolean[] mDoubleDelta = new boolean[WAYS];
+
+	private MapDatabase mMapDatabase;
+	private TileProjection mProjection;
+	private MapElement mElem;
+
+	@Override
+	protected void setUp() throws Exception {
+		mFile = File.createTempFile("ways", ".map");
+		mMapDatabase = new MapDatabase();
+		mProjection = (TileProjection) field("mProjection").get(mMapDatabase);
+		mElem = (MapElement) field("mElem").get(mMapDatabase);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (mInput != null)
+			mInput.close();
+		mFile.delete();
+	}
+
+	/**
+	 * Block near lat/lon 10, where microdegrees fit into floats: the former
+	 * path is exact up to float rounding of the result.
+	 */
+	public void testLowLatitude() throws Exception {
+		int bx = (int) (MercatorProjection.longitudeToX(10) * (1 << BASE_ZOOM));
+		int by = (int) (MercatorProjection.latitudeToY(10) * (1 << BASE_ZOOM));
+		compare(bx, by, 1, 0.001f);
+	}
+
+	/**
+	 * Block in Bremen, where the former path rounded microdegrees to floats,
+	 * that is up to 4 microdegrees or 0.6 pixel at zoom 18.
+	 */
+	public void testHighLatitude() throws Exception {
+		compare(8592, 5382, 50, 1f);
+	}
+
+	private void compare(int bx, int by, int minDelta, float maxErrorZ18)
+			throws Exception {
+		int latMax = (int) (Projection.tileYToLatitude(by, BASE_ZOOM) * 1000000);
+		int latMin = (int) (Projection.tileYToLatitude(by + 1, BASE_ZOOM) * 1000000);
+		int lonMin = (int) (Projection.tileXToLongitude(bx, BASE_ZOOM) * 1000000);
+		int lonMax = (int) (Projection.tileXToLongitude(bx + 1, BASE_ZOOM) * 1000000);
+
+		writeWays(latMax - latMin, lonMax - lonMin, minDelta);
+
+		field("mTileLatitude").setInt(mMapDatabase, latMax);
+		field("mTileLongitude").setInt(mMapDatabase, lonMin);
+
+		ReadBuffer readBuffer = new ReadBuffer(mInput);
+		field("mReadBuffer").set(mMapDatabase, readBuffer);
+
+		Method process = method("processWayDataBlock", boolean.class);
+		Method decode = method("decodeWayDataBlock", BlockCache.Block.class, boolean.class);
+		Method project = method("projectElement", BlockCache.Block.class, int.class);
+
+		ReadBuffer refBuffer = new ReadBuffer(mInput);
+		float[] points = new float[1 << 14];
+		short[] index = new short[8];
+
+		for (int zoom = BASE_ZOOM; zoom <= 18; zoom++) {
+			int shift = zoom - BASE_ZOOM;
+			Tile tile = new Tile(bx << shift, by << shift, (byte) zoom);
+			float maxError = maxErrorZ18 / (1 << (18 - zoom));
+
+			mProjection.setTile(tile);
+			mProjection.setBlock(latMin, latMax);
+
+			BlockCache.Block block = new BlockCache.Block(null);
+
+			for (int w = 0; w < WAYS; w++) {
+				String msg = "z" + zoom + " way " + w;
+
+				refBuffer.readFromFile(mOffset[w], mLength[w]);
+				decodeFormer(refBuffer, latMax, lonMin, mDoubleDelta[w], points, index);
+				projectToTile(tile, points, index);
+
+				// streaming path
+				readBuffer.readFromFile(mOffset[w], mLength[w]);
+				assertTrue((Boolean) process.invoke(mMapDatabase, mDoubleDelta[w]));
+				assertElement(msg, points, index, maxError);
+
+				// block cache path
+				readBuffer.readFromFile(mOffset[w], mLength[w]);
+				block.addWay(0, (byte) 0, null);
+				assertTrue((Boolean) decode.invoke(mMapDatabase, block, mDoubleDelta[w]));
+				project.invoke(mMapDatabase, block, block.numElements - 1);
+				assertElement(msg + " cached", points, index, maxError);
+			}
+		}
+	}
+
+	private void assertElement(String msg, float[] points, short[] index, float maxError) {
+		int pos = 0;
+		for (int i = 0; i < index.length && index[i] >= 0; i++) {
+			assertEquals(msg + " length of block " + i, index[i], mElem.index[i]);
+			for (int end = pos + index[i]; pos < end; pos++)
+				assertEquals(msg, points[pos], mElem.points[pos], maxError);
+		}
+		assertEquals(msg, pos, mElem.pointPos);
+	}
+
+	/**
+	 * Write random ways as the mapfile writer does: each way data block has
+	 * the number of coordinate blocks, then number of nodes and the nodes of
+	 * each coordinate block. Deltas are 0 or at least minDelta, as nodes that
+	 * are only a few microdegrees apart were merged by the former path.
+	 */
+	private void writeWays(int latSpan, int lonSpan, int minDelta) throws IOException {
+		Random r = new Random(1);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		for (int w = 0; w < WAYS; w++) {
+			mOffset[w] = out.size();
+			boolean doubleDelta = mDoubleDelta[w] = r.nextBoolean();
+
+			int numBlocks = 1 + r.nextInt(3);
+			writeUnsigned(out, numBlocks);
+
+			for (int b = 0; b < numBlocks; b++) {
+				int numNodes = 2 + r.nextInt(60);
+				boolean ring = numNodes > 3 && r.nextInt(3) == 0;
+				writeUnsigned(out, numNodes);
+
+				// offset to the top-left of the block
+				int lat = -r.nextInt(latSpan);
+				int lon = r.nextInt(lonSpan);
+				int firstLat = lat, firstLon = lon;
+				int prevDeltaLat = 0, prevDeltaLon = 0;
+
+				writeSigned(out, lat);
+				writeSigned(out, lon);
+
+				for (int i = 1; i < numNodes; i++) {
+					int deltaLat = delta(r, minDelta);
+					int deltaLon = delta(r, minDelta);
+					if (ring && i == numNodes - 1) {
+						deltaLat = firstLat - lat;
+						deltaLon = firstLon - lon;
+					}
+					lat += deltaLat;
+					lon += deltaLon;
+
+					if (doubleDelta) {
+						writeSigned(out, deltaLat - prevDeltaLat);
+						writeSigned(out, deltaLon - prevDeltaLon);
+						prevDeltaLat = deltaLat;
+						prevDeltaLon = deltaLon;
+					} else {
+						writeSigned(out, deltaLat);
+						writeSigned(out, deltaLon);
+					}
+				}
+			}
+			mLength[w] = out.size() - mOffset[w];
+		}
+
+		FileOutputStream fos = new FileOutputStream(mFile);
+		fos.write(out.toByteArray());
+		fos.close();
+
+		mInput = new RandomAccessFile(mFile, "r");
+	}
+
+	private static int delta(Random r, int minDelta) {
+		// duplicate node
+		if (r.nextInt(5) == 0)
+			return 0;
+
+		int d = minDelta + r.nextInt(400);
+		return r.nextBoolean() ? d : -d;
+	}
+
+	private static void writeUnsigned(ByteArrayOutputStream out, int v) {
+		while ((v & ~0x7f) != 0) {
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	private static void writeSigned(ByteArrayOutputStream out, int v) {
+		int sign = v < 0 ? 0x40 : 0;
+		v = Math.abs(v);
+		while ((v & ~0x3f) != 0) {
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v | sign);
+	}
+
+	/**
+	 * Former processWayDataBlock() with decodeWayNodesDoubleDelta() and
+	 * decodeWayNodesSingleDelta(): microdegrees into float points.
+	 */
+	private static void decodeFormer(ReadBuffer readBuffer, int tileLatitude,
+			int tileLongitude, boolean doubleDelta, float[] outBuffer, short[] index) {
+		int numBlocks = readBuffer.readUnsignedInt();
+		int[] buffer = new int[1 << 13];
+		int pointPos = 0;
+
+		for (int b = 0; b < numBlocks; b++) {
+			int length = readBuffer.readUnsignedInt() * 2;
+			readBuffer.readSignedInt(buffer, length);
+
+			int wayNodeLatitude = tileLatitude + buffer[0];
+			int wayNodeLongitude = tileLongitude + buffer[1];
+
+			outBuffer[pointPos++] = wayNodeLongitude;
+			outBuffer[pointPos++] = wayNodeLatitude;
+
+			int singleDeltaLatitude = 0;
+			int singleDeltaLongitude = 0;
+			int cnt = 2, nLon, nLat, dLat, dLon;
+
+			for (int pos = 2; pos < length; pos += 2) {
+				if (doubleDelta) {
+					singleDeltaLatitude = buffer[pos] + singleDeltaLatitude;
+					singleDeltaLongitude = buffer[pos + 1] + singleDeltaLongitude;
+				} else {
+					singleDeltaLatitude = buffer[pos];
+					singleDeltaLongitude = buffer[pos + 1];
+				}
+				nLat = wayNodeLatitude + singleDeltaLatitude;
+				dLat = nLat - wayNodeLatitude;
+				wayNodeLatitude = nLat;
+
+				nLon = wayNodeLongitude + singleDeltaLongitude;
+				dLon = nLon - wayNodeLongitude;
+				wayNodeLongitude = nLon;
+
+				if (dLon != 0 || dLat != 0 || (pos == length - 2)) {
+					outBuffer[pointPos++] = nLon;
+					outBuffer[pointPos++] = nLat;
+					cnt += 2;
+				}
+			}
+			index[b] = (short) cnt;
+		}
+		index[numBlocks] = -1;
+	}
+
+	private static final double PI180 = (Math.PI / 180) / 1000000.0;
+	private static final double PIx4 = Math.PI * 4;
+
+	/** Former MapDatabase.projectToTile() */
+	private static void projectToTile(Tile tile, float[] coords, short[] indices) {
+		long x = tile.tileX * Tile.SIZE;
+		long y = tile.tileY * Tile.SIZE + Tile.SIZE;
+		long z = Tile.SIZE << tile.zoomLevel;
+
+		double divx, divy = 0;
+		long dx = (x - (z >> 1));
+		long dy = (y - (z >> 1));
+
+		divx = 180000000.0 / (z >> 1);
+		divy = z / PIx4;
+
+		for (int pos = 0, outPos = 0, i = 0, m = indices.length; i < m; i++) {
+			int len = indices[i];
+			if (len == 0)
+				continue;
+			if (len < 0)
+				break;
+
+			int cnt = 0;
+			float lat, lon, prevLon = 0, prevLat = 0;
+			int first = outPos;
+
+			for (int end = pos + len; pos < end; pos += 2) {
+				lon = (float) ((coords[pos]) / divx - dx);
+				double sinLat = Math.sin(coords[pos + 1] * PI180);
+				lat = (float) (Tile.SIZE - (Math.log((1.0 + sinLat) / (1.0 - sinLat)) * divy + dy));
+
+				if (cnt != 0) {
+					// drop small distance intermediate nodes
+					if (lat == prevLat && lon == prevLon)
+						continue;
+				}
+				coords[outPos++] = prevLon = lon;
+				coords[outPos++] = prevLat = lat;
+
+				cnt += 2;
+			}
+			if (coords[first] == coords[outPos - 2] && coords[first + 1] == coords[outPos - 1]) {
+				indices[i] = (short) (cnt - 2);
+				outPos -= 2;
+			} else
+				indices[i] = (short) cnt;
+		}
+	}
+
+	private static Field field(String name) throws Exception {
+		Field f = MapDatabase.class.getDeclaredField(name);
+		f.setAccessible(true);
+		return f;
+	}
+
+	private static Method method(String name, Class<?>... types) throws Exception {
+		Method m = MapDatabase.class.getDeclaredMethod(name, types);
+		m.setAccessible(true);
+		return m;
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.oscimap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.oscim.database.IAsyncMapDatabase.FetchCallback;
+import org.oscim.layers.tile.MapTile;
+
+/**
+ * NioHttp against a stub server that answers pipelined requests on one
+ * connection, with a 404 for each tile with odd tileY.
+ */
+public class NioHttpTest extends TestCase {
+
+	private static final int TILES = 12;
+
+	private ServerSocket mServer;
+	private Thread mServerThread;
+	private final AtomicInteger mAccepted = new AtomicInteger();
+
+	@Override
+	protected void setUp() throws Exception {
+		mServer = new ServerSocket(0);
+		mServerThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Socket s = mServer.accept();
+						mAccepted.incrementAndGet();
+						serve(s);
+					}
+				} catch (IOException e) {
+					// closed by tearDown
+				}
+			}
+		};
+		mServerThread.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.close();
+		mServerThread.join(1000);
+	}
+
+	static void serve(final Socket s) {
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					InputStream in = s.getInputStream();
+					OutputStream out = s.getOutputStream();
+					String request;
+					while ((request = readRequest(in)) != null)
+						out.write(respond(request));
+				} catch (IOException e) {
+					// client closed connection
+				} finally {
+					try {
+						s.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}.start();
+	}
+
+	/** @return request up to the empty line, null on end of stream */
+	static String readRequest(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) >= 0) {
+			sb.append((char) c);
+			if (sb.length() > 1 && sb.charAt(sb.length() - 2) == '\n' && c == '\n')
+				return sb.toString();
+		}
+		return null;
+	}
+
+	static byte[] respond(String request) throws IOException {
+		// GET /tiles/z/x/y.osmtile
+		String path = request.substring(4, request.indexOf(".osmtile"));
+		String[] zxy = path.split("/");
+		int y = Integer.parseInt(zxy[zxy.length - 1]);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		if ((y & 1) == 1) {
+			byte[] body = "tile not found".getBytes();
+			out.writeBytes("HTTP/1.1 404 Not Found\r\n"
+					+ "Content-Length: " + body.length + "\r\n\r\n");
+			out.write(body);
+		} else {
+			byte[] body = path.getBytes();
+			out.writeBytes("HTTP/1.1 200 OK\r\n"
+					+ "Content-Length: " + (body.length + 4) + "\r\n\r\n");
+			out.writeInt(body.length);
+			out.write(body);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	static MapTile newTile(int x, int y, int z) throws Exception {
+		Constructor<MapTile> c = MapTile.class.getDeclaredConstructor(
+				int.class, int.class, byte.class);
+		c.setAccessible(true);
+		return c.newInstance(Integer.valueOf(x), Integer.valueOf(y),
+				Byte.valueOf((byte) z));
+	}
+
+	public void testErrorResponseKeepsConnection() throws Exception {
+		final HashMap<MapTile, String> results = new HashMap<MapTile, String>();
+		final CountDownLatch done = new CountDownLatch(TILES);
+
+		FetchCallback callback = new FetchCallback() {
+			@Override
+			public void onFetched(MapTile tile, ByteBuffer data) {
+				String content = null;
+				if (data != null) {
+					byte[] b = new byte[data.remaining()];
+					data.get(b);
+					content = new String(b);
+				}
+				synchronized (results) {
+					results.put(tile, content);
+				}
+				done.countDown();
+			}
+		};
+
+		NioHttp nio = NioHttp.acquire("http://127.0.0.1:" + mServer.getLocalPort()
+				+ "/tiles/");
+		assertNotNull(nio);
+
+		MapTile[] tiles = new MapTile[TILES];
+		for (int i = 0; i < TILES; i++) {
+			tiles[i] = newTile(i, i, 14);
+			nio.submit(tiles[i], callback);
+		}
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		nio.release();
+
+		for (int i = 0; i < TILES; i++) {
+			String content = results.get(tiles[i]);
+			if ((i & 1) == 1)
+				assertNull(content);
+			else
+				assertEquals("/tiles/14/" + i + "/" + i, content);
+		}
+
+		// error responses must not close connections, every connection
+		// opened serves several requests
+		assertTrue(mAccepted.get() <= NioHttp.MAX_CONNECTIONS);
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.theme;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Stack;
+
+import junit.framework.TestCase;
+
+import org.oscim.core.StringPool;
+import org.oscim.core.Tag;
+import org.oscim.core.TagIndex;
+import org.oscim.theme.renderinstruction.RenderInstruction;
+import org.oscim.theme.rule.Closed;
+import org.oscim.theme.rule.Rule;
+import org.oscim.theme.rule.RuleIndex;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Matches random tags against random rule trees in three ways: a Tag[]
+ * matcher that compares strings as the former rules did, the tag id
+ * matching of the rules and the RuleIndex. All must return the same
+ * instructions in the same order, and the TagFilter must accept each tag
+ * set that has instructions.
+ */
+public class RuleMatchingTest extends TestCase {
+	private static final String[] KEYS = {
+			"rm_k0", "rm_k1", "rm_k2", "rm_k3", "rm_k4", "rm_k5", "rm_k6", "name" };
+	private static final String[] VALUES = {
+			"rm_v0", "rm_v1", "rm_v2", "rm_v3", "rm_v4", "rm_v5", "rm_v6", "rm_v7" };
+
+	private static final int MAX_ZOOM = 20;
+
+	// element attribute of rules, 0 is any
+	private static final int NODE = 1;
+	private static final int WAY = 2;
+
+	private Random mRandom;
+	private int mInstructionCount;
+
+	/**
+	 * Reference rule, matches Tag[] by identity of pooled strings like the
+	 * former matchers. Keys and values are null when any matches.
+	 */
+	static final class RefRule {
+		int element;
+		int closed;
+		int zoomMin, zoomMax;
+		List<String> keys;
+		List<String> values;
+		boolean negative, exclusive;
+		final List<RenderInstruction> instructions = new ArrayList<RenderInstruction>();
+		final List<RefRule> subRules = new ArrayList<RefRule>();
+
+		boolean matchesTags(Tag[] tags) {
+			if (negative) {
+				boolean hasKey = false;
+				for (Tag t : tags)
+					hasKey |= contains(keys, t.key);
+				if (!hasKey)
+					return true;
+				for (Tag t : tags)
+					if (contains(values, t.value))
+						return !exclusive;
+				return exclusive;
+			}
+			return matches(keys, tags, true) && matches(values, tags, false);
+		}
+
+		private static boolean matches(List<String> strings, Tag[] tags, boolean key) {
+			if (strings == null)
+				return true;
+			for (Tag t : tags)
+				if (contains(strings, key ? t.key : t.value))
+					return true;
+			return false;
+		}
+
+		private static boolean contains(List<String> strings, String s) {
+			for (String e : strings)
+				if (e == s)
+					return true;
+			return false;
+		}
+
+		void match(Tag[] tags, int zoom, int type, List<RenderInstruction> out) {
+			if (zoom < zoomMin || zoom > zoomMax)
+				return;
+			if (type == 0 && element == WAY)
+				return;
+			if (type != 0 && (element == NODE
+					|| (closed != Closed.ANY && closed != type)))
+				return;
+			if (!matchesTags(tags))
+				return;
+
+			out.addAll(instructions);
+			for (RefRule r : subRules)
+				r.match(tags, zoom, type, out);
+		}
+	}
+
+	private String pick(String[] strings) {
+		int n = 1 + mRandom.nextInt(2);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			if (i > 0)
+				sb.append('|');
+			sb.append(strings[mRandom.nextInt(strings.length)]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Like RuleOptimizer: the matcher of a rule is dropped when a parent
+	 * rule requires one of its strings.
+	 */
+	private static List<String> optimize(List<String> strings, Stack<RefRule> parents,
+			boolean keys) {
+		if ("*".equals(strings.get(0)))
+			return null;
+
+		for (RefRule p : parents) {
+			List<String> required = keys ? p.keys : p.values;
+			if (p.negative || required == null)
+				continue;
+			for (String s : required)
+				if (strings.contains(s))
+					return null;
+		}
+		return strings;
+	}
+
+	private static List<String> intern(String[] strings) {
+		StringPool pool = StringPool.getInstance();
+		for (int i = 0; i < strings.length; i++)
+			strings[i] = pool.intern(strings[i]);
+		return Arrays.asList(strings);
+	}
+
+	private void createRules(int depth, Stack<Rule> stack, Stack<RefRule> refStack,
+			List<Rule> rules, List<RefRule> refRules) {
+		Random r = mRandom;
+		int n = depth == 0 ? 1 + r.nextInt(100) : 1 + r.nextInt(4);
+
+		for (int i = 0; i < n; i++) {
+			AttributesImpl a = new AttributesImpl();
+			RefRule ref = new RefRule();
+
+			ref.element = r.nextInt(3);
+			if (ref.element == WAY)
+				a.addAttribute("", "e", "e", "CDATA", "way");
+			else if (ref.element == NODE)
+				a.addAttribute("", "e", "e", "CDATA", "node");
+
+			String k = r.nextInt(6) == 0 ? "*" : pick(KEYS);
+			String v = r.nextInt(3) == 0 ? "*" : pick(VALUES);
+			ref.keys = intern(k.split("\\|"));
+			ref.values = intern(v.split("\\|"));
+
+			if (r.nextInt(8) == 0) {
+				ref.negative = true;
+				v = v.equals("*") ? "~" : v + "|~";
+			} else if (r.nextInt(12) == 0) {
+				ref.negative = ref.exclusive = true;
+				v = v.equals("*") ? "-" : v + "|-";
+			} else {
+				ref.keys = optimize(ref.keys, refStack, true);
+				ref.values = optimize(ref.values, refStack, false);
+			}
+			a.addAttribute("", "k", "k", "CDATA", k);
+			a.addAttribute("", "v", "v", "CDATA", v);
+
+			ref.closed = r.nextInt(3);
+			if (ref.closed == Closed.YES)
+				a.addAttribute("", "closed", "closed", "CDATA", "yes");
+			else if (ref.closed == Closed.NO)
+				a.addAttribute("", "closed", "closed", "CDATA", "no");
+
+			ref.zoomMin = 0;
+			ref.zoomMax = Byte.MAX_VALUE;
+			if (r.nextInt(3) == 0) {
+				ref.zoomMin = r.nextInt(18);
+				a.addAttribute("", "zoom-min", "zoom-min", "CDATA", "" + ref.zoomMin);
+			}
+			if (r.nextInt(3) == 0) {
+				ref.zoomMax = 17 + r.nextInt(4);
+				a.addAttribute("", "zoom-max", "zoom-max", "CDATA", "" + ref.zoomMax);
+			}
+
+			Rule rule = Rule.create("rule", a, stack);
+
+			if (r.nextInt(2) == 0) {
+				RenderInstruction ri = new Instruction(mInstructionCount++);
+				rule.addRenderingInstruction(ri);
+				ref.instructions.add(ri);
+			}
+
+			if (depth < 3 && r.nextInt(2) == 0) {
+				List<Rule> sub = new ArrayList<Rule>();
+				stack.push(rule);
+				refStack.push(ref);
+				createRules(depth + 1, stack, refStack, sub, ref.subRules);
+				refStack.pop();
+				stack.pop();
+				for (Rule s : sub)
+					rule.addSubRule(s);
+			}
+			rules.add(rule);
+			refRules.add(ref);
+		}
+	}
+
+	static final class Instruction extends RenderInstruction {
+		final int id;
+
+		Instruction(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public String toString() {
+			return "ri" + id;
+		}
+	}
+
+	private Tag[] createTags() {
+		Random r = mRandom;
+		Tag[] tags = new Tag[r.nextInt(4)];
+		for (int i = 0; i < tags.length; i++) {
+			int q = r.nextInt(10);
+			if (q == 0)
+				// value is not pooled, as for names decoded by readers
+				tags[i] = new Tag(Tag.TAG_KEY_NAME, new String(VALUES[1]), false);
+			else if (q == 1)
+				tags[i] = new Tag(KEYS[r.nextInt(KEYS.length)], "rm_unknown" + r.nextInt(5));
+			else if (q == 2)
+				tags[i] = new Tag("rm_otherkey", VALUES[r.nextInt(VALUES.length)]);
+			else
+				tags[i] = new Tag(KEYS[r.nextInt(KEYS.length)],
+						VALUES[r.nextInt(VALUES.length)]);
+		}
+		return tags;
+	}
+
+	public void testRandomThemes() {
+		mRandom = new Random(42);
+
+		// tag table of a map file, with only half of the values
+		List<Tag> table = new ArrayList<Tag>();
+		for (String k : KEYS)
+			for (int j = 0; j < VALUES.length; j += 2)
+				table.add(new Tag(k, VALUES[j]));
+		TagIndex.register(table.toArray(new Tag[table.size()]));
+
+		int matched = 0;
+
+		for (int theme = 0; theme < 200; theme++) {
+			List<Rule> rules = new ArrayList<Rule>();
+			List<RefRule> refRules = new ArrayList<RefRule>();
+			createRules(0, new Stack<Rule>(), new Stack<RefRule>(), rules, refRules);
+
+			for (Rule r : rules)
+				r.onComplete();
+
+			RuleIndex index = new RuleIndex(rules.toArray(new Rule[rules.size()]));
+
+			TagFilter[] filters = new TagFilter[MAX_ZOOM + 1];
+			for (int z = 0; z <= MAX_ZOOM; z++) {
+				TagFilter.TagSet nodes = new TagFilter.TagSet();
+				TagFilter.TagSet ways = new TagFilter.TagSet();
+				for (Rule r : rules) {
+					r.addFilter(nodes, (byte) z, false);
+					r.addFilter(ways, (byte) z, true);
+				}
+				filters[z] = new TagFilter(nodes, ways);
+			}
+
+			List<RenderInstruction> expected = new ArrayList<RenderInstruction>();
+			List<RenderInstruction> byRules = new ArrayList<RenderInstruction>();
+			List<RenderInstruction> byIndex = new ArrayList<RenderInstruction>();
+
+			for (int e = 0; e < 1000; e++) {
+				Tag[] tags = createTags();
+				int[] tagIds = new int[tags.length];
+				TagIndex.getIds(tags, tagIds);
+
+				int zoom = mRandom.nextInt(MAX_ZOOM + 10);
+				// 0: node, else Closed.NO or Closed.YES
+				int type = mRandom.nextInt(3);
+
+				expected.clear();
+				byRules.clear();
+				byIndex.clear();
+
+				for (RefRule r : refRules)
+					r.match(tags, zoom, type, expected);
+
+				if (type == 0) {
+					for (Rule r : rules)
+						r.matchNode(tagIds, tags.length, (byte) zoom, byRules);
+					index.matchNode(tagIds, tags.length, (byte) zoom, byIndex);
+				} else {
+					for (Rule r : rules)
+						r.matchWay(tagIds, tags.length, (byte) zoom, type, byRules);
+					index.matchWay(tagIds, tags.length, (byte) zoom, type, byIndex);
+				}
+
+				String msg = Arrays.toString(tags) + " z" + zoom + " type " + type;
+				assertEquals(msg, expected, byRules);
+				assertEquals(msg, expected, byIndex);
+
+				if (expected.isEmpty() || zoom > MAX_ZOOM)
+					continue;
+
+				matched++;
+				if (type == 0)
+					assertTrue(msg, filters[zoom].matchesNode(tags));
+				else
+					assertTrue(msg, filters[zoom].matchesWay(tags));
+			}
+		}
+		// check that the random themes are not trivial
+		assertTrue(matched > 10000);
+	}
+}